@@ -0,0 +1,73 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+
+/**
+ * 基准测试共用的工具：在临时目录中创建服务终端的各个部件，用丢弃数据的输出流代替真实的连接
+ */
+final class BenchmarkSupport {
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * 丢弃所有数据的输出流，代替用户的连接
+     */
+    static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    /**
+     * 创建一份聊天记录、历史记录和搜索索引都写入临时目录的配置
+     *
+     * @param directory 临时目录
+     * @return 配置对象
+     */
+    static ServerConfig config(File directory) {
+        return new ServerConfig()
+                .setChatLogFile(new File(directory, "Content.txt").getPath())
+                .setHistoryDirectory(new File(directory, "history").getPath())
+                .setSearchIndexDirectory(new File(directory, "search").getPath())
+                .setLogDurability(LogDurability.NONE)
+                .setRateLimit(0, 1) // 测量的是转发本身，不限速
+                .setMetricsReportSeconds(0);
+    }
+
+    /**
+     * 向群聊中加入账号连续的若干个用户
+     *
+     * @param userManager 用户的管理者
+     * @param firstId 第一个账号
+     * @param count 用户数
+     */
+    static void addUsers(UserSupervision userManager, int firstId, int count) {
+        for (int i = 0; i < count; i++) {
+            if (!userManager.addUser(firstId + i, new Socket(), NULL_OUTPUT)) {
+                throw new IllegalStateException("无法加入用户" + (firstId + i));
+            }
+        }
+    }
+
+    static File createTempDirectory() throws IOException {
+        return Files.createTempDirectory("chat-bench").toFile();
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,99 @@
+package server;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import protocol.FrameCodec;
+
+/**
+ * 发送线程追加一条聊天记录的耗时。写线程跟不上时追加会等待，因此结果也反映了写线程的吞吐量。
+ * 作为对照，fileWriterBaseline重现了改动前的写法：在群聊的全局锁中每条消息打开一次FileWriter、追加、关闭。
+ * 聊天记录和历史记录都写入临时目录
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatLogBenchmark {
+    @Param({"NONE", "INTERVAL", "BATCH"})
+    public LogDurability durability;
+
+    @Param({"true", "false"})
+    public boolean withHistory;
+
+    private File directory;
+    private HistoryStore historyStore;
+    private ChatLogWriter chatLog;
+    private static final String MESSAGE = "一条长度适中的聊天消息，用于测试聊天记录的追加 0123456789";
+    private final byte[] frame = FrameCodec.encodeMessage(MESSAGE);
+    private File baselineFile;
+    private final Object baselineLock = new Object(); // 改动前sendMessage是synchronized方法，写文件时持有全局锁
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchmarkSupport.createTempDirectory();
+        if (withHistory) {
+            historyStore = new HistoryStore(new File(directory, "history"), 64 * 1024 * 1024);
+        }
+        chatLog = new ChatLogWriter(new File(directory, "Content.txt"), historyStore, durability, 1000);
+        baselineFile = new File(directory, "Baseline.txt");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        chatLog.close();
+        BenchmarkSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public long append() {
+        return chatLog.append(9000, frame);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long appendContended() {
+        return chatLog.append(9000, frame);
+    }
+
+    /**
+     * 改动前的写法，与durability和withHistory参数无关，只需看其中一组结果
+     */
+    @Benchmark
+    public void fileWriterBaseline() throws IOException {
+        appendWithFileWriter();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void fileWriterBaselineContended() throws IOException {
+        appendWithFileWriter();
+    }
+
+    private void appendWithFileWriter() throws IOException {
+        synchronized (baselineLock) {
+            FileWriter fileWriter = new FileWriter(baselineFile, true);
+            fileWriter.write(MESSAGE);
+            fileWriter.close();
+        }
+    }
+}
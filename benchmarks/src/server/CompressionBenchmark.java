@@ -0,0 +1,65 @@
+package server;
+
+import java.net.ProtocolException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import protocol.FrameCodec;
+import protocol.FrameCompressor;
+
+/**
+ * 聊天消息的压缩和解压耗时，配合ServerMetrics中的压缩率权衡带宽与CPU
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    @Param({"1024", "16384"})
+    public int messageBytes;
+
+    @Param({"1", "-1", "9"}) // -1即Deflater.DEFAULT_COMPRESSION
+    public int level;
+
+    private FrameCompressor compressor;
+    private byte[] plain;
+    private byte[] compressed;
+
+    @Setup
+    public void setUp() {
+        compressor = new FrameCompressor(level);
+        // 中英文混合、有一定重复的文本，接近聊天中粘贴的长消息
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < messageBytes / 2; i++) {
+            text.append("第").append(i).append("行：服务终端把消息转发给所有用户 relay message ").append(i * 7919 % 1000).append('\n');
+        }
+        plain = FrameCodec.encodeMessage(text.toString());
+        compressed = compressor.compress(plain);
+        if (compressed == null) {
+            throw new IllegalStateException("测试文本无法压缩");
+        }
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return compressor.compress(plain);
+    }
+
+    @Benchmark
+    public byte[] decompress() throws ProtocolException {
+        return compressor.decompress(compressed, plain.length);
+    }
+}
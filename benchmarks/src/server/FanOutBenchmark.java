@@ -0,0 +1,76 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import protocol.FrameCodec;
+
+/**
+ * 一条群聊消息转发给不同人数的耗时：编码一次、写入聊天记录、放入每个接收者的发送队列。
+ * 发送队列由线程池写入丢弃数据的输出流，队列满时丢弃最旧的消息，不会阻塞发送者
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+    private static final int SENDER_ID = 9000;
+    private static final String MESSAGE = "大家好，这是一条用于基准测试的群聊消息 hello world";
+
+    @Param({"10", "100", "1000"})
+    public int recipients;
+
+    private File directory;
+    private UserSupervision userManager;
+    private byte[] frame;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchmarkSupport.createTempDirectory();
+        ServerConfig config = BenchmarkSupport.config(directory)
+                .setIdRange(SENDER_ID, SENDER_ID + recipients)
+                .setMaxUsers(recipients + 1);
+        userManager = new UserSupervision(config);
+        BenchmarkSupport.addUsers(userManager, SENDER_ID, recipients + 1);
+        frame = FrameCodec.encodeMessage(MESSAGE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        userManager.end();
+        BenchmarkSupport.deleteRecursively(directory);
+    }
+
+    /**
+     * 包括把字符串编码为字节流
+     */
+    @Benchmark
+    public void sendMessage() {
+        userManager.sendMessage(SENDER_ID, MESSAGE);
+    }
+
+    /**
+     * 原样转发已解码的字节流，即接收线程的实际路径
+     */
+    @Benchmark
+    public void relayMessage() {
+        userManager.relayMessage(SENDER_ID, frame);
+    }
+}
@@ -0,0 +1,103 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import protocol.FrameCodec;
+
+/**
+ * 多个发送者同时转发群聊消息时的总吞吐量。每个线程是一个不同的发送者，
+ * 转发时只读取用户表的快照，不加全局锁，因此各方法的结果应随线程数接近线性增长，直至处理器用完
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutScalingBenchmark {
+    private static final int FIRST_ID = 9000;
+    private static final String MESSAGE = "大家好，这是一条用于基准测试的群聊消息 hello world";
+
+    @Param({"100"})
+    public int recipients;
+
+    private File directory;
+    private UserSupervision userManager;
+    private byte[] frame;
+    private final AtomicInteger nextSender = new AtomicInteger();
+
+    /**
+     * 每个线程使用自己的发送者账号
+     */
+    @State(Scope.Thread)
+    public static class Sender {
+        int id;
+
+        @Setup(Level.Trial)
+        public void setUp(FanOutScalingBenchmark benchmark) {
+            id = FIRST_ID + benchmark.nextSender.getAndIncrement() % benchmark.recipients;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchmarkSupport.createTempDirectory();
+        ServerConfig config = BenchmarkSupport.config(directory)
+                .setIdRange(FIRST_ID, FIRST_ID + recipients - 1)
+                .setMaxUsers(recipients);
+        userManager = new UserSupervision(config);
+        BenchmarkSupport.addUsers(userManager, FIRST_ID, recipients);
+        frame = FrameCodec.encodeMessage(MESSAGE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        userManager.close();
+        BenchmarkSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void relay1Sender(Sender sender) {
+        userManager.relayMessage(sender.id, frame);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public void relay2Senders(Sender sender) {
+        userManager.relayMessage(sender.id, frame);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void relay4Senders(Sender sender) {
+        userManager.relayMessage(sender.id, frame);
+    }
+
+    /**
+     * 线程数等于处理器数
+     */
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void relayMaxSenders(Sender sender) {
+        userManager.relayMessage(sender.id, frame);
+    }
+}
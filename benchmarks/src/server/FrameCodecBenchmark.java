@@ -0,0 +1,83 @@
+package server;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import protocol.BufferPool;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.FrameDecoder;
+
+/**
+ * 报头的编码、解码和增量解码器的吞吐量。解码器的输入按8KB切开，模拟一次read读到多条或半条消息
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+    private static final int FRAMES = 1000; // 一次解码的消息数
+    private static final int READ_BYTES = 8 * 1024;
+
+    private int value = 9000;
+    private final byte[] head = FrameCodec.toByte(9000);
+    private byte[] stream;
+    private final BufferPool pool = new BufferPool();
+
+    @Setup
+    public void setUp() {
+        // 聊天消息与少量控制消息交替，长度从几个字节到几百个字节不等
+        ByteBuffer buffer = ByteBuffer.allocate(FRAMES * 512);
+        for (int i = 0; i < FRAMES; i++) {
+            if (i % 10 == 9) {
+                buffer.putInt(UserSupervision.JOIN_ROOM_FRAME).putInt(4).putInt(i);
+            } else {
+                byte[] body = new byte[16 + (i * 37) % 400];
+                buffer.putInt(body.length).put(body);
+            }
+        }
+        stream = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(stream);
+    }
+
+    @Benchmark
+    public byte[] toByte() {
+        return FrameCodec.toByte(value++);
+    }
+
+    @Benchmark
+    public int toInt() {
+        return FrameCodec.toInt(head);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decode(Blackhole blackhole) throws ProtocolException {
+        FrameDecoder decoder = new FrameDecoder(1024 * 1024, UserSupervision.MAX_CONTROL_FRAME_LENGTH, pool);
+        for (int offset = 0; offset < stream.length; offset += READ_BYTES) {
+            ByteBuffer received = ByteBuffer.wrap(stream, offset, Math.min(READ_BYTES, stream.length - offset));
+            Frame frame;
+            while ((frame = decoder.decode(received)) != null) {
+                blackhole.consume(frame.getData());
+                frame.release();
+            }
+        }
+    }
+}
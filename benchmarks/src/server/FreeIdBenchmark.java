@@ -0,0 +1,73 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 账号几乎用完时查找空闲账号的耗时：除最后一个账号外全部被占用，是查找最慢的情况
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FreeIdBenchmark {
+    private static final int MIN_ID = 9000;
+
+    @Param({"1000", "65536"})
+    public int capacity;
+
+    private File directory;
+    private UserSupervision userManager;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchmarkSupport.createTempDirectory();
+        ServerConfig config = BenchmarkSupport.config(directory)
+                .setIdRange(MIN_ID, MIN_ID + capacity - 1)
+                .setMaxUsers(capacity);
+        userManager = new UserSupervision(config);
+        BenchmarkSupport.addUsers(userManager, MIN_ID, capacity - 1);
+        if (userManager.getFreeId() != MIN_ID + capacity - 1) {
+            throw new IllegalStateException("空闲账号不是最后一个账号");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        userManager.end();
+        BenchmarkSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public int getFreeId() {
+        return userManager.getFreeId();
+    }
+
+    /**
+     * 最后一个账号被申请又释放，即用户频繁进出时的路径
+     */
+    @Benchmark
+    public boolean addAndRemove() {
+        int id = userManager.getFreeId();
+        userManager.addUser(id, new Socket(), BenchmarkSupport.NULL_OUTPUT);
+        return userManager.removeUser(id);
+    }
+}
@@ -0,0 +1,91 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import protocol.FrameCodec;
+
+/**
+ * 大量小聊天室的情况：每个聊天室只有几个成员，发送和加入、退出的代价应只与聊天室的人数有关，与聊天室总数无关
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomBenchmark {
+    private static final int MIN_ID = 9000;
+    private static final int USERS = 4000;
+    private static final int MEMBERS_PER_ROOM = 4;
+
+    @Param({"1000", "10000"})
+    public int rooms;
+
+    private File directory;
+    private UserSupervision userManager;
+    private final byte[] message = "聊天室里的一条消息".getBytes(FrameCodec.CHARSET);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchmarkSupport.createTempDirectory();
+        ServerConfig config = BenchmarkSupport.config(directory)
+                .setIdRange(MIN_ID, MIN_ID + USERS - 1)
+                .setMaxUsers(USERS);
+        userManager = new UserSupervision(config);
+        BenchmarkSupport.addUsers(userManager, MIN_ID, USERS);
+        // 成员依次轮转分配，每个用户加入的聊天室数大致相同
+        int next = 0;
+        for (int room = 1; room <= rooms; room++) {
+            for (int i = 0; i < MEMBERS_PER_ROOM; i++) {
+                userManager.joinRoom(MIN_ID + next, room);
+                next = (next + 1) % USERS;
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        userManager.end();
+        BenchmarkSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void sendToRoom() {
+        // 由聊天室的第一个成员发送
+        int roomId = 1 + ThreadLocalRandom.current().nextInt(rooms);
+        int senderId = MIN_ID + (roomId - 1) * MEMBERS_PER_ROOM % USERS;
+        userManager.relayRoomMessage(senderId, roomId, message, 0, message.length);
+    }
+
+    /**
+     * 一个不在聊天室中的用户加入后立即退出，不同线程多数时候操作不同的聊天室
+     */
+    @Benchmark
+    @Threads(4)
+    public void joinAndLeave() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int userId = MIN_ID + random.nextInt(USERS);
+        int roomId = rooms + 1 + random.nextInt(rooms);
+        userManager.joinRoom(userId, roomId);
+        userManager.leaveRoom(userId, roomId);
+    }
+}
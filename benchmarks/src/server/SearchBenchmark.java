@@ -0,0 +1,127 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import protocol.FrameCodec;
+
+/**
+ * 大量历史消息上的搜索耗时。准备阶段向临时目录写入指定条数的中文消息并等待索引线程建立索引，
+ * 消息由按齐夫分布抽取的双字词组成，少数词出现在大部分消息中，多数词很少出现。
+ * 默认的一千万条消息约占1GB磁盘，建立索引需要一分钟左右，可用 -p messages=1000000 缩小规模
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+    private static final int VOCABULARY = 5000; // 词表的大小
+    private static final int PAGE = 20; // 每页的条数
+    private static final String RARE_MARKER = "罕见标记"; // 每10007条消息出现一次
+
+    @Param({"10000000"})
+    public int messages;
+
+    private File directory;
+    private HistoryStore historyStore;
+    private SearchIndex searchIndex;
+    private String[] words;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        directory = BenchmarkSupport.createTempDirectory();
+        historyStore = new HistoryStore(new File(directory, "history"), 64 * 1024 * 1024);
+        words = new String[VOCABULARY];
+        for (int i = 0; i < VOCABULARY; i++) {
+            // 从常用汉字区间中取两个字组成一个词，不同的词不会相同
+            words[i] = new String(new char[]{(char) (0x4E00 + i % 100 * 37), (char) (0x6000 + i / 100 * 41)});
+        }
+
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < messages; i++) {
+            text.setLength(0);
+            text.append("用户").append(9000 + random.nextInt(1000)).append(":\n");
+            int count = 4 + random.nextInt(8);
+            for (int j = 0; j < count; j++) {
+                text.append(words[zipf(random)]);
+                if (random.nextInt(4) == 0) {
+                    text.append(' ');
+                }
+            }
+            if (i % 10007 == 0) {
+                text.append(RARE_MARKER);
+            }
+            byte[] data = text.append("\n\n").toString().getBytes(FrameCodec.CHARSET);
+            historyStore.append(9000, i, data, 0, data.length);
+        }
+
+        long start = System.nanoTime();
+        searchIndex = new SearchIndex(new File(directory, "search"), historyStore, 128 * 1024);
+        while (searchIndex.indexedId() < messages) {
+            Thread.sleep(100);
+        }
+        System.out.printf("%n建立%d条消息的索引用时%.1f秒%n", messages, (System.nanoTime() - start) / 1e9);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        searchIndex.close();
+        BenchmarkSupport.deleteRecursively(directory);
+    }
+
+    /**
+     * 很少出现的词，每个段中只有少数几条，需要查看多个段才能凑满一页
+     */
+    @Benchmark
+    public SearchIndex.Page rareTerm() {
+        return searchIndex.search(RARE_MARKER, Long.MAX_VALUE, PAGE);
+    }
+
+    /**
+     * 最常见的词，在最新的段中就能凑满一页
+     */
+    @Benchmark
+    public SearchIndex.Page commonTerm() {
+        return searchIndex.search(words[0], Long.MAX_VALUE, PAGE);
+    }
+
+    /**
+     * 一个常见词和一个较少见的词同时出现
+     */
+    @Benchmark
+    public SearchIndex.Page twoTerms() {
+        return searchIndex.search(words[1] + " " + words[200], Long.MAX_VALUE, PAGE);
+    }
+
+    /**
+     * 从中间的位置翻页，跳过较新的段
+     */
+    @Benchmark
+    public SearchIndex.Page middlePage() {
+        return searchIndex.search(words[50], messages / 2, PAGE);
+    }
+
+    // 按齐夫分布抽取词的序号，序号越小出现越多
+    private static int zipf(Random random) {
+        return (int) Math.min(VOCABULARY - 1, Math.exp(random.nextDouble() * Math.log(VOCABULARY)) - 1);
+    }
+}
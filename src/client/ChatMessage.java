@@ -0,0 +1,40 @@
+package client;
+
+/**
+ * 服务终端保存的一条聊天消息
+ */
+public class ChatMessage {
+    private final long id;
+    private final int senderId;
+    private final long timestamp;
+    private final String text;
+
+    /**
+     * @param id 消息的编号，全局连续递增
+     * @param senderId 发送者的账号
+     * @param timestamp 服务终端收到消息的时间（毫秒）
+     * @param text 消息内容
+     */
+    public ChatMessage(long id, int senderId, long timestamp, String text) {
+        this.id = id;
+        this.senderId = senderId;
+        this.timestamp = timestamp;
+        this.text = text;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public int getSenderId() {
+        return senderId;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
@@ -1,5 +1,7 @@
 package client;
 
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -8,52 +10,148 @@ import java.io.UnsupportedEncodingException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import protocol.BufferPool;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.FrameCompressor;
+import protocol.FrameDecoder;
 
 /**
- * 实现了客户端的功能
+ * 实现了客户端的功能。
+ * 所有发出的数据都放入发送队列，由单独的写线程按放入的顺序写出，多个线程同时发送也不会交错或乱序；
+ * 写线程把队列中积累的多条消息合并为一次写出和刷新。
+ * 服务终端同意恢复会话时，连接意外断开后会自动重新连接并凭令牌恢复原来的账号，
+ * 断开期间的群聊消息由服务终端补发，按序号丢弃重复的消息；断开期间发送的消息以失败完成。
+ * 服务终端的心跳在startReceiveMessage中自动回复，因此只有持续接收消息的客户端才应通过setHeartbeatRequested请求心跳；
+ * 请求了心跳却长时间不接收消息的客户端会被服务终端断开
  */
 public class Client {
     private static final String LOCALHOST = "127.0.0.1";
     private static final String CHARSET = "UTF-8"; // 编码方式
     private static final int TERMINAL_PORT = 8888; // 服务端的端口号
+    private static final int READ_BUFFER_BYTES = 8 * 1024; // 每次读取的最大字节数
+    private static final int MAX_FRAME_BYTES = 64 * 1024 * 1024; // 接收的一条消息的最大长度
+    private static final int COMPRESSION_THRESHOLD = 1024; // 达到此长度的消息才压缩
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024; // 写线程的缓冲区大小，合并的消息超过时分多次写出
+    private static final int MAX_BATCH_FRAMES = 256; // 写线程一次最多合并的消息条数
+    private static final long WRITER_STACK_BYTES = 256 * 1024; // 写线程的栈大小，一个进程中有大量客户端时节省内存
+    private static final long CLOSE_TIMEOUT_MILLIS = 1000; // 结束通讯时等待队列中的消息写出的时间
+    private static final long RECONNECT_DELAY_MILLIS = 1000; // 重新连接的间隔
 
-    private Socket socket;
+    /**
+     * 私聊消息的投递结果
+     */
+    public static final int DELIVERED = FrameCodec.DELIVERED; // 已交给接收者
+    public static final int UNKNOWN_RECIPIENT = FrameCodec.UNKNOWN_RECIPIENT; // 接收者不在线或不存在
+    public static final int RECIPIENT_DROPPED = FrameCodec.RECIPIENT_DROPPED; // 接收者接收过慢，已被服务终端断开
+    public static final int RATE_LIMITED = FrameCodec.RATE_LIMITED; // 发送过快，消息被服务终端拒绝
+
+    private final String host;
+    private final int port;
+    private volatile Socket socket;
     private InputStream inputStream;
-    private OutputStream outputStream;
+    private volatile Thread writerThread;
+    private final BlockingQueue<OutboundFrame> outbound = new LinkedBlockingQueue<>(); // 等待写线程写出的数据
+    private volatile IOException writeFailure; // 连接不可用的原因，之后的发送都以此失败
+    private final ByteBuffer readBuffer = (ByteBuffer) ByteBuffer.allocate(READ_BUFFER_BYTES).limit(0); // 已读取、未解码的数据
+    private final FrameCompressor compressor = new FrameCompressor(Deflater.DEFAULT_COMPRESSION);
+    private boolean compressionRequested = true; // 申请账号时是否请求压缩
+    private boolean resumeRequested = true; // 申请账号时是否请求在断开后恢复会话
+    private boolean presenceRequested = true; // 申请账号时是否请求在线名单
+    private boolean heartbeatRequested; // 申请账号时是否请求心跳，只发送不接收的客户端无法回复
+    private boolean capabilitiesRequested; // 申请账号时是否在最高字节中提出了功能
+    private volatile boolean compressionEnabled; // 服务终端是否同意了压缩
+    private volatile boolean resumeEnabled; // 服务终端是否同意了恢复会话
+    private volatile int userId; // 申请到的账号
+    private long resumeToken; // 恢复会话的令牌，每次恢复后更换
+    private final SequenceTracker sequenceTracker = new SequenceTracker();
+    private long pendingSequence = -1; // 下一条群聊消息的序号，-1表示没有序号
+    private boolean reconnecting; // 是否正在等待恢复会话的结果
+    private final int reconnectAttempts = Integer.getInteger("chat.reconnectAttempts", 5); // 断开后重新连接的次数
+    private volatile boolean ended; // 是否已调用endCommunication
+    private final BufferPool bufferPool = new BufferPool();
+    private FrameDecoder decoder = new FrameDecoder(MAX_FRAME_BYTES, MAX_FRAME_BYTES, bufferPool);
+    private final AtomicInteger nextMessageNo = new AtomicInteger(1); // 下一条私聊消息的编号
+    private final AtomicInteger nextQueryNo = new AtomicInteger(1); // 下一次搜索的编号
+    private FrameListener frameListener = new FrameListener() {
+    }; // 处理服务终端发来的控制消息
 
     /**
-     * 实例化一个客户端对象
+     * 实例化一个客户端对象，连接系统属性chat.host和chat.port指定的服务终端，默认为本机的8888端口
      */
     public Client() {
+        this(System.getProperty("chat.host", LOCALHOST), Integer.getInteger("chat.port", TERMINAL_PORT));
+    }
+
+    /**
+     * 实例化一个连接指定服务终端的客户端对象，集群中的每个节点都可以连接
+     *
+     * @param host 服务终端的地址
+     * @param port 服务终端的端口
+     */
+    public Client(String host, int port) {
+        this.host = host;
+        this.port = port;
         try {
-            //插一个管子，连接
-            socket = new Socket(LOCALHOST, TERMINAL_PORT);
-            //获取socket通道的输入流
-            inputStream = socket.getInputStream();
-            //获取socket通道的输出流
-            outputStream = socket.getOutputStream();
+            connect(null);
         } catch (UnknownHostException e) {
+            writeFailure = e;
             e.printStackTrace();
         } catch (IOException e) {
+            writeFailure = e;
             e.printStackTrace();
         }
     }
 
+    // 建立新的连接并启动写线程。handshake不为null时在写线程启动之前直接写出，不会被其它线程发送的消息插队
+    private void connect(byte[] handshake) throws IOException {
+        //插一个管子，连接
+        Socket connection = new Socket(host, port);
+        socket = connection;
+        // 写线程已经合并了消息，不再需要Nagle算法延迟发送
+        connection.setTcpNoDelay(true);
+        //获取socket通道的输入流
+        inputStream = connection.getInputStream();
+        //获取socket通道的输出流
+        OutputStream output = new BufferedOutputStream(connection.getOutputStream(), WRITE_BUFFER_BYTES);
+        if (handshake != null) {
+            output.write(handshake);
+            output.flush();
+        }
+        Thread writer = new Thread(null, () -> runWriter(connection, output), "client-writer", WRITER_STACK_BYTES);
+        writer.setDaemon(true);
+        writerThread = writer;
+        writer.start();
+    }
+
     /**
      * 向服务终端申请账号的请求
      *
      * @param id 用户申请的账号，id为0代表申请一个随机的账号
      */
     public void applyId(int id) {
-        byte[] byteId = toByte(id);
-        try {
-            //将申请的账号写进输出流
-            outputStream.write(byteId);
-            //刷新
-            outputStream.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // 在最高字节中提出希望使用的功能，账号超出范围时按原协议发送，由服务终端回复格式错误
+        capabilitiesRequested = ((compressionRequested || resumeRequested || presenceRequested || heartbeatRequested)
+                && id >= 0 && id <= FrameCodec.ID_MASK);
+        int capabilities = (compressionRequested ? FrameCodec.CAP_COMPRESSION : 0)
+                | (resumeRequested ? FrameCodec.CAP_RESUME : 0)
+                | (heartbeatRequested ? FrameCodec.CAP_HEARTBEAT : 0)
+                | (presenceRequested ? FrameCodec.CAP_PRESENCE : 0);
+        byte[] byteId = FrameCodec.toByte(capabilitiesRequested ? id | capabilities : id);
+        //将申请的账号放入发送队列
+        writeFrame(byteId);
     }
 
     /**
@@ -61,13 +159,24 @@ public class Client {
      */
     public int getApplyIdResult() {
         int result = -1;
-        byte[] byteResult = new byte[4];
 
         try {
-            //获取申请账号结果的输入流
-            inputStream.read(byteResult);
-            //转化结果
-            result = toInt(byteResult);
+            //读满4个字节的结果，之后收到的数据留在缓冲区中
+            while (readBuffer.remaining() < 4) {
+                fillReadBuffer();
+            }
+            result = readBuffer.getInt();
+            if (capabilitiesRequested && result > 3) {
+                // 申请成功，最高字节是服务终端同意的功能
+                compressionEnabled = (result & FrameCodec.CAP_COMPRESSION) != 0;
+                resumeEnabled = (result & FrameCodec.CAP_RESUME) != 0;
+                result &= FrameCodec.ID_MASK;
+            }
+            if (result > 3) {
+                userId = result;
+            }
+        } catch (EOFException e) {
+            // 服务终端未回复就断开了连接
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -76,105 +185,504 @@ public class Client {
     }
 
     /**
-     * 调用此方法以发送消息
+     * 调用此方法以发送消息，只放入发送队列即返回
      *
      * @param message 需发送的消息
      */
     public void sendMessage(String message) {
+        send(message);
+    }
+
+    /**
+     * 异步发送一条群聊消息，只放入发送队列即返回。同一客户端发出的消息按调用的顺序写出
+     *
+     * @param message 需发送的消息
+     * @return 消息写入连接后完成；连接不可用时以IOException异常完成
+     */
+    public CompletableFuture<Void> send(String message) {
+        // 与服务终端共用编码，得到报头+信息的完整字节流
+        byte[] outByte = FrameCodec.encodeMessage(message);
+
+        // 较长的消息在双方协商了压缩时压缩后发送
+        if (compressionEnabled && outByte.length - FrameCodec.HEAD_LENGTH >= COMPRESSION_THRESHOLD) {
+            byte[] compressed = compressor.compress(outByte);
+            if (compressed != null) {
+                outByte = compressed;
+            }
+        }
+
+        return writeFrame(outByte);
+    }
+
+    /**
+     * 设置申请账号时是否请求压缩较长的聊天消息，需在applyId之前调用，默认请求
+     *
+     * @param compressionRequested 是否请求压缩
+     */
+    public void setCompressionRequested(boolean compressionRequested) {
+        this.compressionRequested = compressionRequested;
+    }
+
+    /**
+     * 设置申请账号时是否请求恢复会话，需在applyId之前调用，默认请求。
+     * 不请求时连接意外断开后不会自动重新连接
+     *
+     * @param resumeRequested 是否请求恢复会话
+     */
+    public void setResumeRequested(boolean resumeRequested) {
+        this.resumeRequested = resumeRequested;
+    }
+
+    /**
+     * 设置申请账号时是否请求在线名单，需在applyId之前调用，默认请求。
+     * 请求时先通过FrameListener.onRoster收到完整名单，之后通过FrameListener.onPresenceChanged收到变化
+     *
+     * @param presenceRequested 是否请求在线名单
+     */
+    public void setPresenceRequested(boolean presenceRequested) {
+        this.presenceRequested = presenceRequested;
+    }
+
+    /**
+     * 设置申请账号时是否请求心跳，需在applyId之前调用，默认不请求。
+     * 心跳只在startReceiveMessage中回复，只有会一直有线程调用startReceiveMessage的调用者才应请求，
+     * 否则连接空闲一段时间后会被服务终端断开。请求后服务终端能及时发现已失效的连接
+     *
+     * @param heartbeatRequested 是否请求心跳
+     */
+    public void setHeartbeatRequested(boolean heartbeatRequested) {
+        this.heartbeatRequested = heartbeatRequested;
+    }
+
+    /**
+     * @return 当前的账号，恢复会话失败而重新申请时可能改变
+     */
+    public int getUserId() {
+        return userId;
+    }
+
+    /**
+     * @return 申请账号时服务终端是否同意了压缩
+     */
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * 设置处理控制消息（如历史消息）的监听器
+     *
+     * @param frameListener 控制消息的监听器
+     */
+    public void setFrameListener(FrameListener frameListener) {
+        this.frameListener = frameListener;
+    }
+
+    /**
+     * 请求编号小于beforeId的最后count条历史消息，结果通过FrameListener.onHistory返回
+     *
+     * @param beforeId 只返回编号小于它的消息，Long.MAX_VALUE表示最新的消息
+     * @param count 最多返回的条数
+     */
+    public void requestHistory(long beforeId, int count) {
+        // 控制消息：类型 + 4个字节的长度 + 内容（8个字节的编号 + 4个字节的条数）
+        ByteBuffer frame = ByteBuffer.allocate(20);
+        frame.putInt(FrameCodec.HISTORY_FRAME).putInt(12).putLong(beforeId).putInt(count);
+        writeFrame(frame.array());
+    }
+
+    /**
+     * 搜索包含查询语句中所有词语的历史消息，从新到旧返回，结果通过FrameListener.onSearchResults返回。
+     * 中文按字查找，不需要分词；英文和数字按整个词查找，不区分大小写
+     *
+     * @param query 查询语句，多个词语之间用空格分隔
+     * @param beforeId 只返回编号小于它的消息，Long.MAX_VALUE表示从最新的消息开始，翻页时使用上一页返回的编号
+     * @param count 最多返回的条数
+     * @return 此次搜索的编号，与结果中的编号对应
+     */
+    public int search(String query, long beforeId, int count) {
+        int queryNo = nextQueryNo.getAndIncrement();
+        try {
+            // 控制消息：类型 + 4个字节的长度 + 内容（4个字节的搜索编号 + 8个字节的编号 + 4个字节的条数 + 查询语句）
+            byte[] byteQuery = query.getBytes(CHARSET);
+            writeFrame(ByteBuffer.allocate(24 + byteQuery.length).putInt(FrameCodec.SEARCH_FRAME).putInt(16 + byteQuery.length)
+                    .putInt(queryNo).putLong(beforeId).putInt(count).put(byteQuery).array());
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+        }
+        return queryNo;
+    }
+
+    /**
+     * 加入聊天室，聊天室不存在时由服务终端创建。结果通过FrameListener.onRoomJoined返回
+     *
+     * @param roomId 聊天室的编号
+     */
+    public void joinRoom(int roomId) {
+        writeFrame(ByteBuffer.allocate(12).putInt(FrameCodec.JOIN_ROOM_FRAME).putInt(4).putInt(roomId).array());
+    }
+
+    /**
+     * 退出聊天室，服务终端确认后回调FrameListener.onRoomLeft
+     *
+     * @param roomId 聊天室的编号
+     */
+    public void leaveRoom(int roomId) {
+        writeFrame(ByteBuffer.allocate(12).putInt(FrameCodec.LEAVE_ROOM_FRAME).putInt(4).putInt(roomId).array());
+    }
+
+    /**
+     * 向已加入的聊天室发送消息，只有此聊天室的其它成员会收到
+     *
+     * @param roomId 聊天室的编号
+     * @param message 需发送的消息
+     */
+    public void sendRoomMessage(int roomId, String message) {
         try {
-            //调整编码方式
             byte[] byteMessage = message.getBytes(CHARSET);
-            //记录长度
-            int length = byteMessage.length;
-            // 字节流前的报头，代表了消息字节流的长度，用于辅助接收端判断是否接收完毕
-            byte[] head = toByte(length);
-
-            // 得到最终被传输的字节流：长度+报头
-            byte[] outByte = new byte[length + head.length];
-            //数组之间的复制
-            System.arraycopy(head, 0, outByte, 0, head.length);
-            System.arraycopy(byteMessage, 0, outByte, head.length, byteMessage.length);
-
-            outputStream.write(outByte);
-            outputStream.flush();
+            writeFrame(ByteBuffer.allocate(12 + byteMessage.length).putInt(FrameCodec.ROOM_MESSAGE_FRAME)
+                    .putInt(4 + byteMessage.length).putInt(roomId).put(byteMessage).array());
         } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
-        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * 向一个用户发送私聊消息，只有此用户会收到。投递结果通过FrameListener.onDeliveryStatus返回
+     *
+     * @param targetId 接收者的账号
+     * @param message 需发送的消息
+     * @return 此消息的编号，与投递结果中的编号对应
+     */
+    public int sendDirectMessage(int targetId, String message) {
+        int messageNo = nextMessageNo.getAndIncrement();
+        try {
+            byte[] byteMessage = message.getBytes(CHARSET);
+            writeFrame(ByteBuffer.allocate(16 + byteMessage.length).putInt(FrameCodec.DIRECT_MESSAGE_FRAME)
+                    .putInt(8 + byteMessage.length).putInt(targetId).putInt(messageNo).put(byteMessage).array());
+        } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
         }
+        return messageNo;
+    }
+
+    // 将一条完整的消息放入发送队列，写出后完成返回的CompletableFuture
+    private CompletableFuture<Void> writeFrame(byte[] frame) {
+        OutboundFrame outboundFrame = new OutboundFrame(frame);
+        IOException failure = writeFailure;
+        if (failure != null) {
+            outboundFrame.future.completeExceptionally(failure);
+            return outboundFrame.future;
+        }
+        outbound.add(outboundFrame);
+        if (writeFailure != null) {
+            failPending(); // 放入时写线程恰好已经退出
+        }
+        return outboundFrame.future;
+    }
+
+    // 写线程：取出队列中积累的所有消息，依次写入缓冲区后只刷新一次，再通知发送者
+    private void runWriter(Socket socket, OutputStream outputStream) {
+        List<OutboundFrame> batch = new ArrayList<>(MAX_BATCH_FRAMES);
+        IOException failure;
+        try {
+            while (true) {
+                batch.add(outbound.take());
+                outbound.drainTo(batch, MAX_BATCH_FRAMES - 1);
+                for (OutboundFrame frame : batch) {
+                    outputStream.write(frame.data);
+                }
+                outputStream.flush();
+                for (OutboundFrame frame : batch) {
+                    frame.future.complete(null);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            failure = writeFailure; // 由endCommunication或closeConnection设置
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                System.out.println("向服务终端发送消息失败：" + e.getMessage());
+            }
+            failure = e;
+        }
+
+        for (OutboundFrame frame : batch) {
+            frame.future.completeExceptionally(failure);
+        }
+        if (writerThread != Thread.currentThread()) {
+            return; // 已重新连接，队列属于新的写线程
+        }
+        writeFailure = failure;
+        failPending();
+    }
+
+    // 连接不可用后，队列中剩余的消息都以失败完成
+    private void failPending() {
+        OutboundFrame frame;
+        while ((frame = outbound.poll()) != null) {
+            frame.future.completeExceptionally(writeFailure);
+        }
     }
 
     /**
-     * 用于接收新消息，每次调用只可接收一条新消息
+     * 用于接收新消息，每次调用只可接收一条新消息。期间收到的控制消息交给FrameListener处理。
+     * 连接意外断开且服务终端同意了恢复会话时，先重新连接再继续接收
      *
-     * @return 返回接收到的信息（字符串类型）
+     * @return 返回接收到的信息（字符串类型），连接已断开时返回空字符串
      */
     public String startReceiveMessage() {
-        String receiveMessage = "";
-        byte[] head = new byte[4]; // 消息的长度
+        while (true) {
+            try {
+                return receiveChatMessage();
+            } catch (SocketException | EOFException e) {
+                if (ended || !resumeEnabled || !reconnect(e)) {
+                    return "";
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return "";
+            }
+        }
+    }
 
-        try {
-            //读消息的报头
-            inputStream.read(head);
-            //存储byte类型的消息
-            int messageLength = toInt(head);
-            byte[] byteMessage = new byte[messageLength];
-
-            //读消息
-            inputStream.read(byteMessage);
-            //调整编码（转换）
-            receiveMessage = new String(byteMessage, CHARSET);
-        } catch (SocketException e) {
+    // 读到一条完整的聊天消息为止，期间的控制消息处理后继续读下一条，重复补发的消息直接丢弃
+    private String receiveChatMessage() throws IOException {
+        while (true) {
+            Frame frame = decoder.decode(readBuffer);
+            if (frame == null) {
+                fillReadBuffer();
+            } else if (frame.isControl()) {
+                receiveControlFrame(frame);
+                frame.release();
+            } else if (!frame.isEnd()) {
+                long sequence = pendingSequence;
+                pendingSequence = -1;
+                if (sequence >= 0 && !sequenceTracker.markSeen(sequence)) {
+                    continue;
+                }
+                byte[] data = frame.getData();
+                if (frame.isCompressed()) {
+                    data = compressor.decompress(data, MAX_FRAME_BYTES);
+                }
+                //调整编码（转换），跳过4个字节的报头
+                return new String(data, 4, data.length - 4, CHARSET);
+            }
+        }
+    }
+
+    // 连接意外断开后按间隔重新连接，凭令牌恢复会话，成功时返回true。结果由随后的RESUME_FRAME给出
+    private boolean reconnect(IOException cause) {
+        System.out.println("与服务终端的连接已断开，正在重新连接：" + cause.getMessage());
+        closeConnection(cause);
+        for (int attempt = 0; attempt < reconnectAttempts && !ended; attempt++) {
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
 
+            // 账号申请 + 8个字节的令牌 + 8个字节的已连续收到的最后一条消息的序号
+            int request = userId | FrameCodec.CAP_RESUME | FrameCodec.RESUME_REQUEST
+                    | (heartbeatRequested ? FrameCodec.CAP_HEARTBEAT : 0)
+                    | (compressionRequested ? FrameCodec.CAP_COMPRESSION : 0)
+                    | (presenceRequested ? FrameCodec.CAP_PRESENCE : 0);
+            byte[] handshake = ByteBuffer.allocate(20).putInt(request).putLong(resumeToken)
+                    .putLong(sequenceTracker.getWatermark()).array();
+            readBuffer.clear().limit(0);
+            decoder.close();
+            decoder = new FrameDecoder(MAX_FRAME_BYTES, MAX_FRAME_BYTES, bufferPool);
+            pendingSequence = -1;
+            try {
+                connect(handshake);
+            } catch (IOException e) {
+                System.out.println("重新连接失败：" + e.getMessage());
+                closeConnection(e);
+                continue;
+            }
+
+            capabilitiesRequested = true;
+            if (getApplyIdResult() > 3 && resumeEnabled && !ended) {
+                reconnecting = true;
+                writeFailure = null;
+                return true;
+            }
+            closeConnection(new SocketException("恢复会话失败"));
+        }
+        return false;
+    }
+
+    // 关闭当前连接，队列中和之后发送的消息都以cause失败，直至重新连接成功
+    private void closeConnection(IOException cause) {
+        writeFailure = cause;
+        try {
+            if (socket != null) {
+                socket.close();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
-
-        return receiveMessage;
+        Thread writer = writerThread;
+        if (writer != null) {
+            writer.interrupt();
+            try {
+                writer.join(CLOSE_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        failPending();
     }
 
     /**
      * 调用此方法可用结束与服务终端的通讯
      */
     public void endCommunication() {
+        ended = true;
+        // -1 表示结束整个群聊
+        int result = -1;
+        //用byte形式存储结果
+        byte[] end = FrameCodec.toByte(result);
+
+        //报告出去：结束了，等待之前放入队列的消息都写出
+        try {
+            writeFrame(end).get(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // 连接已不可用或写出过慢，直接关闭
+        }
+        if (writeFailure == null) {
+            writeFailure = new SocketException("已结束与服务终端的通讯");
+        }
+        if (writerThread != null) {
+            writerThread.interrupt();
+        }
         try {
-            // -1 表示结束整个群聊
-            int result = -1;
-            //用byte形式存储结果
-            byte[] end = toByte(result);
-
-            //报告出去：结束了
-            outputStream.write(end);
-            outputStream.flush();
             //关闭socket通道
-            socket.close();
+            if (socket != null) {
+                socket.close();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    // 将int类型的数据转换为4位byte类型的数据
-    private byte[] toByte(int intData) {
-        byte[] byteData = new byte[4];
-        byteData[0] = (byte) ((intData >> 24) & 0xFF);
-        byteData[1] = (byte) ((intData >> 16) & 0xFF);
-        byteData[2] = (byte) ((intData >> 8) & 0xFF);
-        byteData[3] = (byte) (intData & 0xFF);
-        return byteData;
+    private static List<Integer> toList(int[] ids) {
+        List<Integer> list = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            list.add(id);
+        }
+        return list;
     }
 
-    // 将4位byte类型的数据转换为int类型的数据
-    private int toInt(byte[] byteData) {
-        int intData = 0;
-
-        for (int i = 0; i < byteData.length; i++) {
-            int shift = (3 - i) * 8;
-            intData += ((byteData[i] & 0xFF) << shift);
+    // 解析一条控制消息，并交给frameListener
+    private void receiveControlFrame(Frame frame) throws IOException {
+        int type = frame.getType();
+        byte[] payload = frame.getData();
+        int length = frame.getLength();
+        ByteBuffer buffer = ByteBuffer.wrap(payload, 0, length);
+        if (type == FrameCodec.HISTORY_FRAME) {
+            // 4个字节的条数 + 每条消息的（8个字节的编号 + 4个字节的发送者 + 8个字节的时间 + 4个字节的长度 + 消息）
+            int count = buffer.getInt();
+            List<ChatMessage> messages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long id = buffer.getLong();
+                int senderId = buffer.getInt();
+                long timestamp = buffer.getLong();
+                byte[] text = new byte[buffer.getInt()];
+                buffer.get(text);
+                messages.add(new ChatMessage(id, senderId, timestamp, new String(text, CHARSET)));
+            }
+            frameListener.onHistory(messages);
+        } else if (type == FrameCodec.JOIN_ROOM_FRAME) {
+            // 4个字节的聊天室编号 + 4个字节的人数，人数为0表示加入失败
+            frameListener.onRoomJoined(buffer.getInt(), buffer.getInt());
+        } else if (type == FrameCodec.LEAVE_ROOM_FRAME) {
+            frameListener.onRoomLeft(buffer.getInt());
+        } else if (type == FrameCodec.ROOM_MESSAGE_FRAME) {
+            // 4个字节的聊天室编号 + 4个字节的发送者 + 消息
+            int roomId = buffer.getInt();
+            int senderId = buffer.getInt();
+            frameListener.onRoomMessage(roomId, senderId, new String(payload, 8, length - 8, CHARSET));
+        } else if (type == FrameCodec.DIRECT_MESSAGE_FRAME) {
+            // 4个字节的发送者 + 消息
+            int senderId = buffer.getInt();
+            frameListener.onDirectMessage(senderId, new String(payload, 4, length - 4, CHARSET));
+        } else if (type == FrameCodec.DELIVERY_STATUS_FRAME) {
+            // 4个字节的消息编号 + 4个字节的投递结果
+            frameListener.onDeliveryStatus(buffer.getInt(), buffer.getInt());
+        } else if (type == FrameCodec.SEQUENCE_FRAME) {
+            pendingSequence = buffer.getLong();
+        } else if (type == FrameCodec.SENT_SEQUENCE_FRAME) {
+            sequenceTracker.markSeen(buffer.getLong());
+        } else if (type == FrameCodec.SEARCH_FRAME) {
+            // 4个字节的搜索编号 + 8个字节的下一页编号 + 4个字节的条数
+            // + 每条消息的（8个字节的编号 + 4个字节的发送者 + 8个字节的时间 + 4个字节的长度 + 摘要）
+            int queryNo = buffer.getInt();
+            long nextBeforeId = buffer.getLong();
+            int count = buffer.getInt();
+            List<ChatMessage> messages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long id = buffer.getLong();
+                int senderId = buffer.getInt();
+                long timestamp = buffer.getLong();
+                byte[] snippet = new byte[buffer.getInt()];
+                buffer.get(snippet);
+                messages.add(new ChatMessage(id, senderId, timestamp, new String(snippet, CHARSET)));
+            }
+            frameListener.onSearchResults(queryNo, messages, nextBeforeId);
+        } else if (type == FrameCodec.ROSTER_FRAME) {
+            // 4个字节的人数 + 在线的账号，账号列表的格式见FrameCodec.encodeIds
+            frameListener.onRoster(toList(FrameCodec.decodeIds(buffer, buffer.getInt())));
+        } else if (type == FrameCodec.PRESENCE_FRAME) {
+            // 4个字节的上线人数 + 4个字节的下线人数 + 上线的账号 + 下线的账号
+            int joinedCount = buffer.getInt();
+            int leftCount = buffer.getInt();
+            List<Integer> joined = toList(FrameCodec.decodeIds(buffer, joinedCount));
+            frameListener.onPresenceChanged(joined, toList(FrameCodec.decodeIds(buffer, leftCount)));
+        } else if (type == FrameCodec.RATE_LIMITED_FRAME) {
+            // 4个字节的建议等待时间（毫秒）
+            frameListener.onRateLimited(buffer.getInt());
+        } else if (type == FrameCodec.PING_FRAME) {
+            // 服务终端在连接空闲时检查客户端是否还在，回复时不需要内容
+            writeFrame(ByteBuffer.allocate(8).putInt(FrameCodec.PONG_FRAME).putInt(0).array());
+        } else if (type == FrameCodec.RESUME_FRAME) {
+            // 4个字节的结果 + 8个字节的新令牌 + 8个字节的起始序号
+            int status = buffer.getInt();
+            resumeToken = buffer.getLong();
+            sequenceTracker.start(buffer.getLong(), status == FrameCodec.NEW_SESSION);
+            if (reconnecting) {
+                reconnecting = false;
+                frameListener.onReconnected(userId, status == FrameCodec.RESUMED);
+            }
         }
+    }
 
-        return intData;
+    // 从连接读取更多数据追加到readBuffer，对方断开连接时抛出EOFException
+    private void fillReadBuffer() throws IOException {
+        readBuffer.compact();
+        try {
+            int count = inputStream.read(readBuffer.array(), readBuffer.position(), readBuffer.remaining());
+            if (count < 0) {
+                throw new EOFException();
+            }
+            readBuffer.position(readBuffer.position() + count);
+        } finally {
+            readBuffer.flip();
+        }
     }
 
-}
+    /**
+     * 发送队列中的一条消息，写出后完成future
+     */
+    private static class OutboundFrame {
+        private final byte[] data;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
 
+        OutboundFrame(byte[] data) {
+            this.data = data;
+        }
+    }
 
+}
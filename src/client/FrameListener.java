@@ -0,0 +1,106 @@
+package client;
+
+import java.util.List;
+
+/**
+ * 接收服务终端发来的控制消息，默认不做任何处理。回调在调用startReceiveMessage的线程中执行
+ */
+public interface FrameListener {
+
+    /**
+     * 收到一批历史消息
+     *
+     * @param messages 按编号从小到大排列的历史消息，没有更早的消息时为空
+     */
+    default void onHistory(List<ChatMessage> messages) {
+    }
+
+    /**
+     * 收到一页搜索结果
+     *
+     * @param queryNo Client.search返回的搜索编号
+     * @param messages 从新到旧排列的消息，内容是匹配位置附近的摘要而不是完整的消息
+     * @param nextBeforeId 查询下一页时传给Client.search的编号，-1表示没有更多结果
+     */
+    default void onSearchResults(int queryNo, List<ChatMessage> messages, long nextBeforeId) {
+    }
+
+    /**
+     * 收到完整的在线名单，登录和重新连接后各收到一次，替换之前的名单
+     *
+     * @param onlineIds 在线的账号，从小到大排列，可能包括自己
+     */
+    default void onRoster(List<Integer> onlineIds) {
+    }
+
+    /**
+     * 在线名单发生了变化，服务终端把一段时间内的变化合并后发出
+     *
+     * @param joined 上线的账号，从小到大排列
+     * @param left 下线的账号，从小到大排列
+     */
+    default void onPresenceChanged(List<Integer> joined, List<Integer> left) {
+    }
+
+    /**
+     * 加入聊天室的结果
+     *
+     * @param roomId 聊天室的编号
+     * @param memberCount 加入后聊天室的人数，0表示加入失败
+     */
+    default void onRoomJoined(int roomId, int memberCount) {
+    }
+
+    /**
+     * 已退出聊天室
+     *
+     * @param roomId 聊天室的编号
+     */
+    default void onRoomLeft(int roomId) {
+    }
+
+    /**
+     * 收到聊天室中其它成员的消息
+     *
+     * @param roomId 聊天室的编号
+     * @param senderId 发送者的账号
+     * @param message 消息内容
+     */
+    default void onRoomMessage(int roomId, int senderId, String message) {
+    }
+
+    /**
+     * 收到私聊消息
+     *
+     * @param senderId 发送者的账号
+     * @param message 消息内容
+     */
+    default void onDirectMessage(int senderId, String message) {
+    }
+
+    /**
+     * 收到私聊消息的投递结果
+     *
+     * @param messageNo sendDirectMessage返回的消息编号
+     * @param status Client.DELIVERED、Client.UNKNOWN_RECIPIENT、Client.RECIPIENT_DROPPED或Client.RATE_LIMITED
+     */
+    default void onDeliveryStatus(int messageNo, int status) {
+    }
+
+    /**
+     * 连接意外断开后已重新连接，断开期间的群聊消息随后补发
+     *
+     * @param userId 重新连接后的账号，无法恢复会话时可能与原来的不同
+     * @param complete 是否补发了断开期间的所有群聊消息
+     */
+    default void onReconnected(int userId, boolean complete) {
+    }
+
+    /**
+     * 发送过快，服务终端开始拒绝此客户端的消息。连续被拒绝的消息只通知一次
+     *
+     * @param retryAfterMillis 建议等待的时间（毫秒），之后可以继续发送
+     */
+    default void onRateLimited(int retryAfterMillis) {
+    }
+}
@@ -0,0 +1,284 @@
+package client;
+
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import protocol.FrameCodec;
+import server.LatencyHistogram;
+
+/**
+ * 无界面的负载测试工具：用Client模拟大量用户，按固定速率发送指定长度的消息，统计端到端的投递延迟和吞吐量。
+ * 每条消息的开头是它计划发出的时刻（System.nanoTime），接收者收到后与当前时刻相减得到延迟。
+ * 发送按计划时刻进行，发送线程落后时延迟从计划时刻算起，不会因发送变慢而低估延迟。
+ * 所有用户在同一进程中，因此只能连接本机或时钟一致的服务终端。
+ * 参数通过系统属性设置，例如：
+ * java -Dchat.load.users=1000 -Dchat.load.rate=2 -Dchat.load.report=nio.txt client.LoadGenerator
+ * 报告每行一项，顺序固定，可直接用diff比较不同版本的结果
+ */
+public class LoadGenerator {
+    private static final char TIMESTAMP_END = '|'; // 消息中时刻与填充内容的分隔符
+    private static final int HISTOGRAM_PRECISION_BITS = 7; // 相对误差不超过1/128
+    private static final long RECEIVER_STACK_BYTES = 256 * 1024; // 接收线程的栈大小，用户多时节省内存
+
+    private final int users; // 模拟的用户数
+    private final double rate; // 每个用户每秒发送的消息数
+    private final int messageBytes; // 每条消息的长度（字节）
+    private final int roomSize; // 大于0时每roomSize个用户组成一个聊天室，在聊天室中发送；否则在群聊中发送
+    private final int warmupSeconds; // 预热时间，期间的消息不计入结果
+    private final int durationSeconds; // 计入结果的测试时间
+    private final int drainSeconds; // 停止发送后等待在途消息的时间
+    private final boolean compression; // 是否请求压缩
+
+    private final List<Client> clients = new ArrayList<>();
+    private final LatencyHistogram latency = new LatencyHistogram(HISTOGRAM_PRECISION_BITS); // 端到端延迟（纳秒）
+    private final LatencyHistogram handshakeLatency = new LatencyHistogram(HISTOGRAM_PRECISION_BITS); // 申请账号的耗时（纳秒）
+    private final LongAdder sent = new LongAdder(); // 统计区间内发出的消息数
+    private final LongAdder expected = new LongAdder(); // 统计区间内发出的消息应被收到的次数
+    private final LongAdder delivered = new LongAdder(); // 统计区间内发出且已收到的消息数
+    private final LongAdder failedHandshakes = new LongAdder();
+    private volatile long measureStart; // 统计区间的开始时刻，计划在此之后发出的消息才计入结果
+    private volatile long measureEnd = Long.MAX_VALUE;
+
+    /**
+     * 根据系统属性创建负载测试，未设置的属性使用默认值
+     */
+    public LoadGenerator() {
+        users = Integer.getInteger("chat.load.users", 100);
+        rate = Double.parseDouble(System.getProperty("chat.load.rate", "1"));
+        messageBytes = Integer.getInteger("chat.load.messageBytes", 128);
+        roomSize = Integer.getInteger("chat.load.roomSize", 0);
+        warmupSeconds = Integer.getInteger("chat.load.warmupSeconds", 5);
+        durationSeconds = Integer.getInteger("chat.load.durationSeconds", 30);
+        drainSeconds = Integer.getInteger("chat.load.drainSeconds", 2);
+        compression = Boolean.parseBoolean(System.getProperty("chat.load.compression", "true"));
+        if (users < 2 || rate <= 0 || messageBytes < 24 || roomSize == 1 || durationSeconds <= 0) {
+            throw new IllegalArgumentException("users至少为2，rate须大于0，messageBytes至少为24，roomSize不能为1");
+        }
+    }
+
+    /**
+     * 连接所有用户、发送、等待在途消息，然后生成报告
+     *
+     * @return 报告
+     * @throws InterruptedException 等待时被中断
+     */
+    public String run() throws InterruptedException {
+        long connectStart = System.nanoTime();
+        connect();
+        double connectSeconds = (System.nanoTime() - connectStart) / 1e9;
+
+        // 每个用户一个发送任务，首次发送的时刻在一个周期内随机分布，避免所有用户同时发送
+        long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()));
+        long start = System.nanoTime();
+        measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        measureEnd = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+        for (int i = 0; i < clients.size(); i++) {
+            long firstSend = start + ThreadLocalRandom.current().nextLong(periodNanos);
+            senders.scheduleAtFixedRate(new SendTask(i, firstSend, periodNanos),
+                    firstSend - start, periodNanos, TimeUnit.NANOSECONDS);
+        }
+
+        TimeUnit.NANOSECONDS.sleep(measureEnd - System.nanoTime());
+        senders.shutdownNow();
+        senders.awaitTermination(5, TimeUnit.SECONDS);
+        TimeUnit.SECONDS.sleep(drainSeconds);
+
+        String report = report(connectSeconds);
+        for (Client client : clients) {
+            client.endCommunication();
+        }
+        return report;
+    }
+
+    // 依次连接并申请账号，每个用户一个接收线程；按聊天室分组时申请后立即加入聊天室
+    private void connect() throws InterruptedException {
+        for (int i = 0; i < users; i++) {
+            long start = System.nanoTime();
+            Client client = new Client();
+            client.setCompressionRequested(compression);
+            client.setHeartbeatRequested(true); // 每个用户都有接收线程
+            client.applyId(0);
+            int result = client.getApplyIdResult();
+            if (result <= 3) {
+                failedHandshakes.increment();
+                continue;
+            }
+            handshakeLatency.record(System.nanoTime() - start);
+
+            if (roomSize > 0) {
+                client.setFrameListener(new FrameListener() {
+                    @Override
+                    public void onRoomMessage(int roomId, int senderId, String message) {
+                        onReceived(message);
+                    }
+                });
+                client.joinRoom(roomOf(clients.size()));
+            }
+            clients.add(client);
+            Thread receiver = new Thread(null, () -> receive(client), "load-receiver-" + result, RECEIVER_STACK_BYTES);
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+        if (clients.size() < 2) {
+            throw new IllegalStateException("只有" + clients.size() + "个用户申请到了账号");
+        }
+        TimeUnit.MILLISECONDS.sleep(500); // 等待加入聊天室的回复
+    }
+
+    // 接收线程：群聊消息由返回值得到，聊天室消息在读取期间交给FrameListener，连接断开时返回空串
+    private void receive(Client client) {
+        while (true) {
+            String message = client.startReceiveMessage();
+            if (message.isEmpty()) {
+                return;
+            }
+            onReceived(message);
+        }
+    }
+
+    private void onReceived(String message) {
+        long now = System.nanoTime();
+        int end = message.indexOf(TIMESTAMP_END);
+        if (end <= 0) {
+            return;
+        }
+        long scheduled;
+        try {
+            scheduled = Long.parseLong(message.substring(0, end));
+        } catch (NumberFormatException e) {
+            return; // 不是负载测试发出的消息
+        }
+        if (scheduled >= measureStart && scheduled < measureEnd) {
+            delivered.increment();
+            latency.record(now - scheduled);
+        }
+    }
+
+    private int roomOf(int index) {
+        return 1 + index / roomSize;
+    }
+
+    // 一条消息会被多少个用户收到
+    private int recipientsOf(int index) {
+        if (roomSize <= 0) {
+            return clients.size() - 1;
+        }
+        int firstInRoom = index / roomSize * roomSize;
+        return Math.min(roomSize, clients.size() - firstInRoom) - 1;
+    }
+
+    /**
+     * 一个用户的发送任务，第k次执行发送计划在firstSend + k * period发出的消息
+     */
+    private class SendTask implements Runnable {
+        private final int index;
+        private final Client client;
+        private final int recipients;
+        private final String padding;
+        private long nextScheduled;
+        private final long periodNanos;
+
+        SendTask(int index, long firstSend, long periodNanos) {
+            this.index = index;
+            client = clients.get(index);
+            recipients = recipientsOf(index);
+            nextScheduled = firstSend;
+            this.periodNanos = periodNanos;
+            // 时刻最多19个字节，加上分隔符后用ASCII字符补足长度
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < messageBytes - 20; i++) {
+                builder.append((char) ('a' + (index + i) % 26));
+            }
+            padding = builder.toString();
+        }
+
+        @Override
+        public void run() {
+            long scheduled = nextScheduled;
+            nextScheduled += periodNanos;
+            String message = scheduled + String.valueOf(TIMESTAMP_END) + padding;
+            if (roomSize > 0) {
+                client.sendRoomMessage(roomOf(index), message);
+            } else {
+                client.sendMessage(message);
+            }
+            if (scheduled >= measureStart && scheduled < measureEnd) {
+                sent.increment();
+                expected.add(recipients);
+            }
+        }
+    }
+
+    // 生成报告，每行一项，不含时间等每次都不同的内容
+    private String report(double connectSeconds) {
+        long sentCount = sent.sum();
+        long expectedCount = expected.sum();
+        long deliveredCount = delivered.sum();
+        StringBuilder report = new StringBuilder();
+        report.append("# 聊天系统负载测试报告\n");
+        line(report, "users", users);
+        line(report, "connected", clients.size());
+        line(report, "handshake.failed", failedHandshakes.sum());
+        line(report, "rate.perUser", format(rate));
+        line(report, "message.bytes", messageBytes);
+        line(report, "room.size", roomSize);
+        line(report, "compression", compression);
+        line(report, "duration.seconds", durationSeconds);
+        line(report, "connect.seconds", format(connectSeconds));
+        line(report, "handshake.p50.ms", millis(handshakeLatency.getPercentile(50)));
+        line(report, "handshake.p99.ms", millis(handshakeLatency.getPercentile(99)));
+        line(report, "sent", sentCount);
+        line(report, "expected", expectedCount);
+        line(report, "delivered", deliveredCount);
+        line(report, "lost", expectedCount - deliveredCount);
+        line(report, "throughput.sent.perSecond", format((double) sentCount / durationSeconds));
+        line(report, "throughput.delivered.perSecond", format((double) deliveredCount / durationSeconds));
+        line(report, "throughput.delivered.MBps",
+                format((double) deliveredCount * (messageBytes + FrameCodec.HEAD_LENGTH) / durationSeconds / 1e6));
+        line(report, "latency.mean.ms", format(latency.getMean() / 1e6));
+        line(report, "latency.p50.ms", millis(latency.getPercentile(50)));
+        line(report, "latency.p90.ms", millis(latency.getPercentile(90)));
+        line(report, "latency.p99.ms", millis(latency.getPercentile(99)));
+        line(report, "latency.p999.ms", millis(latency.getPercentile(99.9)));
+        line(report, "latency.max.ms", millis(latency.getMax()));
+        return report.toString();
+    }
+
+    private static void line(StringBuilder report, String key, Object value) {
+        report.append(key).append('=').append(value).append('\n');
+    }
+
+    private static String millis(long nanos) {
+        return format(nanos / 1e6);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    public static void main(String[] args) throws Exception {
+        // 报告写入chat.load.report指定的文件，未指定时打印到标准输出
+        String report = new LoadGenerator().run();
+        String file = System.getProperty("chat.load.report");
+        if (file == null) {
+            System.out.print(report);
+        } else {
+            try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), FrameCodec.CHARSET))) {
+                writer.print(report);
+            }
+            System.out.println("报告已写入" + file);
+        }
+        System.exit(0);
+    }
+}
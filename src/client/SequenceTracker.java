@@ -0,0 +1,58 @@
+package client;
+
+import java.util.TreeSet;
+
+/**
+ * 记录已收到的群聊消息的序号，恢复会话后据此丢弃重复补发的消息。
+ * watermark及之前的序号都已收到，之后零散收到的序号记在集合中，与watermark连续后并入。
+ * 只在接收消息的线程中使用
+ */
+class SequenceTracker {
+    private static final int MAX_PENDING = 4096; // 零散的序号超过此数时不再等待最早的空缺
+
+    private long watermark = -1; // 此序号及之前的消息都已收到
+    private final TreeSet<Long> seen = new TreeSet<>(); // watermark之后已收到的序号
+
+    /**
+     * 记录收到的一条消息
+     *
+     * @param sequence 消息的序号
+     * @return 第一次收到时返回true；重复的消息返回false
+     */
+    boolean markSeen(long sequence) {
+        if (sequence <= watermark || !seen.add(sequence)) {
+            return false;
+        }
+        advance();
+        if (seen.size() > MAX_PENDING) {
+            watermark = seen.pollFirst();
+            advance();
+        }
+        return true;
+    }
+
+    /**
+     * 服务终端给出的起始序号，此前的消息不会再收到
+     *
+     * @param startSequence 此序号及之后的消息都会收到
+     * @param newSession 是否是新的会话，此时丢弃之前的所有记录
+     */
+    void start(long startSequence, boolean newSession) {
+        watermark = newSession ? startSequence - 1 : Math.max(watermark, startSequence - 1);
+        seen.headSet(watermark, true).clear();
+        advance();
+    }
+
+    /**
+     * @return 已连续收到的最后一条消息的序号，还没有收到时为-1
+     */
+    long getWatermark() {
+        return watermark;
+    }
+
+    private void advance() {
+        while (!seen.isEmpty() && seen.first() == watermark + 1) {
+            watermark = seen.pollFirst();
+        }
+    }
+}
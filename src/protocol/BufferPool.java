@@ -0,0 +1,88 @@
+package protocol;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 可复用的字节数组池，按2的幂分为若干个大小等级，每个等级最多保留固定数量的数组。
+ * 借出和归还都不加锁，可在任意线程中调用。超过最大等级的请求直接分配新数组，归还时丢弃
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 8; // 最小的等级为256字节
+
+    private final int maxShift;
+    private final int maxPerClass;
+    private final Queue<byte[]>[] classes;
+    private final AtomicInteger[] pooledCounts;
+
+    /**
+     * 实例化一个最大等级为64KB、每个等级最多保留256个数组的池
+     */
+    public BufferPool() {
+        this(64 * 1024, 256);
+    }
+
+    /**
+     * 实例化一个字节数组池
+     *
+     * @param maxPooledLength 可复用数组的最大长度，超过时不复用
+     * @param maxPerClass 每个等级最多保留的数组数
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int maxPooledLength, int maxPerClass) {
+        maxShift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, maxPooledLength) - 1));
+        this.maxPerClass = maxPerClass;
+        classes = new Queue[maxShift - MIN_SHIFT + 1];
+        pooledCounts = new AtomicInteger[classes.length];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new ConcurrentLinkedQueue<>();
+            pooledCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * 借出一个长度不小于minLength的数组，数组中可能留有之前的数据
+     *
+     * @param minLength 需要的最小长度
+     * @return 数组，用完后应通过release归还
+     */
+    public byte[] acquire(int minLength) {
+        int index = classOf(minLength);
+        if (index < 0) {
+            return new byte[minLength];
+        }
+        byte[] buffer = classes[index].poll();
+        if (buffer == null) {
+            return new byte[1 << (index + MIN_SHIFT)];
+        }
+        pooledCounts[index].decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * 归还借出的数组，归还后不得再使用。不是由此池借出的数组会被忽略
+     *
+     * @param buffer 借出的数组，可为null
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int index = classOf(buffer.length);
+        if (index < 0 || buffer.length != 1 << (index + MIN_SHIFT)) {
+            return;
+        }
+        if (pooledCounts[index].incrementAndGet() <= maxPerClass) {
+            classes[index].offer(buffer);
+        } else {
+            pooledCounts[index].decrementAndGet(); // 此等级已满，交给垃圾回收
+        }
+    }
+
+    // 能容纳length个字节的最小等级，超过最大等级时返回-1
+    private int classOf(int length) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, length) - 1));
+        return (shift > maxShift) ? -1 : shift - MIN_SHIFT;
+    }
+}
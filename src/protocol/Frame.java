@@ -0,0 +1,75 @@
+package protocol;
+
+/**
+ * FrameDecoder解码出的一条消息
+ */
+public final class Frame {
+    static final Frame END = new Frame(FrameCodec.END_FRAME, new byte[0], 0, null);
+
+    private final int type;
+    private final byte[] data;
+    private final int length;
+    private BufferPool pool; // 数据来自此池，为null时不需归还
+
+    Frame(int type, byte[] data, int length, BufferPool pool) {
+        this.type = type;
+        this.data = data;
+        this.length = length;
+        this.pool = pool;
+    }
+
+    /**
+     * @return 不小于0时是聊天消息（即其报头）；END_FRAME表示断开连接；其它负数是控制消息的类型
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * @return 是否是断开连接的通知
+     */
+    public boolean isEnd() {
+        return type == FrameCodec.END_FRAME;
+    }
+
+    /**
+     * @return 是否是控制消息
+     */
+    public boolean isControl() {
+        return type < FrameCodec.END_FRAME;
+    }
+
+    /**
+     * @return 是否是压缩的聊天消息，需用FrameCompressor解压
+     */
+    public boolean isCompressed() {
+        return FrameCodec.isCompressed(type);
+    }
+
+    /**
+     * 聊天消息的数据是报头+信息的完整字节流，长度恰好为getLength()，不来自缓冲池，可直接转发和保存；
+     * 控制消息的数据是其内容，只有前getLength()个字节有效，可能来自缓冲池，处理完后应调用release
+     *
+     * @return 消息的数据
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return 数据中有效的字节数
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * 将来自缓冲池的数据归还，之后不得再使用getData()。可重复调用
+     */
+    public void release() {
+        if (pool != null) {
+            pool.release(data);
+            pool = null;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 客户端和服务终端共用的编码工具。传输协议为：
+ * 连接建立后客户端先发送4个字节的账号申请，服务终端回复4个字节的结果；
+ * 之后每条消息以4个字节的报头开始，报头不小于0时是消息的长度，之后是UTF-8编码的消息；
+ * 报头为-1表示断开连接；报头小于-1时是控制消息的类型，之后是4个字节的长度和相应长度的内容。
+ * 账号申请的最高字节是客户端支持的功能（如CAP_COMPRESSION），申请成功时服务终端在回复的最高字节中给出同意的功能；
+ * 协商了压缩的连接上，聊天消息的报头可带有COMPRESSED_FLAG，表示消息经过压缩，格式见FrameCompressor。
+ * 协商了CAP_RESUME的连接上，每条群聊消息之前有一条给出其序号的控制消息，连接断开后可凭令牌恢复会话；
+ * 恢复会话时账号申请带有RESUME_REQUEST，之后紧跟8个字节的令牌和8个字节的已收到的序号。
+ * 协商了CAP_HEARTBEAT的连接空闲时，服务终端发送心跳，客户端需回复，否则连接被视为已断开。
+ * 协商了CAP_PRESENCE的连接先收到完整的在线名单，之后定期收到合并后的上线和下线的账号，账号列表的格式见encodeIds。
+ * 所有整数都以大端序传输
+ */
+public final class FrameCodec {
+    public static final Charset CHARSET = StandardCharsets.UTF_8; // 传输数据的编码方式
+    public static final int HEAD_LENGTH = 4; // 报头的长度
+    public static final int END_FRAME = -1; // 断开连接的报头
+    public static final int COMPRESSED_FLAG = 1 << 30; // 聊天消息的报头中表示消息经过压缩的位
+    public static final int LENGTH_MASK = COMPRESSED_FLAG - 1; // 聊天消息的报头中表示长度的位
+
+    /**
+     * 控制消息的类型，即小于-1的报头
+     */
+    public static final int HISTORY_FRAME = -2; // 客户端请求历史消息 / 服务端返回历史消息
+    public static final int JOIN_ROOM_FRAME = -3; // 客户端加入聊天室 / 服务端返回加入后的人数
+    public static final int LEAVE_ROOM_FRAME = -4; // 客户端退出聊天室 / 服务端确认退出
+    public static final int ROOM_MESSAGE_FRAME = -5; // 客户端向聊天室发送消息 / 服务端转发聊天室的消息
+    public static final int DIRECT_MESSAGE_FRAME = -6; // 客户端发送私聊消息 / 服务端转发私聊消息
+    public static final int DELIVERY_STATUS_FRAME = -7; // 服务端返回私聊消息的投递结果
+    public static final int SEQUENCE_FRAME = -8; // 服务端给出紧跟其后的一条群聊消息的序号
+    public static final int SENT_SEQUENCE_FRAME = -9; // 服务端给出发送者自己的群聊消息得到的序号
+    public static final int RESUME_FRAME = -10; // 服务端返回恢复会话的结果和新的令牌
+    public static final int PING_FRAME = -11; // 心跳，收到的一方回复PONG_FRAME
+    public static final int PONG_FRAME = -12; // 心跳的回复
+    public static final int RATE_LIMITED_FRAME = -13; // 服务端通知发送者：发送过快，之后的消息被拒绝
+    public static final int SEARCH_FRAME = -14; // 客户端搜索历史消息 / 服务端返回一页搜索结果
+    public static final int ROSTER_FRAME = -15; // 服务端发送完整的在线名单
+    public static final int PRESENCE_FRAME = -16; // 服务端发送合并后的上线和下线的账号
+
+    /**
+     * 私聊消息的投递结果，由DELIVERY_STATUS_FRAME给出
+     */
+    public static final int DELIVERED = 0; // 已放入接收者的发送队列
+    public static final int UNKNOWN_RECIPIENT = 1; // 接收者不在线或不存在
+    public static final int RECIPIENT_DROPPED = 2; // 接收者接收过慢，已被断开
+    public static final int RATE_LIMITED = 3; // 发送者发送过快，消息未投递
+
+    /**
+     * 恢复会话的结果，由RESUME_FRAME给出
+     */
+    public static final int NEW_SESSION = 0; // 新的会话，不补发消息
+    public static final int RESUMED = 1; // 已补发断开期间的所有群聊消息
+    public static final int RESUMED_PARTIAL = 2; // 断开过久，只补发了最近的群聊消息
+
+    /**
+     * 账号申请中的功能标志，位于最高字节（不含符号位）
+     */
+    public static final int CAP_COMPRESSION = 1 << 24; // 支持压缩的聊天消息
+    public static final int CAP_RESUME = 1 << 25; // 支持带序号的群聊消息和恢复会话
+    public static final int RESUME_REQUEST = 1 << 26; // 恢复断开的会话，不是功能，不会出现在回复中
+    public static final int CAP_HEARTBEAT = 1 << 27; // 回复服务终端的心跳
+    public static final int CAP_PRESENCE = 1 << 28; // 接收在线名单及其变化
+    public static final int CAPABILITY_MASK = 0x7F << 24;
+    public static final int ID_MASK = (1 << 24) - 1; // 账号申请中表示账号的位
+
+    private FrameCodec() {
+    }
+
+    /**
+     * 将int类型的数据转换为4位byte类型的数据
+     *
+     * @param intData 传入的int类型的参数
+     * @return 返回转换之后的4位byte类型的数据
+     */
+    public static byte[] toByte(int intData) {
+        byte[] byteData = new byte[4];
+        putInt(byteData, 0, intData);
+        return byteData;
+    }
+
+    /**
+     * 将4位byte类型的数据转换为int类型的数据
+     *
+     * @param byteData 传入的4位byte类型的参数
+     * @return 返回转换之后的int类型的数据
+     */
+    public static int toInt(byte[] byteData) {
+        return getInt(byteData, 0);
+    }
+
+    /**
+     * @param head 聊天消息的报头
+     * @return 报头是否表示消息经过压缩
+     */
+    public static boolean isCompressed(int head) {
+        return head >= 0 && (head & COMPRESSED_FLAG) != 0;
+    }
+
+    /**
+     * 从数组的指定位置读取一个大端序的int
+     *
+     * @param data 数组
+     * @param offset 起始位置
+     * @return 读到的int
+     */
+    public static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24)
+                | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8)
+                | (data[offset + 3] & 0xFF);
+    }
+
+    /**
+     * 在数组的指定位置写入一个大端序的int
+     *
+     * @param data 数组
+     * @param offset 起始位置
+     * @param value 写入的值
+     */
+    public static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    /**
+     * 将一条聊天消息编码为报头+信息的完整字节流
+     *
+     * @param message 消息
+     * @return 报头+UTF-8编码的信息
+     */
+    public static byte[] encodeMessage(String message) {
+        byte[] byteMessage = message.getBytes(CHARSET);
+        byte[] frame = new byte[HEAD_LENGTH + byteMessage.length];
+        putInt(frame, 0, byteMessage.length);
+        System.arraycopy(byteMessage, 0, frame, HEAD_LENGTH, byteMessage.length);
+        return frame;
+    }
+
+    /**
+     * 将从小到大排列的账号编码为与前一个账号的差值，每个差值是一个变长整数：
+     * 每个字节保存7位，最高位为1表示之后还有字节，因此相邻的账号只占一个字节
+     *
+     * @param ids 从小到大排列、不重复的非负账号
+     * @param count 需编码的个数，即ids中的前count个
+     * @return 编码后的字节
+     */
+    public static byte[] encodeIds(int[] ids, int count) {
+        byte[] data = new byte[count * 5];
+        int length = 0;
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            int gap = ids[i] - previous;
+            previous = ids[i];
+            while ((gap & ~0x7F) != 0) {
+                data[length++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            data[length++] = (byte) gap;
+        }
+        return Arrays.copyOf(data, length);
+    }
+
+    /**
+     * 解码encodeIds编码的账号
+     *
+     * @param buffer 从当前位置开始读取，读取后位于编码之后
+     * @param count 账号的个数
+     * @return 从小到大排列的账号
+     */
+    public static int[] decodeIds(ByteBuffer buffer, int count) {
+        int[] ids = new int[count];
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get();
+                gap |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            previous += gap;
+            ids[i] = previous;
+        }
+        return ids;
+    }
+
+    /**
+     * 读满数组的指定部分
+     *
+     * @param inputStream 输入流
+     * @param data 数组
+     * @param offset 起始位置
+     * @param length 需读取的字节数
+     * @throws EOFException 读满之前对方断开了连接
+     * @throws IOException 读取失败
+     */
+    public static void readFully(InputStream inputStream, byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count = inputStream.read(data, offset, length);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            offset += count;
+            length -= count;
+        }
+    }
+}
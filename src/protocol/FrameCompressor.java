@@ -0,0 +1,128 @@
+package protocol;
+
+import java.net.ProtocolException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 聊天消息的压缩和解压。压缩后的消息格式为：
+ * 4个字节的报头（COMPRESSED_FLAG | 之后的字节数）+ 4个字节的原始长度 + zlib格式的压缩数据。
+ * Deflater和Inflater占用本地内存，创建代价较高，因此放在池中复用，可在任意线程中并发调用
+ */
+public class FrameCompressor {
+    private static final int MAX_POOLED = 16; // 池中最多保留的Deflater/Inflater数
+
+    private final int level;
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param level 压缩级别，0-9，或Deflater.DEFAULT_COMPRESSION
+     */
+    public FrameCompressor(int level) {
+        this.level = level;
+    }
+
+    /**
+     * 压缩一条聊天消息
+     *
+     * @param frame 报头+UTF-8编码信息的完整字节流
+     * @return 压缩后的完整字节流；压缩后不能变小时返回null，此时应发送原消息
+     */
+    public byte[] compress(byte[] frame) {
+        int length = frame.length - FrameCodec.HEAD_LENGTH;
+        byte[] output = new byte[frame.length]; // 不比原消息小就放弃
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        }
+        try {
+            deflater.setInput(frame, FrameCodec.HEAD_LENGTH, length);
+            deflater.finish();
+            int size = 8;
+            while (!deflater.finished() && size < output.length) {
+                size += deflater.deflate(output, size, output.length - size);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+
+            byte[] compressed = new byte[size];
+            System.arraycopy(output, 8, compressed, 8, size - 8);
+            FrameCodec.putInt(compressed, 0, FrameCodec.COMPRESSED_FLAG | (size - FrameCodec.HEAD_LENGTH));
+            FrameCodec.putInt(compressed, 4, length);
+            return compressed;
+        } finally {
+            deflater.reset();
+            recycle(deflaters, deflater);
+        }
+    }
+
+    /**
+     * 解压一条压缩的聊天消息
+     *
+     * @param frame 压缩后的完整字节流
+     * @param maxLength 原消息的最大长度，超过时视为格式错误，避免解压出过多的数据
+     * @return 报头+UTF-8编码信息的完整字节流
+     * @throws ProtocolException 数据格式错误或原消息超过最大长度
+     */
+    public byte[] decompress(byte[] frame, int maxLength) throws ProtocolException {
+        if (frame.length < 8) {
+            throw new ProtocolException("压缩的消息过短");
+        }
+        int length = FrameCodec.getInt(frame, 4);
+        if (length < 0 || length > maxLength) {
+            throw new ProtocolException("压缩前的消息长度超出范围：" + length);
+        }
+
+        byte[] plain = new byte[FrameCodec.HEAD_LENGTH + length];
+        FrameCodec.putInt(plain, 0, length);
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            inflater.setInput(frame, 8, frame.length - 8);
+            int size = FrameCodec.HEAD_LENGTH;
+            while (size < plain.length) {
+                int count = inflater.inflate(plain, size, plain.length - size);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += count;
+            }
+            if (size != plain.length) {
+                throw new ProtocolException("压缩的消息不完整");
+            }
+            return plain;
+        } catch (DataFormatException e) {
+            throw new ProtocolException("压缩的消息格式错误：" + e.getMessage());
+        } finally {
+            inflater.reset();
+            recycle(inflaters, inflater);
+        }
+    }
+
+    /**
+     * 判断一段完整的字节流是否是压缩的聊天消息
+     *
+     * @param frame 完整的字节流
+     * @return 是压缩的聊天消息返回true
+     */
+    public static boolean isCompressed(byte[] frame) {
+        return FrameCodec.isCompressed(FrameCodec.getInt(frame, 0));
+    }
+
+    private static <T> void recycle(Queue<T> pool, T item) {
+        if (pool.size() < MAX_POOLED) {
+            pool.offer(item);
+        } else if (item instanceof Deflater) {
+            ((Deflater) item).end();
+        } else if (item instanceof Inflater) {
+            ((Inflater) item).end();
+        }
+    }
+}
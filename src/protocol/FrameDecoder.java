@@ -0,0 +1,129 @@
+package protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * 增量的消息解码器。每次传入当前收到的数据，数据可以在任意位置被截断，
+ * 未解码完的部分保存在解码器中，与之后收到的数据拼接。
+ * 声明的长度超过上限时抛出ProtocolException，不会按对方声明的长度分配内存。
+ * 一个解码器只用于一个连接，不能在多个线程中同时使用
+ */
+public class FrameDecoder {
+    private static final int READING_HEAD = 0;
+    private static final int READING_LENGTH = 1;
+    private static final int READING_BODY = 2;
+
+    private final int maxMessageLength;
+    private final int maxControlLength;
+    private final BufferPool pool;
+
+    private final byte[] head = new byte[FrameCodec.HEAD_LENGTH]; // 正在读取的报头或控制消息的长度
+    private int headFilled;
+    private int state = READING_HEAD;
+    private int type; // 正在读取的消息的类型
+    private byte[] body; // 正在读取的聊天消息（含报头）或控制消息的内容
+    private int bodyLength;
+    private int bodyFilled;
+
+    /**
+     * 实例化一个解码器
+     *
+     * @param maxMessageLength 聊天消息的最大长度（不含报头）
+     * @param maxControlLength 控制消息内容的最大长度
+     * @param pool 存放控制消息内容的缓冲池
+     */
+    public FrameDecoder(int maxMessageLength, int maxControlLength, BufferPool pool) {
+        this.maxMessageLength = maxMessageLength;
+        this.maxControlLength = maxControlLength;
+        this.pool = pool;
+    }
+
+    /**
+     * 从in中解码下一条完整的消息。解出一条消息后立即返回，in中剩余的数据留待下次调用；
+     * 数据不足一条消息时读完in中的全部数据并返回null
+     *
+     * @param in 收到的数据，读取后其position会前移
+     * @return 解出的消息，数据不足时为null
+     * @throws ProtocolException 消息的长度超过上限
+     */
+    public Frame decode(ByteBuffer in) throws ProtocolException {
+        while (in.hasRemaining()) {
+            if (state == READING_BODY) {
+                int count = Math.min(in.remaining(), bodyLength - bodyFilled);
+                in.get(body, bodyFilled, count);
+                bodyFilled += count;
+                if (bodyFilled == bodyLength) {
+                    return completeBody();
+                }
+                continue;
+            }
+
+            int count = Math.min(in.remaining(), head.length - headFilled);
+            in.get(head, headFilled, count);
+            headFilled += count;
+            if (headFilled < head.length) {
+                return null;
+            }
+            headFilled = 0;
+            int value = FrameCodec.getInt(head, 0);
+
+            if (state == READING_LENGTH) {
+                // 控制消息的长度
+                if (value < 0 || value > maxControlLength) {
+                    throw new ProtocolException("控制消息的长度超出范围：" + value);
+                }
+                startBody(pool.acquire(value), value, 0);
+            } else if (value >= 0) {
+                // 报头和消息放在同一个数组中，读完后直接作为转发的字节流；报头可能带有压缩标志
+                int length = value & FrameCodec.LENGTH_MASK;
+                if (length > maxMessageLength) {
+                    throw new ProtocolException("消息的长度超出范围：" + length);
+                }
+                type = value;
+                byte[] frame = new byte[FrameCodec.HEAD_LENGTH + length];
+                FrameCodec.putInt(frame, 0, value);
+                startBody(frame, frame.length, FrameCodec.HEAD_LENGTH);
+            } else if (value == FrameCodec.END_FRAME) {
+                return Frame.END;
+            } else {
+                type = value;
+                state = READING_LENGTH;
+                continue;
+            }
+
+            if (bodyFilled == bodyLength) {
+                return completeBody();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 丢弃未解码完的数据，归还占用的缓冲区。连接断开后调用
+     */
+    public void close() {
+        if (state == READING_BODY && type < FrameCodec.END_FRAME) {
+            pool.release(body);
+        }
+        body = null;
+        state = READING_HEAD;
+        headFilled = 0;
+    }
+
+    private void startBody(byte[] buffer, int length, int filled) {
+        body = buffer;
+        bodyLength = length;
+        bodyFilled = filled;
+        state = READING_BODY;
+    }
+
+    private Frame completeBody() {
+        Frame frame = (type < FrameCodec.END_FRAME)
+                ? new Frame(type, body, bodyLength, pool)
+                : new Frame(type, body, bodyLength, null);
+        body = null;
+        state = READING_HEAD;
+        return frame;
+    }
+}
@@ -0,0 +1,19 @@
+package server;
+
+/**
+ * 写入时不会阻塞、而是在内部缓冲的输出流。缓冲过多时调用者应暂停写入，等待可写的通知
+ */
+interface BackpressuredOutput {
+
+    /**
+     * @return 缓冲的数据未超过上限、可继续写入时返回true
+     */
+    boolean isWritable();
+
+    /**
+     * 登记一个任务，在输出流重新可写时执行一次；当前已可写时立即执行
+     *
+     * @param task 可写时执行的任务
+     */
+    void onWritable(Runnable task);
+}
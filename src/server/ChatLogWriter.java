@@ -0,0 +1,298 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 只追加的聊天记录写入器。发送线程只把消息放入无锁的环形队列即返回，
+ * 由单独的写线程把积累的消息合并成大块的顺序写入，并按配置的方式落盘。
+ * 同时把每条消息连同发送者和时间写入分段的历史记录，消息的序号就是它在历史记录中的编号。
+ * 写线程出错时只打印错误并继续取出消息，历史记录写入失败后不再写历史记录，以免发送线程因队列写满而永远等待
+ */
+class ChatLogWriter {
+    private static final int RING_SIZE = 1 << 16; // 环形队列的容量，必须是2的幂
+    private static final int BATCH_BYTES = 256 * 1024; // 一次顺序写入的最大字节数
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final FileChannel channel;
+    private final HistoryStore historyStore; // 可为null，此时只写聊天记录文件
+    private volatile boolean historyFailed; // 历史记录写入失败后不再写入，编号已无法与序号对应
+    private final LogDurability durability;
+    private final long syncIntervalNanos;
+    private final LatencyHistogram writeLatency; // 只由写线程记录
+    private final LatencyHistogram syncLatency;
+    private final ServerMetrics metrics;
+
+    // 发送线程先领取序号，再把消息放入对应的槽位；写线程按序号依次取出，因此写入顺序与领取顺序一致
+    private final AtomicReferenceArray<LogEntry> ring = new AtomicReferenceArray<>(RING_SIZE);
+    private final AtomicLong claimedSequence; // 下一个可领取的序号
+    private volatile long writtenSequence; // 写线程下一个要取出的序号
+
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BYTES);
+    private final Thread writerThread;
+    private final Thread shutdownHook = new Thread(this::close, "chat-log-shutdown"); // 进程退出时写完剩余的消息
+    private volatile boolean writerParked;
+    private volatile boolean running = true;
+    private boolean dirty; // 是否有写入但未落盘的数据
+    private long lastSyncTime;
+
+    /**
+     * 打开聊天记录文件并启动写线程
+     *
+     * @param file 聊天记录文件，不存在时自动创建
+     * @param historyStore 分段的历史记录，为null时不写历史记录
+     * @param durability 落盘方式
+     * @param syncIntervalMillis INTERVAL方式下的落盘间隔（毫秒）
+     * @throws IOException 打开文件失败时抛出
+     */
+    ChatLogWriter(File file, HistoryStore historyStore, LogDurability durability, long syncIntervalMillis)
+            throws IOException {
+        this(file, historyStore, durability, syncIntervalMillis, new ServerMetrics());
+    }
+
+    /**
+     * 打开聊天记录文件并启动写线程，写入和落盘的耗时记录在metrics中
+     *
+     * @param file 聊天记录文件，不存在时自动创建
+     * @param historyStore 分段的历史记录，为null时不写历史记录
+     * @param durability 落盘方式
+     * @param syncIntervalMillis INTERVAL方式下的落盘间隔（毫秒）
+     * @param metrics 运行统计
+     * @throws IOException 打开文件失败时抛出
+     */
+    ChatLogWriter(File file, HistoryStore historyStore, LogDurability durability, long syncIntervalMillis,
+                  ServerMetrics metrics) throws IOException {
+        this.metrics = metrics;
+        writeLatency = metrics.getChatLogWriteLatency();
+        syncLatency = metrics.getChatLogSyncLatency();
+        channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.historyStore = historyStore;
+        // 序号接着历史记录中已有的编号
+        long firstSequence = (historyStore != null) ? historyStore.nextId() : 0;
+        claimedSequence = new AtomicLong(firstSequence);
+        writtenSequence = firstSequence;
+        this.durability = durability;
+        syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, syncIntervalMillis));
+        lastSyncTime = System.nanoTime();
+
+        writerThread = new Thread(() -> runWriter(firstSequence), "chat-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * 追加一条消息，不等待磁盘写入。只有写线程落后整个环形队列时才会短暂等待；
+     * 已关闭或写线程已意外结束时不写入，直接返回-1
+     *
+     * @param senderId 发送者的账号
+     * @param frame 报头+信息的完整字节流，只写入报头之后的信息部分，调用后不得再修改
+     * @return 此消息的序号，连续递增，与它在历史记录中的编号相同；未写入时为-1
+     */
+    long append(int senderId, byte[] frame) {
+        if (!running || !writerThread.isAlive()) {
+            return -1;
+        }
+        LogEntry entry = new LogEntry(senderId, System.currentTimeMillis(), frame);
+        long sequence = claimedSequence.getAndIncrement();
+        while (sequence - writtenSequence >= RING_SIZE) {
+            if (!writerThread.isAlive()) {
+                return -1; // 写线程已结束，不会再腾出位置
+            }
+            LockSupport.parkNanos(1000); // 队列已满，等待写线程腾出位置
+        }
+        ring.set(index(sequence), entry);
+
+        if (writerParked) {
+            LockSupport.unpark(writerThread);
+        }
+        return sequence;
+    }
+
+    /**
+     * @return 下一条追加的消息将得到的序号，小于它的序号都已被领取
+     */
+    long nextSequence() {
+        return claimedSequence.get();
+    }
+
+    /**
+     * 写出所有已追加的消息并落盘，之后不再接收新消息。同时注销退出时的钩子，关闭后不再被进程引用
+     */
+    void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // 进程正在退出，钩子会自行执行
+            }
+        }
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // 写线程：按序号取出消息放入批次，没有新消息或批次满时写出。出错时打印错误后继续，不能让发送线程等不到位置
+    private void runWriter(long firstSequence) {
+        long next = firstSequence;
+        while (true) {
+            LogEntry entry = ring.get(index(next));
+            if (entry != null) {
+                ring.set(index(next), null);
+                next++;
+                writtenSequence = next;
+                try {
+                    addToBatch(entry.frame);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                appendHistory(entry);
+                continue;
+            }
+
+            try {
+                writeBatch();
+                syncIfNeeded();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            if (!running && claimedSequence.get() == next) {
+                break;
+            }
+
+            // 没有新消息时休眠，发送线程放入消息后会唤醒
+            writerParked = true;
+            if (ring.get(index(next)) == null) {
+                LockSupport.parkNanos(durability == LogDurability.INTERVAL
+                        ? Math.min(syncIntervalNanos, IDLE_PARK_NANOS) : IDLE_PARK_NANOS);
+            }
+            writerParked = false;
+        }
+
+        try {
+            writeBatch();
+            sync();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // 写入历史记录，例如磁盘已满而失败时不再写入，之后只写聊天记录文件。
+    // 一个段放不下的消息只在历史记录中占用编号，不保存内容，记入运行统计
+    private void appendHistory(LogEntry entry) {
+        if (historyStore == null || historyFailed) {
+            return;
+        }
+        if (entry.frame.length - 4 > historyStore.maxMessageBytes()) {
+            metrics.onHistoryRecordOmitted();
+        }
+        try {
+            historyStore.append(entry.senderId, entry.timestamp, entry.frame, 4, entry.frame.length - 4);
+        } catch (RuntimeException e) {
+            historyFailed = true;
+            System.out.println("写入历史记录失败，之后只写聊天记录文件：" + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void addToBatch(byte[] frame) {
+        int length = frame.length - 4;
+        if (length > batch.remaining()) {
+            writeBatch();
+        }
+        if (length > batch.capacity()) {
+            writeFully(ByteBuffer.wrap(frame, 4, length)); // 超长的消息直接写出
+        } else {
+            batch.put(frame, 4, length);
+        }
+    }
+
+    private void writeBatch() {
+        if (batch.position() == 0) {
+            return;
+        }
+        batch.flip();
+        try {
+            writeFully(batch);
+        } finally {
+            batch.clear(); // 出错时丢弃这一批，以免之后的消息放不进去
+        }
+        if (durability == LogDurability.BATCH) {
+            sync();
+        } else {
+            syncIfNeeded(); // 持续有消息时写线程不会空闲，INTERVAL方式也要在每批写入后检查落盘间隔
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) {
+        try {
+            long start = System.nanoTime();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            writeLatency.record(System.nanoTime() - start);
+            dirty = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void syncIfNeeded() {
+        if (durability == LogDurability.INTERVAL && System.nanoTime() - lastSyncTime >= syncIntervalNanos) {
+            sync();
+        }
+    }
+
+    private void sync() {
+        if (!dirty || durability == LogDurability.NONE) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            channel.force(false);
+            if (historyStore != null && !historyFailed) {
+                historyStore.force();
+            }
+            dirty = false;
+            lastSyncTime = System.nanoTime();
+            syncLatency.record(lastSyncTime - start);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static int index(long sequence) {
+        return (int) (sequence & (RING_SIZE - 1));
+    }
+
+    // 环形队列中的一条消息
+    private static class LogEntry {
+        final int senderId;
+        final long timestamp;
+        final byte[] frame;
+
+        LogEntry(int senderId, long timestamp, byte[] frame) {
+            this.senderId = senderId;
+            this.timestamp = timestamp;
+            this.frame = frame;
+        }
+    }
+}
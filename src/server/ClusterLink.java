@@ -0,0 +1,238 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import protocol.BufferPool;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.FrameDecoder;
+
+/**
+ * 服务终端与集群中继之间的连接。本节点用户发出的群聊消息经中继转发给其它节点，其它节点的消息由此转发给本节点的用户。
+ * 连接建立时节点先发送4个字节的节点编号，中继回复同样的编号；之后双方只传输CLUSTER_MESSAGE_FRAME控制消息，
+ * 内容为：4个字节的来源节点 + 4个字节的发送者 + 报头+信息的完整聊天消息。
+ * 发出的消息由单独的写线程按放入的顺序写出，收到的消息由读线程按到达的顺序转发，同一发送者的消息顺序不变。
+ * 与中继断开期间的消息不会发往其它节点，读线程会定时重新连接
+ */
+class ClusterLink {
+    static final int CLUSTER_MESSAGE_FRAME = -2; // 节点之间转发的群聊消息
+    static final int MESSAGE_HEADER_LENGTH = 8; // 来源节点和发送者
+
+    private static final int QUEUE_CAPACITY = 64 * 1024; // 发送队列的容量（消息条数），满时丢弃新消息
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    private static final long RECONNECT_MILLIS = 1000; // 断开后重新连接的间隔
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000; // 等待中继确认连接的时间
+
+    private final int nodeId;
+    private final String relayHost;
+    private final int relayPort;
+    private final int maxFrameBytes; // 收到的一条消息的最大长度
+    private final UserSupervision userManager;
+    private final ServerMetrics metrics;
+    private final BufferPool bufferPool;
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private volatile Socket socket; // 与中继的连接
+    private volatile OutputStream outputStream; // 未连接时为null
+    private volatile boolean running = true;
+    private Thread reader;
+    private Thread writer;
+
+    /**
+     * @param config 服务终端的配置，其中给出了节点编号和中继的地址
+     * @param userManager 收到的消息交给它转发给本节点的用户
+     * @param metrics 运行统计
+     * @param bufferPool 读取缓冲区的缓冲池
+     */
+    ClusterLink(ServerConfig config, UserSupervision userManager, ServerMetrics metrics, BufferPool bufferPool) {
+        nodeId = config.getNodeId();
+        relayHost = config.getRelayHost();
+        relayPort = config.getRelayPort();
+        maxFrameBytes = MESSAGE_HEADER_LENGTH + FrameCodec.HEAD_LENGTH + config.getMaxMessageBytes();
+        this.userManager = userManager;
+        this.metrics = metrics;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * 在后台线程中连接中继并开始收发消息
+     */
+    void start() {
+        reader = new Thread(this::runReader, "cluster-reader");
+        reader.setDaemon(true);
+        reader.start();
+        writer = new Thread(this::runWriter, "cluster-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 断开与中继的连接并停止读写线程，之后的消息不再发往其它节点
+     */
+    void close() {
+        running = false;
+        outputStream = null;
+        closeSocket();
+        if (reader != null) {
+            reader.interrupt();
+            writer.interrupt();
+        }
+    }
+
+    /**
+     * 将本节点用户发出的一条群聊消息发往其它节点，只放入发送队列即返回
+     *
+     * @param senderId 发送者的账号
+     * @param frame 报头+信息的完整字节流（未压缩）
+     */
+    void publish(int senderId, byte[] frame) {
+        if (outputStream == null) {
+            metrics.onClusterDropped();
+            return;
+        }
+        int length = MESSAGE_HEADER_LENGTH + frame.length;
+        byte[] out = new byte[8 + length];
+        FrameCodec.putInt(out, 0, CLUSTER_MESSAGE_FRAME);
+        FrameCodec.putInt(out, 4, length);
+        FrameCodec.putInt(out, 8, nodeId);
+        FrameCodec.putInt(out, 12, senderId);
+        System.arraycopy(frame, 0, out, 16, frame.length);
+        if (queue.offer(out)) {
+            metrics.onClusterPublished();
+        } else {
+            metrics.onClusterDropped();
+        }
+    }
+
+    // 读线程：连接中继，接收其它节点的消息，断开后等待一段时间重新连接
+    private void runReader() {
+        while (running) {
+            try {
+                socket = new Socket(relayHost, relayPort);
+                if (!running) {
+                    break; // 连接期间已关闭
+                }
+                socket.setTcpNoDelay(true);
+                InputStream inputStream = socket.getInputStream();
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), READ_BUFFER_BYTES);
+                out.write(FrameCodec.toByte(nodeId));
+                out.flush();
+                byte[] ack = new byte[FrameCodec.HEAD_LENGTH];
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                FrameCodec.readFully(inputStream, ack, 0, ack.length);
+                socket.setSoTimeout(0);
+                if (FrameCodec.toInt(ack) != nodeId) {
+                    throw new ProtocolException("中继的回复有误");
+                }
+                outputStream = out;
+                System.out.println("已作为节点" + nodeId + "连接到集群中继" + relayHost + ":" + relayPort);
+                receiveMessages(inputStream);
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("与集群中继的连接中断：" + e.getMessage());
+                }
+            } finally {
+                outputStream = null;
+                closeSocket();
+            }
+
+            try {
+                TimeUnit.MILLISECONDS.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void receiveMessages(InputStream inputStream) throws IOException {
+        byte[] readBuffer = bufferPool.acquire(READ_BUFFER_BYTES);
+        FrameDecoder decoder = new FrameDecoder(0, maxFrameBytes, bufferPool);
+        try {
+            while (true) {
+                int count = inputStream.read(readBuffer);
+                if (count < 0) {
+                    return;
+                }
+                ByteBuffer received = ByteBuffer.wrap(readBuffer, 0, count);
+                Frame frame;
+                while ((frame = decoder.decode(received)) != null) {
+                    try {
+                        if (frame.isEnd()) {
+                            return;
+                        }
+                        if (frame.getType() == CLUSTER_MESSAGE_FRAME) {
+                            deliver(frame.getData(), frame.getLength());
+                        }
+                    } finally {
+                        frame.release(); // 消息格式错误时也要归还缓冲区
+                    }
+                }
+            }
+        } finally {
+            decoder.close();
+            bufferPool.release(readBuffer);
+        }
+    }
+
+    // 把其它节点的一条消息转发给本节点的用户，本节点发出的消息不再转发
+    private void deliver(byte[] data, int length) throws ProtocolException {
+        if (length < MESSAGE_HEADER_LENGTH + FrameCodec.HEAD_LENGTH
+                || FrameCodec.getInt(data, MESSAGE_HEADER_LENGTH) != length - MESSAGE_HEADER_LENGTH - FrameCodec.HEAD_LENGTH) {
+            throw new ProtocolException("集群消息的长度有误");
+        }
+        int origin = FrameCodec.getInt(data, 0);
+        if (origin == nodeId) {
+            return;
+        }
+        metrics.onClusterReceived();
+        // 内容可能来自缓冲池，复制出聊天消息，所有接收者共用
+        userManager.relayRemoteMessage(FrameCodec.getInt(data, 4), Arrays.copyOfRange(data, MESSAGE_HEADER_LENGTH, length));
+    }
+
+    // 写线程：每次写出队列中已有的全部消息后再刷新，未连接时丢弃
+    private void runWriter() {
+        while (true) {
+            byte[] data;
+            try {
+                data = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            OutputStream out = outputStream;
+            if (out == null) {
+                metrics.onClusterDropped();
+                continue;
+            }
+            try {
+                do {
+                    out.write(data);
+                } while ((data = queue.poll()) != null);
+                out.flush();
+            } catch (IOException e) {
+                System.out.println("向集群中继发送消息失败：" + e.getMessage());
+                outputStream = null;
+                closeSocket(); // 读线程随后会发现连接断开并重新连接
+            }
+        }
+    }
+
+    private void closeSocket() {
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // 连接已不可用，忽略
+            }
+        }
+    }
+}
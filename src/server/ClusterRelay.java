@@ -0,0 +1,247 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import protocol.BufferPool;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.FrameDecoder;
+
+/**
+ * 集群中继：各服务终端节点通过ClusterLink连接到中继，中继把一个节点发来的群聊消息转发给其它所有节点。
+ * 每个节点的消息由一个线程按到达顺序读取，放入各目标节点的发送队列，再由各自的写线程依次发出，
+ * 因此同一发送者的消息在每个节点上的顺序与发出顺序一致。消息不会发回来源节点，中继也只接受来源与连接相符的消息，
+ * 消息不会在节点之间循环。
+ * 可单独运行：java server.ClusterRelay [端口]
+ */
+public class ClusterRelay {
+    /**
+     * 中继默认监听的端口
+     */
+    public static final int DEFAULT_PORT = 8890;
+
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000; // 连接后必须在此时间内发送节点编号
+    private static final int LINK_QUEUE_CAPACITY = 64 * 1024; // 每个节点发送队列的容量（消息条数），满时断开该节点
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final int maxFrameBytes; // 转发的一条消息的最大长度
+    private final BufferPool bufferPool = new BufferPool();
+    private final ConcurrentHashMap<Integer, NodeLink> links = new ConcurrentHashMap<>(); // 以节点编号为键的已连接节点
+
+    /**
+     * 实例化一个中继
+     *
+     * @param port 监听的端口
+     * @param maxMessageBytes 转发的一条聊天消息的最大长度，应与各节点的配置一致
+     * @throws IOException 监听端口失败
+     */
+    public ClusterRelay(int port, int maxMessageBytes) throws IOException {
+        serverSocket = new ServerSocket(port);
+        maxFrameBytes = ClusterLink.MESSAGE_HEADER_LENGTH + FrameCodec.HEAD_LENGTH + maxMessageBytes;
+    }
+
+    /**
+     * 开始接收节点的连接，直至中继被关闭
+     */
+    public void startRunning() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread thread = new Thread(() -> serveNode(socket), "relay-reader");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 停止接收连接并断开所有节点，startRunning随即返回
+     */
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (NodeLink link : links.values()) {
+            link.close();
+        }
+    }
+
+    /**
+     * @return 已连接并开始接收转发的节点数
+     */
+    int connectedNodes() {
+        return links.size();
+    }
+
+    // 读取一个节点发来的消息并转发给其它节点，直至该节点断开
+    private void serveNode(Socket socket) {
+        NodeLink link;
+        InputStream inputStream;
+        try {
+            inputStream = socket.getInputStream();
+            byte[] head = new byte[FrameCodec.HEAD_LENGTH];
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            FrameCodec.readFully(inputStream, head, 0, head.length);
+            socket.setSoTimeout(0);
+            int nodeId = FrameCodec.toInt(head);
+            if (nodeId < 0) {
+                socket.close();
+                return;
+            }
+
+            link = new NodeLink(nodeId, socket);
+            link.send(FrameCodec.toByte(nodeId)); // 确认连接
+            NodeLink old = links.put(nodeId, link);
+            if (old != null) {
+                old.close(); // 节点重新连接时旧连接可能还未被发现断开
+            }
+            System.out.println("集群节点" + nodeId + "已连接");
+        } catch (SocketTimeoutException e) {
+            closeQuietly(socket);
+            return;
+        } catch (IOException e) {
+            closeQuietly(socket);
+            return;
+        }
+
+        byte[] readBuffer = bufferPool.acquire(READ_BUFFER_BYTES);
+        FrameDecoder decoder = new FrameDecoder(0, maxFrameBytes, bufferPool);
+        try {
+            while (true) {
+                int count = inputStream.read(readBuffer);
+                if (count < 0) {
+                    return;
+                }
+                ByteBuffer received = ByteBuffer.wrap(readBuffer, 0, count);
+                Frame frame;
+                while ((frame = decoder.decode(received)) != null) {
+                    try {
+                        if (frame.isEnd()) {
+                            return;
+                        }
+                        if (frame.getType() == ClusterLink.CLUSTER_MESSAGE_FRAME) {
+                            forward(link, frame);
+                        }
+                    } finally {
+                        frame.release();
+                    }
+                }
+            }
+        } catch (ProtocolException e) {
+            System.out.println("集群节点" + link.nodeId + "发送的消息格式错误：" + e.getMessage());
+        } catch (SocketException e) {
+            // 节点已断开
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            decoder.close();
+            bufferPool.release(readBuffer);
+            links.remove(link.nodeId, link);
+            link.close();
+            System.out.println("集群节点" + link.nodeId + "已断开");
+        }
+    }
+
+    // 转发一条消息给来源以外的所有节点，所有目标共用同一个数组
+    private void forward(NodeLink source, Frame frame) {
+        int length = frame.getLength();
+        if (length < ClusterLink.MESSAGE_HEADER_LENGTH || FrameCodec.getInt(frame.getData(), 0) != source.nodeId) {
+            return; // 来源与连接不符的消息不转发，防止消息在节点之间循环
+        }
+
+        byte[] out = new byte[8 + length];
+        FrameCodec.putInt(out, 0, ClusterLink.CLUSTER_MESSAGE_FRAME);
+        FrameCodec.putInt(out, 4, length);
+        System.arraycopy(frame.getData(), 0, out, 8, length);
+        for (NodeLink link : links.values()) {
+            if (link != source && !link.send(out)) {
+                System.out.println("集群节点" + link.nodeId + "接收过慢，已断开");
+                links.remove(link.nodeId, link);
+                link.close();
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // 连接已不可用，忽略
+        }
+    }
+
+    /**
+     * 一个已连接的节点，发送队列由单独的写线程按顺序写出
+     */
+    private static class NodeLink {
+        private final int nodeId;
+        private final Socket socket;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(LINK_QUEUE_CAPACITY);
+        private final Thread writer;
+        private volatile boolean closed;
+
+        NodeLink(int nodeId, Socket socket) throws IOException {
+            this.nodeId = nodeId;
+            this.socket = socket;
+            OutputStream outputStream = new BufferedOutputStream(socket.getOutputStream(), READ_BUFFER_BYTES);
+            writer = new Thread(() -> runWriter(outputStream), "relay-writer-" + nodeId);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        // 放入发送队列，队列已满时返回false
+        boolean send(byte[] data) {
+            return !closed && queue.offer(data);
+        }
+
+        void close() {
+            closed = true;
+            writer.interrupt();
+            closeQuietly(socket);
+        }
+
+        // 每次写出队列中已有的全部消息后再刷新，消息密集时合并成大块写出
+        private void runWriter(OutputStream outputStream) {
+            try {
+                while (!closed) {
+                    byte[] data = queue.take();
+                    do {
+                        outputStream.write(data);
+                    } while ((data = queue.poll()) != null);
+                    outputStream.flush();
+                }
+            } catch (InterruptedException e) {
+                // 连接已关闭
+            } catch (IOException e) {
+                close();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        // 第一个参数可指定端口，一条消息的最大长度与服务终端的chat.maxMessageBytes一致
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : Integer.getInteger("chat.relayPort", DEFAULT_PORT);
+        ClusterRelay relay = new ClusterRelay(port, ServerConfig.fromSystemProperties().getMaxMessageBytes());
+        System.out.println("集群中继已在端口" + port + "上启动");
+        relay.startRunning();
+    }
+}
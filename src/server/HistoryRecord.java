@@ -0,0 +1,49 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 历史记录中的一条消息
+ */
+class HistoryRecord {
+    private final long id;
+    private final int senderId;
+    private final long timestamp;
+    private final byte[] message;
+
+    /**
+     * @param id 消息的编号，全局连续递增
+     * @param senderId 发送者的账号
+     * @param timestamp 服务终端收到消息的时间（毫秒）
+     * @param message UTF-8编码的消息内容
+     */
+    HistoryRecord(long id, int senderId, long timestamp, byte[] message) {
+        this.id = id;
+        this.senderId = senderId;
+        this.timestamp = timestamp;
+        this.message = message;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    int getSenderId() {
+        return senderId;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    byte[] getMessage() {
+        return message;
+    }
+
+    /**
+     * @return 解码后的消息内容，只在确实需要字符串时调用
+     */
+    String getText() {
+        return new String(message, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,411 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 分段存储的聊天历史。每个段是固定大小的文件，内容通过内存映射读写，文件名是段内第一条消息的编号。
+ * 每条记录的格式为：4个字节的长度 + 8个字节的消息编号 + 4个字节的发送者账号 + 8个字节的时间戳 + 消息内容。
+ * 每个段另有一个稀疏索引文件，每隔INDEX_INTERVAL条记录保存一次（段内序号，位置），
+ * 因此按编号查找只需二分查找段和索引，再向后扫描不超过INDEX_INTERVAL条记录。
+ * 段数超过上限时，创建新段的同时删除最早的段，并解除其内存映射，映射的内存和磁盘占用都不超过上限。
+ * 一个段放不下的消息不截断，只写入一条没有内容的占位记录以保持编号连续，读取时跳过。
+ * 只允许一个线程写入，读取可在任意线程中并发进行
+ */
+class HistoryStore {
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int RECORD_HEADER = 24; // 长度 + 编号 + 发送者 + 时间戳
+    private static final int INDEX_INTERVAL = 64; // 每隔多少条记录保存一个索引项
+    private static final int INDEX_ENTRY = 8; // 段内序号 + 位置
+    private static final int OMITTED_SENDER = -1; // 占位记录的发送者，账号都是正数
+
+    private final File directory;
+    private final int segmentBytes;
+    private final int maxSegments; // 最多保留的段数，0表示不限
+    private volatile Segment[] segments; // 按编号从小到大排列
+    // 读取时持有读锁，解除旧段的映射前取得写锁，等待仍在读取旧段的线程读完
+    private final ReentrantReadWriteLock unmapLock = new ReentrantReadWriteLock();
+    private volatile long nextId; // 下一条消息的编号，小于它的消息都已可读
+
+    /**
+     * 打开（或创建）保存历史记录的目录，恢复已有的段，保留所有的段
+     *
+     * @param directory 保存历史记录的目录
+     * @param segmentBytes 每个段文件的大小（字节）
+     * @throws IOException 打开文件失败时抛出
+     */
+    HistoryStore(File directory, int segmentBytes) throws IOException {
+        this(directory, segmentBytes, 0);
+    }
+
+    /**
+     * 打开（或创建）保存历史记录的目录，恢复已有的段，超出上限的最早的段被删除
+     *
+     * @param directory 保存历史记录的目录
+     * @param segmentBytes 每个段文件的大小（字节）
+     * @param maxSegments 最多保留的段数，0表示不限，否则至少为2
+     * @throws IOException 打开文件失败时抛出
+     */
+    HistoryStore(File directory, int segmentBytes, int maxSegments) throws IOException {
+        if (segmentBytes <= RECORD_HEADER) {
+            throw new IllegalArgumentException("segmentBytes too small: " + segmentBytes);
+        }
+        if (maxSegments < 0 || maxSegments == 1) {
+            throw new IllegalArgumentException("maxSegments must be 0 or at least 2: " + maxSegments);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("无法创建历史记录目录：" + directory);
+        }
+
+        // 文件名是补零的编号，按名称排序即按编号排序
+        String[] names = directory.list((dir, name) -> name.endsWith(LOG_SUFFIX));
+        Arrays.sort(names);
+        int first = (maxSegments > 0) ? Math.max(0, names.length - maxSegments) : 0;
+        for (int i = 0; i < first; i++) {
+            deleteFiles(names[i].substring(0, names[i].length() - LOG_SUFFIX.length())); // 上次运行时上限更大
+        }
+        List<Segment> opened = new ArrayList<>();
+        for (String name : Arrays.asList(names).subList(first, names.length)) {
+            long baseId = Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()));
+            opened.add(new Segment(baseId));
+        }
+        if (opened.isEmpty()) {
+            opened.add(new Segment(0));
+        }
+
+        segments = opened.toArray(new Segment[0]);
+        nextId = segments[segments.length - 1].recover();
+        for (int i = 0; i < segments.length - 1; i++) {
+            segments[i].recover();
+        }
+    }
+
+    /**
+     * @return 下一条消息将得到的编号，也就是已保存的消息数
+     */
+    long nextId() {
+        return nextId;
+    }
+
+    /**
+     * @return 仍保存着的最早一条消息的编号
+     */
+    long firstId() {
+        return segments[0].baseId;
+    }
+
+    /**
+     * @return 一条消息内容的最大长度，即一个段除去记录头后能容纳的字节数
+     */
+    int maxMessageBytes() {
+        return segmentBytes - RECORD_HEADER;
+    }
+
+    /**
+     * 追加一条消息，只能在写线程中调用。超过maxMessageBytes的消息不保存内容，
+     * 只写入占位记录占用这个编号，之后读取时跳过，不会返回残缺的内容
+     *
+     * @param senderId 发送者的账号
+     * @param timestamp 时间戳（毫秒）
+     * @param data 消息内容所在的数组
+     * @param offset 消息内容在数组中的起始位置
+     * @param length 消息内容的长度
+     * @return 此消息的编号
+     */
+    long append(int senderId, long timestamp, byte[] data, int offset, int length) {
+        if (length > maxMessageBytes()) {
+            senderId = OMITTED_SENDER;
+            length = 0;
+        }
+        Segment[] current = segments;
+        Segment active = current[current.length - 1];
+        if (active.size + RECORD_HEADER + length > segmentBytes) {
+            active = roll(current);
+        }
+
+        long id = nextId;
+        active.write(id, senderId, timestamp, data, offset, length);
+        nextId = id + 1; // 发布，之后读取的线程可以看到这条记录
+        return id;
+    }
+
+    /**
+     * 读取编号在[fromId, fromId + maxCount)之间、已保存的消息
+     *
+     * @param fromId 第一条消息的编号，早于firstId时从firstId开始
+     * @param maxCount 最多读取的条数
+     * @return 按编号从小到大排列的消息，不包括因过长未保存的消息
+     */
+    List<HistoryRecord> read(long fromId, int maxCount) {
+        unmapLock.readLock().lock();
+        try {
+            return readSegments(fromId, maxCount);
+        } finally {
+            unmapLock.readLock().unlock();
+        }
+    }
+
+    private List<HistoryRecord> readSegments(long fromId, int maxCount) {
+        long end = nextId; // 先读nextId，保证读到的记录都已写完
+        Segment[] current = segments;
+        long id = Math.max(fromId, current[0].baseId);
+        List<HistoryRecord> records = new ArrayList<>();
+        if (maxCount <= 0 || id >= end) {
+            return records;
+        }
+        end = Math.min(end, id + maxCount);
+
+        int segmentIndex = findSegment(current, id);
+        Segment segment = current[segmentIndex];
+        int position = segment.positionOf(id);
+        while (id < end) {
+            if (segmentIndex + 1 < current.length && id >= current[segmentIndex + 1].baseId) {
+                segment = current[++segmentIndex];
+                position = 0;
+            }
+            if (segment.isOmitted(position)) {
+                position += RECORD_HEADER; // 占位记录没有内容
+                id++;
+                continue;
+            }
+            HistoryRecord record = segment.readRecord(position);
+            records.add(record);
+            position += RECORD_HEADER + record.getMessage().length;
+            id++;
+        }
+        return records;
+    }
+
+    /**
+     * 读取编号小于beforeId的最后count条消息，用于获取最近的消息或向前翻页
+     *
+     * @param beforeId 只读取编号小于它的消息，Long.MAX_VALUE表示读取最新的消息
+     * @param count 最多读取的条数
+     * @return 按编号从小到大排列的消息
+     */
+    List<HistoryRecord> readBefore(long beforeId, int count) {
+        long end = Math.min(beforeId, nextId);
+        long start = Math.max(firstId(), end - count);
+        return read(start, (int) Math.max(0, end - start));
+    }
+
+    /**
+     * 将当前段已写入的内容强制写入磁盘
+     */
+    void force() {
+        Segment[] current = segments;
+        current[current.length - 1].force();
+    }
+
+    // 当前段已满，创建以nextId为起始编号的新段，段数超过上限时删除最早的段
+    private Segment roll(Segment[] current) {
+        current[current.length - 1].force();
+        Segment segment;
+        try {
+            segment = new Segment(nextId);
+        } catch (IOException e) {
+            throw new IllegalStateException("无法创建新的历史记录段", e);
+        }
+        int evicted = (maxSegments > 0) ? Math.max(0, current.length + 1 - maxSegments) : 0;
+        Segment[] updated = Arrays.copyOfRange(current, evicted, current.length + 1);
+        updated[updated.length - 1] = segment;
+        segments = updated;
+        if (evicted > 0) {
+            evict(Arrays.copyOf(current, evicted));
+        }
+        return segment;
+    }
+
+    // 等待正在读取的线程读完后解除旧段的映射并删除文件，之后的读取只能看到新的段数组
+    private void evict(Segment[] evicted) {
+        unmapLock.writeLock().lock();
+        try {
+            for (Segment segment : evicted) {
+                unmap(segment.log);
+                unmap(segment.index);
+            }
+        } finally {
+            unmapLock.writeLock().unlock();
+        }
+        for (Segment segment : evicted) {
+            deleteFiles(String.format("%020d", segment.baseId));
+        }
+    }
+
+    private void deleteFiles(String name) {
+        File log = new File(directory, name + LOG_SUFFIX);
+        File index = new File(directory, name + INDEX_SUFFIX);
+        if (!log.delete() | !index.delete()) {
+            System.out.println("无法删除历史记录段：" + log);
+        }
+    }
+
+    // 立即释放映射的内存，不等垃圾回收。Java 9及以上使用Unsafe.invokeCleaner，Java 8使用缓冲区的cleaner
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // 无法立即释放时由垃圾回收释放
+        }
+    }
+
+    // 二分查找包含此编号的段
+    private static int findSegment(Segment[] current, long id) {
+        int low = 0;
+        int high = current.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (current[mid].baseId <= id) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    // 一个段文件及其稀疏索引
+    private class Segment {
+        private final long baseId;
+        private final MappedByteBuffer log;
+        private final MappedByteBuffer index;
+        private int size; // 已写入的字节数，只由写线程修改
+        private volatile int indexEntries;
+
+        Segment(long baseId) throws IOException {
+            this.baseId = baseId;
+            String name = String.format("%020d", baseId);
+            log = map(new File(directory, name + LOG_SUFFIX), segmentBytes);
+            // 最小的记录也有RECORD_HEADER个字节，以此估算索引项的上限
+            index = map(new File(directory, name + INDEX_SUFFIX),
+                    (segmentBytes / RECORD_HEADER / INDEX_INTERVAL + 1) * INDEX_ENTRY);
+            indexEntries = 1; // 第一个索引项固定为（0，0），新文件中全是0，无需写入
+        }
+
+        private MappedByteBuffer map(File file, int length) throws IOException {
+            try (RandomAccessFile access = new RandomAccessFile(file, "rw");
+                 FileChannel channel = access.getChannel()) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            }
+        }
+
+        // 根据索引和记录恢复写入位置，补全缺失的索引项，返回此段之后的下一个编号
+        long recover() {
+            // 除第一个索引项外，位置为0的索引项表示索引到此为止
+            int entries = 1;
+            while ((entries + 1) * INDEX_ENTRY <= index.capacity() && index.getInt(entries * INDEX_ENTRY + 4) != 0) {
+                entries++;
+            }
+            indexEntries = entries;
+
+            int relativeId = index.getInt((entries - 1) * INDEX_ENTRY);
+            int position = index.getInt((entries - 1) * INDEX_ENTRY + 4);
+            while (position + 4 <= segmentBytes) {
+                int length = log.getInt(position);
+                if (length < RECORD_HEADER - 4 || position + 4 + length > segmentBytes) {
+                    break; // 长度为0表示没有更多记录
+                }
+                if (relativeId % INDEX_INTERVAL == 0 && relativeId > index.getInt((indexEntries - 1) * INDEX_ENTRY)) {
+                    addIndexEntry(relativeId, position);
+                }
+                position += 4 + length;
+                relativeId++;
+            }
+            size = position;
+            return baseId + relativeId;
+        }
+
+        void write(long id, int senderId, long timestamp, byte[] data, int offset, int length) {
+            int position = size;
+            int relativeId = (int) (id - baseId);
+            if (relativeId % INDEX_INTERVAL == 0 && relativeId > 0) {
+                addIndexEntry(relativeId, position);
+            }
+
+            log.putLong(position + 4, id);
+            log.putInt(position + 12, senderId);
+            log.putLong(position + 16, timestamp);
+            ByteBuffer view = log.duplicate();
+            view.position(position + RECORD_HEADER);
+            view.put(data, offset, length);
+            log.putInt(position, RECORD_HEADER - 4 + length); // 最后写长度，未写完的记录不会被恢复
+            size = position + RECORD_HEADER + length;
+        }
+
+        private void addIndexEntry(int relativeId, int position) {
+            int entry = indexEntries;
+            index.putInt(entry * INDEX_ENTRY, relativeId);
+            index.putInt(entry * INDEX_ENTRY + 4, position);
+            indexEntries = entry + 1;
+        }
+
+        // 先二分查找索引，再从索引项向后扫描到目标记录
+        int positionOf(long id) {
+            int relativeId = (int) (id - baseId);
+            int low = 0;
+            int high = indexEntries - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (index.getInt(mid * INDEX_ENTRY) <= relativeId) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            int current = index.getInt(low * INDEX_ENTRY);
+            int position = index.getInt(low * INDEX_ENTRY + 4);
+            while (current < relativeId) {
+                position += 4 + log.getInt(position);
+                current++;
+            }
+            return position;
+        }
+
+        boolean isOmitted(int position) {
+            return log.getInt(position + 12) == OMITTED_SENDER;
+        }
+
+        HistoryRecord readRecord(int position) {
+            int length = log.getInt(position);
+            byte[] message = new byte[length - (RECORD_HEADER - 4)];
+            ByteBuffer view = log.duplicate();
+            view.position(position + RECORD_HEADER);
+            view.get(message);
+            return new HistoryRecord(log.getLong(position + 4), log.getInt(position + 12),
+                    log.getLong(position + 16), message);
+        }
+
+        void force() {
+            log.force();
+            index.force();
+        }
+    }
+}
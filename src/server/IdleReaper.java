@@ -0,0 +1,166 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 用哈希时间轮找出空闲和已失联的连接。时间被分为固定长度的刻度，每个用户在轮上只有一个定时器，
+ * 放在到期刻度对应的槽中，加入和到期都是O(1)；到期时间超过一圈的定时器经过时放回原槽，下一圈再处理。
+ * 接收线程只在用户会话上记下最后收到数据的刻度，不触碰时间轮，定时器到期时才据此决定重新计时、发送心跳还是断开，
+ * 因此大量空闲的连接也只在各自到期时处理一次。时间轮只由一个后台线程操作，不加锁
+ */
+class IdleReaper {
+    private static final int WHEEL_SIZE = 512; // 槽数，必须是2的幂
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100); // 每个刻度的长度
+
+    private final UserSupervision userManager;
+    private final long intervalTicks; // 空闲多少个刻度后发送心跳
+    private final long timeoutTicks; // 发送心跳后等待回复的刻度数
+    private final ArrayDeque<IdleTimer>[] wheel;
+    private final Queue<IdleTimer> added = new ConcurrentLinkedQueue<>(); // 新加入的定时器，由后台线程放入槽中
+    private volatile long currentTick;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * 创建时间轮并启动后台线程
+     *
+     * @param userManager 发送心跳和断开用户的对象
+     * @param intervalMillis 用户空闲多久后发送心跳（毫秒）
+     * @param timeoutMillis 发送心跳后等待回复的时间（毫秒）
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    IdleReaper(UserSupervision userManager, long intervalMillis, long timeoutMillis) {
+        this.userManager = userManager;
+        intervalTicks = toTicks(intervalMillis);
+        timeoutTicks = toTicks(timeoutMillis);
+        wheel = new ArrayDeque[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+
+        thread = new Thread(this::run, "idle-reaper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return 当前的刻度，接收线程据此记录用户最后收到数据的时间
+     */
+    long currentTick() {
+        return currentTick;
+    }
+
+    /**
+     * @return 后台线程的编号，用于测量它占用的CPU时间
+     */
+    long getThreadId() {
+        return thread.getId();
+    }
+
+    /**
+     * 开始检查一个用户，之后此用户被移除时定时器在到期时自动丢弃
+     *
+     * @param session 协商了心跳的用户
+     */
+    void add(UserSession session) {
+        long tick = currentTick;
+        session.markActive(tick);
+        added.add(new IdleTimer(session, tick + intervalTicks));
+    }
+
+    /**
+     * 停止后台线程，之后不再发送心跳和断开用户
+     */
+    void close() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    // 后台线程：每个刻度处理一个槽，落后时连续处理直至追上
+    private void run() {
+        long start = System.nanoTime();
+        while (running) {
+            long tick = currentTick + 1;
+            long delay = start + tick * TICK_NANOS - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+                continue;
+            }
+            currentTick = tick;
+
+            IdleTimer timer;
+            while ((timer = added.poll()) != null) {
+                schedule(timer, Math.max(timer.deadline, tick));
+            }
+            try {
+                expire(tick);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // 处理槽中到期的定时器，还没到期的（下一圈及以后）放回原槽
+    private void expire(long tick) {
+        ArrayDeque<IdleTimer> bucket = wheel[index(tick)];
+        for (int count = bucket.size(); count > 0; count--) {
+            IdleTimer timer = bucket.poll();
+            if (timer.deadline > tick) {
+                bucket.add(timer);
+            } else {
+                check(timer, tick);
+            }
+        }
+    }
+
+    // 根据最后收到数据的刻度决定：仍活跃则重新计时，空闲则发送心跳，心跳之后仍无数据则断开
+    private void check(IdleTimer timer, long tick) {
+        UserSession session = timer.session;
+        if (session.isClosed()) {
+            return; // 已从群聊中移除
+        }
+        long lastActive = session.getLastActiveTick();
+        if (timer.pingTick >= 0 && lastActive >= timer.pingTick) {
+            timer.pingTick = -1; // 发送心跳之后收到过数据
+        }
+        if (lastActive + intervalTicks > tick) {
+            schedule(timer, lastActive + intervalTicks);
+        } else if (timer.pingTick < 0) {
+            timer.pingTick = tick;
+            userManager.pingIdleUser(session);
+            schedule(timer, tick + timeoutTicks);
+        } else {
+            userManager.expireIdleUser(session);
+        }
+    }
+
+    private void schedule(IdleTimer timer, long deadline) {
+        timer.deadline = deadline;
+        wheel[index(deadline)].add(timer);
+    }
+
+    private static int index(long tick) {
+        return (int) (tick & (WHEEL_SIZE - 1));
+    }
+
+    private static long toTicks(long millis) {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        return Math.max(1, (nanos + TICK_NANOS - 1) / TICK_NANOS);
+    }
+
+    // 一个用户的定时器，只由后台线程读写
+    private static class IdleTimer {
+        final UserSession session;
+        long deadline; // 到期的刻度
+        long pingTick = -1; // 发送心跳的刻度，-1表示未发送
+
+        IdleTimer(UserSession session, long deadline) {
+            this.session = session;
+            this.deadline = deadline;
+        }
+    }
+}
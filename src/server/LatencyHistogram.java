@@ -0,0 +1,137 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 记录耗时分布的直方图，不加锁，可在任意线程中并发记录。
+ * 每个2的幂区间再线性分为2^subBucketBits个桶，相对误差不超过1/2^subBucketBits
+ */
+public class LatencyHistogram {
+    private static final int DEFAULT_SUB_BUCKET_BITS = 4; // 相对误差6.25%，用于服务终端的统计
+
+    private final int subBucketBits;
+    private final int subBuckets;
+    private final int buckets;
+    private final AtomicLongArray counts;
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalValue = new LongAdder();
+    private final LongAccumulator maxValue = new LongAccumulator(Math::max, 0);
+
+    /**
+     * 实例化一个相对误差不超过6.25%的直方图
+     */
+    public LatencyHistogram() {
+        this(DEFAULT_SUB_BUCKET_BITS);
+    }
+
+    /**
+     * 实例化一个指定精度的直方图，例如7表示相对误差不超过1/128，约三位有效数字
+     *
+     * @param subBucketBits 每个2的幂区间再分的桶数的位数，1-10
+     */
+    public LatencyHistogram(int subBucketBits) {
+        if (subBucketBits < 1 || subBucketBits > 10) {
+            throw new IllegalArgumentException("subBucketBits must be 1-10: " + subBucketBits);
+        }
+        this.subBucketBits = subBucketBits;
+        subBuckets = 1 << subBucketBits;
+        buckets = 64 * subBuckets;
+        counts = new AtomicLongArray(buckets);
+    }
+
+    /**
+     * 记录一次耗时
+     *
+     * @param value 耗时，负数按0记录
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(bucketOf(value));
+        totalCount.increment();
+        totalValue.add(value);
+        maxValue.accumulate(value);
+    }
+
+    /**
+     * @return 已记录的次数
+     */
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    /**
+     * @return 平均值，没有记录时为0
+     */
+    public double getMean() {
+        long count = totalCount.sum();
+        return (count == 0) ? 0 : (double) totalValue.sum() / count;
+    }
+
+    /**
+     * @return 记录过的最大值
+     */
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    /**
+     * 得到指定百分位的值
+     *
+     * @param percentile 百分位，例如99.9
+     * @return 该百分位所在桶的上界，没有记录时为0
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[buckets];
+        long count = 0;
+        for (int i = 0; i < buckets; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long target = (long) Math.ceil(count * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+        long seen = 0;
+        for (int i = 0; i < buckets; i++) {
+            seen += snapshot[i];
+            if (seen >= Math.max(1, target)) {
+                return Math.min(upperBoundOf(i), maxValue.get());
+            }
+        }
+        return maxValue.get();
+    }
+
+    /**
+     * 清空所有记录
+     */
+    public void reset() {
+        for (int i = 0; i < buckets; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.reset();
+        totalValue.reset();
+        maxValue.reset();
+    }
+
+    private int bucketOf(long value) {
+        if (value < subBuckets) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value); // 最高位的位置，不小于subBucketBits
+        int subBucket = (int) (value >>> (exponent - subBucketBits)) & (subBuckets - 1);
+        return (exponent - subBucketBits + 1) * subBuckets + subBucket;
+    }
+
+    private long upperBoundOf(int bucket) {
+        if (bucket < subBuckets) {
+            return bucket;
+        }
+        int exponent = bucket / subBuckets + subBucketBits - 1;
+        long subBucket = bucket % subBuckets;
+        long width = 1L << (exponent - subBucketBits);
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+}
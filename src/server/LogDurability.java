@@ -0,0 +1,38 @@
+package server;
+
+/**
+ * 聊天记录写入磁盘的持久化方式
+ */
+public enum LogDurability {
+    /**
+     * 只写入操作系统缓存，何时落盘由操作系统决定
+     */
+    NONE,
+
+    /**
+     * 每隔固定的时间强制落盘一次
+     */
+    INTERVAL,
+
+    /**
+     * 每批写入后都强制落盘
+     */
+    BATCH;
+
+    /**
+     * 根据名称得到对应的持久化方式，名称不区分大小写
+     *
+     * @param name 持久化方式的名称
+     * @return 名称为空或无法识别时返回INTERVAL
+     */
+    public static LogDurability fromName(String name) {
+        if (name != null) {
+            for (LogDurability durability : values()) {
+                if (durability.name().equalsIgnoreCase(name.trim())) {
+                    return durability;
+                }
+            }
+        }
+        return INTERVAL;
+    }
+}
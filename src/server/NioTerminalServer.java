@@ -0,0 +1,680 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import protocol.BufferPool;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.FrameDecoder;
+
+/**
+ * 基于ServerSocketChannel和Selector实现的非阻塞服务终端，由少量固定的I/O线程处理所有连接。
+ * I/O线程只负责读写、解码和修改关注的事件；解出的账号申请和消息交给工作线程处理，
+ * 同一个连接的消息按收到的顺序依次处理，申请账号、转发或写聊天记录较慢时不会拖慢同一I/O线程上的其它连接。
+ * 传输协议与TerminalServer相同：连接建立后先接收4个字节的账号申请，
+ * 之后每条消息由4个字节的报头（消息长度，-1表示断开连接）和消息内容组成
+ */
+public class NioTerminalServer {
+    private static final int IO_LOOPS_NUMBER = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final int MAX_GATHER_BUFFERS = 64; // 一次聚集写出的最大缓冲区数
+    private static final int MAX_PENDING_BYTES = 256 * 1024; // 每个连接缓冲的待写数据超过此值时暂停写入
+    private static final int READ_BUFFER_BYTES = 64 * 1024; // 每次从一个连接读取的最大字节数
+    private static final long HANDSHAKE_CHECK_MILLIS = 100; // 有连接等待申请账号时，检查超时的间隔（毫秒）
+    private static final int WORKER_THREADS_NUMBER = Math.max(2, 2 * Runtime.getRuntime().availableProcessors());
+    private static final int MAX_INBOUND_TASKS = 256; // 一个连接等待处理的消息达到此数时暂停读取，处理到一半时恢复
+
+    private UserSupervision userManager; // 群聊用户的管理者
+    private ServerSocketChannel serverChannel;
+    private IoLoop[] ioLoops;
+    private int nextLoop; // 下一个新连接分配给的I/O线程
+    private final ServerMetrics metrics; // 运行统计
+    private final long handshakeTimeoutNanos; // 申请账号的超时时间
+    private final int maxPendingHandshakes; // 同时等待申请账号的连接数上限
+    private final AtomicInteger pendingHandshakes = new AtomicInteger(); // 正在等待申请账号的连接数
+    private final int maxMessageBytes; // 一条聊天消息的最大长度
+    private final BufferPool bufferPool; // 控制消息内容的缓冲池
+    private final ExecutorService workers; // 处理解出的账号申请和消息的工作线程
+
+    /**
+     * 实例化一个使用默认配置的非阻塞服务终端对象
+     *
+     * @param userManager 群聊用户的管理者
+     * @param port 服务端的端口号
+     */
+    public NioTerminalServer(UserSupervision userManager, int port) {
+        this(userManager, port, new ServerConfig(), new ServerMetrics(), new BufferPool());
+    }
+
+    /**
+     * 实例化一个非阻塞的服务终端对象
+     *
+     * @param userManager 群聊用户的管理者
+     * @param port 服务端的端口号
+     * @param config 服务终端的配置，使用其中的申请账号超时时间、等待连接数上限和消息的最大长度
+     * @param metrics 记录运行统计的对象
+     * @param bufferPool 控制消息内容的缓冲池
+     */
+    public NioTerminalServer(UserSupervision userManager, int port, ServerConfig config, ServerMetrics metrics,
+                             BufferPool bufferPool) {
+        this.userManager = userManager;
+        this.metrics = metrics;
+        this.bufferPool = bufferPool;
+        maxMessageBytes = config.getMaxMessageBytes();
+        handshakeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getHandshakeTimeoutMillis());
+        maxPendingHandshakes = config.getMaxPendingHandshakes();
+        AtomicInteger workerCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(WORKER_THREADS_NUMBER, task -> {
+            Thread thread = new Thread(task, "nio-worker-" + workerCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        ioLoops = new IoLoop[IO_LOOPS_NUMBER];
+        try {
+            for (int i = 0; i < ioLoops.length; i++) {
+                ioLoops[i] = new IoLoop(i);
+            }
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 调用此方法可用使服务终端开始工作，当前线程只负责接收连接，读写由I/O线程完成
+     */
+    public void startRunning() {
+        for (IoLoop ioLoop : ioLoops) {
+            ioLoop.start();
+        }
+
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                long acceptTime = System.nanoTime();
+                metrics.onAccepted();
+                if (pendingHandshakes.incrementAndGet() > maxPendingHandshakes) {
+                    // 等待申请账号的连接过多，直接断开新连接
+                    pendingHandshakes.decrementAndGet();
+                    metrics.onHandshakeRejected();
+                    closeQuietly(channel);
+                    continue;
+                }
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setKeepAlive(true); // 未协商心跳的客户端失联时由操作系统发现
+                } catch (IOException e) {
+                    // 连接在设置期间已断开，归还占用的名额
+                    pendingHandshakes.decrementAndGet();
+                    closeQuietly(channel);
+                    continue;
+                }
+
+                // 轮流分配给各个I/O线程
+                ioLoops[nextLoop].register(channel, acceptTime);
+                nextLoop = (nextLoop + 1) % ioLoops.length;
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 停止接收连接，断开所有连接并结束I/O线程和工作线程。已加入群聊的用户由UserSupervision负责移除
+     */
+    public void close() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (IoLoop ioLoop : ioLoops) {
+            ioLoop.shutdown();
+        }
+        workers.shutdown();
+    }
+
+    // 一个I/O线程，负责若干个连接的读写
+    private class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // 其它线程交给此线程执行的任务
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER_BUFFERS];
+        private final List<Connection> handshaking = new ArrayList<>(); // 还未申请账号的连接，按接收顺序排列
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES); // 此线程内所有连接共用的读取缓冲区
+        private volatile boolean running = true;
+
+        IoLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "nio-loop-" + index);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        // 在此I/O线程中执行任务
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        // 让此I/O线程关闭所有连接后结束
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        // 将新连接注册到此I/O线程
+        void register(SocketChannel channel, long acceptTime) {
+            execute(() -> {
+                Connection connection = new Connection(this, channel, acceptTime);
+                try {
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    handshaking.add(connection);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    connection.finishHandshake();
+                    connection.close();
+                }
+            });
+        }
+
+        // 移除已申请账号的连接，断开超时仍未申请的连接
+        private void expireHandshakes() {
+            long now = System.nanoTime();
+            Iterator<Connection> iterator = handshaking.iterator();
+            while (iterator.hasNext()) {
+                Connection connection = iterator.next();
+                if (!connection.handshaking) {
+                    iterator.remove();
+                } else if (now - connection.acceptTime >= handshakeTimeoutNanos) {
+                    iterator.remove();
+                    metrics.onHandshakeTimedOut();
+                    connection.finishHandshake();
+                    connection.close();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    // 有连接等待申请账号时定期醒来检查超时
+                    if (handshaking.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.select(HANDSHAKE_CHECK_MILLIS);
+                    }
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+
+                    if (!running) {
+                        break;
+                    }
+
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flushPending();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.readAvailable();
+                            }
+                        } catch (ProtocolException e) {
+                            connection.reject(e);
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.disconnect();
+                        }
+                    }
+
+                    if (!handshaking.isEmpty()) {
+                        expireHandshakes();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                connection.finishHandshake();
+                connection.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // 一个客户端连接的读写状态。读写和解码只在所属的I/O线程中进行，解出的消息由工作线程按顺序处理
+    private class Connection {
+        private final IoLoop ioLoop;
+        private final SocketChannel channel;
+        private final ChannelOutputStream outputStream;
+        private final long acceptTime; // 接收连接的时间（纳秒）
+        private boolean handshaking = true; // 是否还在等待申请账号，计入pendingHandshakes
+        // 正在读取的账号申请，恢复会话时之后还有令牌和序号
+        private final ByteBuffer head = (ByteBuffer) ByteBuffer.allocate(4 + UserSupervision.RESUME_REQUEST_LENGTH)
+                .limit(4);
+        private final FrameDecoder decoder; // 申请到账号后接收的消息由它解码
+        private SelectionKey key;
+        private volatile int userId; // 0 表示还未申请到账号，由工作线程修改
+        private volatile boolean closeAfterFlush; // 申请账号失败时，回复写完后关闭连接
+        private boolean applySubmitted; // 账号申请是否已交给工作线程
+        private boolean readStopped; // 已收到结束消息、已断开或已关闭，不再读取和解码
+        private boolean readPaused; // 等待处理的消息过多，暂停读取
+        private boolean disconnected;
+
+        // 交给工作线程的任务，同一时刻至多一个工作线程按放入的顺序执行
+        private final Queue<Runnable> inbound = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inboundCount = new AtomicInteger();
+        private final AtomicBoolean processing = new AtomicBoolean();
+
+        Connection(IoLoop ioLoop, SocketChannel channel, long acceptTime) {
+            this.ioLoop = ioLoop;
+            this.channel = channel;
+            this.acceptTime = acceptTime;
+            outputStream = new ChannelOutputStream(this);
+            decoder = new FrameDecoder(maxMessageBytes, UserSupervision.MAX_CONTROL_FRAME_LENGTH, bufferPool);
+        }
+
+        // 结束等待申请账号的状态，只计数一次
+        void finishHandshake() {
+            if (handshaking) {
+                handshaking = false;
+                pendingHandshakes.decrementAndGet();
+            }
+        }
+
+        // 读取当前所有可读的数据，可能包含多条消息，也可能只有半条。解出的消息交给工作线程
+        void readAvailable() throws IOException {
+            ByteBuffer received = ioLoop.readBuffer;
+            while (channel.isOpen() && !readStopped && !readPaused) {
+                if (closeAfterFlush) {
+                    stopReading(); // 申请失败，丢弃之后的数据
+                    return;
+                }
+                received.clear();
+                int count = channel.read(received);
+                if (count < 0) {
+                    disconnect();
+                    return;
+                }
+                if (count == 0) {
+                    return; // 数据已读完，等待下一次可读
+                }
+                received.flip();
+
+                int id = userId;
+                if (0 != id) {
+                    userManager.markActive(id);
+                } else if (!applySubmitted) {
+                    // 刚建立连接时的4个字节是账号申请
+                    if (!readHandshake(received)) {
+                        return;
+                    }
+                    head.flip();
+                    int applyId = head.getInt();
+                    long resumeToken = head.hasRemaining() ? head.getLong() : 0;
+                    long lastSequence = head.hasRemaining() ? head.getLong() : -1;
+                    applySubmitted = true;
+                    finishHandshake();
+                    dispatch(() -> applyId(applyId, resumeToken, lastSequence));
+                }
+
+                Frame frame;
+                while ((frame = decoder.decode(received)) != null) {
+                    if (frame.isEnd()) {
+                        // 结束与该用户的通讯
+                        stopReading();
+                        dispatch(this::end);
+                        return;
+                    }
+                    Frame decoded = frame;
+                    dispatch(() -> handleFrame(decoded));
+                }
+                if (inboundCount.get() >= MAX_INBOUND_TASKS) {
+                    // 工作线程处理不过来，暂停读取，让TCP的流量控制限制对方
+                    readPaused = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    return;
+                }
+            }
+        }
+
+        // 不再关注可读事件，以免对方继续发来的数据使I/O线程空转
+        private void stopReading() {
+            readStopped = true;
+            if (key != null && key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        // 等待处理的消息已减少一半，恢复读取，在I/O线程中执行
+        private void resumeReading() {
+            if (readPaused && !readStopped && key.isValid()) {
+                readPaused = false;
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        // 把任务放入此连接的队列，没有工作线程在处理此连接时安排一个
+        private void dispatch(Runnable task) {
+            inboundCount.incrementAndGet();
+            inbound.add(task);
+            if (processing.compareAndSet(false, true)) {
+                try {
+                    workers.execute(this::processInbound);
+                } catch (RejectedExecutionException e) {
+                    processing.set(false);
+                }
+            }
+        }
+
+        // 工作线程：依次执行此连接的任务，队列空了之后退出
+        private void processInbound() {
+            while (true) {
+                Runnable task;
+                while ((task = inbound.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                    if (inboundCount.decrementAndGet() == MAX_INBOUND_TASKS / 2) {
+                        ioLoop.execute(this::resumeReading);
+                    }
+                }
+                processing.set(false);
+                // 释放后再检查一次，防止漏掉刚放入队列的任务
+                if (inbound.isEmpty() || !processing.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        // 处理一条消息，在工作线程中执行。申请账号失败后收到的消息直接丢弃
+        private void handleFrame(Frame frame) {
+            int id = userId;
+            if (0 == id) {
+                frame.release();
+            } else if (frame.isControl()) {
+                try {
+                    userManager.handleControlFrame(id, frame.getType(), frame.getData(), frame.getLength());
+                } finally {
+                    frame.release();
+                }
+            } else {
+                userManager.relayMessage(id, frame.getData()); // 将消息原样转发给其它用户
+            }
+        }
+
+        // 用户主动结束通讯，在工作线程中执行
+        private void end() {
+            int id = userId;
+            if (0 != id) {
+                userManager.removeUser(id, channel.socket());
+                userId = 0;
+            }
+            close();
+        }
+
+        // 读取账号申请，读到账号申请后发现是恢复会话时继续读取令牌和序号，读完时返回true
+        private boolean readHandshake(ByteBuffer received) {
+            while (true) {
+                int length = Math.min(head.remaining(), received.remaining());
+                head.put(received.array(), received.position(), length);
+                received.position(received.position() + length);
+                if (head.hasRemaining()) {
+                    return false;
+                }
+                if (head.position() != 4 || !UserSupervision.isResumeRequest(head.getInt(0))) {
+                    return true;
+                }
+                head.limit(head.capacity());
+            }
+        }
+
+        // 处理账号申请，-1 表示群聊结束，在工作线程中执行。申请失败时回复写完后关闭连接
+        private void applyId(int applyId, long resumeToken, long lastSequence) {
+            if (applyId == -1) {
+                userManager.end();
+            }
+
+            // 申请成功时回复由此用户的发送队列发出
+            int result = userManager.applyId(applyId, resumeToken, lastSequence, channel.socket(), outputStream);
+            metrics.onHandshakeCompleted(result, System.nanoTime() - acceptTime);
+            if (UserSupervision.isAppliedId(result)) {
+                userId = result;
+                return;
+            }
+            closeAfterFlush = true;
+            try {
+                outputStream.write(FrameCodec.toByte(result));
+                outputStream.flush();
+            } catch (IOException e) {
+                // 连接已断开
+            }
+        }
+
+        // 将等待发送的数据尽量写出，写不完时等待通道可写
+        void flushPending() throws IOException {
+            if (!key.isValid()) {
+                outputStream.pending.clear();
+                outputStream.pendingBytes.set(0);
+                return;
+            }
+
+            ByteBuffer[] gather = ioLoop.gather;
+            try {
+                while (true) {
+                    int count = 0;
+                    for (ByteBuffer buffer : outputStream.pending) {
+                        if (count == gather.length) {
+                            break;
+                        }
+                        gather[count++] = buffer;
+                    }
+                    if (count == 0) {
+                        break;
+                    }
+
+                    outputStream.pendingBytes.addAndGet(-channel.write(gather, 0, count));
+                    while (!outputStream.pending.isEmpty() && !outputStream.pending.peek().hasRemaining()) {
+                        outputStream.pending.poll();
+                    }
+                    if (gather[count - 1].hasRemaining()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            } finally {
+                Arrays.fill(gather, null);
+                outputStream.notifyIfWritable();
+            }
+
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closeAfterFlush) {
+                close();
+            }
+        }
+
+        // 连接意外断开时清理此用户，在I/O线程中执行；移除用户排在已收到的消息之后
+        void disconnect() {
+            closeAndRemove(null);
+        }
+
+        // 对方发送的消息格式错误或超长时断开连接，与阻塞模式相同，不保留会话，在I/O线程中执行
+        void reject(ProtocolException error) {
+            closeAndRemove(error);
+        }
+
+        // 关闭连接后移除此用户，error为null时是意外断开，保留会话以便恢复
+        private void closeAndRemove(ProtocolException error) {
+            if (disconnected) {
+                return;
+            }
+            disconnected = true;
+            finishHandshake();
+            close();
+            dispatch(() -> {
+                int id = userId;
+                if (0 == id) {
+                    return;
+                }
+                userId = 0;
+                if (error != null) {
+                    System.out.println("用户" + id + "发送的消息格式错误，已断开连接：" + error.getMessage());
+                    userManager.removeUser(id, channel.socket());
+                } else {
+                    userManager.detachUser(id, channel.socket()); // 保留会话以便恢复
+                    System.out.println("一位用户已退出");
+                }
+            });
+        }
+
+        // 关闭连接并归还解码器占用的缓冲区，可在任意线程中调用，用户被其它线程移除时也经此关闭
+        void close() {
+            closeQuietly(channel);
+            if (ioLoop.inLoop()) {
+                releaseDecoder();
+            } else {
+                ioLoop.execute(this::releaseDecoder);
+            }
+        }
+
+        // 解码器只在I/O线程中使用，也只在这里释放
+        private void releaseDecoder() {
+            readStopped = true;
+            decoder.close();
+        }
+    }
+
+    /**
+     * 向非阻塞通道写数据的输出流，write只将数据放入等待队列，flush时交给I/O线程聚集写出。
+     * 为避免复制，写入的数组不会被拷贝，同一条广播的所有接收者共用同一个只读数组。
+     * 待写数据过多时isWritable返回false，写任务应暂停，等待对方接收后再继续
+     */
+    private class ChannelOutputStream extends OutputStream implements BackpressuredOutput {
+        private final Connection connection;
+        private final Queue<ByteBuffer> pending = new ConcurrentLinkedQueue<>(); // 等待写出的数据
+        private final AtomicLong pendingBytes = new AtomicLong();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicReference<Runnable> writableTask = new AtomicReference<>();
+
+        ChannelOutputStream(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!connection.channel.isOpen()) {
+                throw new SocketException("Socket closed");
+            }
+            pending.add(ByteBuffer.wrap(b, off, len));
+            pendingBytes.addAndGet(len);
+        }
+
+        @Override
+        public boolean isWritable() {
+            return pendingBytes.get() <= MAX_PENDING_BYTES || !connection.channel.isOpen();
+        }
+
+        @Override
+        public void onWritable(Runnable task) {
+            writableTask.set(task);
+            notifyIfWritable();
+        }
+
+        // 已可写时执行登记的任务
+        void notifyIfWritable() {
+            if (isWritable()) {
+                Runnable task = writableTask.getAndSet(null);
+                if (task != null) {
+                    task.run();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (connection.ioLoop.inLoop()) {
+                connection.flushPending();
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                connection.ioLoop.execute(() -> {
+                    flushScheduled.set(false);
+                    try {
+                        connection.flushPending();
+                    } catch (IOException | CancelledKeyException e) {
+                        connection.disconnect();
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            connection.close();
+            notifyIfWritable();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package server;
+
+/**
+ * 某个用户发送队列的统计信息，用于观察哪些用户接收过慢
+ */
+public class OutboundStats {
+    private final int userId;
+    private final int queuedFrames;
+    private final long droppedFrames;
+    private final int spilledFrames;
+
+    OutboundStats(int userId, int queuedFrames, long droppedFrames, int spilledFrames) {
+        this.userId = userId;
+        this.queuedFrames = queuedFrames;
+        this.droppedFrames = droppedFrames;
+        this.spilledFrames = spilledFrames;
+    }
+
+    /**
+     * @return 用户的账号
+     */
+    public int getUserId() {
+        return userId;
+    }
+
+    /**
+     * @return 等待发送的消息条数，包括暂存在磁盘上的消息
+     */
+    public int getQueuedFrames() {
+        return queuedFrames;
+    }
+
+    /**
+     * @return 因队列已满而被丢弃的消息总数
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * @return 当前暂存在磁盘上的消息条数
+     */
+    public int getSpilledFrames() {
+        return spilledFrames;
+    }
+
+    @Override
+    public String toString() {
+        return "用户" + userId + "：等待发送" + queuedFrames + "条，已丢弃" + droppedFrames + "条，磁盘暂存" + spilledFrames + "条";
+    }
+}
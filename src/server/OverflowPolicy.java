@@ -0,0 +1,38 @@
+package server;
+
+/**
+ * 用户接收过慢、发送队列已满时对新消息的处理方式
+ */
+public enum OverflowPolicy {
+    /**
+     * 丢弃队列中最早的消息，为新消息腾出位置
+     */
+    DROP_OLDEST,
+
+    /**
+     * 断开与此用户的连接
+     */
+    DISCONNECT,
+
+    /**
+     * 将之后的消息暂存到磁盘，用户追上后再依次发送；暂存文件达到大小上限时断开与此用户的连接
+     */
+    SPILL_TO_DISK;
+
+    /**
+     * 根据名称得到对应的处理方式，名称不区分大小写
+     *
+     * @param name 处理方式的名称
+     * @return 名称为空或无法识别时返回DROP_OLDEST
+     */
+    public static OverflowPolicy fromName(String name) {
+        if (name != null) {
+            for (OverflowPolicy policy : values()) {
+                if (policy.name().equalsIgnoreCase(name.trim())) {
+                    return policy;
+                }
+            }
+        }
+        return DROP_OLDEST;
+    }
+}
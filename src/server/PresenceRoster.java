@@ -0,0 +1,209 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import protocol.FrameCodec;
+
+/**
+ * 在线名单。用户加入和移除时只记下账号，由后台线程每隔一段时间统一处理：
+ * 对照用户表得出这段时间内的净变化，生成新的不可变名单，再把变化合并为一条消息发给所有订阅的用户。
+ * 因此大量用户同时上线（例如服务终端重启后集体重连）时每个间隔只有一条更新，而不是每个用户通知一次所有人；
+ * 间隔内下线又上线的用户不产生任何更新。新订阅的用户在同一线程中收到完整名单，之后的变化都在它之后发出，不会遗漏。
+ * 名单是不可变的数组，编码后的消息由所有新订阅的用户共用；加入和移除用户时只放入无锁队列，不等待后台线程
+ */
+class PresenceRoster {
+    private final SessionTable sessionTable;
+    private final ServerMetrics metrics;
+    private final long intervalNanos;
+    private final Queue<Integer> changes = new ConcurrentLinkedQueue<>(); // 加入或移除过的账号，可能重复
+    private final Queue<UserSession> subscribers = new ConcurrentLinkedQueue<>(); // 等待完整名单的用户
+    private final Thread thread;
+    private volatile boolean parked;
+    private volatile boolean running = true;
+
+    private int[] online = new int[0]; // 从小到大排列的在线账号，替换后不再修改，只由后台线程读写
+    private byte[] rosterFrame; // 当前名单编码后的消息，需要时才生成，只由后台线程读写
+    private long lastFlushTime;
+
+    /**
+     * 创建名单并启动后台线程
+     *
+     * @param sessionTable 用户表，据此判断账号是否在线
+     * @param intervalMillis 合并变化的间隔（毫秒）
+     * @param metrics 运行统计
+     */
+    PresenceRoster(SessionTable sessionTable, long intervalMillis, ServerMetrics metrics) {
+        this.sessionTable = sessionTable;
+        this.metrics = metrics;
+        intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        lastFlushTime = System.nanoTime() - intervalNanos;
+
+        thread = new Thread(this::run, "presence-roster");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 记录一个账号的用户加入或移除，由加入和移除用户的线程调用
+     *
+     * @param id 账号
+     */
+    void onChange(int id) {
+        changes.add(id);
+        wakeUp();
+    }
+
+    /**
+     * 让一个用户在下一次处理时收到完整名单，之后收到名单的变化
+     *
+     * @param session 协商了CAP_PRESENCE的用户
+     */
+    void subscribe(UserSession session) {
+        subscribers.add(session);
+        wakeUp();
+    }
+
+    /**
+     * 停止后台线程，尚未发出的变化被丢弃
+     */
+    void close() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void wakeUp() {
+        if (parked) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    // 后台线程：没有变化时休眠，有变化时与上一次处理至少相隔一个间隔
+    private void run() {
+        while (running) {
+            if (changes.isEmpty() && subscribers.isEmpty()) {
+                parked = true;
+                if (changes.isEmpty() && subscribers.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+                continue;
+            }
+            long delay = lastFlushTime + intervalNanos - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(this, delay);
+                continue;
+            }
+            lastFlushTime = System.nanoTime();
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void flush() {
+        int[] changed = drainChanges();
+        int[] current = online;
+        int[] joined = new int[changed.length];
+        int[] left = new int[changed.length];
+        int joinedCount = 0;
+        int leftCount = 0;
+        for (int id : changed) {
+            boolean isOnline = sessionTable.get(id) != null;
+            if (isOnline != (Arrays.binarySearch(current, id) >= 0)) {
+                if (isOnline) {
+                    joined[joinedCount++] = id;
+                } else {
+                    left[leftCount++] = id;
+                }
+            }
+        }
+
+        if (joinedCount + leftCount > 0) {
+            online = merge(current, joined, joinedCount, left, leftCount);
+            rosterFrame = null;
+            // 内容为：4个字节的上线人数 + 4个字节的下线人数 + 上线的账号 + 下线的账号，账号列表的格式见FrameCodec.encodeIds
+            byte[] joinedIds = FrameCodec.encodeIds(joined, joinedCount);
+            byte[] leftIds = FrameCodec.encodeIds(left, leftCount);
+            int length = 8 + joinedIds.length + leftIds.length;
+            byte[] frame = ByteBuffer.allocate(8 + length).putInt(FrameCodec.PRESENCE_FRAME).putInt(length)
+                    .putInt(joinedCount).putInt(leftCount).put(joinedIds).put(leftIds).array();
+            int recipients = 0;
+            for (UserSession session : sessionTable.snapshot()) {
+                if (session.isRosterSent()) {
+                    session.send(frame);
+                    recipients++;
+                }
+            }
+            metrics.onPresenceUpdate(changed.length, recipients);
+        }
+
+        UserSession session;
+        while ((session = subscribers.poll()) != null) {
+            if (!session.isClosed()) {
+                session.send(rosterFrame());
+                session.markRosterSent();
+            }
+        }
+    }
+
+    // 取出记下的账号，排序并去重
+    private int[] drainChanges() {
+        int[] changed = new int[16];
+        int count = 0;
+        Integer id;
+        while ((id = changes.poll()) != null) {
+            if (count == changed.length) {
+                changed = Arrays.copyOf(changed, count * 2);
+            }
+            changed[count++] = id;
+        }
+        Arrays.sort(changed, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || changed[unique - 1] != changed[i]) {
+                changed[unique++] = changed[i];
+            }
+        }
+        return Arrays.copyOf(changed, unique);
+    }
+
+    // 从原名单中去掉下线的账号、加入上线的账号，三者都从小到大排列
+    private static int[] merge(int[] current, int[] joined, int joinedCount, int[] left, int leftCount) {
+        int[] updated = new int[current.length + joinedCount - leftCount];
+        int size = 0;
+        int j = 0;
+        int l = 0;
+        for (int id : current) {
+            while (j < joinedCount && joined[j] < id) {
+                updated[size++] = joined[j++];
+            }
+            if (l < leftCount && left[l] == id) {
+                l++;
+            } else {
+                updated[size++] = id;
+            }
+        }
+        while (j < joinedCount) {
+            updated[size++] = joined[j++];
+        }
+        return updated;
+    }
+
+    // 内容为：4个字节的人数 + 在线的账号，所有新订阅的用户共用，名单改变后重新生成
+    private byte[] rosterFrame() {
+        if (rosterFrame == null) {
+            int[] current = online;
+            byte[] ids = FrameCodec.encodeIds(current, current.length);
+            rosterFrame = ByteBuffer.allocate(12 + ids.length).putInt(FrameCodec.ROSTER_FRAME)
+                    .putInt(4 + ids.length).putInt(current.length).put(ids).array();
+        }
+        return rosterFrame;
+    }
+}
@@ -0,0 +1,87 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 最近若干条群聊消息的环形缓冲区，以消息的序号为下标，新消息覆盖同一槽位上更早的消息。
+ * 广播线程在领取序号后立即放入，恢复会话时由此补发断开期间的消息，无需读取磁盘。
+ * 放入和读取都不加锁
+ */
+class RecentBroadcasts {
+    private static final long FILL_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10); // 等待已领取序号的消息放入的最长时间
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+
+    /**
+     * @param capacity 保留的消息条数，向上取整为2的幂
+     */
+    RecentBroadcasts(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * @return 保留的消息条数
+     */
+    int capacity() {
+        return slots.length();
+    }
+
+    /**
+     * 放入一条消息
+     *
+     * @param sequence 消息的序号
+     * @param senderId 发送者的账号
+     * @param frame 报头+信息的完整字节流（未压缩），调用后不得再修改
+     */
+    void add(long sequence, int senderId, byte[] frame) {
+        slots.set(index(sequence), new Entry(sequence, senderId, frame));
+    }
+
+    /**
+     * 读取一条消息。序号已被领取但消息还未放入时短暂等待
+     *
+     * @param sequence 消息的序号，必须已被领取
+     * @return 此消息，已被更新的消息覆盖或等待超时时为null
+     */
+    Entry get(long sequence) {
+        long deadline = 0;
+        while (true) {
+            Entry entry = slots.get(index(sequence));
+            if (entry != null && entry.sequence >= sequence) {
+                return (entry.sequence == sequence) ? entry : null;
+            }
+            // 槽位中还是更早的消息，广播线程正要放入
+            long now = System.nanoTime();
+            if (deadline == 0) {
+                deadline = now + FILL_WAIT_NANOS;
+            } else if (now - deadline >= 0) {
+                return null;
+            }
+            LockSupport.parkNanos(1000);
+        }
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence & mask);
+    }
+
+    /**
+     * 缓冲区中的一条消息
+     */
+    static class Entry {
+        final long sequence;
+        final int senderId;
+        final byte[] frame;
+
+        Entry(long sequence, int senderId, byte[] frame) {
+            this.sequence = sequence;
+            this.senderId = senderId;
+            this.frame = frame;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package server;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 连接意外断开的用户的恢复令牌。令牌有效期间账号在SessionTable中保持占用，不会分配给其它用户，
+ * 过期后账号才重新空闲。修改只在UserSupervision持有锁时进行，查询可在任意线程中进行
+ */
+class ResumeTickets {
+    private final SessionTable sessionTable;
+    private final long timeoutNanos;
+    private final Map<Integer, Ticket> tickets = new ConcurrentHashMap<>();
+    private final Queue<Ticket> expiryOrder = new ConcurrentLinkedQueue<>(); // 有效期都相同，按断开的先后即按过期的先后
+
+    /**
+     * @param sessionTable 保留账号的用户表
+     * @param timeoutMillis 令牌的有效期（毫秒），0表示不保留
+     */
+    ResumeTickets(SessionTable sessionTable, long timeoutMillis) {
+        this.sessionTable = sessionTable;
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * 保留已移除用户的账号和令牌
+     *
+     * @param id 用户的账号，已从用户表中移除
+     * @param token 此用户的恢复令牌
+     */
+    void add(int id, long token) {
+        if (timeoutNanos <= 0) {
+            return;
+        }
+        Ticket ticket = new Ticket(id, token, System.nanoTime() + timeoutNanos);
+        tickets.put(id, ticket);
+        expiryOrder.add(ticket);
+        sessionTable.reserve(id);
+    }
+
+    /**
+     * 检查令牌是否正确，不取回账号
+     *
+     * @param id 用户的账号
+     * @param token 客户端出示的令牌
+     * @return 令牌有效时返回true
+     */
+    boolean matches(int id, long token) {
+        Ticket ticket = tickets.get(id);
+        return ticket != null && ticket.token == token;
+    }
+
+    /**
+     * 令牌正确时取回保留的账号，之后由调用者把新的会话放入用户表
+     *
+     * @param id 用户的账号
+     * @param token 客户端出示的令牌
+     * @return 令牌有效时返回true
+     */
+    boolean take(int id, long token) {
+        Ticket ticket = tickets.get(id);
+        if (ticket == null || ticket.token != token) {
+            return false;
+        }
+        tickets.remove(id);
+        sessionTable.release(id);
+        return true;
+    }
+
+    /**
+     * @param id 账号
+     * @return 此账号是否为断开的用户保留着
+     */
+    boolean isReserved(int id) {
+        return tickets.containsKey(id);
+    }
+
+    /**
+     * 释放已过期的令牌和账号
+     */
+    void expire() {
+        long now = System.nanoTime();
+        Ticket ticket;
+        while ((ticket = expiryOrder.peek()) != null && now - ticket.expireTime >= 0) {
+            expiryOrder.poll();
+            // 同一账号可能已被取回后再次断开，只释放仍是这张令牌的保留
+            if (tickets.remove(ticket.id, ticket)) {
+                sessionTable.release(ticket.id);
+            }
+        }
+    }
+
+    private static class Ticket {
+        final int id;
+        final long token;
+        final long expireTime; // System.nanoTime()
+
+        Ticket(int id, long token, long expireTime) {
+            this.id = id;
+            this.token = token;
+            this.expireTime = expireTime;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package server;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 聊天室的成员索引。每个聊天室的成员保存为不可变数组，加入、退出时通过ConcurrentHashMap.compute整体替换，
+ * 只锁住同一个聊天室，不同聊天室的成员变化互不影响；发送时只读取当前数组，不加锁，代价只与聊天室的人数有关。
+ * 聊天室在第一个成员加入时创建，最后一个成员退出时删除
+ */
+class RoomRegistry {
+    private static final UserSession[] EMPTY = new UserSession[0];
+
+    private final ConcurrentHashMap<Integer, UserSession[]> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * 将用户加入聊天室，已是成员时不做任何事
+     *
+     * @param roomId 聊天室的编号
+     * @param session 加入的用户
+     * @return 加入后聊天室的人数
+     */
+    int join(int roomId, UserSession session) {
+        UserSession[] members = rooms.compute(roomId, (id, current) -> {
+            if (current == null) {
+                return new UserSession[] {session};
+            }
+            for (UserSession member : current) {
+                if (member == session) {
+                    return current;
+                }
+            }
+            UserSession[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = session;
+            return updated;
+        });
+        return members.length;
+    }
+
+    /**
+     * 将用户移出聊天室，聊天室没有成员后被删除
+     *
+     * @param roomId 聊天室的编号
+     * @param session 退出的用户
+     */
+    void leave(int roomId, UserSession session) {
+        rooms.computeIfPresent(roomId, (id, current) -> {
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == session) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return current;
+            }
+            if (current.length == 1) {
+                return null; // 删除空的聊天室
+            }
+            UserSession[] updated = new UserSession[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            return updated;
+        });
+    }
+
+    /**
+     * @param roomId 聊天室的编号
+     * @return 聊天室当前成员的快照，聊天室不存在时为空数组，调用者不得修改
+     */
+    UserSession[] members(int roomId) {
+        UserSession[] members = rooms.get(roomId);
+        return (members == null) ? EMPTY : members;
+    }
+
+    /**
+     * @return 当前存在的聊天室数
+     */
+    int size() {
+        return rooms.size();
+    }
+}
@@ -0,0 +1,616 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 聊天历史的全文索引（倒排索引），记录每个词项出现在哪些消息中。
+ * 由单独的索引线程跟在历史记录之后读取新消息、切分词项，先放入内存中的增量，
+ * 增量中的消息达到一定条数后写成一个只读的段文件，因此建立索引不占用广播和写聊天记录的线程。
+ * 段文件中每个词项的倒排表是按编号递增的消息编号，以与前一个编号的差值用变长整数保存；
+ * 词项按UTF-8字节排序，查询时在映射到内存的目录中二分查找。
+ * 段文件可以随时由历史记录重建：启动时从最后一个段之后继续建立索引，损坏或与历史记录不符的段被丢弃。
+ * 历史记录删除最早的段后，完全早于历史记录的索引段也随之删除
+ */
+class SearchIndex {
+    private static final String SEGMENT_SUFFIX = ".sdx";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x53445831; // 段文件末尾的标记，写完整的文件才有
+    private static final int FOOTER_BYTES = 32; // 起始编号 + 结束编号 + 词项数 + 词项位置 + 目录位置 + 标记
+    private static final int ENTRY_BYTES = 16; // 目录项：词项位置 + 词项长度 + 倒排表位置 + 消息数
+    private static final int READ_BATCH = 256; // 索引线程每次从历史记录读取的条数
+    private static final int MAX_SCAN = 1000; // 一次查询最多核对的消息数，超出时先返回已找到的结果
+    private static final int SNIPPET_CHARS = 80; // 摘要的最大长度
+    private static final int SNIPPET_CONTEXT = 20; // 摘要中匹配位置之前保留的字符数
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final File directory;
+    private final HistoryStore historyStore;
+    private final int flushMessages;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // 保护增量，以及增量写成段时的切换
+    private volatile IndexSegment[] segments; // 按编号从小到大排列
+    private Delta delta; // 最后一个段之后的消息，只由索引线程修改
+    private volatile long indexedId; // 小于它的消息都已可以查到
+    private volatile boolean running = true;
+    private final Thread indexerThread;
+
+    /**
+     * 打开（或创建）索引目录，恢复已有的段，并启动索引线程补全之后的消息
+     *
+     * @param directory 保存段文件的目录
+     * @param historyStore 被索引的历史记录
+     * @param flushMessages 增量中的消息达到此条数时写成一个段
+     * @throws IOException 无法创建目录时抛出
+     */
+    SearchIndex(File directory, HistoryStore historyStore, int flushMessages) throws IOException {
+        if (flushMessages <= 0) {
+            throw new IllegalArgumentException("flushMessages must be positive: " + flushMessages);
+        }
+        this.directory = directory;
+        this.historyStore = historyStore;
+        this.flushMessages = flushMessages;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("无法创建搜索索引目录：" + directory);
+        }
+
+        // 写了一半的段在下次写入时重新生成
+        for (File temp : directory.listFiles((dir, name) -> name.endsWith(TEMP_SUFFIX))) {
+            temp.delete();
+        }
+        segments = openSegments();
+        indexedId = (segments.length > 0) ? segments[segments.length - 1].endId : historyStore.firstId();
+        delta = new Delta(indexedId);
+
+        indexerThread = new Thread(this::runIndexer, "search-indexer");
+        indexerThread.setDaemon(true);
+        indexerThread.start();
+    }
+
+    /**
+     * @return 小于此编号的消息都已建立索引
+     */
+    long indexedId() {
+        return indexedId;
+    }
+
+    /**
+     * 停止索引线程。内存中的增量不写成段，下次启动时由历史记录重建
+     */
+    void close() {
+        running = false;
+        LockSupport.unpark(indexerThread);
+        try {
+            indexerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 查找同时包含查询语句中所有词项的消息，从新到旧返回
+     *
+     * @param query 查询语句
+     * @param beforeId 只查找编号小于它的消息，Long.MAX_VALUE表示从最新的消息开始
+     * @param limit 最多返回的条数
+     * @return 找到的消息及其摘要，以及查询下一页时使用的beforeId
+     */
+    Page search(String query, long beforeId, int limit) {
+        Page page = new Page(query, limit);
+        List<String> terms = SearchTokenizer.queryTerms(query);
+        if (terms.isEmpty() || limit <= 0) {
+            return page;
+        }
+
+        IndexSegment[] current;
+        long deltaBaseId;
+        int[] deltaMatches = null;
+        lock.readLock().lock();
+        try {
+            current = segments;
+            deltaBaseId = delta.baseId;
+            if (deltaBaseId < beforeId) {
+                deltaMatches = delta.match(terms);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (deltaMatches != null && collect(page, deltaMatches, deltaBaseId, beforeId)) {
+            return page;
+        }
+
+        byte[][] termBytes = new byte[terms.size()][];
+        for (int i = 0; i < termBytes.length; i++) {
+            termBytes[i] = terms.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        for (int i = current.length - 1; i >= 0; i--) {
+            IndexSegment segment = current[i];
+            if (segment.baseId >= beforeId) {
+                continue;
+            }
+            int[] matches = segment.match(termBytes);
+            if (matches != null && collect(page, matches, segment.baseId, beforeId)) {
+                return page;
+            }
+        }
+        return page;
+    }
+
+    // 从新到旧核对一个段中的候选消息并生成摘要，找够条数或核对过多时记下继续查询的位置并返回true
+    private boolean collect(Page page, int[] matches, long baseId, long beforeId) {
+        for (int i = matches.length - 1; i >= 0; i--) {
+            long id = baseId + matches[i];
+            if (id >= beforeId) {
+                continue;
+            }
+            List<HistoryRecord> records = historyStore.read(id, 1);
+            if (!records.isEmpty() && records.get(0).getId() == id) { // 已从历史记录中删除的消息读到的是其它消息
+                page.check(records.get(0));
+            }
+            if (page.isFull()) {
+                page.nextBeforeId = id;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 索引线程：读取尚未建立索引的消息放入增量，增量足够大时写成段
+    private void runIndexer() {
+        Set<String> terms = new HashSet<>();
+        while (running) {
+            try {
+                List<HistoryRecord> records = historyStore.read(indexedId, READ_BATCH);
+                if (records.isEmpty()) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+                addToDelta(records, terms);
+                if (delta.messages >= flushMessages) {
+                    flush();
+                    dropExpiredSegments();
+                }
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                LockSupport.parkNanos(IDLE_PARK_NANOS); // 以免出错时空转
+            }
+        }
+    }
+
+    // 切分词项不持有锁，只有放入增量时短暂阻塞查询
+    private void addToDelta(List<HistoryRecord> records, Set<String> terms) {
+        String[][] recordTerms = new String[records.size()][];
+        for (int i = 0; i < recordTerms.length; i++) {
+            terms.clear();
+            SearchTokenizer.indexTerms(records.get(i).getText(), terms);
+            recordTerms[i] = terms.toArray(new String[0]);
+        }
+
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < recordTerms.length; i++) {
+                int relativeId = (int) (records.get(i).getId() - delta.baseId);
+                for (String term : recordTerms[i]) {
+                    delta.postings.computeIfAbsent(term, key -> new IntList()).add(relativeId);
+                }
+                delta.messages++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        indexedId = records.get(records.size() - 1).getId() + 1;
+    }
+
+    // 把增量写成段，之后查询改为读取段文件
+    private void flush() throws IOException {
+        long endId = indexedId;
+        IndexSegment segment = writeSegment(delta, endId); // 只有索引线程修改增量，写文件时不需要锁
+        lock.writeLock().lock();
+        try {
+            IndexSegment[] current = segments;
+            IndexSegment[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = segment;
+            segments = updated;
+            delta = new Delta(endId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // 删除完全早于历史记录的段。段文件只读，正在查询它的线程仍可读完，映射由垃圾回收释放
+    private void dropExpiredSegments() {
+        long firstId = historyStore.firstId();
+        IndexSegment[] current = segments;
+        int expired = 0;
+        while (expired < current.length && current[expired].endId <= firstId) {
+            expired++;
+        }
+        if (expired == 0) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            segments = Arrays.copyOfRange(segments, expired, segments.length);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (int i = 0; i < expired; i++) {
+            new File(directory, String.format("%020d", current[i].baseId) + SEGMENT_SUFFIX).delete();
+        }
+    }
+
+    // 先写入临时文件，写完整后再改名，启动时不会读到写了一半的段
+    private IndexSegment writeSegment(Delta source, long endId) throws IOException {
+        List<Map.Entry<byte[], IntList>> entries = new ArrayList<>(source.postings.size());
+        for (Map.Entry<String, IntList> entry : source.postings.entrySet()) {
+            entries.add(new AbstractMap.SimpleEntry<>(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue()));
+        }
+        entries.sort((a, b) -> compareBytes(a.getKey(), b.getKey()));
+
+        String name = String.format("%020d", source.baseId);
+        File temp = new File(directory, name + TEMP_SUFFIX);
+        File file = new File(directory, name + SEGMENT_SUFFIX);
+        try (FileOutputStream stream = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024))) {
+            int[] postingsOffsets = new int[entries.size()];
+            for (int i = 0; i < entries.size(); i++) {
+                postingsOffsets[i] = out.size();
+                IntList postings = entries.get(i).getValue();
+                int previous = 0;
+                for (int j = 0; j < postings.size; j++) {
+                    writeVarint(out, postings.values[j] - previous);
+                    previous = postings.values[j];
+                }
+            }
+            int termsOffset = out.size();
+            for (Map.Entry<byte[], IntList> entry : entries) {
+                out.write(entry.getKey());
+            }
+            int entriesOffset = out.size();
+            int termOffset = termsOffset;
+            for (int i = 0; i < entries.size(); i++) {
+                byte[] term = entries.get(i).getKey();
+                out.writeInt(termOffset);
+                out.writeInt(term.length);
+                out.writeInt(postingsOffsets[i]);
+                out.writeInt(entries.get(i).getValue().size);
+                termOffset += term.length;
+            }
+            out.writeLong(source.baseId);
+            out.writeLong(endId);
+            out.writeInt(entries.size());
+            out.writeInt(termsOffset);
+            out.writeInt(entriesOffset);
+            out.writeInt(MAGIC);
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return new IndexSegment(file);
+    }
+
+    // 按编号打开已有的段，删除完全早于历史记录的段，遇到损坏、不连续或超出历史记录的段时丢弃它及之后的段
+    private IndexSegment[] openSegments() {
+        String[] names = directory.list((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        Arrays.sort(names); // 文件名是补零的编号，按名称排序即按编号排序
+        List<IndexSegment> opened = new ArrayList<>();
+        long firstId = historyStore.firstId();
+        long expectedBaseId = -1; // 第一个保留的段只需包含firstId
+        for (int i = 0; i < names.length; i++) {
+            File file = new File(directory, names[i]);
+            IndexSegment segment = null;
+            try {
+                segment = new IndexSegment(file);
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+            if (segment != null && opened.isEmpty() && segment.endId <= firstId) {
+                file.delete(); // 对应的历史记录已被删除
+                continue;
+            }
+            boolean contiguous = (expectedBaseId < 0) ? segment != null && segment.baseId <= firstId
+                    : segment != null && segment.baseId == expectedBaseId;
+            if (!contiguous || segment.endId > historyStore.nextId()) {
+                System.out.println("搜索索引的段" + names[i] + "无效，将由历史记录重建");
+                for (int j = i; j < names.length; j++) {
+                    new File(directory, names[j]).delete();
+                }
+                break;
+            }
+            opened.add(segment);
+            expectedBaseId = segment.endId;
+        }
+        return opened.toArray(new IndexSegment[0]);
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    // 按无符号字节比较，与段中词项的顺序一致
+    private static int compareBytes(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * 一页查询结果
+     */
+    static class Page {
+        private final List<String> anchors; // 查询语句中的片段，用于定位摘要
+        private final List<String> phrases; // 必须在原文中出现的片段
+        private final int limit;
+        private int scanned; // 已核对的消息数
+        final List<HistoryRecord> records = new ArrayList<>(); // 找到的消息，从新到旧排列
+        final List<String> snippets = new ArrayList<>(); // 每条消息中匹配位置附近的内容
+        long nextBeforeId = -1; // 查询下一页时使用的beforeId，-1表示已没有更多结果
+
+        Page(String query, int limit) {
+            anchors = SearchTokenizer.split(query);
+            phrases = SearchTokenizer.phrases(query);
+            this.limit = limit;
+        }
+
+        // 用原文核对较长的中文片段，符合时记录此消息及摘要
+        void check(HistoryRecord record) {
+            scanned++;
+            String text = record.getText();
+            String lower = SearchTokenizer.lowerCase(text);
+            for (String phrase : phrases) {
+                if (!lower.contains(phrase)) {
+                    return;
+                }
+            }
+            records.add(record);
+            snippets.add(snippet(text, lower));
+        }
+
+        boolean isFull() {
+            return records.size() >= limit || scanned >= MAX_SCAN;
+        }
+
+        // 截取最早的匹配位置附近的一段内容，换行替换为空格
+        private String snippet(String text, String lower) {
+            int position = -1;
+            for (String anchor : anchors) {
+                int found = lower.indexOf(anchor);
+                if (found >= 0 && (position < 0 || found < position)) {
+                    position = found;
+                }
+            }
+            int start = Math.max(0, position - SNIPPET_CONTEXT);
+            int end = Math.min(text.length(), start + SNIPPET_CHARS);
+            if (start > 0 && Character.isLowSurrogate(text.charAt(start))) {
+                start++;
+            }
+            if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            String snippet = text.substring(start, end).replace('\r', ' ').replace('\n', ' ').trim();
+            return (start > 0 ? "…" : "") + snippet + (end < text.length() ? "…" : "");
+        }
+    }
+
+    // 最后一个段之后的消息的倒排表，编号是相对baseId的偏移
+    private static class Delta {
+        final long baseId;
+        final Map<String, IntList> postings = new HashMap<>();
+        int messages;
+
+        Delta(long baseId) {
+            this.baseId = baseId;
+        }
+
+        // 求所有词项的倒排表的交集，从最短的开始；有词项未出现时返回null。需持有读锁
+        int[] match(List<String> terms) {
+            IntList[] lists = new IntList[terms.size()];
+            for (int i = 0; i < lists.length; i++) {
+                lists[i] = postings.get(terms.get(i));
+                if (lists[i] == null) {
+                    return null;
+                }
+            }
+            Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+
+            int[] result = Arrays.copyOf(lists[0].values, lists[0].size);
+            int size = result.length;
+            for (int i = 1; i < lists.length && size > 0; i++) {
+                int out = 0;
+                int k = 0;
+                IntList other = lists[i];
+                for (int j = 0; j < other.size && k < size; j++) {
+                    int value = other.values[j];
+                    while (k < size && result[k] < value) {
+                        k++;
+                    }
+                    if (k < size && result[k] == value) {
+                        result[out++] = result[k++];
+                    }
+                }
+                size = out;
+            }
+            return Arrays.copyOf(result, size);
+        }
+    }
+
+    // 只能追加的int数组
+    private static class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    // 一个只读的段文件，整个映射到内存
+    private static class IndexSegment {
+        final long baseId;
+        final long endId;
+        private final int termCount;
+        private final int entriesOffset;
+        private final MappedByteBuffer buffer;
+
+        IndexSegment(File file) throws IOException {
+            try (RandomAccessFile access = new RandomAccessFile(file, "r");
+                 FileChannel channel = access.getChannel()) {
+                if (channel.size() < FOOTER_BYTES || channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("搜索索引的段大小不正确：" + file);
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            int footer = buffer.capacity() - FOOTER_BYTES;
+            baseId = buffer.getLong(footer);
+            endId = buffer.getLong(footer + 8);
+            termCount = buffer.getInt(footer + 16);
+            entriesOffset = buffer.getInt(footer + 24);
+            if (buffer.getInt(footer + 28) != MAGIC || termCount < 0
+                    || (long) entriesOffset + (long) termCount * ENTRY_BYTES != footer) {
+                throw new IOException("搜索索引的段已损坏：" + file);
+            }
+        }
+
+        // 求所有词项的倒排表的交集：解码最短的一个，再依次顺序解码其它的与之比较；有词项未出现时返回null
+        int[] match(byte[][] terms) {
+            int[] entries = new int[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                entries[i] = find(terms[i]);
+                if (entries[i] < 0) {
+                    return null;
+                }
+            }
+            int shortest = 0;
+            for (int i = 1; i < entries.length; i++) {
+                if (docCount(entries[i]) < docCount(entries[shortest])) {
+                    shortest = i;
+                }
+            }
+
+            int[] result = decode(entries[shortest]);
+            int size = result.length;
+            for (int i = 0; i < entries.length && size > 0; i++) {
+                if (i != shortest) {
+                    size = intersect(result, size, entries[i]);
+                }
+            }
+            return Arrays.copyOf(result, size);
+        }
+
+        private int[] decode(int entry) {
+            int[] postings = new int[docCount(entry)];
+            int position = postingsOffset(entry);
+            int value = 0;
+            for (int i = 0; i < postings.length; i++) {
+                int shift = 0;
+                int delta = 0;
+                byte b;
+                do {
+                    b = buffer.get(position++);
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                value += delta;
+                postings[i] = value;
+            }
+            return postings;
+        }
+
+        // 顺序解码一个倒排表，与result的前size个元素求交集，结果写回result，返回交集的大小
+        private int intersect(int[] result, int size, int entry) {
+            int count = docCount(entry);
+            int position = postingsOffset(entry);
+            int value = 0;
+            int out = 0;
+            int k = 0;
+            for (int n = 0; n < count && k < size; n++) {
+                int shift = 0;
+                int delta = 0;
+                byte b;
+                do {
+                    b = buffer.get(position++);
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                value += delta;
+                while (k < size && result[k] < value) {
+                    k++;
+                }
+                if (k < size && result[k] == value) {
+                    result[out++] = result[k++];
+                }
+            }
+            return out;
+        }
+
+        // 在按字节排序的目录中二分查找词项，找不到时返回-1
+        private int find(byte[] term) {
+            int low = 0;
+            int high = termCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int compare = compareTerm(mid, term);
+                if (compare < 0) {
+                    low = mid + 1;
+                } else if (compare > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        private int compareTerm(int entry, byte[] term) {
+            int offset = buffer.getInt(entriesOffset + entry * ENTRY_BYTES);
+            int termLength = buffer.getInt(entriesOffset + entry * ENTRY_BYTES + 4);
+            int length = Math.min(termLength, term.length);
+            for (int i = 0; i < length; i++) {
+                int difference = (buffer.get(offset + i) & 0xFF) - (term[i] & 0xFF);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return termLength - term.length;
+        }
+
+        private int postingsOffset(int entry) {
+            return buffer.getInt(entriesOffset + entry * ENTRY_BYTES + 8);
+        }
+
+        private int docCount(int entry) {
+            return buffer.getInt(entriesOffset + entry * ENTRY_BYTES + 12);
+        }
+    }
+}
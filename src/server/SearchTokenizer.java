@@ -0,0 +1,156 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 把消息内容切分为搜索索引的词项。连续的字母和数字组成一个词，转为小写；
+ * 中日韩文字没有分隔符，连续的一段文字按相邻两个字切分（二元切分），另外每个字单独作为一个词项，
+ * 因此单字和任意长度的词都能查到。查询时多于一个字的片段只用二元词项，三个字以上的片段再由原文核对
+ */
+final class SearchTokenizer {
+    static final int MAX_TERM_CHARS = 32; // 过长的词只保留前面的字符
+
+    private SearchTokenizer() {
+    }
+
+    /**
+     * 把文本切分为片段：每个片段是一个转为小写的词，或者一段连续的中日韩文字
+     *
+     * @param text 需切分的文本
+     * @return 按出现顺序排列的片段
+     */
+    static List<String> split(String text) {
+        List<String> runs = new ArrayList<>();
+        StringBuilder run = new StringBuilder();
+        boolean isCjkRun = false;
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            i += Character.charCount(codePoint);
+            boolean isCjk = isCjk(codePoint);
+            if (!isCjk && !Character.isLetterOrDigit(codePoint)) {
+                flush(run, runs);
+                continue;
+            }
+            if (isCjk != isCjkRun) {
+                flush(run, runs);
+                isCjkRun = isCjk;
+            }
+            run.appendCodePoint(isCjk ? codePoint : Character.toLowerCase(codePoint));
+        }
+        flush(run, runs);
+        return runs;
+    }
+
+    /**
+     * 切分一条消息，得到写入索引的词项
+     *
+     * @param text 消息内容
+     * @param terms 存放词项的集合，同一条消息中重复的词项只保留一个
+     */
+    static void indexTerms(String text, Collection<String> terms) {
+        for (String run : split(text)) {
+            if (!isCjk(run.codePointAt(0))) {
+                terms.add(truncate(run));
+                continue;
+            }
+            int previous = -1;
+            for (int i = 0; i < run.length(); ) {
+                int codePoint = run.codePointAt(i);
+                int next = i + Character.charCount(codePoint);
+                terms.add(run.substring(i, next));
+                if (previous >= 0) {
+                    terms.add(run.substring(previous, next));
+                }
+                previous = i;
+                i = next;
+            }
+        }
+    }
+
+    /**
+     * 切分查询语句，得到需要同时出现的词项
+     *
+     * @param query 查询语句
+     * @return 去重后的词项，查询语句中没有可搜索的内容时为空
+     */
+    static List<String> queryTerms(String query) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String run : split(query)) {
+            if (!isCjk(run.codePointAt(0))) {
+                terms.add(truncate(run));
+            } else if (run.codePointCount(0, run.length()) == 1) {
+                terms.add(run);
+            } else {
+                // 多于一个字时只用二元词项，它们比单字少得多
+                int previous = 0;
+                int i = run.offsetByCodePoints(0, 1);
+                while (i < run.length()) {
+                    int next = run.offsetByCodePoints(i, 1);
+                    terms.add(run.substring(previous, next));
+                    previous = i;
+                    i = next;
+                }
+            }
+        }
+        return new ArrayList<>(terms);
+    }
+
+    /**
+     * 查询语句中三个字以上的中日韩文字片段。所有二元词项都出现并不代表整段文字出现，需要用原文核对
+     *
+     * @param query 查询语句
+     * @return 需要在原文中出现的片段
+     */
+    static List<String> phrases(String query) {
+        List<String> phrases = new ArrayList<>();
+        for (String run : split(query)) {
+            if (isCjk(run.codePointAt(0)) && run.codePointCount(0, run.length()) > 2) {
+                phrases.add(run);
+            }
+        }
+        return phrases;
+    }
+
+    /**
+     * 转为小写以便与片段比较，字母和数字按码点转换，与split一致且不改变文本的长度
+     *
+     * @param text 原文
+     * @return 转为小写的文本
+     */
+    static String lowerCase(String text) {
+        StringBuilder lower = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            i += Character.charCount(codePoint);
+            int lowerCodePoint = Character.toLowerCase(codePoint);
+            // 极少数字符转为小写后长度改变，保留原字符以免位置错开
+            lower.appendCodePoint(Character.charCount(lowerCodePoint) == Character.charCount(codePoint)
+                    ? lowerCodePoint : codePoint);
+        }
+        return lower.toString();
+    }
+
+    private static void flush(StringBuilder run, List<String> runs) {
+        if (run.length() > 0) {
+            runs.add(run.toString());
+            run.setLength(0);
+        }
+    }
+
+    private static String truncate(String word) {
+        if (word.codePointCount(0, word.length()) <= MAX_TERM_CHARS) {
+            return word;
+        }
+        return word.substring(0, word.offsetByCodePoints(0, MAX_TERM_CHARS));
+    }
+
+    private static boolean isCjk(int codePoint) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.HAN || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA || script == Character.UnicodeScript.HANGUL;
+    }
+}
@@ -0,0 +1,581 @@
+package server;
+
+import java.util.zip.Deflater;
+
+/**
+ * 服务终端的可配置参数，默认值可通过以chat.开头的系统属性覆盖，例如 -Dchat.overflowPolicy=disconnect
+ */
+public class ServerConfig {
+    /**
+     * 账号的上限，申请账号时4个字节中的最高字节留作以后扩展协议之用
+     */
+    public static final int MAX_ID_LIMIT = (1 << 24) - 1;
+
+    private ServerMode mode = ServerMode.THREAD_POOL; // 处理连接的方式
+    private int port = 8888; // 服务终端监听的端口
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST; // 用户接收过慢时的处理方式
+    private int outboundQueueCapacity = 1024; // 每个用户发送队列的容量（消息条数）
+    private long maxSpillBytes = UserSession.DEFAULT_MAX_SPILL_BYTES; // SPILL_TO_DISK策略下每个用户暂存文件的大小上限（字节）
+    private String chatLogFile = "Content.txt"; // 聊天记录文件
+    private LogDurability logDurability = LogDurability.INTERVAL; // 聊天记录的落盘方式
+    private long logSyncIntervalMillis = 1000; // INTERVAL方式下的落盘间隔（毫秒）
+    private String historyDirectory = "history"; // 分段历史记录的目录
+    private int historySegmentBytes = 64 * 1024 * 1024; // 每个历史记录段文件的大小（字节）
+    private int historyMaxSegments = 16; // 最多保留的历史记录段数，0表示不限
+    private String searchIndexDirectory = "search"; // 搜索索引的目录，为null或空字符串时不建立索引
+    private int searchFlushMessages = 128 * 1024; // 搜索索引在内存中积累多少条消息后写成一个段文件
+    private int handshakeTimeoutMillis = 5000; // 建立连接后必须在此时间内申请账号（毫秒）
+    private int maxPendingHandshakes = 1024; // 同时等待申请账号的连接数上限，超出时直接断开新连接
+    private int metricsReportSeconds = 60; // 打印运行统计的间隔（秒），0表示不打印
+    private int minId = 9000; // 最小的账号
+    private int maxId = 9999; // 最大的账号
+    private int maxUsers = 1000; // 最大聊天人数
+    private int maxMessageBytes = 1024 * 1024; // 一条聊天消息的最大长度（字节），超过时断开发送者
+    private boolean compressionEnabled = true; // 是否同意客户端压缩聊天消息的请求
+    private int compressionThreshold = 1024; // 达到此长度（字节）的聊天消息才压缩
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION; // 压缩级别，0-9
+    private int nodeId = 0; // 此服务终端在集群中的编号，0到nodeCount-1
+    private int nodeCount = 1; // 集群中服务终端的个数，各节点按编号平分账号范围
+    private String relayHost = null; // 集群中继的地址，为null时不加入集群
+    private int relayPort = ClusterRelay.DEFAULT_PORT; // 集群中继的端口
+    private int resumeBufferSize = 4096; // 内存中保留的最近群聊消息条数，恢复会话时优先从中补发
+    private int resumeTimeoutMillis = 60 * 1000; // 连接意外断开后保留账号和令牌的时间（毫秒）
+    private int maxResumeMessages = 10000; // 恢复会话时最多补发的消息条数
+    private int heartbeatIntervalMillis = 30 * 1000; // 多久没有收到用户的数据时发送心跳（毫秒），0表示不检查
+    private int heartbeatTimeoutMillis = 10 * 1000; // 发送心跳后等待回复的时间（毫秒），超时则断开
+    private int rateLimit = 0; // 每个用户每秒允许发送的消息数，0表示不限速（默认），可用chat.rateLimit开启
+    private int rateBurst = 50; // 每个用户允许连续发送的消息数
+    private int globalRateLimit = 0; // 所有用户每秒允许发送的消息总数，0表示不限速
+    private int globalRateBurst = 1000; // 所有用户允许连续发送的消息总数
+    private int presenceIntervalMillis = 500; // 合并在线名单变化的间隔（毫秒），0表示不提供在线名单
+
+    /**
+     * 根据系统属性创建配置，未设置的属性使用默认值
+     *
+     * @return 新的配置对象
+     */
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.setMode(ServerMode.fromName(System.getProperty("chat.mode", config.mode.name())));
+        config.setPort(Integer.getInteger("chat.port", config.port));
+        config.setOverflowPolicy(OverflowPolicy.fromName(
+                System.getProperty("chat.overflowPolicy", config.overflowPolicy.name())));
+        config.setOutboundQueueCapacity(Integer.getInteger("chat.outboundQueueCapacity", config.outboundQueueCapacity));
+        config.setMaxSpillBytes(Long.getLong("chat.maxSpillBytes", config.maxSpillBytes));
+        config.setChatLogFile(System.getProperty("chat.logFile", config.chatLogFile));
+        config.setLogDurability(LogDurability.fromName(
+                System.getProperty("chat.logDurability", config.logDurability.name())));
+        config.setLogSyncIntervalMillis(Long.getLong("chat.logSyncIntervalMillis", config.logSyncIntervalMillis));
+        config.setHistoryDirectory(System.getProperty("chat.historyDir", config.historyDirectory));
+        config.setHistorySegmentBytes(Integer.getInteger("chat.historySegmentBytes", config.historySegmentBytes));
+        config.setHistoryMaxSegments(Integer.getInteger("chat.historyMaxSegments", config.historyMaxSegments));
+        config.setSearchIndexDirectory(System.getProperty("chat.searchIndexDir", config.searchIndexDirectory));
+        config.setSearchFlushMessages(Integer.getInteger("chat.searchFlushMessages", config.searchFlushMessages));
+        config.setHandshakeTimeoutMillis(Integer.getInteger("chat.handshakeTimeoutMillis", config.handshakeTimeoutMillis));
+        config.setMaxPendingHandshakes(Integer.getInteger("chat.maxPendingHandshakes", config.maxPendingHandshakes));
+        config.setMetricsReportSeconds(Integer.getInteger("chat.metricsReportSeconds", config.metricsReportSeconds));
+        config.setIdRange(Integer.getInteger("chat.minId", config.minId), Integer.getInteger("chat.maxId", config.maxId));
+        config.setMaxUsers(Integer.getInteger("chat.maxUsers", config.maxUsers));
+        config.setMaxMessageBytes(Integer.getInteger("chat.maxMessageBytes", config.maxMessageBytes));
+        config.setCompressionEnabled(Boolean.parseBoolean(
+                System.getProperty("chat.compression", String.valueOf(config.compressionEnabled))));
+        config.setCompressionThreshold(Integer.getInteger("chat.compressionThreshold", config.compressionThreshold));
+        config.setCompressionLevel(Integer.getInteger("chat.compressionLevel", config.compressionLevel));
+        config.setCluster(Integer.getInteger("chat.nodeId", config.nodeId),
+                Integer.getInteger("chat.nodeCount", config.nodeCount));
+        config.setRelay(System.getProperty("chat.relayHost", config.relayHost),
+                Integer.getInteger("chat.relayPort", config.relayPort));
+        config.setResumeBufferSize(Integer.getInteger("chat.resumeBufferSize", config.resumeBufferSize));
+        config.setResumeTimeoutMillis(Integer.getInteger("chat.resumeTimeoutMillis", config.resumeTimeoutMillis));
+        config.setMaxResumeMessages(Integer.getInteger("chat.maxResumeMessages", config.maxResumeMessages));
+        config.setHeartbeat(Integer.getInteger("chat.heartbeatIntervalMillis", config.heartbeatIntervalMillis),
+                Integer.getInteger("chat.heartbeatTimeoutMillis", config.heartbeatTimeoutMillis));
+        config.setRateLimit(Integer.getInteger("chat.rateLimit", config.rateLimit),
+                Integer.getInteger("chat.rateBurst", config.rateBurst));
+        config.setGlobalRateLimit(Integer.getInteger("chat.globalRateLimit", config.globalRateLimit),
+                Integer.getInteger("chat.globalRateBurst", config.globalRateBurst));
+        config.setPresenceIntervalMillis(Integer.getInteger("chat.presenceIntervalMillis", config.presenceIntervalMillis));
+        return config;
+    }
+
+    public ServerMode getMode() {
+        return mode;
+    }
+
+    public ServerConfig setMode(ServerMode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerConfig setPort(int port) {
+        if (port < 0 || port > 0xFFFF) {
+            throw new IllegalArgumentException("port out of range: " + port);
+        }
+        this.port = port;
+        return this;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public ServerConfig setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    public ServerConfig setOutboundQueueCapacity(int outboundQueueCapacity) {
+        if (outboundQueueCapacity <= 0) {
+            throw new IllegalArgumentException("outboundQueueCapacity must be positive: " + outboundQueueCapacity);
+        }
+        this.outboundQueueCapacity = outboundQueueCapacity;
+        return this;
+    }
+
+    public long getMaxSpillBytes() {
+        return maxSpillBytes;
+    }
+
+    public ServerConfig setMaxSpillBytes(long maxSpillBytes) {
+        if (maxSpillBytes <= 0) {
+            throw new IllegalArgumentException("maxSpillBytes must be positive: " + maxSpillBytes);
+        }
+        this.maxSpillBytes = maxSpillBytes;
+        return this;
+    }
+
+    public String getChatLogFile() {
+        return chatLogFile;
+    }
+
+    public ServerConfig setChatLogFile(String chatLogFile) {
+        this.chatLogFile = chatLogFile;
+        return this;
+    }
+
+    public LogDurability getLogDurability() {
+        return logDurability;
+    }
+
+    public ServerConfig setLogDurability(LogDurability logDurability) {
+        this.logDurability = logDurability;
+        return this;
+    }
+
+    public long getLogSyncIntervalMillis() {
+        return logSyncIntervalMillis;
+    }
+
+    public ServerConfig setLogSyncIntervalMillis(long logSyncIntervalMillis) {
+        if (logSyncIntervalMillis <= 0) {
+            throw new IllegalArgumentException("logSyncIntervalMillis must be positive: " + logSyncIntervalMillis);
+        }
+        this.logSyncIntervalMillis = logSyncIntervalMillis;
+        return this;
+    }
+
+    public String getHistoryDirectory() {
+        return historyDirectory;
+    }
+
+    public ServerConfig setHistoryDirectory(String historyDirectory) {
+        this.historyDirectory = historyDirectory;
+        return this;
+    }
+
+    public int getHistorySegmentBytes() {
+        return historySegmentBytes;
+    }
+
+    public ServerConfig setHistorySegmentBytes(int historySegmentBytes) {
+        if (historySegmentBytes < 4096) {
+            throw new IllegalArgumentException("historySegmentBytes must be at least 4096: " + historySegmentBytes);
+        }
+        this.historySegmentBytes = historySegmentBytes;
+        return this;
+    }
+
+    public int getHistoryMaxSegments() {
+        return historyMaxSegments;
+    }
+
+    /**
+     * 设置最多保留的历史记录段数，超出时删除最早的段。聊天记录文件不受影响，仍保存所有消息
+     *
+     * @param historyMaxSegments 最多保留的段数，0表示不限，否则至少为2
+     * @return 此配置对象
+     */
+    public ServerConfig setHistoryMaxSegments(int historyMaxSegments) {
+        if (historyMaxSegments < 0 || historyMaxSegments == 1) {
+            throw new IllegalArgumentException("historyMaxSegments must be 0 or at least 2: " + historyMaxSegments);
+        }
+        this.historyMaxSegments = historyMaxSegments;
+        return this;
+    }
+
+    public String getSearchIndexDirectory() {
+        return searchIndexDirectory;
+    }
+
+    /**
+     * @param searchIndexDirectory 搜索索引的目录，为null或空字符串时不建立索引，不支持搜索
+     */
+    public ServerConfig setSearchIndexDirectory(String searchIndexDirectory) {
+        this.searchIndexDirectory = searchIndexDirectory;
+        return this;
+    }
+
+    public int getSearchFlushMessages() {
+        return searchFlushMessages;
+    }
+
+    public ServerConfig setSearchFlushMessages(int searchFlushMessages) {
+        // 段内用int保存相对编号和位置，段不能太大
+        if (searchFlushMessages <= 0 || searchFlushMessages > (1 << 22)) {
+            throw new IllegalArgumentException("searchFlushMessages out of range: " + searchFlushMessages);
+        }
+        this.searchFlushMessages = searchFlushMessages;
+        return this;
+    }
+
+    public int getHandshakeTimeoutMillis() {
+        return handshakeTimeoutMillis;
+    }
+
+    public ServerConfig setHandshakeTimeoutMillis(int handshakeTimeoutMillis) {
+        if (handshakeTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("handshakeTimeoutMillis must be positive: " + handshakeTimeoutMillis);
+        }
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+        return this;
+    }
+
+    public int getMaxPendingHandshakes() {
+        return maxPendingHandshakes;
+    }
+
+    public ServerConfig setMaxPendingHandshakes(int maxPendingHandshakes) {
+        if (maxPendingHandshakes <= 0) {
+            throw new IllegalArgumentException("maxPendingHandshakes must be positive: " + maxPendingHandshakes);
+        }
+        this.maxPendingHandshakes = maxPendingHandshakes;
+        return this;
+    }
+
+    public int getMetricsReportSeconds() {
+        return metricsReportSeconds;
+    }
+
+    public ServerConfig setMetricsReportSeconds(int metricsReportSeconds) {
+        if (metricsReportSeconds < 0) {
+            throw new IllegalArgumentException("metricsReportSeconds must not be negative: " + metricsReportSeconds);
+        }
+        this.metricsReportSeconds = metricsReportSeconds;
+        return this;
+    }
+
+    public int getMinId() {
+        return minId;
+    }
+
+    public int getMaxId() {
+        return maxId;
+    }
+
+    /**
+     * 设置可申请的账号范围，账号必须大于申请结果的代码UNKNOWN_ERROR，且不超过MAX_ID_LIMIT
+     *
+     * @param minId 最小的账号
+     * @param maxId 最大的账号
+     * @return 此配置对象
+     */
+    public ServerConfig setIdRange(int minId, int maxId) {
+        if (minId <= UserSupervision.UNKNOWN_ERROR || maxId > MAX_ID_LIMIT || minId > maxId
+                || maxId - minId + 1 < nodeCount) {
+            throw new IllegalArgumentException("invalid id range: " + minId + "-" + maxId);
+        }
+        this.minId = minId;
+        this.maxId = maxId;
+        return this;
+    }
+
+    public int getMaxUsers() {
+        return maxUsers;
+    }
+
+    public ServerConfig setMaxUsers(int maxUsers) {
+        if (maxUsers <= 0) {
+            throw new IllegalArgumentException("maxUsers must be positive: " + maxUsers);
+        }
+        this.maxUsers = maxUsers;
+        return this;
+    }
+
+    public int getMaxMessageBytes() {
+        return maxMessageBytes;
+    }
+
+    public ServerConfig setMaxMessageBytes(int maxMessageBytes) {
+        if (maxMessageBytes <= 0) {
+            throw new IllegalArgumentException("maxMessageBytes must be positive: " + maxMessageBytes);
+        }
+        this.maxMessageBytes = maxMessageBytes;
+        return this;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    public ServerConfig setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+        return this;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public ServerConfig setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 0) {
+            throw new IllegalArgumentException("compressionThreshold must not be negative: " + compressionThreshold);
+        }
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public ServerConfig setCompressionLevel(int compressionLevel) {
+        if (compressionLevel != Deflater.DEFAULT_COMPRESSION
+                && (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("compressionLevel must be 0-9 or -1: " + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * 设置此服务终端在集群中的位置。账号范围按节点编号平分，每个节点只分配自己那一段中的账号，
+     * 因此各节点无需协调即可保证账号在整个集群中唯一
+     *
+     * @param nodeId 此节点的编号，0到nodeCount-1
+     * @param nodeCount 集群中的节点数，1表示单机运行
+     * @return 此配置对象
+     */
+    public ServerConfig setCluster(int nodeId, int nodeCount) {
+        if (nodeCount <= 0 || nodeId < 0 || nodeId >= nodeCount || nodeCount > maxId - minId + 1) {
+            throw new IllegalArgumentException("invalid cluster node: " + nodeId + "/" + nodeCount);
+        }
+        this.nodeId = nodeId;
+        this.nodeCount = nodeCount;
+        return this;
+    }
+
+    /**
+     * @return 此节点可分配的最小账号
+     */
+    public int getNodeMinId() {
+        return minId + nodeId * nodeSpan();
+    }
+
+    /**
+     * @return 此节点可分配的最大账号，最后一个节点包含除不尽的部分
+     */
+    public int getNodeMaxId() {
+        return (nodeId == nodeCount - 1) ? maxId : getNodeMinId() + nodeSpan() - 1;
+    }
+
+    private int nodeSpan() {
+        return (maxId - minId + 1) / nodeCount;
+    }
+
+    public String getRelayHost() {
+        return relayHost;
+    }
+
+    public int getRelayPort() {
+        return relayPort;
+    }
+
+    /**
+     * 设置集群中继的地址，设置后服务终端启动时连接中继，与其它节点互相转发群聊消息
+     *
+     * @param relayHost 中继的地址，为null时不加入集群
+     * @param relayPort 中继的端口
+     * @return 此配置对象
+     */
+    public ServerConfig setRelay(String relayHost, int relayPort) {
+        if (relayPort <= 0 || relayPort > 0xFFFF) {
+            throw new IllegalArgumentException("relayPort out of range: " + relayPort);
+        }
+        this.relayHost = relayHost;
+        this.relayPort = relayPort;
+        return this;
+    }
+
+    public int getResumeBufferSize() {
+        return resumeBufferSize;
+    }
+
+    /**
+     * 设置内存中保留的最近群聊消息条数，更早的消息在恢复会话时从历史记录中读取
+     *
+     * @param resumeBufferSize 消息条数，向上取整为2的幂
+     * @return 此配置对象
+     */
+    public ServerConfig setResumeBufferSize(int resumeBufferSize) {
+        if (resumeBufferSize <= 0 || resumeBufferSize > (1 << 24)) {
+            throw new IllegalArgumentException("resumeBufferSize out of range: " + resumeBufferSize);
+        }
+        this.resumeBufferSize = resumeBufferSize;
+        return this;
+    }
+
+    public int getResumeTimeoutMillis() {
+        return resumeTimeoutMillis;
+    }
+
+    /**
+     * 设置连接意外断开后保留账号和令牌的时间，期间此账号不会分配给其它用户，0表示不允许恢复会话
+     *
+     * @param resumeTimeoutMillis 保留时间（毫秒）
+     * @return 此配置对象
+     */
+    public ServerConfig setResumeTimeoutMillis(int resumeTimeoutMillis) {
+        if (resumeTimeoutMillis < 0) {
+            throw new IllegalArgumentException("resumeTimeoutMillis must not be negative: " + resumeTimeoutMillis);
+        }
+        this.resumeTimeoutMillis = resumeTimeoutMillis;
+        return this;
+    }
+
+    public int getMaxResumeMessages() {
+        return maxResumeMessages;
+    }
+
+    public ServerConfig setMaxResumeMessages(int maxResumeMessages) {
+        if (maxResumeMessages <= 0) {
+            throw new IllegalArgumentException("maxResumeMessages must be positive: " + maxResumeMessages);
+        }
+        this.maxResumeMessages = maxResumeMessages;
+        return this;
+    }
+
+    public int getHeartbeatIntervalMillis() {
+        return heartbeatIntervalMillis;
+    }
+
+    public int getHeartbeatTimeoutMillis() {
+        return heartbeatTimeoutMillis;
+    }
+
+    /**
+     * 设置心跳。协商了心跳的用户在intervalMillis内没有发来任何数据时，服务终端发送一次心跳，
+     * 再过timeoutMillis仍没有收到任何数据则视为连接已断开
+     *
+     * @param intervalMillis 发送心跳前的空闲时间（毫秒），0表示不检查空闲的连接
+     * @param timeoutMillis 等待回复的时间（毫秒）
+     * @return 此配置对象
+     */
+    public ServerConfig setHeartbeat(int intervalMillis, int timeoutMillis) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("heartbeatIntervalMillis must not be negative: " + intervalMillis);
+        }
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("heartbeatTimeoutMillis must be positive: " + timeoutMillis);
+        }
+        this.heartbeatIntervalMillis = intervalMillis;
+        this.heartbeatTimeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    public int getRateLimit() {
+        return rateLimit;
+    }
+
+    public int getRateBurst() {
+        return rateBurst;
+    }
+
+    /**
+     * 设置每个用户发送消息（群聊、聊天室和私聊）的速率上限，超出的消息被拒绝，发送者会收到通知
+     *
+     * @param messagesPerSecond 每秒允许的消息数，0表示不限速
+     * @param burst 允许连续发送的消息数
+     * @return 此配置对象
+     */
+    public ServerConfig setRateLimit(int messagesPerSecond, int burst) {
+        checkRate("rateLimit", messagesPerSecond, burst);
+        this.rateLimit = messagesPerSecond;
+        this.rateBurst = burst;
+        return this;
+    }
+
+    public int getGlobalRateLimit() {
+        return globalRateLimit;
+    }
+
+    public int getGlobalRateBurst() {
+        return globalRateBurst;
+    }
+
+    /**
+     * 设置此服务终端所有用户发送消息的总速率上限，在每个用户的上限之外再检查
+     *
+     * @param messagesPerSecond 每秒允许的消息数，0表示不限速
+     * @param burst 允许连续发送的消息数
+     * @return 此配置对象
+     */
+    public ServerConfig setGlobalRateLimit(int messagesPerSecond, int burst) {
+        checkRate("globalRateLimit", messagesPerSecond, burst);
+        this.globalRateLimit = messagesPerSecond;
+        this.globalRateBurst = burst;
+        return this;
+    }
+
+    public int getPresenceIntervalMillis() {
+        return presenceIntervalMillis;
+    }
+
+    /**
+     * 设置合并在线名单变化的间隔，间隔内的上线和下线合并为一条消息发给订阅的用户
+     *
+     * @param presenceIntervalMillis 间隔（毫秒），0表示不提供在线名单
+     * @return 此配置对象
+     */
+    public ServerConfig setPresenceIntervalMillis(int presenceIntervalMillis) {
+        if (presenceIntervalMillis < 0) {
+            throw new IllegalArgumentException("presenceIntervalMillis must not be negative: " + presenceIntervalMillis);
+        }
+        this.presenceIntervalMillis = presenceIntervalMillis;
+        return this;
+    }
+
+    private static void checkRate(String name, int messagesPerSecond, int burst) {
+        if (messagesPerSecond < 0 || messagesPerSecond > 1000 * 1000 * 1000) {
+            throw new IllegalArgumentException(name + " out of range: " + messagesPerSecond);
+        }
+        if (burst <= 0 || burst > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException(name + " burst out of range: " + burst);
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 服务终端的运行统计，计数器使用LongAdder，在任意线程中记录都不加锁
+ */
+public class ServerMetrics {
+    private final LongAdder acceptedConnections = new LongAdder(); // 接收的连接数
+    private final LongAdder rejectedHandshakes = new LongAdder(); // 等待申请账号的连接过多而被拒绝的连接数
+    private final LongAdder timedOutHandshakes = new LongAdder(); // 未在规定时间内申请账号的连接数
+    private final LongAdder succeededHandshakes = new LongAdder(); // 申请账号成功的次数
+    private final LongAdder[] failedHandshakes = new LongAdder[UserSupervision.UNKNOWN_ERROR + 1]; // 按结果代码统计的失败次数
+    private final LatencyHistogram handshakeLatency = new LatencyHistogram(); // 从接收连接到回复申请结果的耗时（纳秒）
+    private final LongAdder compressedMessages = new LongAdder(); // 压缩过的消息数
+    private final LongAdder bytesBeforeCompression = new LongAdder();
+    private final LongAdder bytesAfterCompression = new LongAdder();
+    private final LongAdder compressionNanos = new LongAdder(); // 压缩所用的时间
+    private final LongAdder decompressionNanos = new LongAdder(); // 解压客户端发来的消息所用的时间
+    private final LongAdder compressedBytesSaved = new LongAdder(); // 发送压缩消息比发送原消息少发的字节数，按接收者累计
+    private final LongAdder clusterPublished = new LongAdder(); // 发往其它节点的消息数
+    private final LongAdder clusterReceived = new LongAdder(); // 收到的其它节点的消息数
+    private final LongAdder clusterDropped = new LongAdder(); // 与中继断开或队列已满而未能发往其它节点的消息数
+    private final LongAdder messagesIn = new LongAdder(); // 收到的用户消息数（群聊、聊天室和私聊）
+    private final LongAdder messagesOut = new LongAdder(); // 放入接收者发送队列的消息数，按接收者累计
+    private final LongAdder resumedSessions = new LongAdder(); // 恢复的会话数
+    private final LongAdder partialResumes = new LongAdder(); // 其中未能补发全部消息的会话数
+    private final LongAdder replayedMessages = new LongAdder(); // 恢复会话时补发的消息数，包括只补发序号的自己的消息
+    private final LongAdder pingsSent = new LongAdder(); // 向空闲用户发送的心跳数
+    private final LongAdder idleDisconnects = new LongAdder(); // 心跳没有回复而断开的用户数
+    private final LongAdder rateLimitedMessages = new LongAdder(); // 因发送过快而被拒绝的消息数
+    private final LongAdder searchQueries = new LongAdder(); // 处理的搜索请求数
+    private final LongAdder rejectedQueries = new LongAdder(); // 查询线程池已满而未处理的历史消息和搜索请求数
+    private final LongAdder presenceChanges = new LongAdder(); // 记下的上线和下线的账号数，同一间隔内的同一账号只计一次
+    private final LongAdder presenceUpdates = new LongAdder(); // 合并后发出的在线名单变化的条数
+    private final LongAdder presenceFramesOut = new LongAdder(); // 放入接收者发送队列的名单变化，按接收者累计
+    private final LongAdder omittedHistoryRecords = new LongAdder(); // 超过历史记录段大小而未保存内容的消息数
+    private final LatencyHistogram fanOutLatency = new LatencyHistogram(); // 一条群聊消息放入所有接收者队列的耗时（纳秒）
+    private final LatencyHistogram chatLogWriteLatency = new LatencyHistogram(); // 聊天记录一次写入的耗时（纳秒）
+    private final LatencyHistogram chatLogSyncLatency = new LatencyHistogram(); // 聊天记录一次落盘的耗时（纳秒）
+    private final LatencyHistogram searchLatency = new LatencyHistogram(); // 一次搜索的耗时，包括读取消息和生成摘要（纳秒）
+
+    // 上一次生成报告时的状态，用于计算速率
+    private long lastReportTime = System.nanoTime();
+    private long lastAccepted;
+
+    /**
+     * 实例化一个统计对象
+     */
+    public ServerMetrics() {
+        for (int i = 0; i < failedHandshakes.length; i++) {
+            failedHandshakes[i] = new LongAdder();
+        }
+    }
+
+    void onAccepted() {
+        acceptedConnections.increment();
+    }
+
+    void onHandshakeRejected() {
+        rejectedHandshakes.increment();
+    }
+
+    void onHandshakeTimedOut() {
+        timedOutHandshakes.increment();
+    }
+
+    /**
+     * 记录一次完成的账号申请
+     *
+     * @param result 申请的结果
+     * @param latencyNanos 从接收连接到回复结果的耗时（纳秒）
+     */
+    void onHandshakeCompleted(int result, long latencyNanos) {
+        if (UserSupervision.isAppliedId(result)) {
+            succeededHandshakes.increment();
+        } else if (result >= 0 && result < failedHandshakes.length) {
+            failedHandshakes[result].increment();
+        }
+        handshakeLatency.record(latencyNanos);
+    }
+
+    void onCompressed(int plainBytes, int compressedBytes, long nanos) {
+        compressedMessages.increment();
+        bytesBeforeCompression.add(plainBytes);
+        bytesAfterCompression.add(compressedBytes);
+        compressionNanos.add(nanos);
+    }
+
+    void onDecompressed(long nanos) {
+        decompressionNanos.add(nanos);
+    }
+
+    void onCompressedSent(int savedBytes) {
+        compressedBytesSaved.add(savedBytes);
+    }
+
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    public long getRejectedHandshakes() {
+        return rejectedHandshakes.sum();
+    }
+
+    public long getTimedOutHandshakes() {
+        return timedOutHandshakes.sum();
+    }
+
+    public long getSucceededHandshakes() {
+        return succeededHandshakes.sum();
+    }
+
+    /**
+     * @param result 申请失败的结果代码，如UserSupervision.ID_EXIST
+     * @return 以此结果失败的次数
+     */
+    public long getFailedHandshakes(int result) {
+        return failedHandshakes[result].sum();
+    }
+
+    void onClusterPublished() {
+        clusterPublished.increment();
+    }
+
+    void onClusterReceived() {
+        clusterReceived.increment();
+    }
+
+    void onClusterDropped() {
+        clusterDropped.increment();
+    }
+
+    void onMessageIn() {
+        messagesIn.increment();
+    }
+
+    void onMessagesOut(int count) {
+        messagesOut.add(count);
+    }
+
+    void onPingSent() {
+        pingsSent.increment();
+    }
+
+    void onIdleDisconnected() {
+        idleDisconnects.increment();
+    }
+
+    void onRateLimited() {
+        rateLimitedMessages.increment();
+    }
+
+    void onHistoryRecordOmitted() {
+        omittedHistoryRecords.increment();
+    }
+
+    /**
+     * 记录一次合并后的在线名单变化
+     *
+     * @param changes 此间隔内上线或下线过的账号数
+     * @param recipients 收到这条变化的用户数
+     */
+    void onPresenceUpdate(int changes, int recipients) {
+        presenceChanges.add(changes);
+        presenceUpdates.increment();
+        presenceFramesOut.add(recipients);
+    }
+
+    /**
+     * 记录一次搜索
+     *
+     * @param latencyNanos 查找并生成结果的耗时（纳秒）
+     */
+    void onSearch(long latencyNanos) {
+        searchQueries.increment();
+        searchLatency.record(latencyNanos);
+    }
+
+    void onQueryRejected() {
+        rejectedQueries.increment();
+    }
+
+    /**
+     * 记录一次会话恢复
+     *
+     * @param complete 是否补发了断开期间的所有消息
+     * @param replayed 补发的消息数
+     */
+    void onSessionResumed(boolean complete, long replayed) {
+        resumedSessions.increment();
+        if (!complete) {
+            partialResumes.increment();
+        }
+        replayedMessages.add(replayed);
+    }
+
+    /**
+     * 记录一次群聊广播
+     *
+     * @param recipients 接收者数
+     * @param latencyNanos 放入所有接收者发送队列的耗时（纳秒）
+     */
+    void onBroadcast(int recipients, long latencyNanos) {
+        messagesOut.add(recipients);
+        fanOutLatency.record(latencyNanos);
+    }
+
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    public LatencyHistogram getFanOutLatency() {
+        return fanOutLatency;
+    }
+
+    public LatencyHistogram getChatLogWriteLatency() {
+        return chatLogWriteLatency;
+    }
+
+    public LatencyHistogram getChatLogSyncLatency() {
+        return chatLogSyncLatency;
+    }
+
+    public LatencyHistogram getHandshakeLatency() {
+        return handshakeLatency;
+    }
+
+    public LatencyHistogram getSearchLatency() {
+        return searchLatency;
+    }
+
+    public long getCompressedMessages() {
+        return compressedMessages.sum();
+    }
+
+    /**
+     * @return 压缩后的字节数与压缩前的比值，没有压缩过消息时为1
+     */
+    public double getCompressionRatio() {
+        long before = bytesBeforeCompression.sum();
+        return (before == 0) ? 1 : (double) bytesAfterCompression.sum() / before;
+    }
+
+    public long getCompressionNanos() {
+        return compressionNanos.sum();
+    }
+
+    public long getDecompressionNanos() {
+        return decompressionNanos.sum();
+    }
+
+    public long getCompressedBytesSaved() {
+        return compressedBytesSaved.sum();
+    }
+
+    public long getClusterPublished() {
+        return clusterPublished.sum();
+    }
+
+    public long getClusterReceived() {
+        return clusterReceived.sum();
+    }
+
+    public long getClusterDropped() {
+        return clusterDropped.sum();
+    }
+
+    public long getResumedSessions() {
+        return resumedSessions.sum();
+    }
+
+    public long getPartialResumes() {
+        return partialResumes.sum();
+    }
+
+    public long getReplayedMessages() {
+        return replayedMessages.sum();
+    }
+
+    public long getPingsSent() {
+        return pingsSent.sum();
+    }
+
+    public long getIdleDisconnects() {
+        return idleDisconnects.sum();
+    }
+
+    public long getRateLimitedMessages() {
+        return rateLimitedMessages.sum();
+    }
+
+    public long getSearchQueries() {
+        return searchQueries.sum();
+    }
+
+    public long getRejectedQueries() {
+        return rejectedQueries.sum();
+    }
+
+    public long getPresenceChanges() {
+        return presenceChanges.sum();
+    }
+
+    public long getPresenceUpdates() {
+        return presenceUpdates.sum();
+    }
+
+    public long getPresenceFramesOut() {
+        return presenceFramesOut.sum();
+    }
+
+    public long getOmittedHistoryRecords() {
+        return omittedHistoryRecords.sum();
+    }
+
+    /**
+     * 生成一段简短的统计报告，其中的速率是相对上一次报告计算的
+     *
+     * @return 统计报告
+     */
+    public synchronized String report() {
+        long now = System.nanoTime();
+        long accepted = getAcceptedConnections();
+        double seconds = Math.max(1e-9, (now - lastReportTime) / 1e9);
+        double acceptRate = (accepted - lastAccepted) / seconds;
+        lastReportTime = now;
+        lastAccepted = accepted;
+
+        return String.format("连接：%d（%.1f/秒），拒绝%d，超时%d；申请成功%d，已满%d，格式错误%d，已存在%d，未知错误%d；"
+                        + "申请耗时 p50=%.2fms p99=%.2fms max=%.2fms；"
+                        + "压缩%d条，压缩率%.1f%%，少发%dKB，压缩耗时%.1fms，解压耗时%.1fms；"
+                        + "集群：发出%d条，收到%d条，丢弃%d条；"
+                        + "恢复会话%d次（不完整%d次），补发%d条；"
+                        + "心跳%d次，无响应断开%d个；限速拒绝%d条；搜索%d次，耗时 p99=%.2fms，繁忙未处理的查询%d次；"
+                        + "在线名单：%d个账号变化合并为%d次更新，发出%d条；历史记录因过长未保存%d条；"
+                        + "消息：收到%d条，发出%d条，广播耗时 p99=%.3fms",
+                accepted, acceptRate, getRejectedHandshakes(), getTimedOutHandshakes(), getSucceededHandshakes(),
+                getFailedHandshakes(UserSupervision.USER_FULL), getFailedHandshakes(UserSupervision.ID_FORMAT_ERROR),
+                getFailedHandshakes(UserSupervision.ID_EXIST), getFailedHandshakes(UserSupervision.UNKNOWN_ERROR),
+                toMillis(handshakeLatency.getPercentile(50)), toMillis(handshakeLatency.getPercentile(99)),
+                toMillis(handshakeLatency.getMax()),
+                getCompressedMessages(), getCompressionRatio() * 100, getCompressedBytesSaved() / 1024,
+                toMillis(getCompressionNanos()), toMillis(getDecompressionNanos()),
+                getClusterPublished(), getClusterReceived(), getClusterDropped(),
+                getResumedSessions(), getPartialResumes(), getReplayedMessages(),
+                getPingsSent(), getIdleDisconnects(), getRateLimitedMessages(),
+                getSearchQueries(), toMillis(searchLatency.getPercentile(99)), getRejectedQueries(),
+                getPresenceChanges(), getPresenceUpdates(), getPresenceFramesOut(), getOmittedHistoryRecords(),
+                getMessagesIn(), getMessagesOut(), toMillis(fanOutLatency.getPercentile(99)));
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
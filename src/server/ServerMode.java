@@ -0,0 +1,38 @@
+package server;
+
+/**
+ * 服务终端处理连接的方式，启动服务终端时选择
+ */
+public enum ServerMode {
+    /**
+     * 每个连接占用线程池中的一个线程，阻塞地读取消息
+     */
+    THREAD_POOL,
+
+    /**
+     * 每个连接的读取和每次发送都在一个虚拟线程中阻塞地执行
+     */
+    VIRTUAL_THREAD,
+
+    /**
+     * 基于Selector的非阻塞模式，由少量固定的I/O线程处理所有连接
+     */
+    NIO;
+
+    /**
+     * 根据名称得到对应的模式，名称不区分大小写
+     *
+     * @param name 模式的名称
+     * @return 名称为空或无法识别时返回THREAD_POOL
+     */
+    public static ServerMode fromName(String name) {
+        if (name != null) {
+            for (ServerMode mode : values()) {
+                if (mode.name().equalsIgnoreCase(name.trim())) {
+                    return mode;
+                }
+            }
+        }
+        return THREAD_POOL;
+    }
+}
@@ -0,0 +1,240 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * 汇总ServerMetrics和UserSupervision中的运行状态，注册为JMX MBean，并供服务终端界面显示。
+ * 读取时只汇总LongAdder和直方图，消息路径上不加锁；每秒的速率由后台线程每秒采样一次计算
+ */
+public class ServerMonitor implements ServerMonitorMBean {
+    private final ServerMetrics metrics;
+    private final UserSupervision userManager;
+    private final int port; // 用于区分同一进程中的多个服务终端
+    private ObjectName name; // 注册成功后的名称
+    private ScheduledExecutorService sampler;
+
+    // 后台线程每秒采样一次，读取的线程只读这些volatile字段
+    private long lastAccepted;
+    private long lastMessagesIn;
+    private long lastMessagesOut;
+    private volatile double acceptsPerSecond;
+    private volatile double messagesInPerSecond;
+    private volatile double messagesOutPerSecond;
+
+    ServerMonitor(ServerMetrics metrics, UserSupervision userManager, int port) {
+        this.metrics = metrics;
+        this.userManager = userManager;
+        this.port = port;
+    }
+
+    /**
+     * 注册MBean并开始每秒采样
+     */
+    void start() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("ChatSystem:type=TerminalServer,port=" + port);
+            server.registerMBean(this, objectName);
+            name = objectName;
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+
+        sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "server-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 停止采样并注销MBean，未调用过start时不做任何事
+     */
+    void stop() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+        }
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+            name = null;
+        }
+    }
+
+    private void sample() {
+        long accepted = metrics.getAcceptedConnections();
+        long messagesIn = metrics.getMessagesIn();
+        long messagesOut = metrics.getMessagesOut();
+        acceptsPerSecond = accepted - lastAccepted;
+        messagesInPerSecond = messagesIn - lastMessagesIn;
+        messagesOutPerSecond = messagesOut - lastMessagesOut;
+        lastAccepted = accepted;
+        lastMessagesIn = messagesIn;
+        lastMessagesOut = messagesOut;
+    }
+
+    @Override
+    public int getConnectedUsers() {
+        return userManager.getUserCount();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return metrics.getAcceptedConnections();
+    }
+
+    @Override
+    public double getAcceptsPerSecond() {
+        return acceptsPerSecond;
+    }
+
+    @Override
+    public long getRejectedHandshakes() {
+        return metrics.getRejectedHandshakes();
+    }
+
+    @Override
+    public long getTimedOutHandshakes() {
+        return metrics.getTimedOutHandshakes();
+    }
+
+    @Override
+    public long getHandshakeUserFull() {
+        return metrics.getFailedHandshakes(UserSupervision.USER_FULL);
+    }
+
+    @Override
+    public long getHandshakeFormatErrors() {
+        return metrics.getFailedHandshakes(UserSupervision.ID_FORMAT_ERROR);
+    }
+
+    @Override
+    public long getHandshakeIdExists() {
+        return metrics.getFailedHandshakes(UserSupervision.ID_EXIST);
+    }
+
+    @Override
+    public long getHandshakeUnknownErrors() {
+        return metrics.getFailedHandshakes(UserSupervision.UNKNOWN_ERROR);
+    }
+
+    @Override
+    public double getHandshakeP99Millis() {
+        return metrics.getHandshakeLatency().getPercentile(99) / 1e6;
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return metrics.getMessagesIn();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return messagesInPerSecond;
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return metrics.getMessagesOut();
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return messagesOutPerSecond;
+    }
+
+    @Override
+    public double getFanOutP50Micros() {
+        return metrics.getFanOutLatency().getPercentile(50) / 1e3;
+    }
+
+    @Override
+    public double getFanOutP99Micros() {
+        return metrics.getFanOutLatency().getPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getFanOutMaxMicros() {
+        return metrics.getFanOutLatency().getMax() / 1e3;
+    }
+
+    @Override
+    public long getQueuedFrames() {
+        return userManager.getQueuedFrames();
+    }
+
+    @Override
+    public int getPendingWriteTasks() {
+        return userManager.getPendingWriteTasks();
+    }
+
+    @Override
+    public double getChatLogWriteP99Micros() {
+        return metrics.getChatLogWriteLatency().getPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getChatLogSyncP99Millis() {
+        return metrics.getChatLogSyncLatency().getPercentile(99) / 1e6;
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return metrics.getCompressionRatio();
+    }
+
+    @Override
+    public long getClusterDropped() {
+        return metrics.getClusterDropped();
+    }
+
+    @Override
+    public long getResumedSessions() {
+        return metrics.getResumedSessions();
+    }
+
+    @Override
+    public long getIdleDisconnects() {
+        return metrics.getIdleDisconnects();
+    }
+
+    @Override
+    public long getRateLimitedMessages() {
+        return metrics.getRateLimitedMessages();
+    }
+
+    @Override
+    public long getSearchQueries() {
+        return metrics.getSearchQueries();
+    }
+
+    @Override
+    public double getSearchP99Millis() {
+        return metrics.getSearchLatency().getPercentile(99) / 1e6;
+    }
+
+    @Override
+    public long getPresenceUpdates() {
+        return metrics.getPresenceUpdates();
+    }
+
+    @Override
+    public void resetHistograms() {
+        metrics.getHandshakeLatency().reset();
+        metrics.getFanOutLatency().reset();
+        metrics.getChatLogWriteLatency().reset();
+        metrics.getChatLogSyncLatency().reset();
+        metrics.getSearchLatency().reset();
+    }
+}
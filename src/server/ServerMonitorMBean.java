@@ -0,0 +1,70 @@
+package server;
+
+/**
+ * 通过JMX暴露的服务终端运行状态，可用jconsole等工具查看。
+ * 计数都从启动时累计，每秒的速率是最近一秒的值
+ */
+public interface ServerMonitorMBean {
+    int getConnectedUsers();
+
+    long getAcceptedConnections();
+
+    double getAcceptsPerSecond();
+
+    long getRejectedHandshakes();
+
+    long getTimedOutHandshakes();
+
+    long getHandshakeUserFull();
+
+    long getHandshakeFormatErrors();
+
+    long getHandshakeIdExists();
+
+    long getHandshakeUnknownErrors();
+
+    double getHandshakeP99Millis();
+
+    long getMessagesIn();
+
+    double getMessagesInPerSecond();
+
+    long getMessagesOut();
+
+    double getMessagesOutPerSecond();
+
+    double getFanOutP50Micros();
+
+    double getFanOutP99Micros();
+
+    double getFanOutMaxMicros();
+
+    long getQueuedFrames();
+
+    int getPendingWriteTasks();
+
+    double getChatLogWriteP99Micros();
+
+    double getChatLogSyncP99Millis();
+
+    double getCompressionRatio();
+
+    long getClusterDropped();
+
+    long getResumedSessions();
+
+    long getIdleDisconnects();
+
+    long getRateLimitedMessages();
+
+    long getSearchQueries();
+
+    double getSearchP99Millis();
+
+    long getPresenceUpdates();
+
+    /**
+     * 清空所有耗时分布，计数不受影响
+     */
+    void resetHistograms();
+}
@@ -0,0 +1,206 @@
+package server;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 以账号为下标的用户表。账号范围[minId, maxId]被分为固定大小的页，页在第一次使用时才分配，
+ * 因此很大的账号范围也只占用实际用到的内存。空闲账号记录在位图中，另有一层摘要位图标记已满的字，
+ * 分配空闲账号时跳过已满的字，无需逐个检查账号，并且总是得到最小的空闲账号。
+ * 查找用户和读取快照不加锁；加入、移除和分配账号需由调用者保证同一时间只有一个线程执行
+ */
+class SessionTable {
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS; // 每页的账号数
+
+    private final int minId;
+    private final int maxId;
+    private final AtomicReferenceArray<AtomicReferenceArray<UserSession>> pages;
+    private final long[] usedWords; // 每一位表示一个账号是否已被占用
+    private final long[] fullWords; // 每一位表示usedWords中对应的字是否已全部占用
+    private int cursor; // 在此之前的字都已全部占用，查找空闲账号时从这里开始
+    private volatile int size; // 只由持有锁的线程修改，isFull可不加锁读取
+    private volatile UserSession[] snapshot = new UserSession[0]; // 当前所有用户，加入、退出时整体替换
+
+    /**
+     * @param minId 最小的账号
+     * @param maxId 最大的账号
+     */
+    SessionTable(int minId, int maxId) {
+        if (minId > maxId) {
+            throw new IllegalArgumentException("minId > maxId: " + minId + " > " + maxId);
+        }
+        this.minId = minId;
+        this.maxId = maxId;
+        int range = maxId - minId + 1;
+        pages = new AtomicReferenceArray<>((range + PAGE_SIZE - 1) >>> PAGE_BITS);
+        usedWords = new long[(range + 63) >>> 6];
+        fullWords = new long[(usedWords.length + 63) >>> 6];
+
+        // 范围之外的多余位视为已占用，分配时不会被选中
+        int tail = range & 63;
+        if (tail != 0) {
+            usedWords[usedWords.length - 1] = -1L << tail;
+        }
+    }
+
+    /**
+     * @param id 账号
+     * @return 账号是否在此表的范围内
+     */
+    boolean inRange(int id) {
+        return id >= minId && id <= maxId;
+    }
+
+    /**
+     * 查找用户，不加锁
+     *
+     * @param id 账号
+     * @return 此账号的用户，不存在时为null
+     */
+    UserSession get(int id) {
+        if (!inRange(id)) {
+            return null;
+        }
+        int slot = id - minId;
+        AtomicReferenceArray<UserSession> page = pages.get(slot >>> PAGE_BITS);
+        return (page == null) ? null : page.get(slot & (PAGE_SIZE - 1));
+    }
+
+    /**
+     * @return 当前所有用户的不可变快照，广播时无需加锁
+     */
+    UserSession[] snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return 当前的用户数
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * 找到一个空闲的账号，不占用它
+     *
+     * @return 空闲的账号，没有时返回-1
+     */
+    int findFreeId() {
+        // cursor之前的字都已占满，从cursor所在的摘要字开始查找第一个未满的字
+        for (int summaryIndex = cursor >>> 6; summaryIndex < fullWords.length; summaryIndex++) {
+            long notFull = ~fullWords[summaryIndex];
+            if (summaryIndex == cursor >>> 6) {
+                notFull &= -1L << (cursor & 63);
+            }
+            int wordIndex = (summaryIndex << 6) + Long.numberOfTrailingZeros(notFull);
+            if (notFull != 0 && wordIndex < usedWords.length) {
+                cursor = wordIndex;
+                return minId + (wordIndex << 6) + Long.numberOfTrailingZeros(~usedWords[wordIndex]);
+            }
+        }
+        cursor = usedWords.length;
+        return -1;
+    }
+
+    /**
+     * 加入用户，调用者需保证账号在范围内且未被占用
+     *
+     * @param session 新用户
+     */
+    void put(UserSession session) {
+        int slot = session.getId() - minId;
+        int pageIndex = slot >>> PAGE_BITS;
+        AtomicReferenceArray<UserSession> page = pages.get(pageIndex);
+        if (page == null) {
+            page = new AtomicReferenceArray<>(PAGE_SIZE);
+            pages.set(pageIndex, page);
+        }
+        page.set(slot & (PAGE_SIZE - 1), session);
+        setUsed(slot, true);
+        size++;
+
+        UserSession[] current = snapshot;
+        UserSession[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = session;
+        snapshot = updated;
+    }
+
+    /**
+     * 移除用户
+     *
+     * @param id 账号
+     * @return 被移除的用户，不存在时为null
+     */
+    UserSession remove(int id) {
+        UserSession session = get(id);
+        if (session == null) {
+            return null;
+        }
+        int slot = id - minId;
+        pages.get(slot >>> PAGE_BITS).set(slot & (PAGE_SIZE - 1), null);
+        setUsed(slot, false);
+        size--;
+
+        UserSession[] current = snapshot;
+        UserSession[] updated = new UserSession[current.length - 1];
+        int count = 0;
+        for (UserSession other : current) {
+            if (other != session) {
+                updated[count++] = other;
+            }
+        }
+        snapshot = updated;
+        return session;
+    }
+
+    /**
+     * 将一个没有用户的账号标记为已占用，分配空闲账号时跳过它，调用者需保证账号在范围内
+     *
+     * @param id 账号
+     */
+    void reserve(int id) {
+        setUsed(id - minId, true);
+    }
+
+    /**
+     * 取消reserve的标记，账号上已有用户时不变
+     *
+     * @param id 账号
+     */
+    void release(int id) {
+        if (get(id) == null) {
+            setUsed(id - minId, false);
+        }
+    }
+
+    /**
+     * 移除所有用户
+     *
+     * @return 被移除的用户
+     */
+    UserSession[] clear() {
+        UserSession[] removed = snapshot;
+        for (UserSession session : removed) {
+            int slot = session.getId() - minId;
+            pages.get(slot >>> PAGE_BITS).set(slot & (PAGE_SIZE - 1), null);
+            setUsed(slot, false);
+        }
+        size = 0;
+        snapshot = new UserSession[0];
+        return removed;
+    }
+
+    private void setUsed(int slot, boolean used) {
+        int wordIndex = slot >>> 6;
+        long word = used ? (usedWords[wordIndex] | (1L << slot)) : (usedWords[wordIndex] & ~(1L << slot));
+        usedWords[wordIndex] = word;
+
+        if (word == -1L) {
+            fullWords[wordIndex >>> 6] |= 1L << wordIndex;
+        } else {
+            fullWords[wordIndex >>> 6] &= ~(1L << wordIndex);
+            cursor = Math.min(cursor, wordIndex); // 优先复用较小的账号
+        }
+    }
+}
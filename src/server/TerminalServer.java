@@ -3,34 +3,92 @@ package server;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import protocol.BufferPool;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.FrameDecoder;
 
 /**
  * 实现了一个简单的群聊服务终端
  */
 
 public class TerminalServer {
-    private static final int TERMINAL_PORT = 8888; // 服务端的端口号
-    private static final String CHARSET = "UTF-8"; // 传输数据的编码方式
+    private static final int READ_BUFFER_BYTES = 8 * 1024; // 每个连接每次读取的最大字节数
 
     private UserSupervision userManager; // 群聊用户的管理者
     private ServerSocket terminalServerSocket;
     //创建线程池
     private ExecutorService receiveMessagePool;
+    private NioTerminalServer nioServer; // 非阻塞模式下实际工作的服务终端
+    private final ServerMetrics metrics = new ServerMetrics(); // 运行统计
+    private Semaphore handshakePermits; // 限制同时等待申请账号的连接数
+    private int handshakeTimeoutMillis; // 申请账号的超时时间（毫秒）
+    private final int metricsReportSeconds; // 打印运行统计的间隔（秒）
+    private final BufferPool bufferPool = new BufferPool(); // 读取缓冲区和控制消息内容的缓冲池
+    private int maxMessageBytes; // 一条聊天消息的最大长度
+    private ClusterLink clusterLink; // 与集群中继的连接，单机运行时为null
+    private final ServerMonitor monitor; // 通过JMX和界面暴露的运行状态
+    private ScheduledExecutorService reporter; // 打印运行统计的后台线程，未启用时为null
 
     /**
-     * 实例化一个服务终端对象
+     * 实例化一个线程池模式的服务终端对象
      */
     public TerminalServer() {
-        userManager = new UserSupervision();
-        receiveMessagePool = Executors.newCachedThreadPool();
+        this(ServerMode.THREAD_POOL);
+    }
+
+    /**
+     * 实例化一个服务终端对象
+     *
+     * @param mode 服务终端处理连接的方式
+     */
+    public TerminalServer(ServerMode mode) {
+        this(new ServerConfig().setMode(mode));
+    }
+
+    /**
+     * 实例化一个服务终端对象
+     *
+     * @param config 服务终端的配置
+     */
+    public TerminalServer(ServerConfig config) {
+        ServerMode mode = config.getMode();
+        userManager = new UserSupervision(config, metrics);
+        monitor = new ServerMonitor(metrics, userManager, config.getPort());
+        metricsReportSeconds = config.getMetricsReportSeconds();
+        if (config.getRelayHost() != null) {
+            clusterLink = new ClusterLink(config, userManager, metrics, bufferPool);
+            userManager.setClusterLink(clusterLink);
+        }
+        if (mode == ServerMode.NIO) {
+            nioServer = new NioTerminalServer(userManager, config.getPort(), config, metrics, bufferPool);
+            return;
+        }
+
+        handshakePermits = new Semaphore(config.getMaxPendingHandshakes());
+        handshakeTimeoutMillis = config.getHandshakeTimeoutMillis();
+        maxMessageBytes = config.getMaxMessageBytes();
+
+        if (mode == ServerMode.VIRTUAL_THREAD) {
+            receiveMessagePool = VirtualThreads.newPerTaskExecutor();
+        } else {
+            receiveMessagePool = Executors.newCachedThreadPool();
+        }
         try {
             //启动服务器
-            terminalServerSocket = new ServerSocket(TERMINAL_PORT);
+            terminalServerSocket = new ServerSocket(config.getPort());
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -40,121 +98,207 @@ public class TerminalServer {
      * 调用此方法可用使服务终端开始工作
      */
     public void startRunning() {
-        while (true) {
+        startMetricsReport();
+        monitor.start();
+        if (clusterLink != null) {
+            clusterLink.start();
+        }
+        if (nioServer != null) {
+            nioServer.startRunning();
+            return;
+        }
+
+        while (!terminalServerSocket.isClosed()) {
             try {
-                // 开始接收用户端建里连接的请求，打开输出流、输入流
+                // 接收线程只负责接收连接，账号申请交给处理连接的线程，慢速或恶意的连接不会阻塞其它用户登录
                 Socket socket = terminalServerSocket.accept();
-                InputStream inputStream = socket.getInputStream();
-                OutputStream outputStream = socket.getOutputStream();
+                long acceptTime = System.nanoTime();
+                metrics.onAccepted();
+                if (!handshakePermits.tryAcquire()) {
+                    metrics.onHandshakeRejected();
+                    socket.close();
+                    continue;
+                }
+                receiveMessagePool.submit(() -> serveConnection(socket, acceptTime));
+            } catch (IOException e) {
+                if (!terminalServerSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
 
-                // 刚建立连接时会接收到4个字节的特殊消息，用于辅助服务端做出后续动作
-                byte[] initialByte = new byte[4];
-                inputStream.read(initialByte);
-                int initialMessage = UserSupervision.toInt(initialByte);
+    /**
+     * 停止服务终端：不再接收连接，断开所有用户，结束后台线程并写完聊天记录。startRunning随后返回
+     */
+    public void close() {
+        if (nioServer != null) {
+            nioServer.close();
+        } else {
+            closeQuietly(terminalServerSocket);
+            receiveMessagePool.shutdown();
+        }
+        if (clusterLink != null) {
+            clusterLink.close();
+        }
+        userManager.close();
+        monitor.stop();
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+    }
 
-                // 群聊结束，服务终端退出
-                if (initialMessage == -1) {
-                    userManager.end();
-                }
+    /**
+     * @return 服务终端的运行统计
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
 
-                // 用户申请的账号
-                Integer uesrId = 0;
-                /**
-                 * 1、创建成功
-                 * 2、格式错误
-                 * 3、已存在
-                 * 4、未知错误
-                 */
-                // 用于表示账号是否可用
-                boolean isAvailableId = false;
-                if (userManager.isFull()) {
-                    int result = 0; // 发送给客户端的数据，0 代表群聊已满
-                    byte[] byteResult = UserSupervision.toByte(result);
-
-                    outputStream.write(byteResult);
-                    outputStream.flush();
-                } else {
-                    if (initialMessage == 0) { // initialMessage等于0表示用户正在申请一个可用账号
-                        //创建新账号
-                        uesrId = userManager.getFreeId();
-                        int result = 3; // 3 代表未知的错误
-                        byte[] byteResult = new byte[4];
-
-                        if ((-1 != uesrId) && userManager.addUser(uesrId, socket, outputStream)) {
-                            isAvailableId = true;
-                            result = uesrId;
-                        }
+    /**
+     * @return 服务终端的运行状态，已注册为JMX MBean
+     */
+    public ServerMonitor getMonitor() {
+        return monitor;
+    }
 
-                        //返回创建账号的结果
-                        byteResult = UserSupervision.toByte(result);
-                        outputStream.write(byteResult);
-                        outputStream.flush();
-                    } else if (!userManager.isRightId(initialMessage)) {
-                        int result = 1; // 1 代表账号格式错误
-                        byte[] byteResult = UserSupervision.toByte(result);
-
-                        outputStream.write(byteResult);
-                        outputStream.flush();
-                    } else if (!userManager.isFreeId(initialMessage)) {
-                        int result = 2; // 2 代表账号已存在
-                        byte[] byteResult = UserSupervision.toByte(result);
-
-                        outputStream.write(byteResult);
-                        outputStream.flush();
-                    } else {
-                        uesrId = initialMessage;
-                        int result = 3; // 3 代表未知的错误
-                        byte[] byteResult = new byte[4];
+    // 处理一个连接：先申请账号，成功后一直接收对方的消息
+    private void serveConnection(Socket socket, long acceptTime) {
+        int userId;
+        InputStream inputStream;
+        try {
+            socket.setKeepAlive(true); // 未协商心跳的客户端失联时由操作系统发现
+            inputStream = socket.getInputStream();
+            OutputStream outputStream = socket.getOutputStream();
 
-                        if (userManager.addUser(uesrId, socket, outputStream)) {
-                            isAvailableId = true; // 客户端申请的账号可用
-                            result = uesrId;
-                        }
+            // 刚建立连接时会接收到4个字节的特殊消息，用于辅助服务端做出后续动作，超时未收到则断开连接
+            byte[] initialByte = new byte[4];
+            socket.setSoTimeout(handshakeTimeoutMillis);
+            FrameCodec.readFully(inputStream, initialByte, 0, initialByte.length);
+            int initialMessage = FrameCodec.toInt(initialByte);
 
-                        byteResult = UserSupervision.toByte(result);
-                        outputStream.write(byteResult);
-                        outputStream.flush();
-                    }
+            // 恢复会话时账号申请之后紧跟着令牌和已收到的最后一条群聊消息的序号
+            long resumeToken = 0;
+            long lastSequence = -1;
+            if (UserSupervision.isResumeRequest(initialMessage)) {
+                byte[] resumeRequest = new byte[UserSupervision.RESUME_REQUEST_LENGTH];
+                FrameCodec.readFully(inputStream, resumeRequest, 0, resumeRequest.length);
+                ByteBuffer request = ByteBuffer.wrap(resumeRequest);
+                resumeToken = request.getLong();
+                lastSequence = request.getLong();
+            }
+            socket.setSoTimeout(0);
+
+            // 群聊结束，服务终端退出
+            if (initialMessage == -1) {
+                userManager.end();
+            }
+
+            // 处理账号申请，申请成功时用户会被加入群聊，回复由其发送队列发出
+            int result = userManager.applyId(initialMessage, resumeToken, lastSequence, socket, outputStream);
+            if (!UserSupervision.isAppliedId(result)) {
+                outputStream.write(FrameCodec.toByte(result));
+                outputStream.flush();
+                metrics.onHandshakeCompleted(result, System.nanoTime() - acceptTime);
+                socket.close();
+                return;
+            }
+            metrics.onHandshakeCompleted(result, System.nanoTime() - acceptTime);
+            userId = result;
+        } catch (SocketTimeoutException e) {
+            metrics.onHandshakeTimedOut();
+            closeQuietly(socket);
+            return;
+        } catch (IOException e) {
+            closeQuietly(socket);
+            return;
+        } finally {
+            handshakePermits.release();
+        }
+
+        receiveMessages(userId, socket, inputStream);
+    }
+
+    // 建立连接之后就一直接收对方的消息，直至对方退出
+    private void receiveMessages(int userId, Socket socket, InputStream inputStream) {
+        // 每次读取尽量多的数据交给解码器，一次读到半条或多条消息都能正确处理
+        byte[] readBuffer = bufferPool.acquire(READ_BUFFER_BYTES);
+        FrameDecoder decoder = new FrameDecoder(maxMessageBytes, UserSupervision.MAX_CONTROL_FRAME_LENGTH, bufferPool);
+        try {
+            while (true) {
+                int count = inputStream.read(readBuffer);
+                if (count < 0) {
+                    userManager.detachUser(userId, socket); // 对方未通知就断开了连接，保留会话以便恢复
+                    return;
                 }
+                userManager.markActive(userId);
 
-                if (isAvailableId) {
-                    final Integer userFinalId = uesrId;
-                    receiveMessagePool.submit(() -> {
-                        // 建立连接之后就一直接收对方的消息，直至对方退出
-                        while (!socket.isClosed()) {
-                            try {
-                                // 前四位用于记录消息总长度，或断开通讯的通知（-1表示断开连接）
-                                byte[] byteHead = new byte[4];
-                                inputStream.read(byteHead);
-                                int head = UserSupervision.toInt(byteHead);
-
-                                // 结束与该用户的通讯
-                                if (head == -1) {
-                                    userManager.removeUser(userFinalId);
-                                    inputStream.close();
-                                    socket.close();
-                                    break;
-                                } else {
-                                    // 读取对方发送的消息
-                                    byte[] messageByte = new byte[head];
-                                    inputStream.read(messageByte);
-                                    String message = new String(messageByte, CHARSET);
-
-                                    userManager.sendMessage(userFinalId, message); // 将消息发送给其它用户
-                                }
-                            } catch (SocketException e) {
-                                System.out.println("一位用户已退出");
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
+                ByteBuffer received = ByteBuffer.wrap(readBuffer, 0, count);
+                Frame frame;
+                while ((frame = decoder.decode(received)) != null) {
+                    if (frame.isEnd()) {
+                        // 结束与该用户的通讯
+                        userManager.removeUser(userId, socket);
+                        socket.close();
+                        return;
+                    } else if (frame.isControl()) {
+                        try {
+                            userManager.handleControlFrame(userId, frame.getType(), frame.getData(), frame.getLength());
+                        } finally {
+                            frame.release();
                         }
-                    });
+                    } else {
+                        userManager.relayMessage(userId, frame.getData()); // 将消息原样转发给其它用户
+                    }
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
             }
+        } catch (ProtocolException e) {
+            System.out.println("用户" + userId + "发送的消息格式错误，已断开连接：" + e.getMessage());
+            userManager.removeUser(userId, socket);
+        } catch (SocketException e) {
+            System.out.println("一位用户已退出");
+            userManager.detachUser(userId, socket);
+        } catch (IOException e) {
+            e.printStackTrace();
+            userManager.detachUser(userId, socket);
+        } catch (RuntimeException e) {
+            // 例如服务终端关闭时线程池拒绝任务。接收线程就此结束，必须移除此用户，否则会话和账号会一直被占用
+            e.printStackTrace();
+            userManager.removeUser(userId, socket);
+            closeQuietly(socket);
+        } finally {
+            decoder.close();
+            bufferPool.release(readBuffer);
         }
     }
 
-}
+    // 按配置的间隔在后台打印运行统计
+    private void startMetricsReport() {
+        if (metricsReportSeconds <= 0) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "server-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> System.out.println(metrics.report()),
+                metricsReportSeconds, metricsReportSeconds, TimeUnit.SECONDS);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // 连接已不可用，忽略
+        }
+    }
 
+    private static void closeQuietly(ServerSocket serverSocket) {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无锁的令牌桶，桶中最多有burst个令牌，每秒补充ratePerSecond个，每条消息取走一个。
+ * 状态只有一个时刻：桶将被补满的时刻。补充按时间推算，不需要定时任务；
+ * 取令牌时用CAS把这一时刻推后一个令牌的时间，多个线程同时取也不加锁
+ */
+class TokenBucket {
+    private final long nanosPerToken; // 补充一个令牌所需的时间
+    private final long capacityNanos; // 从空桶补满所需的时间
+    private final AtomicLong fullAt; // 桶将被补满的时刻（System.nanoTime），早于当前时刻表示桶已满
+
+    /**
+     * 创建一个装满令牌的桶
+     *
+     * @param ratePerSecond 每秒补充的令牌数，必须大于0
+     * @param burst 桶的容量，即允许连续发送的消息数，必须大于0
+     */
+    TokenBucket(int ratePerSecond, int burst) {
+        nanosPerToken = TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+        capacityNanos = nanosPerToken * burst;
+        fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * 取一个令牌
+     *
+     * @param now 当前时刻（System.nanoTime）
+     * @return 取到时返回0；桶已空时返回还需等待的纳秒数，此时不取走令牌
+     */
+    long tryAcquire(long now) {
+        while (true) {
+            long current = fullAt.get();
+            long next = ((current - now > 0) ? current : now) + nanosPerToken;
+            long debt = next - now; // 取走后桶中缺少的令牌折合的时间
+            if (debt > capacityNanos) {
+                return debt - capacityNanos;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 一个已加入群聊的用户，保存了与此用户通讯所需的套接字和输出流。
+ * 发给此用户的消息先放入有界的发送队列，再由同一时刻至多一个的写任务依次写出，
+ * 因此接收过慢的用户只会积压自己的队列，不会拖慢其它用户
+ */
+class UserSession {
+    static final long DEFAULT_MAX_SPILL_BYTES = 64L * 1024 * 1024; // 暂存文件的默认大小上限（字节）
+
+    private final int id;
+    private final Socket socket;
+    private final OutputStream outputStream;
+    private final Executor writerExecutor; // 执行写任务的线程池
+    private final OverflowPolicy overflowPolicy;
+    private final ArrayBlockingQueue<byte[]> outboundQueue;
+    private final AtomicBoolean writerScheduled = new AtomicBoolean(); // 是否已有写任务在运行或等待运行
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private volatile boolean closed;
+    private volatile boolean compression; // 是否在申请账号时协商了压缩
+    private volatile long resumeToken; // 恢复会话的令牌，0表示未协商恢复会话
+    private volatile long lastActiveTick; // 最后一次收到此用户数据时IdleReaper的刻度
+    private volatile TokenBucket rateLimiter; // 此用户发送消息的限速，为null时不限速
+    private final AtomicBoolean throttled = new AtomicBoolean(); // 是否有消息因限速被拒绝，且之后还没有消息被接受
+    private final Set<Integer> rooms = ConcurrentHashMap.newKeySet(); // 已加入的聊天室，退出群聊时据此清理
+    private boolean rosterSent; // 是否已发出完整的在线名单，之后只发变化，只由PresenceRoster的线程读写
+
+    // 恢复会话补发消息期间暂缓的消息，补发完成后按原顺序放入发送队列；为null时不暂缓
+    private final ReentrantLock holdLock = new ReentrantLock();
+    private volatile List<byte[]> heldFrames;
+    private final int queueCapacity;
+
+    // SPILL_TO_DISK策略下暂存消息的文件，开始暂存后新消息全部写入文件，直到文件中的消息全部发出
+    private final ReentrantLock spillLock = new ReentrantLock();
+    private final long maxSpillBytes; // 暂存文件的大小上限，超出时断开此用户
+    private final AtomicInteger spilledFrames = new AtomicInteger();
+    private volatile boolean spilling;
+    private File spillFile;
+    private RandomAccessFile spillAccess;
+    private long spillReadPosition;
+
+    /**
+     * 实例化一个用户会话
+     *
+     * @param id 用户的账号
+     * @param socket 用于和此用户通讯的套接字
+     * @param outputStream 用于向此用户发送消息的输出流
+     * @param writerExecutor 执行写任务的线程池
+     * @param overflowPolicy 发送队列已满时的处理方式
+     * @param queueCapacity 发送队列的容量
+     */
+    UserSession(int id, Socket socket, OutputStream outputStream, Executor writerExecutor,
+                OverflowPolicy overflowPolicy, int queueCapacity) {
+        this(id, socket, outputStream, writerExecutor, overflowPolicy, queueCapacity, DEFAULT_MAX_SPILL_BYTES);
+    }
+
+    /**
+     * 实例化一个用户会话
+     *
+     * @param id 用户的账号
+     * @param socket 用于和此用户通讯的套接字
+     * @param outputStream 用于向此用户发送消息的输出流
+     * @param writerExecutor 执行写任务的线程池
+     * @param overflowPolicy 发送队列已满时的处理方式
+     * @param queueCapacity 发送队列的容量
+     * @param maxSpillBytes SPILL_TO_DISK策略下暂存文件的大小上限（字节）
+     */
+    UserSession(int id, Socket socket, OutputStream outputStream, Executor writerExecutor,
+                OverflowPolicy overflowPolicy, int queueCapacity, long maxSpillBytes) {
+        this.id = id;
+        this.socket = socket;
+        this.outputStream = outputStream;
+        this.writerExecutor = writerExecutor;
+        this.overflowPolicy = overflowPolicy;
+        this.queueCapacity = queueCapacity;
+        this.maxSpillBytes = maxSpillBytes;
+        outboundQueue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    int getId() {
+        return id;
+    }
+
+    Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * @return 此用户能否接收压缩的聊天消息
+     */
+    boolean acceptsCompression() {
+        return compression;
+    }
+
+    void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @return 此用户能否接收带序号的群聊消息，即是否协商了恢复会话
+     */
+    boolean acceptsSequence() {
+        return resumeToken != 0;
+    }
+
+    long getResumeToken() {
+        return resumeToken;
+    }
+
+    void setResumeToken(long resumeToken) {
+        this.resumeToken = resumeToken;
+    }
+
+    TokenBucket getRateLimiter() {
+        return rateLimiter;
+    }
+
+    void setRateLimiter(TokenBucket rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * 记录一条消息因限速被拒绝
+     *
+     * @return 之前的消息都被接受时返回true，此时应通知此用户，连续被拒绝的消息只通知一次
+     */
+    boolean markThrottled() {
+        return !throttled.get() && throttled.compareAndSet(false, true);
+    }
+
+    /**
+     * 记录一条消息被接受，之后再被拒绝时重新通知
+     */
+    void clearThrottled() {
+        if (throttled.get()) {
+            throttled.set(false);
+        }
+    }
+
+    long getLastActiveTick() {
+        return lastActiveTick;
+    }
+
+    /**
+     * 记录收到了此用户的数据，由接收线程在每次读取后调用
+     *
+     * @param tick IdleReaper当前的刻度
+     */
+    void markActive(long tick) {
+        if (lastActiveTick != tick) {
+            lastActiveTick = tick; // 同一刻度内只写一次
+        }
+    }
+
+    boolean isRosterSent() {
+        return rosterSent;
+    }
+
+    void markRosterSent() {
+        rosterSent = true;
+    }
+
+    /**
+     * @return 是否已关闭，即已从群聊中移除
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return 此用户已加入的聊天室，可并发修改
+     */
+    Set<Integer> getRooms() {
+        return rooms;
+    }
+
+    /**
+     * 将一段完整的数据放入发送队列，不会阻塞。同一个数组可能同时发给多个用户，此方法不会修改它
+     *
+     * @param frame 需发送的字节流
+     * @return 队列已满且策略为DISCONNECT，或策略为SPILL_TO_DISK且暂存文件已达上限时返回false，调用者应断开此用户；
+     * 否则返回true
+     */
+    boolean send(byte[] frame) {
+        if (closed) {
+            return true;
+        }
+        if (heldFrames != null) {
+            holdLock.lock();
+            try {
+                List<byte[]> held = heldFrames;
+                if (held != null) {
+                    return hold(held, frame);
+                }
+            } finally {
+                holdLock.unlock();
+            }
+        }
+        return enqueue(frame);
+    }
+
+    /**
+     * 之后send发出的消息暂缓放入发送队列，直到releaseHeld，需在其它线程能找到此用户之前调用
+     */
+    void holdSends() {
+        heldFrames = new ArrayList<>();
+    }
+
+    /**
+     * 发送一段数据，排在暂缓的消息之前，用于恢复会话时补发的消息
+     *
+     * @param frame 需发送的字节流
+     * @return 与send相同
+     */
+    boolean sendAheadOfHeld(byte[] frame) {
+        if (closed) {
+            return true;
+        }
+        return enqueue(frame);
+    }
+
+    /**
+     * 把暂缓的消息按原顺序放入发送队列，之后的消息直接放入
+     *
+     * @return 与send相同，返回false时调用者应断开此用户
+     */
+    boolean releaseHeld() {
+        holdLock.lock();
+        try {
+            List<byte[]> held = heldFrames;
+            heldFrames = null;
+            if (held == null || closed) {
+                return true;
+            }
+            for (byte[] frame : held) {
+                if (!enqueue(frame)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            holdLock.unlock();
+        }
+    }
+
+    // 暂缓的消息也不超过发送队列的容量，超出时DISCONNECT策略断开此用户，其它策略丢弃这条消息
+    private boolean hold(List<byte[]> held, byte[] frame) {
+        if (held.size() < queueCapacity) {
+            held.add(frame);
+            return true;
+        }
+        droppedFrames.incrementAndGet();
+        return overflowPolicy != OverflowPolicy.DISCONNECT;
+    }
+
+    private boolean enqueue(byte[] frame) {
+        if (spilling || !outboundQueue.offer(frame)) {
+            if (!handleOverflow(frame)) {
+                return false;
+            }
+        }
+        scheduleWriter();
+        return true;
+    }
+
+    // 发送队列已满时按策略处理新消息
+    private boolean handleOverflow(byte[] frame) {
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                while (!outboundQueue.offer(frame)) {
+                    if (outboundQueue.poll() != null) {
+                        droppedFrames.incrementAndGet();
+                    }
+                }
+                return true;
+
+            case SPILL_TO_DISK:
+                spillLock.lock();
+                try {
+                    if (!spilling && outboundQueue.offer(frame)) {
+                        return true; // 写任务已腾出位置
+                    }
+                    if (!appendSpill(frame)) {
+                        // 暂存文件已达上限，此用户长时间不接收，断开以免占满磁盘
+                        droppedFrames.incrementAndGet();
+                        return false;
+                    }
+                    spilling = true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    droppedFrames.incrementAndGet();
+                } finally {
+                    spillLock.unlock();
+                }
+                return true;
+
+            default:
+                droppedFrames.incrementAndGet();
+                return false;
+        }
+    }
+
+    // 保证同一时刻至多有一个写任务
+    private void scheduleWriter() {
+        if (writerScheduled.compareAndSet(false, true)) {
+            try {
+                writerExecutor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                writerScheduled.set(false);
+            }
+        }
+    }
+
+    // 写任务：依次写出队列中的消息，队列空了之后刷新一次
+    private void drain() {
+        boolean scheduled = true; // 是否仍持有writerScheduled，释放之后其它线程可能已安排了新的写任务
+        try {
+            while (!closed) {
+                if (outputStream instanceof BackpressuredOutput) {
+                    BackpressuredOutput output = (BackpressuredOutput) outputStream;
+                    if (!output.isWritable()) {
+                        // 对方接收过慢，让出线程，可写时再继续
+                        outputStream.flush();
+                        scheduled = false;
+                        writerScheduled.set(false);
+                        output.onWritable(this::scheduleWriter);
+                        return;
+                    }
+                }
+
+                byte[] frame = outboundQueue.poll();
+                if (frame == null && spilling) {
+                    frame = readSpill();
+                }
+                if (frame == null) {
+                    outputStream.flush();
+                    scheduled = false;
+                    writerScheduled.set(false);
+                    // 释放后再检查一次，防止漏掉刚放入队列的消息
+                    if (!hasPending() || !writerScheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    scheduled = true;
+                    continue;
+                }
+                outputStream.write(frame);
+            }
+        } catch (IOException e) {
+            // 连接已断开，读取线程会负责移除此用户
+            closed = true;
+            outboundQueue.clear();
+        } catch (RuntimeException e) {
+            // 例如读取暂存文件出错，关闭连接而不是让队列无声地积满，读取线程随后会移除此用户
+            e.printStackTrace();
+            try {
+                close();
+            } catch (IOException closeError) {
+                // 连接已不可用，忽略
+            }
+        } finally {
+            if (scheduled) {
+                writerScheduled.set(false);
+            }
+        }
+    }
+
+    private boolean hasPending() {
+        return !outboundQueue.isEmpty() || spilling;
+    }
+
+    // 将消息追加到暂存文件末尾，文件将超过大小上限时不写入并返回false，调用者需持有spillLock。
+    // 文件在关闭此用户时删除，不使用deleteOnExit，以免每个用户的路径都留在进程中直到退出
+    private boolean appendSpill(byte[] frame) throws IOException {
+        if (spillAccess == null) {
+            spillFile = File.createTempFile("chat-spill-" + id + "-", ".tmp");
+            try {
+                spillAccess = new RandomAccessFile(spillFile, "rw");
+            } catch (IOException e) {
+                spillFile.delete();
+                throw e;
+            }
+            spillReadPosition = 0;
+        }
+        long end = spillAccess.length();
+        if (end + 4 + frame.length > maxSpillBytes) {
+            return false;
+        }
+        // 先写整段数据的长度，控制消息的报头不是长度，不能据此还原
+        spillAccess.seek(end);
+        spillAccess.writeInt(frame.length);
+        spillAccess.write(frame);
+        spilledFrames.incrementAndGet();
+        return true;
+    }
+
+    // 从暂存文件中读出下一条消息，文件中的消息全部读完后结束暂存
+    private byte[] readSpill() throws IOException {
+        spillLock.lock();
+        try {
+            if (spillAccess == null || spillReadPosition >= spillAccess.length()) {
+                spilling = false;
+                return null;
+            }
+
+            // 暂存的是4个字节的长度+完整的字节流
+            spillAccess.seek(spillReadPosition);
+            byte[] frame = new byte[spillAccess.readInt()];
+            spillAccess.readFully(frame);
+            spillReadPosition += 4 + frame.length;
+            spilledFrames.decrementAndGet();
+
+            if (spillReadPosition >= spillAccess.length()) {
+                // 已追上，清空文件，之后的消息重新进入内存队列
+                spillAccess.setLength(0);
+                spillReadPosition = 0;
+                spilling = false;
+            }
+            return frame;
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    /**
+     * @return 此用户发送队列的统计信息
+     */
+    OutboundStats getStats() {
+        int spilled = spilledFrames.get();
+        return new OutboundStats(id, outboundQueue.size() + spilled, droppedFrames.get(), spilled);
+    }
+
+    /**
+     * 关闭与此用户通讯的输出流和套接字，丢弃未发送的消息
+     *
+     * @throws IOException 关闭失败时抛出
+     */
+    void close() throws IOException {
+        closed = true;
+        outboundQueue.clear();
+
+        spillLock.lock();
+        try {
+            if (spillAccess != null) {
+                spillAccess.close();
+                spillFile.delete();
+                spillAccess = null;
+                spilledFrames.set(0);
+            }
+            spilling = false;
+        } finally {
+            spillLock.unlock();
+        }
+
+        outputStream.close();
+        socket.close();
+    }
+}
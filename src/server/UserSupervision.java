@@ -2,13 +2,24 @@ package server;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import protocol.FrameCodec;
+import protocol.FrameCompressor;
 
 import java.io.*;
 
@@ -19,29 +30,181 @@ import java.io.*;
  * @version 1.0 2020-11-20
  */
 public class UserSupervision {
-    private static final String CHARSET = "UTF-8"; // 传输数据的编码方式
-
     private static final int SEND_THREADS_NUMBER = 10;
-    private static final int MAX_SIZE = 1000; // 最大聊天人数
-    private static final Integer MIN_ID = 9000;
-    private static final Integer MAX_ID = 9999;
+    private static final int QUERY_THREADS_NUMBER = 2; // 处理历史消息和搜索请求的线程数
+    private static final int QUERY_QUEUE_CAPACITY = 64; // 等待处理的查询数的上限，超出的查询被丢弃
 
-    private  Map<Integer, OutputStream> userOutputStreamMap;
-    private  Map<Integer, Socket> userSocketMap;
-    private  ExecutorService sendMessagePool;
-    private  int size; // 用于记录当前用户的数量
+    /**
+     * 申请账号的结果代码，申请成功时返回的是申请到的账号
+     */
+    public static final int USER_FULL = 0; // 群聊人数已满
+    public static final int ID_FORMAT_ERROR = 1; // 账号格式错误
+    public static final int ID_EXIST = 2; // 账号已存在
+    public static final int UNKNOWN_ERROR = 3; // 未知的错误
 
-    private File file = new File("Content.txt");
+    /**
+     * 报头小于-1的消息是控制消息，报头的值代表控制消息的类型，之后是4个字节的长度和相应长度的内容
+     */
+    public static final int END_FRAME = FrameCodec.END_FRAME; // 断开连接
+    public static final int HISTORY_FRAME = FrameCodec.HISTORY_FRAME; // 客户端请求历史消息 / 服务端返回历史消息
+    public static final int JOIN_ROOM_FRAME = FrameCodec.JOIN_ROOM_FRAME; // 客户端加入聊天室 / 服务端返回加入后的人数
+    public static final int LEAVE_ROOM_FRAME = FrameCodec.LEAVE_ROOM_FRAME; // 客户端退出聊天室 / 服务端确认退出
+    public static final int ROOM_MESSAGE_FRAME = FrameCodec.ROOM_MESSAGE_FRAME; // 客户端向聊天室发送消息 / 服务端转发聊天室的消息
+    public static final int DIRECT_MESSAGE_FRAME = FrameCodec.DIRECT_MESSAGE_FRAME; // 客户端发送私聊消息 / 服务端转发私聊消息
+    public static final int DELIVERY_STATUS_FRAME = FrameCodec.DELIVERY_STATUS_FRAME; // 服务端返回私聊消息的投递结果
+    public static final int SEQUENCE_FRAME = FrameCodec.SEQUENCE_FRAME; // 服务端给出紧跟其后的一条群聊消息的序号
+    public static final int SENT_SEQUENCE_FRAME = FrameCodec.SENT_SEQUENCE_FRAME; // 服务端给出发送者自己的群聊消息得到的序号
+    public static final int RESUME_FRAME = FrameCodec.RESUME_FRAME; // 服务端返回恢复会话的结果和新的令牌
+    public static final int PING_FRAME = FrameCodec.PING_FRAME; // 心跳，收到的一方回复PONG_FRAME
+    public static final int PONG_FRAME = FrameCodec.PONG_FRAME; // 心跳的回复
+    public static final int RATE_LIMITED_FRAME = FrameCodec.RATE_LIMITED_FRAME; // 服务端通知发送者：发送过快，之后的消息被拒绝
+    public static final int SEARCH_FRAME = FrameCodec.SEARCH_FRAME; // 客户端搜索历史消息 / 服务端返回一页搜索结果
+    public static final int ROSTER_FRAME = FrameCodec.ROSTER_FRAME; // 服务端发送完整的在线名单
+    public static final int PRESENCE_FRAME = FrameCodec.PRESENCE_FRAME; // 服务端发送合并后的上线和下线的账号
+    public static final int MAX_CONTROL_FRAME_LENGTH = 64 * 1024; // 客户端发来的控制消息的最大长度
+
+    /**
+     * 私聊消息的投递结果
+     */
+    public static final int DELIVERED = FrameCodec.DELIVERED; // 已放入接收者的发送队列
+    public static final int UNKNOWN_RECIPIENT = FrameCodec.UNKNOWN_RECIPIENT; // 接收者不在线或不存在
+    public static final int RECIPIENT_DROPPED = FrameCodec.RECIPIENT_DROPPED; // 接收者接收过慢，已被断开
+    public static final int RATE_LIMITED = FrameCodec.RATE_LIMITED; // 发送者发送过快，消息未投递
+
+    /**
+     * 恢复会话的结果，登录时协商了CAP_RESUME的用户也会收到NEW_SESSION
+     */
+    public static final int NEW_SESSION = FrameCodec.NEW_SESSION; // 新的会话，不补发消息
+    public static final int RESUMED = FrameCodec.RESUMED; // 已补发断开期间的所有群聊消息
+    public static final int RESUMED_PARTIAL = FrameCodec.RESUMED_PARTIAL; // 断开过久，只补发了最近的群聊消息
+    public static final int RESUME_REQUEST_LENGTH = 16; // 恢复会话时账号申请之后的令牌和已收到的序号
+
+    private static final int SUPPORTED_CAPABILITIES = FrameCodec.CAP_COMPRESSION | FrameCodec.CAP_RESUME
+            | FrameCodec.RESUME_REQUEST | FrameCodec.CAP_HEARTBEAT | FrameCodec.CAP_PRESENCE;
+    private static final byte[] PING = ByteBuffer.allocate(8).putInt(PING_FRAME).putInt(0).array(); // 所有用户共用
+    private static final byte[] PONG = ByteBuffer.allocate(8).putInt(PONG_FRAME).putInt(0).array();
+    private static final int REPLAY_CHUNK_BYTES = 64 * 1024; // 补发的消息合并成不超过此大小的块，以免占满发送队列
+
+    private static final int MAX_HISTORY_COUNT = 200; // 一次最多返回的历史消息条数
+    private static final int MAX_SEARCH_COUNT = 50; // 一页搜索结果最多的条数
+    private static final int MAX_QUERY_CHARS = 64; // 查询语句的最大长度，超出的部分被忽略
+    private static final int MAX_ROOMS_PER_USER = 256; // 每个用户最多加入的聊天室数
+
+    // 以账号为下标的用户表，查找和广播时无需加锁
+    private final SessionTable sessionTable;
+    private final int maxSize; // 最大聊天人数
+    private final RoomRegistry roomRegistry = new RoomRegistry(); // 各聊天室的成员
+    private  ExecutorService sendMessagePool; // 执行各用户写任务的线程池
+    // 历史消息和搜索请求单独使用有界的线程池，耗时的查询不会占用写任务的线程、推迟所有用户的消息
+    private final ThreadPoolExecutor queryPool = new ThreadPoolExecutor(QUERY_THREADS_NUMBER, QUERY_THREADS_NUMBER,
+            0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUERY_QUEUE_CAPACITY));
+    private final OverflowPolicy overflowPolicy;
+    private final int outboundQueueCapacity;
+    private final long maxSpillBytes; // SPILL_TO_DISK策略下每个用户暂存文件的大小上限
+    // 只保护用户的加入和退出，使用ReentrantLock而不是synchronized，虚拟线程等待时不会占住载体线程
+    private final ReentrantLock lock = new ReentrantLock();
+    private ChatLogWriter chatLog; // 聊天记录的写入器，写入在后台线程中进行
+    private HistoryStore historyStore; // 分段的历史记录，由chatLog的写线程写入
+    private SearchIndex searchIndex; // 历史记录的全文索引，未启用或没有历史记录时为null
+    private final FrameCompressor compressor; // 未启用压缩时为null
+    private final int compressionThreshold; // 达到此长度的消息才压缩
+    private final int maxMessageBytes; // 一条聊天消息的最大长度
+    private final ServerMetrics metrics; // 运行统计
+    private volatile ClusterLink clusterLink; // 与集群中其它节点的连接，单机运行时为null
+    private final RecentBroadcasts recentBroadcasts; // 最近的群聊消息，恢复会话时优先从中补发
+    private final ResumeTickets resumeTickets; // 意外断开的用户保留的账号和令牌
+    private final int maxResumeMessages; // 恢复会话时最多补发的消息条数
+    private final SecureRandom tokenRandom = new SecureRandom();
+    private final IdleReaper idleReaper; // 检查协商了心跳的用户是否失联，未启用心跳时为null
+    private final int rateLimit; // 每个用户每秒允许发送的消息数，0表示不限速
+    private final int rateBurst;
+    private final TokenBucket globalRateLimiter; // 所有用户共用的限速，为null时不限速
+    private final PresenceRoster presenceRoster; // 在线名单，未启用时为null
 
 
     /**
      * 实例化一个管理群聊用户的对象
      */
     public UserSupervision() {
-        userOutputStreamMap = new HashMap<>();
-        userSocketMap = new HashMap<>();
-        sendMessagePool = Executors.newFixedThreadPool(SEND_THREADS_NUMBER);
-        size = 0;
+        this(new ServerConfig());
+    }
+
+    /**
+     * 实例化一个管理群聊用户的对象
+     *
+     * @param mode 服务终端的模式，VIRTUAL_THREAD模式下每次发送都在一个虚拟线程中执行
+     */
+    public UserSupervision(ServerMode mode) {
+        this(new ServerConfig().setMode(mode));
+    }
+
+    /**
+     * 实例化一个管理群聊用户的对象
+     *
+     * @param config 服务终端的配置
+     */
+    public UserSupervision(ServerConfig config) {
+        this(config, new ServerMetrics());
+    }
+
+    /**
+     * 实例化一个管理群聊用户的对象
+     *
+     * @param config 服务终端的配置
+     * @param metrics 记录运行统计的对象
+     */
+    public UserSupervision(ServerConfig config, ServerMetrics metrics) {
+        this.metrics = metrics;
+        compressor = config.isCompressionEnabled() ? new FrameCompressor(config.getCompressionLevel()) : null;
+        compressionThreshold = config.getCompressionThreshold();
+        maxMessageBytes = config.getMaxMessageBytes();
+        // 集群中每个节点只分配自己那一段账号，账号在整个集群中唯一
+        sessionTable = new SessionTable(config.getNodeMinId(), config.getNodeMaxId());
+        maxSize = config.getMaxUsers();
+        overflowPolicy = config.getOverflowPolicy();
+        outboundQueueCapacity = config.getOutboundQueueCapacity();
+        maxSpillBytes = config.getMaxSpillBytes();
+        recentBroadcasts = new RecentBroadcasts(config.getResumeBufferSize());
+        resumeTickets = new ResumeTickets(sessionTable, config.getResumeTimeoutMillis());
+        maxResumeMessages = config.getMaxResumeMessages();
+        rateLimit = config.getRateLimit();
+        rateBurst = config.getRateBurst();
+        globalRateLimiter = (config.getGlobalRateLimit() > 0)
+                ? new TokenBucket(config.getGlobalRateLimit(), config.getGlobalRateBurst()) : null;
+        idleReaper = (config.getHeartbeatIntervalMillis() > 0)
+                ? new IdleReaper(this, config.getHeartbeatIntervalMillis(), config.getHeartbeatTimeoutMillis()) : null;
+        presenceRoster = (config.getPresenceIntervalMillis() > 0)
+                ? new PresenceRoster(sessionTable, config.getPresenceIntervalMillis(), metrics) : null;
+        try {
+            historyStore = new HistoryStore(new File(config.getHistoryDirectory()), config.getHistorySegmentBytes(),
+                    config.getHistoryMaxSegments());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        String searchDirectory = config.getSearchIndexDirectory();
+        if (historyStore != null && searchDirectory != null && !searchDirectory.isEmpty()) {
+            try {
+                searchIndex = new SearchIndex(new File(searchDirectory), historyStore, config.getSearchFlushMessages());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            chatLog = new ChatLogWriter(new File(config.getChatLogFile()), historyStore,
+                    config.getLogDurability(), config.getLogSyncIntervalMillis(), metrics);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (config.getMode() == ServerMode.VIRTUAL_THREAD) {
+            sendMessagePool = VirtualThreads.newPerTaskExecutor();
+        } else if (config.getMode() == ServerMode.NIO) {
+            // 非阻塞模式下写出不会阻塞，少量线程即可
+            sendMessagePool = Executors.newFixedThreadPool(SEND_THREADS_NUMBER);
+        } else {
+            // 阻塞写出时一个接收过慢的用户会占住一个线程，使用可扩展的线程池以免影响其它用户
+            sendMessagePool = Executors.newCachedThreadPool();
+        }
     }
 
     /**
@@ -50,11 +213,8 @@ public class UserSupervision {
      * @param id 需检测的账号
      * @return 账号符合要求返回true；否则返回false
      */
-    public boolean isRightId(Integer id) {
-        if (id >= MIN_ID && id <= MAX_ID) {
-            return true;
-        }
-        return false;
+    public boolean isRightId(int id) {
+        return sessionTable.inRange(id);
     }
 
     /**
@@ -64,20 +224,279 @@ public class UserSupervision {
      */
     public boolean isFull() {
 
-        return (MAX_SIZE == size);
+        return (sessionTable.size() >= maxSize);
     }
 
     /**
-     * 检测用户申请的账号是否已经被占用
+     * 检测用户申请的账号是否已经被占用，为意外断开的用户保留的账号也视为已占用
      * @param id 需检测的账号
      * @return 未被占用返回true；否则返回false
-     * 使用synchronized同步锁，修饰方法，当一个线程调用isFreeId时，其他线程排队等候
      */
-    public synchronized boolean isFreeId(Integer id) {
-        if (userOutputStreamMap.containsKey(id)) {
+    public boolean isFreeId(int id) {
+        return sessionTable.get(id) == null && !resumeTickets.isReserved(id);
+    }
+
+    /**
+     * 判断账号申请之后是否还有RESUME_REQUEST_LENGTH个字节的令牌和已收到的序号
+     *
+     * @param applyId 账号申请
+     * @return 是恢复会话的申请时返回true
+     */
+    public static boolean isResumeRequest(int applyId) {
+        return applyId >= 0 && (applyId & FrameCodec.RESUME_REQUEST) != 0;
+    }
+
+    /**
+     * 处理用户申请账号的请求，申请成功时将用户加入群聊。
+     * 申请成功时回复已放入此用户发送队列的最前面，调用者只需在申请失败时自行回复。
+     * 申请的最高字节是客户端支持的功能，客户端提出了功能时，回复的最高字节是服务终端同意的功能
+     *
+     * @param applyId 用户申请的账号，0代表申请一个随机的账号，最高字节可带有FrameCodec.CAP_COMPRESSION等功能
+     * @param socket 用于和此用户通讯的套接字
+     * @param outputStream 用于向此用户发送消息的输出流
+     * @return 需返回给客户端的结果：申请成功时为申请到的账号，否则为USER_FULL、ID_FORMAT_ERROR、ID_EXIST或UNKNOWN_ERROR
+     */
+    public int applyId(int applyId, Socket socket, OutputStream outputStream) {
+        return applyId(applyId, 0, -1, socket, outputStream);
+    }
+
+    /**
+     * 处理用户申请账号或恢复会话的请求。恢复会话时令牌有效则沿用原来的账号，并补发lastSequence之后的群聊消息；
+     * 令牌无效时按普通的申请处理，原账号已被占用则分配新的账号。
+     * 协商了CAP_RESUME的用户在回复之后还会收到RESUME_FRAME，其中有恢复的结果和下次使用的令牌
+     *
+     * @param applyId 用户申请的账号，带有RESUME_REQUEST时是要恢复的账号
+     * @param resumeToken 恢复会话的令牌，不是恢复会话时忽略
+     * @param lastSequence 客户端已连续收到的最后一条群聊消息的序号，不是恢复会话时忽略
+     * @param socket 用于和此用户通讯的套接字
+     * @param outputStream 用于向此用户发送消息的输出流
+     * @return 需返回给客户端的结果：申请成功时为申请到的账号，否则为USER_FULL、ID_FORMAT_ERROR、ID_EXIST或UNKNOWN_ERROR
+     */
+    public int applyId(int applyId, long resumeToken, long lastSequence, Socket socket, OutputStream outputStream) {
+        lock.lock();
+        try {
+            resumeTickets.expire();
+            // 先只检查令牌，所有检查都通过后才收回账号，申请失败时保留的令牌和旧的会话不受影响
+            boolean resuming = isResumeRequest(applyId) && (applyId & FrameCodec.CAP_RESUME) != 0
+                    && canReclaim(applyId & FrameCodec.ID_MASK, resumeToken);
+            UserSession stale = resuming ? sessionTable.get(applyId & FrameCodec.ID_MASK) : null;
+            if (sessionTable.size() - (stale != null ? 1 : 0) >= maxSize) { // 旧的会话将被新的会话替换
+                return USER_FULL;
+            }
+
+            int capabilities = applyId & FrameCodec.CAPABILITY_MASK;
+            if (applyId < 0 || (capabilities & ~SUPPORTED_CAPABILITIES) != 0) {
+                return ID_FORMAT_ERROR;
+            }
+            applyId &= FrameCodec.ID_MASK;
+
+            int userId;
+            if (resuming) {
+                reclaimId(applyId, resumeToken);
+                userId = applyId;
+            } else if (applyId == 0) { // 0 表示用户正在申请一个可用账号
+                userId = getFreeId();
+                if (-1 == userId) {
+                    return UNKNOWN_ERROR;
+                }
+            } else if (!isRightId(applyId)) {
+                return ID_FORMAT_ERROR;
+            } else if (!isFreeId(applyId)) {
+                if ((capabilities & FrameCodec.RESUME_REQUEST) == 0) {
+                    return ID_EXIST;
+                }
+                // 无法恢复的会话换一个账号重新开始
+                userId = getFreeId();
+                if (-1 == userId) {
+                    return UNKNOWN_ERROR;
+                }
+            } else {
+                userId = applyId;
+            }
+
+            // 只同意服务终端支持的功能，客户端未提出功能时按原协议回复；没有聊天记录时没有序号，不能恢复会话
+            int accepted = (compressor != null) ? capabilities & FrameCodec.CAP_COMPRESSION : 0;
+            if (chatLog != null) {
+                accepted |= capabilities & FrameCodec.CAP_RESUME;
+            }
+            if (idleReaper != null) {
+                accepted |= capabilities & FrameCodec.CAP_HEARTBEAT;
+            }
+            if (presenceRoster != null) {
+                accepted |= capabilities & FrameCodec.CAP_PRESENCE;
+            }
+            UserSession session = newSession(userId, socket, outputStream);
+            session.setCompression((accepted & FrameCodec.CAP_COMPRESSION) != 0);
+            session.send(FrameCodec.toByte(userId | accepted)); // 先于任何群聊消息发出
+            if ((accepted & FrameCodec.CAP_RESUME) == 0) {
+                sessionTable.put(session);
+            } else {
+                putSequencedSession(session, resuming, lastSequence); // 补发在锁外进行
+            }
+            if ((accepted & FrameCodec.CAP_HEARTBEAT) != 0) {
+                idleReaper.add(session);
+            }
+            onPresenceChange(userId);
+            if ((accepted & FrameCodec.CAP_PRESENCE) != 0) {
+                presenceRoster.subscribe(session); // 在记下自己上线之后订阅，名单或之后的变化中一定有自己
+            }
+            return userId;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 令牌是否有效：账号保留给断开的用户，或服务终端还未发现旧连接断开而旧的会话仍在。需持有锁
+    private boolean canReclaim(int id, long token) {
+        if (token == 0 || !isRightId(id)) {
             return false;
         }
-        return true;
+        if (resumeTickets.matches(id, token)) {
+            return true;
+        }
+        UserSession stale = sessionTable.get(id);
+        return stale != null && stale.getResumeToken() == token;
+    }
+
+    // 收回canReclaim检查过的账号：取回保留，或移除旧的会话。需持有锁
+    private void reclaimId(int id, long token) {
+        if (!resumeTickets.take(id, token)) {
+            removeSession(id, null, false);
+        }
+    }
+
+    // 加入协商了CAP_RESUME的用户，发出新的令牌。恢复会话时在锁内只加入用户表并确定补发的范围，
+    // 补发由线程池在锁外完成，期间广播给此用户的消息暂缓发出，补发完后再按顺序放入发送队列。
+    // 加入之后才读取范围的终点，之后的消息一定会经广播发给此用户；之前的可能也经广播发出，客户端按序号去重
+    private void putSequencedSession(UserSession session, boolean resuming, long lastSequence) {
+        long token;
+        do {
+            token = tokenRandom.nextLong();
+        } while (token == 0);
+        session.setResumeToken(token);
+
+        if (!resuming || lastSequence >= chatLog.nextSequence()) {
+            // 序号超出范围说明客户端的序号来自别的服务终端，按新的会话处理
+            sessionTable.put(session);
+            sendResumeFrame(session, NEW_SESSION, chatLog.nextSequence());
+            return;
+        }
+
+        session.holdSends();
+        sessionTable.put(session);
+        long to = chatLog.nextSequence();
+        long from = Math.max(Math.max(0, lastSequence + 1), to - maxResumeMessages);
+        try {
+            sendMessagePool.execute(() -> finishResume(session, lastSequence, from, to));
+        } catch (RejectedExecutionException e) {
+            session.releaseHeld(); // 服务终端正在关闭
+        }
+    }
+
+    // 在线程池中补发[from, to)之间的消息和恢复的结果，再放出暂缓的消息
+    private void finishResume(UserSession session, long lastSequence, long from, long to) {
+        try {
+            long start = replay(session, from, to);
+            boolean complete = start <= lastSequence + 1;
+            sendResumeFrame(session, complete ? RESUMED : RESUMED_PARTIAL, start);
+            metrics.onSessionResumed(complete, to - start);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            if (!session.releaseHeld()) {
+                disconnectSlowUser(session);
+            }
+        }
+    }
+
+    // 内容为：4个字节的结果 + 8个字节的新令牌 + 8个字节的序号，此序号及之后的群聊消息都会收到
+    private void sendResumeFrame(UserSession session, int status, long start) {
+        session.sendAheadOfHeld(ByteBuffer.allocate(28).putInt(RESUME_FRAME).putInt(20)
+                .putInt(status).putLong(session.getResumeToken()).putLong(start).array());
+    }
+
+    // 补发序号在[from, to)之间的群聊消息，内存中已不保留的从历史记录读取，多条消息合并后放入发送队列。
+    // 发送者自己的消息只补发序号。返回值之后的消息都已补发，之前可能有无法补发的消息
+    private long replay(UserSession session, long from, long to) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long start = from;
+        long next = from;
+        long bufferStart = Math.max(from, to - recentBroadcasts.capacity());
+        if (from < bufferStart && historyStore != null) {
+            for (HistoryRecord record : historyStore.read(from, (int) (bufferStart - from))) {
+                if (record.getId() != next) {
+                    start = record.getId();
+                }
+                byte[] message = record.getMessage();
+                appendReplay(session, out, record.getId(), record.getSenderId(), FrameCodec.toByte(message.length),
+                        message);
+                next = record.getId() + 1;
+            }
+        }
+        if (next != bufferStart) {
+            start = bufferStart;
+        }
+        for (long sequence = bufferStart; sequence < to; sequence++) {
+            RecentBroadcasts.Entry entry = recentBroadcasts.get(sequence);
+            if (entry != null) {
+                appendReplay(session, out, sequence, entry.senderId, entry.frame, null);
+                continue;
+            }
+            // 补发在锁外进行，期间这条消息可能已被更新的消息覆盖，再从历史记录读取
+            List<HistoryRecord> records = (historyStore != null) ? historyStore.read(sequence, 1) : null;
+            if (records == null || records.isEmpty() || records.get(0).getId() != sequence) {
+                start = sequence + 1;
+            } else {
+                byte[] message = records.get(0).getMessage();
+                appendReplay(session, out, sequence, records.get(0).getSenderId(), FrameCodec.toByte(message.length),
+                        message);
+            }
+        }
+        if (out.size() > 0) {
+            session.sendAheadOfHeld(out.toByteArray());
+        }
+        return start;
+    }
+
+    private void appendReplay(UserSession session, ByteArrayOutputStream out, long sequence, int senderId,
+                              byte[] frame, byte[] message) {
+        if (senderId == session.getId()) {
+            out.write(sequenceFrame(SENT_SEQUENCE_FRAME, sequence), 0, 16);
+        } else {
+            out.write(sequenceFrame(SEQUENCE_FRAME, sequence), 0, 16);
+            out.write(frame, 0, frame.length);
+            if (message != null) {
+                out.write(message, 0, message.length);
+            }
+            metrics.onMessagesOut(1);
+        }
+        if (out.size() >= REPLAY_CHUNK_BYTES) {
+            session.sendAheadOfHeld(out.toByteArray());
+            out.reset();
+        }
+    }
+
+    // 给出序号的控制消息：类型 + 4个字节的长度 + 8个字节的序号
+    private static byte[] sequenceFrame(int type, long sequence) {
+        return ByteBuffer.allocate(16).putInt(type).putInt(8).putLong(sequence).array();
+    }
+
+    // 在一条群聊消息之前加上给出其序号的控制消息，两者在同一个数组中，不会被其它消息隔开
+    private static byte[] withSequence(long sequence, byte[] frame) {
+        byte[] sequenced = new byte[16 + frame.length];
+        System.arraycopy(sequenceFrame(SEQUENCE_FRAME, sequence), 0, sequenced, 0, 16);
+        System.arraycopy(frame, 0, sequenced, 16, frame.length);
+        return sequenced;
+    }
+
+    /**
+     * 判断申请账号的结果是否代表申请成功
+     *
+     * @param result applyId返回的结果
+     * @return 申请成功返回true；否则返回false
+     */
+    public static boolean isAppliedId(int result) {
+        return result > UNKNOWN_ERROR;
     }
 
     /**
@@ -88,16 +507,19 @@ public class UserSupervision {
      * @param outputStream 用于向此用户发送消息的输出流
      * @return 添加成功返回true；否则返回false
      */
-    public synchronized boolean addUser(Integer id, Socket socket , OutputStream outputStream) {
-        if (isFull()) {
-            return false;
-        } else {
-            // 将此用户添加到群聊中
-            userSocketMap.put(id, socket);
-            userOutputStreamMap.put(id, outputStream);
-
-            size++; // 当前群聊人数加一
-            return true;
+    public boolean addUser(int id, Socket socket , OutputStream outputStream) {
+        lock.lock();
+        try {
+            if (isFull() || !isRightId(id) || !isFreeId(id)) {
+                return false;
+            } else {
+                // 将此用户添加到群聊中
+                sessionTable.put(newSession(id, socket, outputStream));
+                onPresenceChange(id);
+                return true;
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -107,159 +529,692 @@ public class UserSupervision {
      * @param deletedUserId 需被移除的用户的账号
      * @return 删除成功返回true；否则返回false
      */
-    public synchronized boolean removeUser(Integer deletedUserId) {
-        //表内为空，返回错误
-        if (userOutputStreamMap.isEmpty()) {
-            return false;
-        }
+    public boolean removeUser(int deletedUserId) {
+        return removeSession(deletedUserId, null, false);
+    }
 
-        if (userOutputStreamMap.containsKey(deletedUserId)) {
-            try {
-                // 关闭并移除此用户对应的OutputStream和Socket
-                userOutputStreamMap.get(deletedUserId).close();
-                userOutputStreamMap.remove(deletedUserId);
-                userSocketMap.get(deletedUserId).close();
-                userSocketMap.remove(deletedUserId);
-                size--; // 当前群聊人数减一
+    /**
+     * 用户主动退出时从群聊中移除，只在此账号仍属于这个连接时移除
+     *
+     * @param deletedUserId 需被移除的用户的账号
+     * @param socket 此用户的连接
+     * @return 删除成功返回true；否则返回false
+     */
+    public boolean removeUser(int deletedUserId, Socket socket) {
+        return removeSession(deletedUserId, socket, false);
+    }
 
-                return true;
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * 连接意外断开时从群聊中移除。协商了恢复会话的用户的账号和令牌会保留一段时间，期间可凭令牌恢复会话。
+     * 只在此账号仍属于这个连接时移除，会话已在新的连接上恢复时不做任何事
+     *
+     * @param userId 断开的用户的账号
+     * @param socket 已断开的连接
+     * @return 删除成功返回true；否则返回false
+     */
+    public boolean detachUser(int userId, Socket socket) {
+        return removeSession(userId, socket, true);
+    }
+
+    // 移除用户，socket不为null时只移除属于此连接的会话，keepTicket为true时为恢复会话保留账号和令牌
+    private boolean removeSession(int id, Socket socket, boolean keepTicket) {
+        lock.lock();
+        try {
+            UserSession session = sessionTable.get(id);
+            if (session == null || (socket != null && session.getSocket() != socket)) {
+                return false;
+            }
+            sessionTable.remove(id);
+            if (keepTicket && session.acceptsSequence()) {
+                resumeTickets.add(id, session.getResumeToken());
             }
+            return closeSession(session);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 已从用户表中取出的会话的清理：通知在线状态变化，退出所有聊天室，关闭连接并删除暂存文件。调用时需持有锁
+    private boolean closeSession(UserSession session) {
+        onPresenceChange(session.getId());
+        for (Integer roomId : session.getRooms()) {
+            roomRegistry.leave(roomId, session);
+        }
+
+        try {
+            // 关闭此用户对应的OutputStream和Socket
+            session.close();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
         }
         return false;
     }
 
     /**
      * 向群内的其它用户（除了提供消息的用户）发送消息
-     *Integer封装：一个引用指向这个对象
+     *
      * @param senderId 发送者的账号
      * @param message 发送的消息
      */
-    public synchronized void sendMessage(Integer senderId, String message) {
-        //将聊天记录存储到文件中去
-        if(!file.exists()){
-            file.exists();
+    public void sendMessage(int senderId, String message) {
+        // 只编码一次，得到报头+信息的完整字节流，之后所有接收者共用
+        relayMessage(senderId, FrameCodec.encodeMessage(message));
+    }
+
+    /**
+     * 将收到的一条完整消息原样转发给群内的其它用户（除了提供消息的用户），不做解码和重新编码。
+     * 发送时只读取当前用户的快照，不会阻塞其它发送者，也不会被用户的加入、退出阻塞
+     *
+     * @param senderId 发送者的账号
+     * @param frame 报头+信息的完整字节流，所有接收者共用同一个数组，调用后不得再修改
+     */
+    public void relayMessage(int senderId, byte[] frame) {
+        if (admitMessage(senderId)) {
+            broadcast(senderId, frame, true);
         }
-        try {
-            FileWriter fileWriter = new FileWriter(file.getName(),true);
-            fileWriter.write(message);
-            fileWriter.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+    }
+
+    // 按发送者和全局的限速检查一条用户消息，不加锁。超出任一限速时返回false，发送者连续被拒绝的消息只通知一次
+    private boolean admitMessage(int senderId) {
+        if (rateLimit <= 0 && globalRateLimiter == null) {
+            return true;
         }
+        UserSession sender = sessionTable.get(senderId); // 只超出全局限速时也要通知发送者
+        TokenBucket limiter = (sender != null) ? sender.getRateLimiter() : null;
 
-        //在hashmap里找这个id:ForEach迭代键值对方法
-        for (Integer id : userOutputStreamMap.keySet()) {
-            if(id != senderId) {
-                sendMessagePool.submit(() -> {
-                    OutputStream out = userOutputStreamMap.get(id);
+        long now = System.nanoTime();
+        long waitNanos = (limiter != null) ? limiter.tryAcquire(now) : 0;
+        if (waitNanos == 0 && globalRateLimiter != null) {
+            waitNanos = globalRateLimiter.tryAcquire(now);
+        }
+        if (waitNanos == 0) {
+            if (sender != null) {
+                sender.clearThrottled();
+            }
+            return true;
+        }
 
-                    // 将所需发送的消息转换为字节流，编码方式为UTF-8
-                    byte[] byteMessage = null;
-                    try {
-                        //用UTF-8编码，将字符串编码为byte序列，并将结果存储到一个新的byte数组中。
-                        byteMessage = message.getBytes(CHARSET);
-                    } catch (UnsupportedEncodingException e) {
-                        e.printStackTrace();
-                    }
+        metrics.onRateLimited();
+        if (sender != null && sender.markThrottled()) {
+            // 内容为：4个字节的建议等待时间（毫秒）
+            int retryAfterMillis = (int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1);
+            sender.send(ByteBuffer.allocate(12).putInt(RATE_LIMITED_FRAME).putInt(4).putInt(retryAfterMillis).array());
+        }
+        return false;
+    }
 
-                    // head是消息字节前面的报头，代表消息的长度，可辅助接收端判断是否接收完毕
-                    int length = byteMessage.length;
-                    byte[] head = toByte(length);
-
-                    // 得到最终需要传输的字节流outByte：报头+信息
-                    byte[] outByte = new byte[length + head.length];
-                    System.arraycopy(head, 0, outByte, 0, head.length);
-                    System.arraycopy(byteMessage, 0, outByte, head.length, byteMessage.length);
-
-                    // 发送消息
-                    try {
-                        out.write(outByte);
-                        out.flush();
-                    } catch (IOException e) {
-                        e.printStackTrace();
+    /**
+     * 将集群中其它节点的用户发出的消息转发给本节点的所有用户，并写入本节点的聊天记录，不再发往其它节点
+     *
+     * @param senderId 发送者的账号，不在本节点的账号范围内
+     * @param frame 报头+信息的完整字节流，所有接收者共用同一个数组，调用后不得再修改
+     */
+    void relayRemoteMessage(int senderId, byte[] frame) {
+        broadcast(senderId, frame, false);
+    }
+
+    /**
+     * 设置与集群中其它节点的连接，之后本节点用户发出的群聊消息都会发往其它节点
+     *
+     * @param clusterLink 集群连接
+     */
+    void setClusterLink(ClusterLink clusterLink) {
+        this.clusterLink = clusterLink;
+    }
+
+    // 转发一条群聊消息给本节点除发送者以外的用户，local为true时还发往集群中的其它节点
+    private void broadcast(int senderId, byte[] frame, boolean local) {
+        // 同一条消息最多解压一次、压缩一次，同一种形式的所有接收者共用同一个数组
+        byte[] plain = frame;
+        byte[] compressed = null;
+        if (FrameCompressor.isCompressed(frame)) {
+            compressed = frame;
+            plain = decompress(senderId, frame);
+            if (plain == null) {
+                return;
+            }
+        }
+
+        //将聊天记录交给后台线程存储到文件中去，不等待磁盘写入；聊天记录中的序号就是这条消息的序号
+        long sequence = -1;
+        if (chatLog != null) {
+            sequence = chatLog.append(senderId, plain);
+            if (sequence >= 0) {
+                recentBroadcasts.add(sequence, senderId, plain);
+            }
+        }
+
+        // 放入各用户的发送队列即返回，由各自的写任务发出
+        if (local) {
+            metrics.onMessageIn();
+        }
+        long start = System.nanoTime();
+        int recipients = 0;
+        boolean compressTried = (compressed != null) || compressor == null
+                || plain.length - FrameCodec.HEAD_LENGTH < compressionThreshold;
+        byte[] sequencedPlain = null; // 带序号的形式，只在有协商了恢复会话的接收者时生成
+        byte[] sequencedCompressed = null;
+        for (UserSession session : sessionTable.snapshot()) {
+            boolean sequenced = sequence >= 0 && session.acceptsSequence();
+            if (session.getId() == senderId) {
+                if (sequenced) {
+                    session.send(sequenceFrame(SENT_SEQUENCE_FRAME, sequence)); // 发送者据此知道序号没有遗漏
+                }
+                continue;
+            }
+            byte[] out = plain;
+            if (session.acceptsCompression()) {
+                if (!compressTried) {
+                    compressTried = true;
+                    compressed = compress(plain); // 只在有接收者支持压缩时才压缩
+                }
+                if (compressed != null) {
+                    out = compressed;
+                    metrics.onCompressedSent(plain.length - compressed.length);
+                }
+            }
+            if (sequenced) {
+                if (out == plain) {
+                    if (sequencedPlain == null) {
+                        sequencedPlain = withSequence(sequence, plain);
+                    }
+                    out = sequencedPlain;
+                } else {
+                    if (sequencedCompressed == null) {
+                        sequencedCompressed = withSequence(sequence, compressed);
                     }
-                });
+                    out = sequencedCompressed;
+                }
+            }
+            recipients++;
+            if (!session.send(out)) {
+                disconnectSlowUser(session);
             }
         }
+        metrics.onBroadcast(recipients, System.nanoTime() - start);
+
+        // 其它节点收到的总是未压缩的消息，由它们按各自用户的情况压缩
+        ClusterLink link = clusterLink;
+        if (local && link != null) {
+            link.publish(senderId, plain);
+        }
     }
 
+    // 压缩一条消息并记录耗时，压缩后不能变小时返回null
+    private byte[] compress(byte[] plain) {
+        long start = System.nanoTime();
+        byte[] compressed = compressor.compress(plain);
+        metrics.onCompressed(plain.length, (compressed == null) ? plain.length : compressed.length,
+                System.nanoTime() - start);
+        return compressed;
+    }
 
+    // 解压发送者发来的压缩消息，发送者没有协商压缩或格式错误时断开发送者并返回null
+    private byte[] decompress(int senderId, byte[] compressed) {
+        try {
+            if (compressor == null) {
+                throw new ProtocolException("未启用压缩");
+            }
+            UserSession sender = sessionTable.get(senderId);
+            if (sender == null || !sender.acceptsCompression()) {
+                // 未协商压缩的连接不能让服务终端做解压的工作
+                throw new ProtocolException("未协商压缩");
+            }
+            long start = System.nanoTime();
+            byte[] plain = compressor.decompress(compressed, maxMessageBytes);
+            metrics.onDecompressed(System.nanoTime() - start);
+            return plain;
+        } catch (ProtocolException e) {
+            System.out.println("用户" + senderId + "发送的压缩消息有误，已断开连接：" + e.getMessage());
+            removeUser(senderId);
+            return null;
+        }
+    }
 
     /**
-     * 获得空闲的账号
+     * 将用户加入聊天室，聊天室不存在时自动创建。结果以JOIN_ROOM_FRAME回复给此用户
      *
-     * @return 存在可用账号时返回一个可用账号，否则返回-1
+     * @param userId 用户的账号
+     * @param roomId 聊天室的编号
+     * @return 加入成功返回true；用户不存在或已加入的聊天室过多时返回false
      */
-    public synchronized Integer getFreeId() {
-        Integer freeId = -1;
-        if (isFull()) {
-            return freeId;
+    public boolean joinRoom(int userId, int roomId) {
+        UserSession session = findSession(userId);
+        if (session == null) {
+            return false;
+        }
+        int memberCount = 0; // 回复0表示加入失败
+        if (session.getRooms().contains(roomId) || session.getRooms().size() < MAX_ROOMS_PER_USER) {
+            session.getRooms().add(roomId);
+            memberCount = roomRegistry.join(roomId, session);
+            // 加入的同时用户已退出群聊时，removeUser可能已清理过此用户的聊天室，此处撤销
+            if (findSession(userId) != session) {
+                roomRegistry.leave(roomId, session);
+                return false;
+            }
         }
+        session.send(ByteBuffer.allocate(16).putInt(JOIN_ROOM_FRAME).putInt(8)
+                .putInt(roomId).putInt(memberCount).array());
+        return memberCount > 0;
+    }
 
-        // 遍历以寻找可用账号，即hashmap里没有key值的key
-        for (Integer id = MIN_ID; id < MAX_ID; id++) {
-            if (!userOutputStreamMap.containsKey(id)) {
-                freeId = id;
-                break;
+    /**
+     * 将用户移出聊天室，聊天室没有成员后被删除。以LEAVE_ROOM_FRAME回复给此用户
+     *
+     * @param userId 用户的账号
+     * @param roomId 聊天室的编号
+     */
+    public void leaveRoom(int userId, int roomId) {
+        UserSession session = findSession(userId);
+        if (session == null) {
+            return;
+        }
+        roomRegistry.leave(roomId, session);
+        session.getRooms().remove(roomId);
+        session.send(ByteBuffer.allocate(12).putInt(LEAVE_ROOM_FRAME).putInt(4).putInt(roomId).array());
+    }
+
+    /**
+     * 向聊天室的其它成员发送消息，发送者不是此聊天室的成员时忽略
+     *
+     * @param senderId 发送者的账号
+     * @param roomId 聊天室的编号
+     * @param message 发送的消息
+     */
+    public void sendRoomMessage(int senderId, int roomId, String message) {
+        byte[] byteMessage = message.getBytes(FrameCodec.CHARSET);
+        relayRoomMessage(senderId, roomId, byteMessage, 0, byteMessage.length);
+    }
+
+    /**
+     * 将消息转发给聊天室的其它成员，只编码一次，所有成员共用同一个数组。
+     * 只遍历此聊天室的成员，代价与聊天室的人数有关，与在线的总人数无关。聊天室的消息暂不写入聊天记录
+     *
+     * @param senderId 发送者的账号
+     * @param roomId 聊天室的编号
+     * @param message 存放UTF-8编码消息的数组
+     * @param offset 消息在数组中的起始位置
+     * @param length 消息的长度
+     */
+    public void relayRoomMessage(int senderId, int roomId, byte[] message, int offset, int length) {
+        UserSession sender = findSession(senderId);
+        if (sender == null || !sender.getRooms().contains(roomId) || !admitMessage(senderId)) {
+            return;
+        }
+
+        // 报头 + 长度 + 内容（4个字节的聊天室编号 + 4个字节的发送者 + 消息）
+        byte[] frame = ByteBuffer.allocate(16 + length).putInt(ROOM_MESSAGE_FRAME).putInt(8 + length)
+                .putInt(roomId).putInt(senderId).put(message, offset, length).array();
+        UserSession[] members = roomRegistry.members(roomId);
+        metrics.onMessageIn();
+        metrics.onMessagesOut(members.length - 1);
+        for (UserSession session : members) {
+            if (session.getId() != senderId && !session.send(frame)) {
+                disconnectSlowUser(session);
+            }
+        }
+    }
+
+    /**
+     * 向一个用户发送私聊消息，只查找一次接收者并写入其发送队列，不经过广播。
+     * 投递结果以DELIVERY_STATUS_FRAME回复给发送者
+     *
+     * @param senderId 发送者的账号
+     * @param targetId 接收者的账号
+     * @param messageNo 发送者给此消息的编号，原样放在投递结果中
+     * @param message 存放UTF-8编码消息的数组
+     * @param offset 消息在数组中的起始位置
+     * @param length 消息的长度
+     * @return DELIVERED、UNKNOWN_RECIPIENT、RECIPIENT_DROPPED或RATE_LIMITED
+     */
+    public int sendDirectMessage(int senderId, int targetId, int messageNo, byte[] message, int offset, int length) {
+        int status;
+        UserSession target = findSession(targetId);
+        if (!admitMessage(senderId)) {
+            status = RATE_LIMITED;
+        } else if (target == null) {
+            status = UNKNOWN_RECIPIENT;
+        } else {
+            // 报头 + 长度 + 内容（4个字节的发送者 + 消息）
+            byte[] frame = ByteBuffer.allocate(12 + length).putInt(DIRECT_MESSAGE_FRAME).putInt(4 + length)
+                    .putInt(senderId).put(message, offset, length).array();
+            if (target.send(frame)) {
+                status = DELIVERED;
+                metrics.onMessagesOut(1);
+            } else {
+                status = RECIPIENT_DROPPED;
+                disconnectSlowUser(target);
             }
         }
 
-        return freeId;
+        if (status != RATE_LIMITED) {
+            metrics.onMessageIn(); // 与群聊、聊天室一致，被限速拒绝的消息不计入收到的消息
+        }
+        UserSession sender = findSession(senderId);
+        if (sender != null) {
+            sender.send(ByteBuffer.allocate(16).putInt(DELIVERY_STATUS_FRAME).putInt(8)
+                    .putInt(messageNo).putInt(status).array());
+        }
+        return status;
     }
 
     /**
-     * 调用此方法可结束群聊
+     * 记录收到了用户的数据，由接收线程在每次读取到数据后调用，不加锁
+     *
+     * @param userId 发来数据的用户的账号
      */
-    public synchronized void end() {
-        userOutputStreamMap.clear();
+    public void markActive(int userId) {
+        if (idleReaper != null) {
+            UserSession session = sessionTable.get(userId);
+            if (session != null) {
+                session.markActive(idleReaper.currentTick());
+            }
+        }
+    }
 
-        // 关闭所有socket
-        for (Integer id : userSocketMap.keySet()) {
-            try {
-                userSocketMap.get(id).close();
-            } catch (IOException e) {
-                e.printStackTrace();
+    // 向空闲的用户发送心跳，由IdleReaper调用
+    void pingIdleUser(UserSession session) {
+        metrics.onPingSent();
+        if (!session.send(PING)) {
+            disconnectSlowUser(session);
+        }
+    }
+
+    // 断开发送心跳后仍没有回复的用户，与意外断开的连接一样保留会话以便恢复，由IdleReaper调用
+    void expireIdleUser(UserSession session) {
+        if (detachUser(session.getId(), session.getSocket())) {
+            metrics.onIdleDisconnected();
+            System.out.println("用户" + session.getId() + "长时间没有响应，已断开连接");
+        }
+    }
+
+    // 断开接收过慢的用户，在线程池中执行，不阻塞广播。协商了恢复会话的用户之后仍可恢复
+    private void disconnectSlowUser(UserSession session) {
+        sendMessagePool.execute(() -> {
+            if (detachUser(session.getId(), session.getSocket())) {
+                System.out.println("用户" + session.getId() + "接收过慢，已断开连接");
             }
+        });
+    }
+
+    /**
+     * 读取编号小于beforeId的最后count条历史消息
+     *
+     * @param beforeId 只读取编号小于它的消息，Long.MAX_VALUE表示读取最新的消息
+     * @param count 最多读取的条数
+     * @return 按编号从小到大排列的消息，没有历史记录时为空
+     */
+    List<HistoryRecord> readHistory(long beforeId, int count) {
+        if (historyStore == null) {
+            return new ArrayList<>();
         }
+        return historyStore.readBefore(beforeId, count);
+    }
 
-        userSocketMap.clear();
+    /**
+     * 处理客户端发来的控制消息
+     *
+     * @param userId 发送者的账号
+     * @param type 控制消息的类型，即小于-1的报头
+     * @param payload 控制消息的内容
+     */
+    public void handleControlFrame(int userId, int type, byte[] payload) {
+        handleControlFrame(userId, type, payload, payload.length);
     }
 
     /**
-     * 将int类型的数据转换为4位byte类型的数据
+     * 处理客户端发来的控制消息。payload可能来自缓冲池，返回后即被复用，处理时不会保留它
      *
-     * @param intData 传入的int类型的参数
-     * @return 返回转换之后的4位byte类型的数据
+     * @param userId 发送者的账号
+     * @param type 控制消息的类型，即小于-1的报头
+     * @param payload 存放控制消息内容的数组
+     * @param length 内容的长度，即payload中有效的字节数
      */
-    public static synchronized byte[] toByte(int intData) {
-        byte[] byteData = new byte[4];
+    public void handleControlFrame(int userId, int type, byte[] payload, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload, 0, length);
+        switch (type) {
+            case HISTORY_FRAME: // 内容为：8个字节的编号 + 4个字节的条数，返回编号小于它的最后若干条消息
+                if (length >= 12) {
+                    long beforeId = buffer.getLong();
+                    int count = buffer.getInt();
+                    executeQuery(() -> sendHistory(userId, beforeId, count));
+                }
+                break;
 
-        byteData[0] = (byte) ((intData >> 24) & 0xFF);
-        byteData[1] = (byte) ((intData >> 16) & 0xFF);
-        byteData[2] = (byte) ((intData >> 8) & 0xFF);
-        byteData[3] = (byte) (intData & 0xFF);
+            case SEARCH_FRAME: // 内容为：4个字节的查询编号 + 8个字节的编号 + 4个字节的条数 + UTF-8编码的查询语句
+                if (length >= 16) {
+                    int queryNo = buffer.getInt();
+                    long beforeId = buffer.getLong();
+                    int count = buffer.getInt();
+                    String query = new String(payload, 16, length - 16, StandardCharsets.UTF_8); // payload会被复用，先解码
+                    executeQuery(() -> sendSearchResults(userId, queryNo, query, beforeId, count));
+                }
+                break;
+
+            case JOIN_ROOM_FRAME: // 内容为：4个字节的聊天室编号
+                if (length >= 4) {
+                    joinRoom(userId, buffer.getInt());
+                }
+                break;
+
+            case LEAVE_ROOM_FRAME: // 内容为：4个字节的聊天室编号
+                if (length >= 4) {
+                    leaveRoom(userId, buffer.getInt());
+                }
+                break;
+
+            case ROOM_MESSAGE_FRAME: // 内容为：4个字节的聊天室编号 + UTF-8编码的消息
+                if (length >= 4) {
+                    relayRoomMessage(userId, buffer.getInt(), payload, 4, length - 4);
+                }
+                break;
+
+            case DIRECT_MESSAGE_FRAME: // 内容为：4个字节的接收者 + 4个字节的消息编号 + UTF-8编码的消息
+                if (length >= 8) {
+                    int targetId = buffer.getInt();
+                    int messageNo = buffer.getInt();
+                    sendDirectMessage(userId, targetId, messageNo, payload, 8, length - 8);
+                }
+                break;
+
+            case PING_FRAME: // 客户端检查连接，立即回复
+                UserSession session = findSession(userId);
+                if (session != null) {
+                    session.send(PONG);
+                }
+                break;
 
-        return byteData;
+            case PONG_FRAME: // 收到数据时已记录活动，无需处理
+                break;
+
+            default:
+                break; // 忽略无法识别的控制消息
+        }
+    }
+
+    // 从历史记录中读取消息并放入此用户的发送队列，在线程池中执行，不影响其它用户的广播
+    // 在查询线程池中处理一个查询，等待的查询已满或正在关闭时丢弃它，不阻塞接收线程
+    private void executeQuery(Runnable query) {
+        try {
+            queryPool.execute(query);
+        } catch (RejectedExecutionException e) {
+            metrics.onQueryRejected();
+        }
+    }
+
+    private void sendHistory(int userId, long beforeId, int count) {
+        UserSession session = findSession(userId);
+        if (session == null) {
+            return;
+        }
+
+        List<HistoryRecord> records = readHistory(beforeId, Math.max(0, Math.min(count, MAX_HISTORY_COUNT)));
+        // 内容为：4个字节的条数 + 每条消息的（8个字节的编号 + 4个字节的发送者 + 8个字节的时间 + 4个字节的长度 + 消息）
+        int length = 4;
+        for (HistoryRecord record : records) {
+            length += 24 + record.getMessage().length;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(8 + length);
+        frame.putInt(HISTORY_FRAME).putInt(length).putInt(records.size());
+        for (HistoryRecord record : records) {
+            frame.putLong(record.getId())
+                    .putInt(record.getSenderId())
+                    .putLong(record.getTimestamp())
+                    .putInt(record.getMessage().length)
+                    .put(record.getMessage());
+        }
+        session.send(frame.array());
+    }
+
+    // 在索引中查找编号小于beforeId的消息并放入此用户的发送队列，在线程池中执行，不影响其它用户的广播
+    private void sendSearchResults(int userId, int queryNo, String query, long beforeId, int count) {
+        UserSession session = findSession(userId);
+        if (session == null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        String text = (query.length() > MAX_QUERY_CHARS) ? query.substring(0, MAX_QUERY_CHARS) : query;
+        SearchIndex.Page page = (searchIndex != null)
+                ? searchIndex.search(text, beforeId, Math.max(0, Math.min(count, MAX_SEARCH_COUNT)))
+                : new SearchIndex.Page(text, 0);
+        // 内容为：4个字节的查询编号 + 8个字节的下一页编号（-1表示没有更多结果） + 4个字节的条数
+        // + 每条消息的（8个字节的编号 + 4个字节的发送者 + 8个字节的时间 + 4个字节的长度 + 摘要）
+        byte[][] snippets = new byte[page.records.size()][];
+        int length = 16;
+        for (int i = 0; i < snippets.length; i++) {
+            snippets[i] = page.snippets.get(i).getBytes(StandardCharsets.UTF_8);
+            length += 24 + snippets[i].length;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(8 + length);
+        frame.putInt(SEARCH_FRAME).putInt(length).putInt(queryNo).putLong(page.nextBeforeId).putInt(snippets.length);
+        for (int i = 0; i < snippets.length; i++) {
+            HistoryRecord record = page.records.get(i);
+            frame.putLong(record.getId())
+                    .putInt(record.getSenderId())
+                    .putLong(record.getTimestamp())
+                    .putInt(snippets[i].length)
+                    .put(snippets[i]);
+        }
+        metrics.onSearch(System.nanoTime() - start);
+        session.send(frame.array());
+    }
+
+    private UserSession findSession(int userId) {
+        return sessionTable.get(userId);
     }
 
     /**
-     * 将4位byte类型的数据转换为int类型的数据
+     * @return 当前在线的用户数
+     */
+    public int getUserCount() {
+        return sessionTable.size();
+    }
+
+    /**
+     * 统计所有用户发送队列中等待发送的消息总数，需遍历所有用户，只用于监控
      *
-     * @param byteData 传入的4位byte类型的参数
-     * @return 返回转换之后的int类型的数据
+     * @return 等待发送的消息条数
      */
-    public static synchronized int toInt(byte[] byteData) {
-        int intData = 0;
+    public long getQueuedFrames() {
+        long queued = 0;
+        for (UserSession session : sessionTable.snapshot()) {
+            queued += session.getStats().getQueuedFrames();
+        }
+        return queued;
+    }
 
-        for (int i = 0; i < byteData.length; i++) {
-            int shift = (3 - i) * 8;
-            intData += ((byteData[i] & 0xFF) << shift);
+    /**
+     * @return 执行写任务的线程池中排队等待执行的任务数，线程池不排队时为0
+     */
+    public int getPendingWriteTasks() {
+        if (sendMessagePool instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) sendMessagePool).getQueue().size();
         }
+        return 0;
+    }
 
-        return intData;
+    /**
+     * 获得所有用户发送队列的统计信息，按等待发送的消息条数从多到少排列
+     *
+     * @return 各用户的统计信息
+     */
+    public List<OutboundStats> getOutboundStats() {
+        List<OutboundStats> statsList = new ArrayList<>();
+        for (UserSession session : sessionTable.snapshot()) {
+            statsList.add(session.getStats());
+        }
+        statsList.sort((a, b) -> Integer.compare(b.getQueuedFrames(), a.getQueuedFrames()));
+        return statsList;
+    }
+
+    /**
+     * 获得空闲的账号
+     *
+     * @return 存在可用账号时返回一个可用账号，否则返回-1
+     */
+    public int getFreeId() {
+        lock.lock();
+        try {
+            if (isFull()) {
+                return -1;
+            }
+            // 由空闲账号的位图直接得到最小的可用账号
+            return sessionTable.findFreeId();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 调用此方法可结束群聊
+     */
+    public void end() {
+        lock.lock();
+        try {
+            // 与移除单个用户相同的清理，关闭所有连接并删除暂存文件
+            for (UserSession session : sessionTable.clear()) {
+                closeSession(session);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 结束群聊并停止所有后台线程，写完已追加的聊天记录。服务终端停止时调用
+     */
+    public void close() {
+        end();
+        queryPool.shutdown(); // 之后不再读取索引和历史记录
+        if (idleReaper != null) {
+            idleReaper.close();
+        }
+        if (presenceRoster != null) {
+            presenceRoster.close();
+        }
+        if (searchIndex != null) {
+            searchIndex.close();
+        }
+        if (chatLog != null) {
+            chatLog.close();
+        }
+        sendMessagePool.shutdown();
     }
-}
 
+    private void onPresenceChange(int id) {
+        if (presenceRoster != null) {
+            presenceRoster.onChange(id);
+        }
+    }
 
+    private UserSession newSession(int id, Socket socket, OutputStream outputStream) {
+        UserSession session = new UserSession(id, socket, outputStream, sendMessagePool, overflowPolicy,
+                outboundQueueCapacity, maxSpillBytes);
+        if (rateLimit > 0) {
+            session.setRateLimiter(new TokenBucket(rateLimit, rateBurst));
+        }
+        return session;
+    }
+}
@@ -0,0 +1,30 @@
+package server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 创建虚拟线程执行器的工具类。虚拟线程需要JDK 21及以上版本，
+ * 在更早的JDK上运行时退化为普通的缓存线程池，使同一份代码可在两种环境下编译运行
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * 创建一个为每个任务启动一个虚拟线程的执行器
+     *
+     * @return 当前JDK支持虚拟线程时返回虚拟线程执行器，否则返回缓存线程池
+     */
+    static ExecutorService newPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("当前JDK不支持虚拟线程，改用普通线程池");
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
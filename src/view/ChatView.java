@@ -16,8 +16,17 @@ import javax.swing.*;
 import javax.imageio.*;
 
 import java.io.*;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.text.BadLocationException;
 
+import client.ChatMessage;
 import client.Client;
+import client.FrameListener;
 
 /**
  * 用户群聊天界面，大致包括：消息显示面板、输入面板、发送按钮
@@ -25,6 +34,7 @@ import client.Client;
 @SuppressWarnings("serial")
 public class ChatView extends JFrame {
     private static final String TITLE = "用户：";
+    private static final String ONLINE_TITLE = "（在线%d人）";
     private static final String SEND_BUTTON_TEXT = "发送";
 
     private static final int FRAME_WIDTH = 800;
@@ -34,10 +44,15 @@ public class ChatView extends JFrame {
     private static final int INPUT_PANEL_HIGH = 50;
     private static final int SEND_BUTTON_WIDTH = 80;
     private static final int SEND_BUTTON_HIGH = 50;
+    private static final int RECENT_HISTORY_COUNT = 50; // 进入群聊时显示的最近消息条数
+    private static final int HISTORY_PAGE_COUNT = 50; // 向上翻页时每次加载的消息条数
+    private static final int FLUSH_INTERVAL_MILLIS = 50; // 新消息合并后显示的间隔，界面每秒最多刷新20次
+    private static final int MAX_SCROLLBACK_LINES = 5000; // 消息显示面板最多保留的行数，超出时裁掉最早的行
 
     private JPanel chatPanel;
     private JPanel inputPanel;
     private JTextArea chatArea;
+    private JScrollPane chatScrollPane;
     private JTextArea inputArea;
     private JButton sendButton;
 
@@ -45,13 +60,25 @@ public class ChatView extends JFrame {
     private Integer id;
     // 用户对应的客户端对象
     private Client client;
-    //对于一个客户来说，有两个流，一个发送信息，一个接受信息
+    // 接收消息的线程，发送由客户端的写线程完成
     private Thread receiveThread;
-    private Thread sendThread;
 
     // 用户的状态（false表示用户已退出群聊
     private boolean isRunning;
 
+    // 已显示的最早一条历史消息的编号，Long.MAX_VALUE表示还未加载历史消息
+    private long oldestHistoryId = Long.MAX_VALUE;
+    private boolean isLoadingHistory; // 是否正在等待历史消息
+    private boolean isHistoryExhausted; // 是否已没有更早的消息，或更早的消息已被裁掉
+
+    // 接收线程只把消息放入队列，由界面线程定时取出，合并成一次追加
+    private final Queue<String> pendingMessages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private Timer flushTimer;
+
+    // 在线的账号，只在界面线程中修改
+    private final Set<Integer> onlineUsers = new HashSet<>();
+
     File file = new File("Content.txt");
 
     private Image background;
@@ -87,6 +114,7 @@ public class ChatView extends JFrame {
             @Override
             public void windowClosing(WindowEvent e) { // 用户退出
                 isRunning = false;
+                flushTimer.stop();
                 client.endCommunication(); // 结束通讯
 
                 dispose();
@@ -99,7 +127,14 @@ public class ChatView extends JFrame {
         initialJTextArea(chatArea);
         chatPanel = new JPanel();
         initialJPanel(chatPanel, PANEL_WIDTH, CHAT_PANEL_HIGH);
-        chatPanel.add(new JScrollPane(chatArea));
+        chatScrollPane = new JScrollPane(chatArea);
+        // 滚动到最上方时加载更早的消息
+        chatScrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (e.getValue() == 0 && oldestHistoryId != Long.MAX_VALUE) {
+                loadHistory(oldestHistoryId, HISTORY_PAGE_COUNT);
+            }
+        });
+        chatPanel.add(chatScrollPane);
 
         // 消息发送面板
         inputArea = new JTextArea();
@@ -113,12 +148,55 @@ public class ChatView extends JFrame {
         sendButton.setPreferredSize(new Dimension(SEND_BUTTON_WIDTH, SEND_BUTTON_HIGH));
         sendButton.setFont(new Font("宋体", 1, 24));
         sendButton.addActionListener(e -> {
-            sendMessage("用户" + id + ":\n" + inputArea.getText() + "\n\n");
-            chatArea.append("我:\n" + inputArea.getText() + "\n\n");
+            sendMessage("用户" + this.id + ":\n" + inputArea.getText() + "\n\n");
+            enqueueMessage("我:\n" + inputArea.getText() + "\n\n"); // 与收到的消息按顺序显示
             inputArea.setText("");
         });
 
+        // 历史消息在接收线程中返回，交给界面线程显示
+        client.setFrameListener(new FrameListener() {
+            @Override
+            public void onHistory(List<ChatMessage> messages) {
+                SwingUtilities.invokeLater(() -> showHistory(messages));
+            }
+
+            @Override
+            public void onRateLimited(int retryAfterMillis) {
+                enqueueMessage("（发送过快，消息未能发出，请稍后再试）\n\n");
+            }
+
+            @Override
+            public void onReconnected(int userId, boolean complete) {
+                enqueueMessage(complete ? "（已重新连接）\n\n" : "（已重新连接，断开期间的部分消息未能补发）\n\n");
+                SwingUtilities.invokeLater(() -> {
+                    ChatView.this.id = userId; // 无法恢复会话时账号可能改变
+                    updateTitle();
+                });
+            }
+
+            @Override
+            public void onRoster(List<Integer> onlineIds) {
+                SwingUtilities.invokeLater(() -> {
+                    onlineUsers.clear();
+                    onlineUsers.addAll(onlineIds);
+                    updateTitle();
+                });
+            }
+
+            @Override
+            public void onPresenceChanged(List<Integer> joined, List<Integer> left) {
+                SwingUtilities.invokeLater(() -> {
+                    onlineUsers.addAll(joined);
+                    onlineUsers.removeAll(left);
+                    updateTitle();
+                });
+            }
+        });
+
+        flushTimer = new Timer(FLUSH_INTERVAL_MILLIS, e -> flushMessages());
+        flushTimer.start();
         startReceive(); // 开始接收消息
+        loadHistory(Long.MAX_VALUE, RECENT_HISTORY_COUNT); // 显示进入群聊前的最近消息
 
         add(chatPanel);
         add(inputPanel);
@@ -126,13 +204,102 @@ public class ChatView extends JFrame {
         setVisible(true);
     }
 
-    // 调用此方法发送一次消息
+    // 标题中显示账号和在线人数，还没有收到在线名单时只显示账号
+    private void updateTitle() {
+        setTitle(TITLE + id + (onlineUsers.isEmpty() ? "" : String.format(ONLINE_TITLE, onlineUsers.size())));
+    }
+
+    // 调用此方法发送一次消息，只放入客户端的发送队列，不会阻塞界面线程
     private void sendMessage(String message) {
-        sendThread = new Thread(() -> {
-            client.sendMessage(message);
+        client.send(message).exceptionally(e -> {
+            enqueueMessage("（连接已断开，上一条消息未能发出）\n\n");
+            return null;
         });
+    }
 
-        sendThread.start();
+    // 请求编号小于beforeId的历史消息，同一时刻只请求一次
+    private void loadHistory(long beforeId, int count) {
+        if (isLoadingHistory || isHistoryExhausted) {
+            return;
+        }
+        isLoadingHistory = true;
+        client.requestHistory(beforeId, count);
+    }
+
+    // 将历史消息插入到消息显示面板的最前面
+    private void showHistory(List<ChatMessage> messages) {
+        isLoadingHistory = false;
+        if (messages.isEmpty()) {
+            isHistoryExhausted = true;
+            return;
+        }
+
+        StringBuilder text = new StringBuilder();
+        String selfPrefix = "用户" + id + ":";
+        for (ChatMessage message : messages) {
+            String messageText = message.getText();
+            if (messageText.startsWith(selfPrefix)) {
+                // 自己发送的消息与实时显示时一致
+                messageText = "我:" + messageText.substring(selfPrefix.length());
+            }
+            text.append(messageText);
+        }
+
+        boolean isFirstLoad = (oldestHistoryId == Long.MAX_VALUE);
+        oldestHistoryId = messages.get(0).getId();
+        if (oldestHistoryId == 0) {
+            isHistoryExhausted = true;
+        }
+
+        chatArea.insert(text.toString(), 0);
+        // 首次加载停在最新的消息处，向上翻页时停在原来看到的位置
+        chatArea.setCaretPosition(isFirstLoad ? chatArea.getDocument().getLength() : text.length());
+        trimScrollback();
+    }
+
+    // 把一条要显示的消息放入队列，可在任意线程中调用
+    private void enqueueMessage(String message) {
+        pendingMessages.offer(message);
+        // 界面长时间未刷新时只保留最新的消息，更早的显示后也会被裁掉
+        if (pendingCount.incrementAndGet() > MAX_SCROLLBACK_LINES && pendingMessages.poll() != null) {
+            pendingCount.decrementAndGet();
+        }
+    }
+
+    // 在界面线程中把积累的消息一次性追加到消息显示面板，只触发一次重新排版
+    private void flushMessages() {
+        if (pendingMessages.isEmpty()) {
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        String message;
+        while ((message = pendingMessages.poll()) != null) {
+            pendingCount.decrementAndGet();
+            text.append(message);
+        }
+
+        // 正在看最新消息时继续跟随，向上翻看时不打断
+        JScrollBar scrollBar = chatScrollPane.getVerticalScrollBar();
+        boolean isFollowing = scrollBar.getValue() + scrollBar.getVisibleAmount() >= scrollBar.getMaximum();
+        chatArea.append(text.toString());
+        trimScrollback();
+        if (isFollowing) {
+            chatArea.setCaretPosition(chatArea.getDocument().getLength());
+        }
+    }
+
+    // 行数超过上限时裁掉最早的行，之后不再向上加载历史消息，以免与裁掉的部分不连续
+    private void trimScrollback() {
+        int excess = chatArea.getLineCount() - MAX_SCROLLBACK_LINES;
+        if (excess <= 0) {
+            return;
+        }
+        try {
+            chatArea.replaceRange("", 0, chatArea.getLineStartOffset(excess));
+            isHistoryExhausted = true;
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
     }
 
     // 调用此方法开始接收消息
@@ -140,7 +307,10 @@ public class ChatView extends JFrame {
         receiveThread = new Thread(() -> {
             while (isRunning) {
                 String message = client.startReceiveMessage();
-                chatArea.append(message);
+                if (message.isEmpty()) {
+                    break; // 与服务终端的连接已断开
+                }
+                enqueueMessage(message);
             }
         });
         receiveThread.start();
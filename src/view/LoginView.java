@@ -22,9 +22,6 @@ import java.io.*;
  */
 @SuppressWarnings("serial")
 public class LoginView extends JFrame {
-    private static final Integer MIN_ID = 9000;
-    private static final Integer MAX_ID = 9999;
-
     private static final String ERROR_TEXT = "账号有误";
     private static final String ID_EXIST_TEXT = "账号已存在";
     private static final String USER_FULL_TEXT = "群聊人数已满";
@@ -92,6 +89,7 @@ public class LoginView extends JFrame {
                 errorTip.setText(ERROR_TEXT);
             } else {
                 Client client = new Client(); // 每一个群聊用户都对应了一个客户端对象
+                client.setHeartbeatRequested(true); // 聊天界面一直在接收消息
                 client.applyId(uesrId); // 向终端申请申请账号
                 int result = client.getApplyIdResult(); // 得到申请账号的结果
 
@@ -131,12 +129,13 @@ public class LoginView extends JFrame {
         getFreeIdButton.setFont(new java.awt.Font("宋体", 1, 20));
         getFreeIdButton.addActionListener(e -> {
             Client client = new Client();
+            client.setHeartbeatRequested(true); // 聊天界面一直在接收消息
             client.applyId(0); // 申请随机的账号
 
             int result = client.getApplyIdResult();
             if (0 == result) { // 0 代表群聊人数已满
                 errorTip.setText(USER_FULL_TEXT);
-            }  else if ((result >= MIN_ID) && (result <= MAX_ID)) { // 申请成功
+            }  else if (result > 3) { // 申请成功，0-3 以外的结果就是申请到的账号，范围由服务终端配置
                 inputIdTextArea.setText("");
                 new ChatView(client, result);
             } else {
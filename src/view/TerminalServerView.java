@@ -1,17 +1,26 @@
 package view;
 
+import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
+import java.awt.GridLayout;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 
+import javax.swing.BorderFactory;
 import javax.swing.JButton;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.Timer;
 
+import server.ServerConfig;
+import server.ServerMode;
+import server.ServerMonitor;
 import server.TerminalServer;
 
 /**
- * 服务终端界面，只包含一个结束按钮，用于结束终端服务器
+ * 服务终端界面，包含每秒刷新的运行状态和一个结束按钮，用于结束终端服务器
  */
 
 @SuppressWarnings("serial")
@@ -19,21 +28,47 @@ public class TerminalServerView extends JFrame {
     private static final String TITLE = "服务终端";
     private static final String END_BUTTON_TEXT = "结束服务终端";
 
-    private static final int FRAME_WIDTH = 300;
-    private static final int FRAME_HIGH = 150;
-    private static final int BUTTON_WIDTH = FRAME_WIDTH - 100;
-    private static final int BUTTON_HIGH = FRAME_HIGH - 100;
+    private static final int FRAME_WIDTH = 420;
+    private static final int FRAME_HIGH = 420;
+    private static final int BUTTON_WIDTH = 200;
+    private static final int BUTTON_HIGH = 50;
+    private static final int REFRESH_MILLIS = 1000; // 运行状态的刷新间隔
 
     private JButton endButton;
     private TerminalServer terminalServer;
     private Thread terminalThread;
+    private final JLabel usersLabel = new JLabel();
+    private final JLabel acceptsLabel = new JLabel();
+    private final JLabel handshakeLabel = new JLabel();
+    private final JLabel messagesLabel = new JLabel();
+    private final JLabel fanOutLabel = new JLabel();
+    private final JLabel queueLabel = new JLabel();
+    private final JLabel chatLogLabel = new JLabel();
 
     /**
-     * 实例化了一个服务终端界面
+     * 实例化了一个使用默认配置的服务终端界面
      */
     public TerminalServerView() {
+        this(new ServerConfig());
+    }
+
+    /**
+     * 实例化了一个服务终端界面，除处理连接的方式外使用默认配置
+     *
+     * @param mode 服务终端处理连接的方式
+     */
+    public TerminalServerView(ServerMode mode) {
+        this(new ServerConfig().setMode(mode));
+    }
+
+    /**
+     * 实例化了一个服务终端界面
+     *
+     * @param config 服务终端的配置
+     */
+    public TerminalServerView(ServerConfig config) {
         // 开启服务终端
-        terminalServer = new TerminalServer();
+        terminalServer = new TerminalServer(config);
         terminalThread = new Thread(() -> {
             terminalServer.startRunning();
         });
@@ -43,7 +78,7 @@ public class TerminalServerView extends JFrame {
         setTitle(TITLE);
         setSize(FRAME_WIDTH, FRAME_HIGH);
         setResizable(false);
-        setLayout(new FlowLayout(1, 30, 30));
+        setLayout(new BorderLayout());
 
         // 为右上角的叉号添加监听器和动作
         setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
@@ -64,13 +99,63 @@ public class TerminalServerView extends JFrame {
             System.exit(0);
         });
 
-        add(endButton);
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 30, 20));
+        buttonPanel.add(endButton);
+
+        add(createStatusPanel(), BorderLayout.CENTER);
+        add(buttonPanel, BorderLayout.SOUTH);
         setVisible(true);
+
+        // 运行状态只读取计数器，在事件分发线程中每秒刷新一次
+        Timer refreshTimer = new Timer(REFRESH_MILLIS, e -> refreshStatus());
+        refreshTimer.start();
+    }
+
+    // 左列为名称、右列为数值的运行状态面板
+    private JPanel createStatusPanel() {
+        JPanel panel = new JPanel(new GridLayout(0, 2, 10, 6));
+        panel.setBorder(BorderFactory.createTitledBorder("运行状态"));
+        addStatusRow(panel, "在线用户", usersLabel);
+        addStatusRow(panel, "连接（每秒/累计）", acceptsLabel);
+        addStatusRow(panel, "申请失败（满/格式/存在/未知/超时）", handshakeLabel);
+        addStatusRow(panel, "消息每秒（收到/发出）", messagesLabel);
+        addStatusRow(panel, "广播耗时（p50/p99）", fanOutLabel);
+        addStatusRow(panel, "发送队列（消息/任务）", queueLabel);
+        addStatusRow(panel, "聊天记录（写入p99/落盘p99）", chatLogLabel);
+        refreshStatus();
+        return panel;
+    }
+
+    private static void addStatusRow(JPanel panel, String name, JLabel value) {
+        panel.add(new JLabel(name));
+        panel.add(value);
+    }
+
+    private void refreshStatus() {
+        if (terminalServer == null) {
+            return;
+        }
+        ServerMonitor monitor = terminalServer.getMonitor();
+        usersLabel.setText(String.valueOf(monitor.getConnectedUsers()));
+        acceptsLabel.setText(String.format("%.0f / %d", monitor.getAcceptsPerSecond(), monitor.getAcceptedConnections()));
+        handshakeLabel.setText(String.format("%d / %d / %d / %d / %d", monitor.getHandshakeUserFull(),
+                monitor.getHandshakeFormatErrors(), monitor.getHandshakeIdExists(),
+                monitor.getHandshakeUnknownErrors(), monitor.getTimedOutHandshakes()));
+        messagesLabel.setText(String.format("%.0f / %.0f", monitor.getMessagesInPerSecond(),
+                monitor.getMessagesOutPerSecond()));
+        fanOutLabel.setText(String.format("%.1fus / %.1fus", monitor.getFanOutP50Micros(), monitor.getFanOutP99Micros()));
+        queueLabel.setText(monitor.getQueuedFrames() + " / " + monitor.getPendingWriteTasks());
+        chatLogLabel.setText(String.format("%.1fus / %.2fms", monitor.getChatLogWriteP99Micros(),
+                monitor.getChatLogSyncP99Millis()));
     }
 
     public static void main(String[] args) {
-        // 启动终端界面
-        new TerminalServerView();
+        // 启动终端界面，第一个参数可指定服务终端的模式（thread_pool、virtual_thread 或 nio），其余参数见ServerConfig
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        if (args.length > 0) {
+            config.setMode(ServerMode.fromName(args[0]));
+        }
+        new TerminalServerView(config);
     }
 
 }
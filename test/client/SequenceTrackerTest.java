@@ -0,0 +1,115 @@
+package client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * SequenceTracker的测试：乱序到达、重复丢弃、恢复会话时的起始序号以及长期不补上的空缺
+ */
+public class SequenceTrackerTest {
+
+    @Test
+    public void advancesInOrder() {
+        SequenceTracker tracker = new SequenceTracker();
+        assertEquals(-1, tracker.getWatermark());
+        for (long sequence = 0; sequence < 10; sequence++) {
+            assertTrue(tracker.markSeen(sequence));
+        }
+        assertEquals(9, tracker.getWatermark());
+    }
+
+    @Test
+    public void mergesOutOfOrderSequences() {
+        SequenceTracker tracker = new SequenceTracker();
+        assertTrue(tracker.markSeen(0));
+        assertTrue(tracker.markSeen(2));
+        assertTrue(tracker.markSeen(3));
+        assertEquals(0, tracker.getWatermark());
+
+        assertTrue(tracker.markSeen(1));
+        assertEquals(3, tracker.getWatermark());
+    }
+
+    @Test
+    public void rejectsDuplicates() {
+        SequenceTracker tracker = new SequenceTracker();
+        tracker.markSeen(0);
+        tracker.markSeen(5);
+        assertFalse(tracker.markSeen(0)); // 不超过watermark
+        assertFalse(tracker.markSeen(5)); // 在watermark之后已收到
+        assertEquals(0, tracker.getWatermark());
+    }
+
+    @Test
+    public void resumeKeepsReceivedSequences() {
+        SequenceTracker tracker = new SequenceTracker();
+        tracker.markSeen(0);
+        tracker.markSeen(1);
+        tracker.markSeen(4);
+
+        // 补发从2开始：已收到的不会重复接受
+        tracker.start(2, false);
+        assertEquals(1, tracker.getWatermark());
+        assertTrue(tracker.markSeen(2));
+        assertTrue(tracker.markSeen(3));
+        assertFalse(tracker.markSeen(4));
+        assertEquals(4, tracker.getWatermark());
+
+        // 起始序号早于watermark时不后退
+        tracker.start(1, false);
+        assertEquals(4, tracker.getWatermark());
+    }
+
+    @Test
+    public void resumeSkipsLostSequences() {
+        SequenceTracker tracker = new SequenceTracker();
+        tracker.markSeen(0);
+        tracker.markSeen(7);
+        tracker.markSeen(12);
+
+        // 只能补发从10开始的消息，此前的空缺不再等待
+        tracker.start(10, false);
+        assertEquals(9, tracker.getWatermark());
+        assertFalse(tracker.markSeen(7));
+        assertTrue(tracker.markSeen(10));
+        assertTrue(tracker.markSeen(11));
+        assertEquals(12, tracker.getWatermark());
+    }
+
+    @Test
+    public void newSessionDiscardsPreviousState() {
+        SequenceTracker tracker = new SequenceTracker();
+        tracker.markSeen(0);
+        tracker.markSeen(100);
+
+        tracker.start(50, true);
+        assertEquals(49, tracker.getWatermark());
+        assertTrue(tracker.markSeen(50));
+        assertEquals(50, tracker.getWatermark());
+        assertFalse(tracker.markSeen(100));
+        assertTrue(tracker.markSeen(51));
+        assertEquals(51, tracker.getWatermark());
+
+        // 新会话的起始序号可以早于之前的watermark
+        tracker.start(10, true);
+        assertEquals(9, tracker.getWatermark());
+        assertTrue(tracker.markSeen(10));
+    }
+
+    @Test
+    public void givesUpOnGapAfterTooManyPending() {
+        SequenceTracker tracker = new SequenceTracker();
+        tracker.start(0, true);
+        for (long sequence = 1; sequence <= 4096; sequence++) {
+            assertTrue(tracker.markSeen(sequence));
+        }
+        assertEquals(-1, tracker.getWatermark()); // 仍在等待0
+
+        assertTrue(tracker.markSeen(4097));
+        assertEquals(4097, tracker.getWatermark());
+        assertFalse(tracker.markSeen(0));
+    }
+}
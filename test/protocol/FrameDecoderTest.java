@@ -0,0 +1,197 @@
+package protocol;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * FrameDecoder的测试：数据在任意位置被截断、报头不完整或超长、控制消息的缓冲区归还
+ */
+public class FrameDecoderTest {
+    private static final int MAX_MESSAGE = 1024;
+    private static final int MAX_CONTROL = 512;
+    private static final int CONTROL_TYPE = -7;
+
+    private final BufferPool pool = new BufferPool();
+
+    @Test
+    public void decodesStreamSplitAtRandomPoints() throws ProtocolException {
+        Random random = new Random(42);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        List<byte[]> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            byte[] payload = new byte[random.nextInt(300)];
+            random.nextBytes(payload);
+            if (i % 3 == 0) {
+                byte[] frame = controlFrame(CONTROL_TYPE, payload);
+                stream.write(frame, 0, frame.length);
+            } else {
+                byte[] frame = chatFrame(payload);
+                stream.write(frame, 0, frame.length);
+            }
+            expected.add(payload);
+        }
+        stream.write(FrameCodec.toByte(FrameCodec.END_FRAME), 0, FrameCodec.HEAD_LENGTH);
+        byte[] bytes = stream.toByteArray();
+
+        for (int round = 0; round < 20; round++) {
+            FrameDecoder decoder = new FrameDecoder(MAX_MESSAGE, MAX_CONTROL, pool);
+            List<Frame> frames = new ArrayList<>();
+            int offset = 0;
+            while (offset < bytes.length) {
+                int length = Math.min(bytes.length - offset, 1 + random.nextInt(64));
+                ByteBuffer in = ByteBuffer.wrap(bytes, offset, length);
+                Frame frame;
+                while ((frame = decoder.decode(in)) != null) {
+                    frames.add(frame);
+                }
+                assertEquals(0, in.remaining());
+                offset += length;
+            }
+
+            assertEquals(expected.size() + 1, frames.size());
+            for (int i = 0; i < expected.size(); i++) {
+                Frame frame = frames.get(i);
+                byte[] payload = expected.get(i);
+                if (i % 3 == 0) {
+                    assertTrue(frame.isControl());
+                    assertEquals(CONTROL_TYPE, frame.getType());
+                    assertArrayEquals(payload, Arrays.copyOf(frame.getData(), frame.getLength()));
+                    frame.release();
+                } else {
+                    assertEquals(payload.length, frame.getType());
+                    assertArrayEquals(chatFrame(payload), frame.getData());
+                }
+            }
+            assertTrue(frames.get(expected.size()).isEnd());
+        }
+    }
+
+    @Test
+    public void waitsForTruncatedHeader() throws ProtocolException {
+        FrameDecoder decoder = new FrameDecoder(MAX_MESSAGE, MAX_CONTROL, pool);
+        byte[] frame = chatFrame(new byte[] {1, 2, 3});
+
+        assertNull(decoder.decode(ByteBuffer.wrap(frame, 0, 2)));
+        assertNull(decoder.decode(ByteBuffer.wrap(frame, 2, 1)));
+        Frame decoded = decoder.decode(ByteBuffer.wrap(frame, 3, frame.length - 3));
+        assertArrayEquals(frame, decoded.getData());
+    }
+
+    @Test
+    public void decodesEmptyMessages() throws ProtocolException {
+        FrameDecoder decoder = new FrameDecoder(MAX_MESSAGE, MAX_CONTROL, pool);
+        ByteBuffer in = ByteBuffer.allocate(4 * FrameCodec.HEAD_LENGTH);
+        in.putInt(0).putInt(CONTROL_TYPE).putInt(0).putInt(FrameCodec.END_FRAME).flip();
+
+        Frame chat = decoder.decode(in);
+        assertEquals(0, chat.getType());
+        assertEquals(FrameCodec.HEAD_LENGTH, chat.getLength());
+        Frame control = decoder.decode(in);
+        assertEquals(CONTROL_TYPE, control.getType());
+        assertEquals(0, control.getLength());
+        control.release();
+        assertTrue(decoder.decode(in).isEnd());
+    }
+
+    @Test
+    public void keepsCompressedFlagInHeader() throws ProtocolException {
+        FrameDecoder decoder = new FrameDecoder(MAX_MESSAGE, MAX_CONTROL, pool);
+        byte[] frame = chatFrame(new byte[10]);
+        FrameCodec.putInt(frame, 0, 10 | FrameCodec.COMPRESSED_FLAG);
+
+        Frame decoded = decoder.decode(ByteBuffer.wrap(frame));
+        assertTrue(decoded.isCompressed());
+        assertEquals(frame.length, decoded.getLength());
+        assertArrayEquals(frame, decoded.getData());
+    }
+
+    @Test
+    public void rejectsOversizedMessage() {
+        FrameDecoder decoder = new FrameDecoder(MAX_MESSAGE, MAX_CONTROL, pool);
+        assertRejected(decoder, FrameCodec.toByte(MAX_MESSAGE + 1));
+    }
+
+    @Test
+    public void rejectsOversizedControlFrame() throws ProtocolException {
+        FrameDecoder decoder = new FrameDecoder(MAX_MESSAGE, MAX_CONTROL, pool);
+        assertNull(decoder.decode(ByteBuffer.wrap(FrameCodec.toByte(CONTROL_TYPE))));
+        assertRejected(decoder, FrameCodec.toByte(MAX_CONTROL + 1));
+
+        decoder = new FrameDecoder(MAX_MESSAGE, MAX_CONTROL, pool);
+        assertNull(decoder.decode(ByteBuffer.wrap(FrameCodec.toByte(CONTROL_TYPE))));
+        assertRejected(decoder, FrameCodec.toByte(-5));
+    }
+
+    @Test
+    public void acceptsMessagesAtTheLimit() throws ProtocolException {
+        FrameDecoder decoder = new FrameDecoder(MAX_MESSAGE, MAX_CONTROL, pool);
+        Frame chat = decoder.decode(ByteBuffer.wrap(chatFrame(new byte[MAX_MESSAGE])));
+        assertEquals(MAX_MESSAGE, chat.getType());
+        Frame control = decoder.decode(ByteBuffer.wrap(controlFrame(CONTROL_TYPE, new byte[MAX_CONTROL])));
+        assertEquals(MAX_CONTROL, control.getLength());
+        control.release();
+    }
+
+    @Test
+    public void controlFrameDataReturnsToPool() throws ProtocolException {
+        FrameDecoder decoder = new FrameDecoder(MAX_MESSAGE, MAX_CONTROL, pool);
+        Frame frame = decoder.decode(ByteBuffer.wrap(controlFrame(CONTROL_TYPE, new byte[100])));
+        byte[] data = frame.getData();
+        frame.release();
+        frame.release(); // 可重复调用
+        assertSame(data, pool.acquire(100));
+    }
+
+    @Test
+    public void closeReleasesPartialControlBody() throws ProtocolException {
+        byte[] pooled = pool.acquire(100);
+        pool.release(pooled);
+
+        FrameDecoder decoder = new FrameDecoder(MAX_MESSAGE, MAX_CONTROL, pool);
+        byte[] frame = controlFrame(CONTROL_TYPE, new byte[100]);
+        assertNull(decoder.decode(ByteBuffer.wrap(frame, 0, frame.length - 1)));
+        decoder.close();
+        assertSame(pooled, pool.acquire(100));
+
+        // 关闭后可从头解码新的数据
+        Frame decoded = decoder.decode(ByteBuffer.wrap(chatFrame(new byte[] {9})));
+        assertEquals(1, decoded.getType());
+    }
+
+    private static void assertRejected(FrameDecoder decoder, byte[] data) {
+        try {
+            decoder.decode(ByteBuffer.wrap(data));
+            fail("应拒绝超出范围的长度");
+        } catch (ProtocolException e) {
+            // 预期的异常
+        }
+    }
+
+    private static byte[] chatFrame(byte[] payload) {
+        byte[] frame = new byte[FrameCodec.HEAD_LENGTH + payload.length];
+        FrameCodec.putInt(frame, 0, payload.length);
+        System.arraycopy(payload, 0, frame, FrameCodec.HEAD_LENGTH, payload.length);
+        return frame;
+    }
+
+    private static byte[] controlFrame(int type, byte[] payload) {
+        byte[] frame = new byte[2 * FrameCodec.HEAD_LENGTH + payload.length];
+        FrameCodec.putInt(frame, 0, type);
+        FrameCodec.putInt(frame, FrameCodec.HEAD_LENGTH, payload.length);
+        System.arraycopy(payload, 0, frame, 2 * FrameCodec.HEAD_LENGTH, payload.length);
+        return frame;
+    }
+}
@@ -0,0 +1,123 @@
+package server;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import protocol.FrameCodec;
+
+/**
+ * 多个发送者同时广播时，转发不经过全局锁，每秒转发的消息数应随发送者（处理器）的增加接近线性增长。
+ * 只有一个处理器时仍会测量并打印结果，但跳过断言
+ */
+public class BroadcastScalingTest {
+    private static final int FIRST_ID = 9000;
+    private static final int RECIPIENTS = 200; // 每条消息的接收者数，使转发本身占主要的耗时
+    private static final int MAX_SENDERS = 4;
+    private static final long MEASURE_MILLIS = 500; // 每一轮的测量时间
+    private static final int ROUNDS = 3; // 取几轮中最好的一轮，减少其它进程的干扰
+    private static final double MIN_EFFICIENCY = 0.6; // N个发送者的吞吐量至少为一个发送者的0.6N倍
+
+    // 丢弃所有数据的输出流，代替用户的连接
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private UserSupervision userManager;
+    private final byte[] frame = FrameCodec.encodeMessage("大家好，这是一条用于测量转发吞吐量的群聊消息");
+
+    @Before
+    public void setUp() throws Exception {
+        ServerConfig config = new ServerConfig()
+                .setChatLogFile(folder.newFile("Content.txt").getPath())
+                .setHistoryDirectory(folder.newFolder("history").getPath())
+                .setHistorySegmentBytes(16 * 1024 * 1024)
+                .setSearchIndexDirectory("")
+                .setLogDurability(LogDurability.NONE)
+                .setIdRange(FIRST_ID, FIRST_ID + RECIPIENTS - 1)
+                .setMaxUsers(RECIPIENTS)
+                .setPresenceIntervalMillis(0)
+                .setMetricsReportSeconds(0);
+        userManager = new UserSupervision(config);
+        for (int i = 0; i < RECIPIENTS; i++) {
+            assertTrue(userManager.addUser(FIRST_ID + i, new Socket(), NULL_OUTPUT));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        userManager.close();
+    }
+
+    @Test(timeout = 60000)
+    public void broadcastScalesWithSenders() throws InterruptedException {
+        int senders = Math.min(MAX_SENDERS, Runtime.getRuntime().availableProcessors());
+        throughput(1); // 预热
+        double single = throughput(1);
+        double multi = throughput(senders);
+        double efficiency = multi / (single * senders);
+        System.out.printf("1个发送者：%.0f条/秒；%d个发送者：%.0f条/秒，扩展效率%.2f%n",
+                single, senders, multi, efficiency);
+
+        assumeTrue("只有一个处理器，无法测量扩展性", senders > 1);
+        assertTrue(senders + "个发送者的扩展效率只有" + efficiency, efficiency >= MIN_EFFICIENCY);
+    }
+
+    // 若干个发送者同时不停地广播，返回几轮中最高的每秒转发消息数
+    private double throughput(int senders) throws InterruptedException {
+        double best = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            LongAdder sent = new LongAdder();
+            AtomicBoolean running = new AtomicBoolean(true);
+            CountDownLatch start = new CountDownLatch(1);
+            Thread[] threads = new Thread[senders];
+            for (int i = 0; i < senders; i++) {
+                int senderId = FIRST_ID + i;
+                threads[i] = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    while (running.get()) {
+                        userManager.relayMessage(senderId, frame);
+                        sent.increment();
+                    }
+                });
+                threads[i].start();
+            }
+
+            long begin = System.nanoTime();
+            start.countDown();
+            Thread.sleep(MEASURE_MILLIS);
+            running.set(false);
+            long count = sent.sum();
+            long elapsed = System.nanoTime() - begin;
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            best = Math.max(best, count * (double) TimeUnit.SECONDS.toNanos(1) / elapsed);
+        }
+        return best;
+    }
+}
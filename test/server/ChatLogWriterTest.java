@@ -0,0 +1,39 @@
+package server;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * ChatLogWriter的测试：INTERVAL方式下持续有消息、写线程从不空闲时，仍按间隔落盘
+ */
+public class ChatLogWriterTest {
+    private static final long SYNC_INTERVAL_MILLIS = 50;
+    private static final long LOAD_MILLIS = 1000;
+    private static final int MIN_SYNCS = 5; // 每次落盘本身也要耗时，只要求明显多于空闲时才落盘的0次
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void intervalSyncsUnderSustainedLoad() throws IOException {
+        ServerMetrics metrics = new ServerMetrics();
+        ChatLogWriter writer = new ChatLogWriter(folder.newFile("Content.txt"), null, LogDurability.INTERVAL,
+                SYNC_INTERVAL_MILLIS, metrics);
+        byte[] frame = new byte[2048];
+        try {
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LOAD_MILLIS);
+            while (System.nanoTime() < end) {
+                writer.append(9000, frame);
+            }
+            long syncs = metrics.getChatLogSyncLatency().getCount();
+            assertTrue("持续写入" + LOAD_MILLIS + "ms只落盘了" + syncs + "次", syncs >= MIN_SYNCS);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import client.Client;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 在本机启动一个集群中继和两个服务终端节点，两个节点上的用户同时发送群聊消息：
+ * 每个节点上的接收者都应按每个发送者的顺序收到两个节点的全部消息，消息不会发回来源节点，两个节点分配的账号不重叠
+ */
+public class ClusterTest {
+    private static final int NODES = 2;
+    private static final int SENDERS_PER_NODE = 4;
+    private static final int MESSAGES = 200; // 每个发送者发送的消息数
+    private static final int TOTAL = NODES * SENDERS_PER_NODE * MESSAGES; // 每个接收者应收到的消息数
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ClusterRelay relay;
+    private final ServerConfig[] configs = new ServerConfig[NODES];
+    private final TerminalServer[] servers = new TerminalServer[NODES];
+    private final List<Thread> threads = new ArrayList<>();
+    private final List<Client> clients = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        for (Client client : clients) {
+            client.endCommunication();
+        }
+        for (TerminalServer server : servers) {
+            if (server != null) {
+                server.close();
+            }
+        }
+        if (relay != null) {
+            relay.close();
+        }
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void relaysAcrossNodesInOrderWithoutEcho() throws Exception {
+        int relayPort = freePort();
+        relay = new ClusterRelay(relayPort, new ServerConfig().getMaxMessageBytes());
+        start(relay::startRunning, "cluster-relay");
+        int[] ports = new int[NODES];
+        for (int node = 0; node < NODES; node++) {
+            ports[node] = startNode(node, relayPort);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (relay.connectedNodes() < NODES) {
+            assertTrue("节点未能连接到中继", System.nanoTime() < deadline);
+            Thread.sleep(20);
+        }
+
+        // 每个节点一个接收者，它们也用来确认两个方向的集群连接都已可用
+        Client[] receivers = new Client[NODES];
+        for (int node = 0; node < NODES; node++) {
+            receivers[node] = connect(node, ports[node]);
+        }
+        awaitLink(servers[0], receivers[0], receivers[1]);
+        awaitLink(servers[1], receivers[1], receivers[0]);
+
+        List<Client> senders = new ArrayList<>();
+        for (int node = 0; node < NODES; node++) {
+            for (int i = 0; i < SENDERS_PER_NODE; i++) {
+                Client sender = connect(node, ports[node]);
+                senders.add(sender);
+                // 发送者也会收到其它人的消息，需要读走，以免发送队列积压
+                start(() -> {
+                    while (!sender.startReceiveMessage().isEmpty()) {
+                        // 丢弃
+                    }
+                }, "cluster-drain");
+            }
+        }
+        assertDisjointIds();
+
+        long[] receivedBefore = new long[NODES];
+        for (int node = 0; node < NODES; node++) {
+            receivedBefore[node] = servers[node].getMetrics().getClusterReceived();
+        }
+        CountDownLatch go = new CountDownLatch(1);
+        for (int i = 0; i < senders.size(); i++) {
+            Client sender = senders.get(i);
+            int index = i;
+            start(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int k = 0; k < MESSAGES; k++) {
+                    sender.sendMessage(index + ":" + k);
+                }
+            }, "cluster-sender");
+        }
+        go.countDown();
+
+        for (int node = 0; node < NODES; node++) {
+            int[] next = new int[senders.size()]; // 每个发送者下一条应收到的消息编号，重复（回流）或乱序都会不符
+            for (int received = 0; received < TOTAL; received++) {
+                String message = receivers[node].startReceiveMessage();
+                int separator = message.indexOf(':');
+                assertTrue("意外的消息：" + message, separator > 0);
+                int index = Integer.parseInt(message.substring(0, separator));
+                int number = Integer.parseInt(message.substring(separator + 1));
+                assertEquals("节点" + node + "上发送者" + index + "的消息乱序、重复或丢失", next[index], number);
+                next[index]++;
+            }
+        }
+
+        // 每个节点只收到另一个节点的消息，自己发出的消息没有经中继发回
+        for (int node = 0; node < NODES; node++) {
+            assertEquals(SENDERS_PER_NODE * MESSAGES,
+                    servers[node].getMetrics().getClusterReceived() - receivedBefore[node]);
+            assertEquals(0, servers[node].getMetrics().getClusterDropped());
+        }
+    }
+
+    // 连接建立之前发往其它节点的消息会被丢弃，重复发送探测消息，直到一条被发出并由另一个节点的接收者收到
+    private static void awaitLink(TerminalServer server, Client sender, Client receiver) throws InterruptedException {
+        ServerMetrics metrics = server.getMetrics();
+        for (int attempt = 0; ; attempt++) {
+            long published = metrics.getClusterPublished();
+            long dropped = metrics.getClusterDropped();
+            String probe = "probe-" + attempt;
+            sender.sendMessage(probe);
+            while (metrics.getClusterPublished() == published && metrics.getClusterDropped() == dropped) {
+                Thread.sleep(5);
+            }
+            if (metrics.getClusterPublished() > published) {
+                assertEquals(probe, receiver.startReceiveMessage());
+                return;
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    // 每个节点只分配自己那一段中的账号
+    private void assertDisjointIds() {
+        Set<Integer> ids = new HashSet<>();
+        for (Client client : clients) {
+            assertTrue("账号" + client.getUserId() + "重复", ids.add(client.getUserId()));
+        }
+    }
+
+    private int startNode(int node, int relayPort) throws IOException {
+        int port = freePort();
+        configs[node] = new ServerConfig()
+                .setPort(port)
+                .setCluster(node, NODES)
+                .setRelay("localhost", relayPort)
+                .setChatLogFile(folder.newFile("Content-" + node + ".txt").getPath())
+                .setHistoryDirectory(folder.newFolder("history-" + node).getPath())
+                .setHistorySegmentBytes(1024 * 1024)
+                .setSearchIndexDirectory("")
+                .setOutboundQueueCapacity(TOTAL) // 只测转发和顺序，不让接收较慢时丢弃消息
+                .setMetricsReportSeconds(0);
+        servers[node] = new TerminalServer(configs[node]);
+        start(servers[node]::startRunning, "cluster-node-" + node);
+        return port;
+    }
+
+    private Client connect(int node, int port) {
+        Client client = new Client("localhost", port);
+        client.applyId(0);
+        int id = client.getApplyIdResult();
+        assertTrue("节点" + node + "分配了范围外的账号" + id,
+                id >= configs[node].getNodeMinId() && id <= configs[node].getNodeMaxId());
+        clients.add(client);
+        return client;
+    }
+
+    private void start(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        threads.add(thread);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
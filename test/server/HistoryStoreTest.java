@@ -0,0 +1,60 @@
+package server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * HistoryStore的测试：一个段放不下的消息不被截断，只占用编号，读取和重新打开后都跳过它
+ */
+public class HistoryStoreTest {
+    private static final int SEGMENT_BYTES = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void skipsOversizedMessageWithoutTruncating() throws IOException {
+        File directory = folder.newFolder("history");
+        HistoryStore store = new HistoryStore(directory, SEGMENT_BYTES);
+        byte[] small = "hello".getBytes("UTF-8");
+        byte[] oversized = new byte[store.maxMessageBytes() + 1];
+
+        assertEquals(0, store.append(9000, 1L, small, 0, small.length));
+        assertEquals(1, store.append(9001, 2L, oversized, 0, oversized.length));
+        assertEquals(2, store.append(9002, 3L, small, 0, small.length));
+        assertReadsAroundOmitted(store, small);
+
+        // 重新打开后编号接着占位记录之后，仍然跳过它
+        HistoryStore reopened = new HistoryStore(directory, SEGMENT_BYTES);
+        assertEquals(3, reopened.nextId());
+        assertReadsAroundOmitted(reopened, small);
+    }
+
+    @Test
+    public void keepsMessageThatExactlyFills() throws IOException {
+        HistoryStore store = new HistoryStore(folder.newFolder("history"), SEGMENT_BYTES);
+        byte[] full = new byte[store.maxMessageBytes()];
+        full[full.length - 1] = 7;
+
+        store.append(9000, 1L, full, 0, full.length);
+        List<HistoryRecord> records = store.read(0, 10);
+        assertEquals(1, records.size());
+        assertArrayEquals(full, records.get(0).getMessage());
+    }
+
+    private static void assertReadsAroundOmitted(HistoryStore store, byte[] small) {
+        List<HistoryRecord> records = store.read(0, 10);
+        assertEquals(2, records.size());
+        assertEquals(0, records.get(0).getId());
+        assertEquals(2, records.get(1).getId());
+        assertArrayEquals(small, records.get(1).getMessage());
+        assertEquals(0, store.read(1, 1).size());
+    }
+}
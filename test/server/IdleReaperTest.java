@@ -0,0 +1,179 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * IdleReaper的测试：空闲的用户先收到心跳，之后仍没有数据时到期断开；持续活跃或回复了心跳的用户不会断开。
+ * 大量连接都已无人收发、定时器还未到期时，后台线程占用的CPU时间与没有连接时相当
+ */
+public class IdleReaperTest {
+    private static final long INTERVAL_MILLIS = 300;
+    private static final long TIMEOUT_MILLIS = 300;
+    private static final int ABANDONED_USERS = 50000;
+    private static final long CPU_MEASURE_MILLIS = 2000;
+    private static final long MAX_EXTRA_CPU_MILLIS = 50; // 测量期间有大量定时器时允许多占用的CPU时间
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private RecordingSupervision userManager;
+    private IdleReaper reaper;
+
+    @Before
+    public void setUp() throws IOException {
+        ServerConfig config = new ServerConfig()
+                .setChatLogFile(folder.newFile("Content.txt").getPath())
+                .setHistoryDirectory(folder.newFolder("history").getPath())
+                .setHistorySegmentBytes(64 * 1024)
+                .setSearchIndexDirectory("")
+                .setHeartbeat(0, 1000)
+                .setPresenceIntervalMillis(0)
+                .setMetricsReportSeconds(0);
+        userManager = new RecordingSupervision(config);
+        reaper = new IdleReaper(userManager, INTERVAL_MILLIS, TIMEOUT_MILLIS);
+    }
+
+    @After
+    public void tearDown() {
+        reaper.close();
+        userManager.close();
+    }
+
+    @Test
+    public void pingsThenExpiresIdleUser() throws InterruptedException {
+        UserSession session = session(9000);
+        long start = System.nanoTime();
+        reaper.add(session);
+
+        assertSame(session, userManager.pinged.poll(5, TimeUnit.SECONDS));
+        long pingedAt = System.nanoTime();
+        assertTrue(pingedAt - start >= TimeUnit.MILLISECONDS.toNanos(INTERVAL_MILLIS - 100));
+
+        assertSame(session, userManager.expired.poll(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - pingedAt >= TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS - 100));
+        assertTrue(userManager.pinged.isEmpty());
+    }
+
+    @Test
+    public void keepsActiveUser() throws InterruptedException {
+        UserSession session = session(9000);
+        reaper.add(session);
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(3 * (INTERVAL_MILLIS + TIMEOUT_MILLIS));
+        while (System.nanoTime() < end) {
+            session.markActive(reaper.currentTick());
+            Thread.sleep(20);
+        }
+        assertTrue(userManager.pinged.isEmpty());
+        assertTrue(userManager.expired.isEmpty());
+    }
+
+    @Test
+    public void keepsUserThatAnswersPing() throws InterruptedException {
+        UserSession session = session(9000);
+        reaper.add(session);
+
+        assertSame(session, userManager.pinged.poll(5, TimeUnit.SECONDS));
+        session.markActive(reaper.currentTick()); // 回复心跳
+
+        // 回复之后重新计时，再次空闲时先发心跳，不会直接断开
+        assertSame(session, userManager.pinged.poll(5, TimeUnit.SECONDS));
+        assertTrue(userManager.expired.isEmpty());
+        assertSame(session, userManager.expired.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void dropsClosedUser() throws InterruptedException, IOException {
+        UserSession closed = session(9000);
+        UserSession idle = session(9001);
+        reaper.add(closed);
+        reaper.add(idle);
+        closed.close();
+
+        assertSame(idle, userManager.pinged.poll(5, TimeUnit.SECONDS));
+        assertSame(idle, userManager.expired.poll(5, TimeUnit.SECONDS));
+        assertTrue(userManager.pinged.isEmpty());
+        assertTrue(userManager.expired.isEmpty());
+    }
+
+    @Test
+    public void handlesManyUsers() throws InterruptedException {
+        int count = 2000;
+        for (int i = 0; i < count; i++) {
+            reaper.add(session(9000 + i));
+        }
+        for (int i = 0; i < count; i++) {
+            assertFalse(userManager.expired.poll(5, TimeUnit.SECONDS) == null);
+        }
+        assertEquals(count, userManager.pinged.size()); // 每个用户断开前都先收到一次心跳
+    }
+
+    @Test
+    public void idleCpuStaysFlatWithManyAbandonedUsers() throws InterruptedException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue("不支持测量线程的CPU时间", threads.isThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled());
+        reaper.close();
+        // 心跳间隔远长于测量时间，测量期间定时器都不会到期
+        reaper = new IdleReaper(userManager, TimeUnit.HOURS.toMillis(1), TIMEOUT_MILLIS);
+
+        long empty = cpuMillis(threads, reaper.getThreadId());
+        for (int i = 0; i < ABANDONED_USERS; i++) {
+            reaper.add(session(9000 + i % 1000));
+        }
+        Thread.sleep(500); // 等后台线程把新的定时器放入槽中
+        long loaded = cpuMillis(threads, reaper.getThreadId());
+
+        System.out.println("后台线程" + CPU_MEASURE_MILLIS + "ms内的CPU时间：没有连接" + empty + "ms，"
+                + ABANDONED_USERS + "个空闲连接" + loaded + "ms");
+        assertTrue(ABANDONED_USERS + "个空闲连接时占用了" + loaded + "ms", loaded <= empty + MAX_EXTRA_CPU_MILLIS);
+        assertTrue(userManager.pinged.isEmpty());
+    }
+
+    // 后台线程在CPU_MEASURE_MILLIS内占用的CPU时间（毫秒）
+    private static long cpuMillis(ThreadMXBean threads, long threadId) throws InterruptedException {
+        long start = threads.getThreadCpuTime(threadId);
+        Thread.sleep(CPU_MEASURE_MILLIS);
+        return TimeUnit.NANOSECONDS.toMillis(threads.getThreadCpuTime(threadId) - start);
+    }
+
+    private static UserSession session(int id) {
+        return new UserSession(id, new Socket(), new ByteArrayOutputStream(), Runnable::run, OverflowPolicy.DROP_OLDEST, 16);
+    }
+
+    // 只记录心跳和到期的用户，不实际发送和断开
+    private static class RecordingSupervision extends UserSupervision {
+        final BlockingQueue<UserSession> pinged = new LinkedBlockingQueue<>();
+        final BlockingQueue<UserSession> expired = new LinkedBlockingQueue<>();
+
+        RecordingSupervision(ServerConfig config) {
+            super(config);
+        }
+
+        @Override
+        void pingIdleUser(UserSession session) {
+            pinged.add(session);
+        }
+
+        @Override
+        void expireIdleUser(UserSession session) {
+            expired.add(session);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import client.Client;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 在本机启动服务终端，多个客户端同时发送群聊消息，另一个客户端应按每个发送者的顺序收到全部消息。
+ * 阻塞模式和非阻塞模式各测一次。
+ * 另外逐步增加在线的连接数：阻塞模式每个连接占用一个线程，非阻塞模式的线程数不随连接数增长，且群聊消息仍能及时送达
+ */
+public class LoopbackTest {
+    private static final int SENDERS = 8;
+    private static final int MESSAGES = 500; // 每个发送者发送的消息数
+    private static final int[] CONNECTION_STEPS = {100, 300, 900}; // 逐步增加到的连接数
+    private static final int NIO_MAX_EXTRA_THREADS = 64; // 非阻塞模式下连接增加时允许新增的线程数，与连接数无关
+    private static final long MAX_ROUND_TRIP_MILLIS = 5000; // 每一步中一条群聊消息送达的最长时间
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TerminalServer server;
+    private Thread serverThread;
+    private final List<Client> clients = new ArrayList<>();
+    private final List<Socket> idleSockets = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        for (Client client : clients) {
+            client.endCommunication();
+        }
+        for (Socket socket : idleSockets) {
+            socket.close();
+        }
+        if (server != null) {
+            server.close();
+            serverThread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void threadPoolModeDeliversAllMessagesInOrder() throws Exception {
+        relayFromManySenders(ServerMode.THREAD_POOL);
+    }
+
+    @Test(timeout = 60000)
+    public void nioModeDeliversAllMessagesInOrder() throws Exception {
+        relayFromManySenders(ServerMode.NIO);
+    }
+
+    @Test(timeout = 120000)
+    public void threadPoolModeNeedsAThreadPerConnection() throws Exception {
+        int[] extraThreads = sweepConnections(ServerMode.THREAD_POOL);
+        for (int i = 0; i < CONNECTION_STEPS.length; i++) {
+            assertTrue("线程池模式" + CONNECTION_STEPS[i] + "个连接只新增了" + extraThreads[i] + "个线程",
+                    extraThreads[i] >= CONNECTION_STEPS[i]);
+        }
+    }
+
+    @Test(timeout = 120000)
+    public void nioModeThreadsStayFlatAsConnectionsGrow() throws Exception {
+        int[] extraThreads = sweepConnections(ServerMode.NIO);
+        for (int i = 0; i < CONNECTION_STEPS.length; i++) {
+            assertTrue("非阻塞模式" + CONNECTION_STEPS[i] + "个连接新增了" + extraThreads[i] + "个线程",
+                    extraThreads[i] <= NIO_MAX_EXTRA_THREADS);
+        }
+    }
+
+    private void relayFromManySenders(ServerMode mode) throws Exception {
+        int port = startServer(mode, SENDERS * MESSAGES); // 只测转发和顺序，不让接收较慢时丢弃消息
+
+        Client receiver = connect(port);
+
+        List<Client> senders = new ArrayList<>();
+        for (int i = 0; i < SENDERS; i++) {
+            Client sender = connect(port);
+            senders.add(sender);
+            // 发送者也会收到其它人的消息，需要读走，以免发送队列积压
+            Thread drain = new Thread(() -> {
+                while (!sender.startReceiveMessage().isEmpty()) {
+                    // 丢弃
+                }
+            });
+            drain.setDaemon(true);
+            drain.start();
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i < SENDERS; i++) {
+            Client sender = senders.get(i);
+            int index = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int k = 0; k < MESSAGES; k++) {
+                    sender.sendMessage(index + ":" + k);
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        start.countDown();
+
+        int[] next = new int[SENDERS]; // 每个发送者下一条应收到的消息编号
+        for (int received = 0; received < SENDERS * MESSAGES; received++) {
+            String message = receiver.startReceiveMessage();
+            int separator = message.indexOf(':');
+            assertTrue("意外的消息：" + message, separator > 0);
+            int index = Integer.parseInt(message.substring(0, separator));
+            int number = Integer.parseInt(message.substring(separator + 1));
+            assertEquals(mode + " 发送者" + index + "的消息乱序或丢失", next[index], number);
+            next[index]++;
+        }
+        for (int i = 0; i < SENDERS; i++) {
+            assertEquals(MESSAGES, next[i]);
+        }
+    }
+
+    // 逐步增加只登录不收发的连接，每一步记录服务终端新增的线程数并检查群聊消息仍能送达，返回各步新增的线程数
+    private int[] sweepConnections(ServerMode mode) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int port = startServer(mode, 16);
+        Client receiver = connect(port);
+        Client sender = connect(port);
+        roundTrip(sender, receiver, "warm-up");
+        int baseline = threads.getThreadCount();
+
+        int[] extraThreads = new int[CONNECTION_STEPS.length];
+        for (int i = 0; i < CONNECTION_STEPS.length; i++) {
+            while (idleSockets.size() < CONNECTION_STEPS[i]) {
+                idleSockets.add(login(port));
+            }
+            long millis = roundTrip(sender, receiver, "step-" + i);
+            extraThreads[i] = threads.getThreadCount() - baseline;
+            System.out.println(mode + " " + CONNECTION_STEPS[i] + "个连接：新增线程" + extraThreads[i]
+                    + "个，群聊消息送达" + millis + "ms");
+            assertTrue(mode + " " + CONNECTION_STEPS[i] + "个连接时群聊消息" + millis + "ms才送达",
+                    millis <= MAX_ROUND_TRIP_MILLIS);
+        }
+        return extraThreads;
+    }
+
+    // 发送一条群聊消息，等待接收者收到，返回所用的毫秒数
+    private static long roundTrip(Client sender, Client receiver, String message) {
+        long start = System.nanoTime();
+        sender.sendMessage(message);
+        assertEquals(message, receiver.startReceiveMessage());
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private int startServer(ServerMode mode, int outboundQueueCapacity) throws IOException {
+        int port = freePort();
+        ServerConfig config = new ServerConfig()
+                .setMode(mode)
+                .setPort(port)
+                .setChatLogFile(folder.newFile("Content.txt").getPath())
+                .setHistoryDirectory(folder.newFolder("history").getPath())
+                .setHistorySegmentBytes(1024 * 1024)
+                .setSearchIndexDirectory("")
+                .setOutboundQueueCapacity(outboundQueueCapacity)
+                .setMetricsReportSeconds(0);
+        server = new TerminalServer(config);
+        serverThread = new Thread(server::startRunning, "loopback-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        return port;
+    }
+
+    private Client connect(int port) {
+        Client client = new Client("localhost", port);
+        client.applyId(0);
+        assertTrue(client.getApplyIdResult() > 3);
+        clients.add(client);
+        return client;
+    }
+
+    // 不经过Client直接申请账号，不启动任何客户端线程，之后不再读写
+    private static Socket login(int port) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        new DataOutputStream(socket.getOutputStream()).writeInt(0);
+        int result = new DataInputStream(socket.getInputStream()).readInt();
+        assertTrue("申请账号失败：" + result, result > 3);
+        return socket;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
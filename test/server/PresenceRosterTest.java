@@ -0,0 +1,131 @@
+package server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import protocol.FrameCodec;
+
+/**
+ * PresenceRoster的测试：新订阅的用户先收到完整名单再收到之后的变化；
+ * 同一间隔内下线又上线的账号不产生变化，其余变化合并为一条，合并后的名单仍从小到大排列
+ */
+public class PresenceRosterTest {
+    private static final long INTERVAL_MILLIS = 500; // 足够长，测试中紧接着做出的变化都落在同一间隔内
+
+    private final SessionTable table = new SessionTable(9000, 9999);
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final PresenceRoster roster = new PresenceRoster(table, INTERVAL_MILLIS, metrics);
+
+    @After
+    public void tearDown() {
+        roster.close();
+    }
+
+    @Test
+    public void coalescesChangesWithinAnInterval() throws InterruptedException {
+        ByteArrayOutputStream first = join(9000);
+        join(9005);
+        join(9010);
+        // 后台线程处理完这三个变化之后再订阅，名单中才一定有这三个账号
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (metrics.getPresenceChanges() < 3) {
+            assertTrue("在线名单未能处理变化", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+        roster.subscribe(table.get(9000));
+        List<ByteBuffer> frames = awaitFrames(first, 1);
+        assertRoster(frames.get(0), 9000, 9005, 9010);
+
+        // 同一间隔内：9005下线又上线，9010下线，9003和9020上线
+        table.remove(9005);
+        roster.onChange(9005);
+        join(9005);
+        join(9020);
+        leave(9010);
+        join(9003);
+        frames = awaitFrames(first, 2);
+        assertPresence(frames.get(1), new int[] {9003, 9020}, new int[] {9010});
+
+        // 新订阅的用户只收到合并后的完整名单，它自己上线的变化只发给已收到名单的用户
+        ByteArrayOutputStream second = join(9030);
+        roster.subscribe(table.get(9030));
+        frames = awaitFrames(second, 1);
+        assertRoster(frames.get(0), 9000, 9003, 9005, 9020, 9030);
+        frames = awaitFrames(first, 3);
+        assertPresence(frames.get(2), new int[] {9030}, new int[0]);
+
+        // 之后的变化两个订阅者都能收到
+        leave(9003);
+        assertPresence(awaitFrames(second, 2).get(1), new int[0], new int[] {9003});
+        assertEquals(4, awaitFrames(first, 4).size());
+    }
+
+    // 与UserSupervision加入用户时相同：先放入用户表，再记下变化
+    private ByteArrayOutputStream join(int id) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        table.put(new UserSession(id, null, out, Runnable::run, OverflowPolicy.DROP_OLDEST, 16));
+        roster.onChange(id);
+        return out;
+    }
+
+    private void leave(int id) {
+        table.remove(id);
+        roster.onChange(id);
+    }
+
+    private static void assertRoster(ByteBuffer frame, int... ids) {
+        assertEquals(FrameCodec.ROSTER_FRAME, frame.getInt());
+        frame.getInt();
+        int count = frame.getInt();
+        assertArrayEquals(ids, FrameCodec.decodeIds(frame, count));
+        assertEquals(0, frame.remaining());
+    }
+
+    private static void assertPresence(ByteBuffer frame, int[] joined, int[] left) {
+        assertEquals(FrameCodec.PRESENCE_FRAME, frame.getInt());
+        frame.getInt();
+        int joinedCount = frame.getInt();
+        int leftCount = frame.getInt();
+        assertArrayEquals(joined, FrameCodec.decodeIds(frame, joinedCount));
+        assertArrayEquals(left, FrameCodec.decodeIds(frame, leftCount));
+        assertEquals(0, frame.remaining());
+    }
+
+    // 等待用户收到至少count条消息，按顺序返回收到的全部消息，每条从报头开始；多收到消息时测试失败
+    private static List<ByteBuffer> awaitFrames(ByteArrayOutputStream out, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (true) {
+            List<ByteBuffer> frames = split(out.toByteArray());
+            if (frames.size() >= count) {
+                assertEquals("收到了多余的消息", count, frames.size());
+                return frames;
+            }
+            assertTrue("未能在时限内收到" + count + "条消息", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static List<ByteBuffer> split(byte[] data) {
+        List<ByteBuffer> frames = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.remaining() >= 8) {
+            int length = buffer.getInt(buffer.position() + 4);
+            if (buffer.remaining() < 8 + length) {
+                break;
+            }
+            ByteBuffer frame = buffer.slice();
+            frame.limit(8 + length);
+            frames.add(frame);
+            buffer.position(buffer.position() + 8 + length);
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,161 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * SearchIndex的测试：段和增量中的结果从新到旧合并，按nextBeforeId分页，
+ * 较长的中文片段由原文核对；重新打开时丢弃损坏或不连续的段，之后由历史记录重建
+ */
+public class SearchIndexTest {
+    private static final int SEGMENT_BYTES = 64 * 1024;
+    private static final int FLUSH_MESSAGES = 4; // 分三次追加的10条消息写成两个段，最后两条留在增量中
+    private static final int NO_FLUSH = 1000; // 重新打开后不再写新的段，目录中只剩下保留的段
+    private static final String[] MESSAGES = {
+            "欢迎来到聊天室", "hello world", "聊天 天室", "今天天气不错", "聊天室开放了",
+            "Hello again", "聊", "聊天室很热闹", "bye", "最后一条聊天室消息"
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HistoryStore store;
+    private File indexDirectory;
+    private final List<SearchIndex> indexes = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        store = new HistoryStore(folder.newFolder("history"), SEGMENT_BYTES);
+        indexDirectory = new File(folder.getRoot(), "index");
+    }
+
+    @After
+    public void tearDown() {
+        for (SearchIndex index : indexes) {
+            index.close();
+        }
+    }
+
+    @Test
+    public void mergesSegmentsAndDeltaNewestFirst() throws IOException, InterruptedException {
+        SearchIndex index = build();
+        assertEquals(2, segmentFiles().length);
+
+        // 8、9在增量中，0、4、7在段中；2只含二元词项“聊天”“天室”，由原文核对排除
+        assertEquals(Arrays.asList(9L, 7L, 4L, 0L), ids(index.search("聊天室", Long.MAX_VALUE, 10)));
+        assertEquals(Arrays.asList(9L, 7L, 6L, 4L, 2L, 0L), ids(index.search("聊", Long.MAX_VALUE, 10)));
+        assertEquals(Arrays.asList(5L, 1L), ids(index.search("HELLO", Long.MAX_VALUE, 10)));
+        assertEquals(Arrays.asList(1L), ids(index.search("hello world", Long.MAX_VALUE, 10)));
+        assertTrue(index.search("再见", Long.MAX_VALUE, 10).records.isEmpty());
+    }
+
+    @Test
+    public void pagesWithNextBeforeId() throws IOException, InterruptedException {
+        SearchIndex index = build();
+        SearchIndex.Page first = index.search("聊", Long.MAX_VALUE, 4);
+        assertEquals(Arrays.asList(9L, 7L, 6L, 4L), ids(first));
+        assertEquals(4, first.nextBeforeId);
+
+        SearchIndex.Page second = index.search("聊", first.nextBeforeId, 4);
+        assertEquals(Arrays.asList(2L, 0L), ids(second));
+        assertEquals(-1, second.nextBeforeId);
+        assertTrue(second.snippets.get(0).contains("聊天"));
+    }
+
+    @Test
+    public void reopensValidSegments() throws IOException, InterruptedException {
+        build().close();
+        SearchIndex reopened = open(NO_FLUSH);
+        assertEquals(2, segmentFiles().length);
+        assertEquals(Arrays.asList(9L, 7L, 4L, 0L), ids(reopened.search("聊天室", Long.MAX_VALUE, 10)));
+    }
+
+    @Test
+    public void discardsCorruptSegmentAndRebuilds() throws IOException, InterruptedException {
+        build().close();
+        File[] files = segmentFiles();
+        try (RandomAccessFile file = new RandomAccessFile(files[1], "rw")) {
+            file.seek(file.length() - 4);
+            file.writeInt(0); // 改掉末尾的标记
+        }
+
+        SearchIndex reopened = open(NO_FLUSH);
+        assertEquals(Arrays.asList(files[0]), Arrays.asList(segmentFiles()));
+        assertEquals(Arrays.asList(9L, 7L, 4L, 0L), ids(reopened.search("聊天室", Long.MAX_VALUE, 10)));
+    }
+
+    @Test
+    public void discardsNonContiguousSegments() throws IOException, InterruptedException {
+        build().close();
+        File[] files = segmentFiles();
+        assertTrue(files[0].delete()); // 剩下的段不再从历史记录的第一条开始
+
+        SearchIndex reopened = open(NO_FLUSH);
+        assertEquals(0, segmentFiles().length);
+        assertEquals(Arrays.asList(9L, 7L, 4L, 0L), ids(reopened.search("聊天室", Long.MAX_VALUE, 10)));
+    }
+
+    // 索引线程一次读取所有新消息，分三次追加才能得到两个段和增量
+    private SearchIndex build() throws IOException, InterruptedException {
+        SearchIndex index = open(FLUSH_MESSAGES);
+        append(0, 4);
+        awaitIndexed(index, 1);
+        append(4, 8);
+        awaitIndexed(index, 2);
+        append(8, MESSAGES.length);
+        awaitIndexed(index, 2);
+        return index;
+    }
+
+    // 打开索引并等待已有的消息都可以查到
+    private SearchIndex open(int flushMessages) throws IOException, InterruptedException {
+        SearchIndex index = new SearchIndex(indexDirectory, store, flushMessages);
+        indexes.add(index);
+        awaitIndexed(index, -1);
+        return index;
+    }
+
+    private void append(int from, int to) {
+        for (int i = from; i < to; i++) {
+            byte[] message = MESSAGES[i].getBytes(StandardCharsets.UTF_8);
+            store.append(9000 + i, i, message, 0, message.length);
+        }
+    }
+
+    // 等待所有消息都已可以查到，segments不小于0时还等待段文件达到此数目
+    private void awaitIndexed(SearchIndex index, int segments) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (index.indexedId() < store.nextId() || (segments >= 0 && segmentFiles().length != segments)) {
+            assertTrue("索引未能跟上历史记录", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private File[] segmentFiles() {
+        File[] files = indexDirectory.listFiles((dir, name) -> name.endsWith(".sdx"));
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static List<Long> ids(SearchIndex.Page page) {
+        List<Long> ids = new ArrayList<>();
+        for (HistoryRecord record : page.records) {
+            ids.add(record.getId());
+        }
+        return ids;
+    }
+}
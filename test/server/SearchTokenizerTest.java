@@ -0,0 +1,53 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+/**
+ * SearchTokenizer的测试：英文按词切分并转为小写，中文按二元切分并保留单字，查询时只在需要时用原文核对
+ */
+public class SearchTokenizerTest {
+
+    @Test
+    public void splitsWordsAndCjkRuns() {
+        assertEquals(Arrays.asList("hello", "聊天室", "java8", "ok"), SearchTokenizer.split("Hello, 聊天室Java8 — OK!"));
+    }
+
+    @Test
+    public void indexesCjkBigramsAndSingleCharacters() {
+        Set<String> terms = new HashSet<>();
+        SearchTokenizer.indexTerms("聊天室 Hi", terms);
+        assertEquals(new HashSet<>(Arrays.asList("聊", "天", "室", "聊天", "天室", "hi")), terms);
+    }
+
+    @Test
+    public void queriesSingleCharacterOrBigrams() {
+        assertEquals(Collections.singletonList("天"), SearchTokenizer.queryTerms("天"));
+        assertEquals(Arrays.asList("聊天", "天室", "java"), SearchTokenizer.queryTerms("聊天室 JAVA 聊天"));
+        assertTrue(SearchTokenizer.queryTerms(" ，！").isEmpty());
+    }
+
+    @Test
+    public void verifiesOnlyLongCjkPhrases() {
+        // 两个字的片段本身就是一个二元词项，不需要核对原文
+        assertEquals(Collections.singletonList("聊天室"), SearchTokenizer.phrases("聊天 聊天室 chat"));
+    }
+
+    @Test
+    public void truncatesLongWords() {
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < SearchTokenizer.MAX_TERM_CHARS + 8; i++) {
+            word.append('a');
+        }
+        Set<String> terms = new HashSet<>();
+        SearchTokenizer.indexTerms(word.toString(), terms);
+        assertEquals(Collections.singleton(word.substring(0, SearchTokenizer.MAX_TERM_CHARS)), terms);
+        assertEquals(terms.iterator().next(), SearchTokenizer.queryTerms(word.toString()).get(0));
+    }
+}
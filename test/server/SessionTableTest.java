@@ -0,0 +1,115 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * SessionTable的测试：分配最小的空闲账号、移除后复用、保留账号和范围边界
+ */
+public class SessionTableTest {
+
+    @Test
+    public void allocatesSmallestFreeId() {
+        SessionTable table = new SessionTable(9000, 9999);
+        for (int i = 0; i < 200; i++) {
+            int id = table.findFreeId();
+            assertEquals(9000 + i, id);
+            table.put(session(id));
+        }
+        assertEquals(200, table.size());
+        assertEquals(200, table.snapshot().length);
+    }
+
+    @Test
+    public void reusesRemovedIds() {
+        SessionTable table = new SessionTable(9000, 9999);
+        fill(table, 300);
+
+        UserSession removed = table.get(9130);
+        assertSame(removed, table.remove(9130));
+        table.remove(9070);
+        assertNull(table.get(9070));
+        assertNull(table.remove(9070));
+        assertEquals(298, table.size());
+        assertFalse(Arrays.asList(table.snapshot()).contains(removed));
+
+        // 先复用较小的账号，之后接着分配
+        assertEquals(9070, table.findFreeId());
+        table.put(session(9070));
+        assertEquals(9130, table.findFreeId());
+        table.put(session(9130));
+        assertEquals(9300, table.findFreeId());
+    }
+
+    @Test
+    public void returnsMinusOneWhenFull() {
+        // 范围不是64的整数倍，多余的位不会被分配
+        SessionTable table = new SessionTable(1, 100);
+        fill(table, 100);
+        assertEquals(-1, table.findFreeId());
+
+        table.remove(64);
+        assertEquals(64, table.findFreeId());
+        table.put(session(64));
+        assertEquals(-1, table.findFreeId());
+    }
+
+    @Test
+    public void skipsReservedIds() {
+        SessionTable table = new SessionTable(0, 127);
+        table.reserve(0);
+        table.reserve(1);
+        assertEquals(2, table.findFreeId());
+        assertNull(table.get(0));
+
+        table.release(0);
+        assertEquals(0, table.findFreeId());
+
+        // 已有用户的账号不会因release而变为空闲
+        table.put(session(0));
+        table.release(0);
+        assertEquals(2, table.findFreeId());
+    }
+
+    @Test
+    public void allocatesAcrossPages() {
+        SessionTable table = new SessionTable(0, 20000);
+        fill(table, 10000);
+        assertTrue(table.inRange(20000));
+        assertFalse(table.inRange(20001));
+        assertNull(table.get(20001));
+
+        table.remove(5000);
+        assertEquals(5000, table.findFreeId());
+        table.put(session(5000));
+        assertEquals(10000, table.findFreeId());
+    }
+
+    @Test
+    public void clearFreesAllIds() {
+        SessionTable table = new SessionTable(9000, 9999);
+        fill(table, 100);
+        assertEquals(100, table.clear().length);
+        assertEquals(0, table.size());
+        assertEquals(0, table.snapshot().length);
+        assertNull(table.get(9050));
+        assertEquals(9000, table.findFreeId());
+    }
+
+    private static void fill(SessionTable table, int count) {
+        for (int i = 0; i < count; i++) {
+            table.put(session(table.findFreeId()));
+        }
+    }
+
+    private static UserSession session(int id) {
+        return new UserSession(id, null, new ByteArrayOutputStream(), Runnable::run, OverflowPolicy.DROP_OLDEST, 16);
+    }
+}
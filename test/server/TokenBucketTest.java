@@ -0,0 +1,94 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+/**
+ * TokenBucket的测试：连续取完桶中的令牌、按时间补充、空闲时最多补满，以及多个线程同时取令牌
+ */
+public class TokenBucketTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void allowsBurstThenRejects() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long now = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.tryAcquire(now));
+        }
+        assertEquals(SECOND / 10, bucket.tryAcquire(now));
+        assertEquals(SECOND / 10, bucket.tryAcquire(now)); // 被拒绝时不取走令牌
+    }
+
+    @Test
+    public void refillsOneTokenPerInterval() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long now = System.nanoTime();
+        drain(bucket, now);
+
+        long half = now + SECOND / 20;
+        assertEquals(SECOND / 20, bucket.tryAcquire(half));
+        long next = now + SECOND / 10;
+        assertEquals(0, bucket.tryAcquire(next));
+        assertTrue(bucket.tryAcquire(next) > 0);
+
+        // 两个间隔后补充两个
+        long later = next + 2 * SECOND / 10;
+        assertEquals(0, bucket.tryAcquire(later));
+        assertEquals(0, bucket.tryAcquire(later));
+        assertTrue(bucket.tryAcquire(later) > 0);
+    }
+
+    @Test
+    public void refillsAtMostBurstAfterIdle() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long now = System.nanoTime();
+        drain(bucket, now);
+
+        long later = now + 60 * SECOND;
+        assertEquals(5, drain(bucket, later));
+    }
+
+    @Test
+    public void concurrentAcquiresTakeExactlyBurst() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1, 1000);
+        long now = System.nanoTime();
+        AtomicInteger acquired = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int k = 0; k < 500; k++) {
+                    if (bucket.tryAcquire(now) == 0) {
+                        acquired.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1000, acquired.get());
+    }
+
+    // 取完当前时刻桶中的令牌，返回取到的个数
+    private static int drain(TokenBucket bucket, long now) {
+        int count = 0;
+        while (bucket.tryAcquire(now) == 0) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,135 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * UserSession在SPILL_TO_DISK策略下的测试：暂存文件达到上限时要求断开，关闭时和群聊结束时删除暂存文件。
+ * 另外写任务遇到意外的异常时关闭连接，不会留下永远不再执行的写任务
+ */
+public class UserSessionTest {
+    private static final int ID = 9042;
+    private static final byte[] FRAME = new byte[40]; // 暂存时连同长度占44个字节
+    private static final int SENDER_ID = 9043;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void rejectsFramesBeyondSpillLimit() throws IOException {
+        UserSession session = stalledSession(100);
+        assertTrue(session.send(FRAME)); // 放入发送队列
+        assertTrue(session.send(FRAME)); // 暂存，44个字节
+        assertTrue(session.send(FRAME)); // 暂存，88个字节
+        assertFalse(session.send(FRAME)); // 超过100个字节，应断开
+        assertEquals(2, session.getStats().getSpilledFrames());
+        session.close();
+    }
+
+    @Test
+    public void deletesSpillFileOnClose() throws IOException {
+        UserSession session = stalledSession(UserSession.DEFAULT_MAX_SPILL_BYTES);
+        session.send(FRAME);
+        session.send(FRAME);
+        assertEquals(1, spillFiles().length);
+
+        session.close();
+        assertEquals(0, spillFiles().length);
+    }
+
+    @Test
+    public void endDeletesSpillFiles() throws IOException, InterruptedException {
+        UserSupervision userManager = new UserSupervision(new ServerConfig()
+                .setChatLogFile(folder.newFile("Content.txt").getPath())
+                .setHistoryDirectory(folder.newFolder("history").getPath())
+                .setSearchIndexDirectory("")
+                .setOverflowPolicy(OverflowPolicy.SPILL_TO_DISK)
+                .setOutboundQueueCapacity(1)
+                .setHeartbeat(0, 1000)
+                .setPresenceIntervalMillis(0)
+                .setMetricsReportSeconds(0));
+        CountDownLatch writing = new CountDownLatch(1);
+        try {
+            // 接收者的写任务卡在第一次写入上，之后的消息进入暂存文件
+            assertTrue(userManager.addUser(ID, new Socket(), new StalledOutputStream(writing)));
+            assertTrue(userManager.addUser(SENDER_ID, new Socket(), new ByteArrayOutputStream()));
+            userManager.sendMessage(SENDER_ID, "first");
+            writing.await();
+            for (int i = 0; i < 3; i++) {
+                userManager.sendMessage(SENDER_ID, "spilled " + i);
+            }
+            assertEquals(1, spillFiles().length);
+        } finally {
+            userManager.close();
+        }
+        assertEquals(0, spillFiles().length);
+    }
+
+    @Test
+    public void closesSessionWhenWriterFails() {
+        Socket socket = new Socket();
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) {
+                throw new IllegalStateException("模拟写出时的意外错误");
+            }
+        };
+        // 写任务在调用send的线程中直接执行
+        UserSession session = new UserSession(ID, socket, failing, Runnable::run, OverflowPolicy.DISCONNECT, 4,
+                UserSession.DEFAULT_MAX_SPILL_BYTES);
+        session.send(FRAME);
+        assertTrue(socket.isClosed());
+    }
+
+    // 写任务永远不会执行，发送队列容量为1，之后的消息都进入暂存文件
+    private static UserSession stalledSession(long maxSpillBytes) {
+        return new UserSession(ID, new Socket(), new ByteArrayOutputStream(), task -> {
+        }, OverflowPolicy.SPILL_TO_DISK, 1, maxSpillBytes);
+    }
+
+    private static File[] spillFiles() {
+        File[] files = new File(System.getProperty("java.io.tmpdir"))
+                .listFiles((dir, name) -> name.startsWith("chat-spill-" + ID + "-"));
+        return (files != null) ? files : new File[0];
+    }
+
+    // 第一次写入时一直阻塞，直到被关闭
+    private static class StalledOutputStream extends OutputStream {
+        private final CountDownLatch writing;
+        private boolean closed;
+
+        StalledOutputStream(CountDownLatch writing) {
+            this.writing = writing;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            writing.countDown();
+            while (!closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            throw new IOException("closed");
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+}